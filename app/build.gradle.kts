@@ -55,6 +55,12 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    // the benchmarks are skipped, unless run with ./gradlew test -Pbenchmark
+    testOptions {
+        unitTests.all {
+            it.systemProperty("benchmark", project.hasProperty("benchmark"))
+        }
+    }
 }
 
 dependencies {
@@ -1,9 +1,11 @@
 package org.the3deer.android.viewer
 
 import android.content.Intent
+import android.content.IntentFilter
 import android.net.ConnectivityManager
 import android.net.Uri
 import androidx.core.net.toUri
+import android.os.BatteryManager
 import android.os.Bundle
 import android.util.Log
 import android.view.Menu
@@ -39,10 +41,20 @@ import kotlinx.coroutines.withContext
 import org.the3deer.android.engine.ModelEngineViewModel
 import org.the3deer.android.util.ContentUtils
 import org.the3deer.android.viewer.databinding.ActivityMainBinding
+import org.the3deer.android.viewer.services.LoaderOptions
+import org.the3deer.android.viewer.services.MeshOptimization
+import org.the3deer.android.viewer.services.cache.SceneCache
+import org.the3deer.android.viewer.services.engine.EnginePool
+import org.the3deer.android.viewer.services.engine.ModelPrefetcher
+import org.the3deer.android.viewer.services.gltf.GlbMappedLoaderTask
+import org.the3deer.android.viewer.services.stl.STLMappedLoaderTask
+import org.the3deer.android.viewer.services.wavefront.ParallelWavefrontLoaderTask
+import org.the3deer.android.viewer.services.wavefront.StreamingWavefrontLoaderTask
 import org.the3deer.android.viewer.ui.dialogs.AnimationDialogFragment
 import org.the3deer.android.viewer.ui.dialogs.CameraDialogFragment
 import org.the3deer.android.viewer.ui.dialogs.ModelInfoDialogFragment
 import org.the3deer.android.viewer.ui.dialogs.SceneDialogFragment
+import org.the3deer.android.viewer.ui.home.ProgressiveLoader
 import org.the3deer.android.viewer.ui.load.LoadContentDialog
 import org.the3deer.android.viewer.ui.settings.SettingsFragment
 import org.the3deer.android.engine.Model
@@ -55,8 +67,11 @@ import org.the3deer.android.engine.event.FPSEvent
 import org.the3deer.android.engine.event.SceneEvent
 import org.the3deer.android.engine.model.ModelEvent
 import org.the3deer.android.engine.model.Object3D
+import org.the3deer.android.engine.model.Scene
 import org.the3deer.util.event.EventListener
 import org.the3deer.util.event.EventManager
+import org.the3deer.android.engine.services.LoadListener
+import org.the3deer.android.engine.services.LoaderTask
 import org.the3deer.android.engine.services.LoaderRegistry
 import org.the3deer.android.engine.services.collada.ColladaLoaderTask
 import org.the3deer.android.engine.services.fbx.FbxLoaderTask
@@ -67,17 +82,68 @@ import java.net.URI
 import java.util.EventObject
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
+import java.util.function.LongConsumer
 
 class MainActivity : AppCompatActivity(), EventListener, ContentUtils.ContentResolver {
 
     init {
         // Register only the formats your game uses
-        LoaderRegistry.register("obj") { uri, listener -> WavefrontLoaderTask(uri, listener) }
-        LoaderRegistry.register("gltf") { uri, listener -> GltfLoaderTask(uri, listener) }
-        LoaderRegistry.register("glb") { uri, listener -> GltfLoaderTask(uri, listener) }
-        LoaderRegistry.register("fbx") { uri, listener -> FbxLoaderTask(uri, listener) }
-        LoaderRegistry.register("stl") { uri, listener -> STLLoaderTask(uri, listener) }
-        LoaderRegistry.register("dae") { uri, listener -> ColladaLoaderTask(uri, listener) }
+        // The scene cache goes first: if the model was opened before, its cached copy is mapped instead
+        // (it was optimized before it was cached, if the option was enabled)
+        register("obj") { uri, listener ->
+            val options = LoaderOptions.getInstance()
+            SceneCache.getInstance().newLoader(uri, listener)
+                ?: if (options.isStreaming && options.isParallel) ParallelWavefrontLoaderTask(uri, listener, applicationContext.contentResolver, options.isOptimize)
+                else if (options.isStreaming) StreamingWavefrontLoaderTask(uri, optimizing(listener))
+                else WavefrontLoaderTask(uri, optimizing(listener))
+        }
+        register("gltf") { uri, listener -> SceneCache.getInstance().newLoader(uri, listener) ?: GltfLoaderTask(uri, optimizing(listener)) }
+        register("glb") { uri, listener ->
+            val contentResolver = applicationContext.contentResolver
+            SceneCache.getInstance().newLoader(uri, listener)
+                ?: if (GlbMappedLoaderTask.accepts(uri, contentResolver, LoaderOptions.getInstance().isGlbMapped))
+                    GlbMappedLoaderTask(uri, optimizing(listener), contentResolver)
+                else GltfLoaderTask(uri, optimizing(listener))
+        }
+        register("fbx") { uri, listener -> SceneCache.getInstance().newLoader(uri, listener) ?: FbxLoaderTask(uri, optimizing(listener)) }
+        register("stl") { uri, listener ->
+            val options = LoaderOptions.getInstance()
+            SceneCache.getInstance().newLoader(uri, listener)
+                ?: if (options.isStlMapped) STLMappedLoaderTask(uri, optimizing(listener), applicationContext.contentResolver, options.isStlWeld)
+                else STLLoaderTask(uri, optimizing(listener))
+        }
+        register("dae") { uri, listener -> SceneCache.getInstance().newLoader(uri, listener) ?: ColladaLoaderTask(uri, optimizing(listener)) }
+    }
+
+    /**
+     * Register the loader of the format. The objects loaded are notified to the progressive loader following
+     * the load, if any. A model prefetched is loaded in the background, until the prefetch is cancelled or the
+     * model is opened
+     */
+    private fun register(extension: String, factory: (URI, LoadListener) -> LoaderTask) {
+        LoaderRegistry.register(extension) { uri, engineListener ->
+            val listener = ModelPrefetcher.getInstance().wrap(uri, engineListener)
+            factory(uri, if (LoaderOptions.getInstance().isProgressive) object : LoadListener by listener {
+                override fun onLoadObject(scene: Scene, obj: Object3D) {
+                    listener.onLoadObject(scene, obj)
+                    ProgressiveLoader.onLoadObject(uri, scene, obj)
+                }
+            } else listener)
+        }
+    }
+
+    /**
+     * Wrap the listener of the engine, so the meshes are optimized before they are added to the scene
+     */
+    private fun optimizing(listener: LoadListener): LoadListener {
+        if (!LoaderOptions.getInstance().isOptimize) return listener
+        val session = MeshOptimization.Session()
+        return object : LoadListener by listener {
+            override fun onLoadObject(scene: Scene, obj: Object3D) {
+                session.optimize(obj)
+                listener.onLoadObject(scene, obj)
+            }
+        }
     }
 
     private val TAG = "MainActivity"
@@ -139,6 +205,36 @@ class MainActivity : AppCompatActivity(), EventListener, ContentUtils.ContentRes
         ContentUtils.setContext(this)
         ContentUtils.setContentResolver(this)
 
+        // Initialize the cache of loaded models
+        SceneCache.getInstance().init(applicationContext)
+
+
+        // Release the engines of the recent models kept warm, when they are over the budget
+        EnginePool.getInstance().setEvictor { id -> runOnUiThread { modelEngineViewModel.resetEngine(id) } }
+
+        // Load the recent models in the background with the engines of the view model, while idle
+        ModelPrefetcher.getInstance().setLoader(object : ModelPrefetcher.Loader {
+            override fun load(uri: String, name: String, type: String, done: LongConsumer) = runOnUiThread {
+                modelEngineViewModel.initEngine(uri, name, type) {
+                    modelEngineViewModel.loadEngine(uri) {
+                        val engine = modelEngineViewModel.getEngine(uri)
+                        if (engine?.status == ModelEngine.Status.OK) {
+                            try {
+                                SceneCache.getInstance().store(URI.create(uri), engine.model)
+                            } catch (e: IllegalArgumentException) {
+                                Log.w(TAG, "Model not cached. Invalid uri: $uri")
+                            }
+                            done.accept(engine.model.memoryUsage)
+                        } else {
+                            done.accept(-1)
+                        }
+                    }
+                }
+            }
+
+            override fun release(uri: String) = runOnUiThread { modelEngineViewModel.resetEngine(uri) }
+        }) { isChargingOrUnmetered() }
+
         binding = ActivityMainBinding.inflate(layoutInflater)
         setContentView(binding.root)
 
@@ -568,12 +664,16 @@ class MainActivity : AppCompatActivity(), EventListener, ContentUtils.ContentRes
                     binding.appBarMain.btnGameMode.setImageResource(android.R.drawable.ic_menu_compass)
                 }
 
-                if (modelStatus == Model.Status.LOADING || engineStatus == ModelEngine.Status.LOADING) {
+                // progressive loading: the model is already visible, so don't cover it
+                val loading = modelStatus == Model.Status.LOADING || engineStatus == ModelEngine.Status.LOADING
+                val progressive = loading && LoaderOptions.getInstance().isProgressive && (scene?.objects?.isNotEmpty() == true)
+                if (loading && !progressive) {
                     binding.loadingLayout.visibility = View.VISIBLE
                     binding.loadingText.text = model.message
                 } else {
                     binding.loadingLayout.visibility = View.GONE
                 }
+                binding.appBarMain.toolbar.subtitle = if (progressive) model.message else null
             } catch (e: Exception) {
                 Log.e("MainActivity","Error refreshing overlay buttons", e)
             }
@@ -633,6 +733,16 @@ class MainActivity : AppCompatActivity(), EventListener, ContentUtils.ContentRes
         getContent.launch(arrayOf(mimeType))
     }
 
+    /**
+     * @return whether the device is charging or on an unmetered network, e.g. Wi-Fi, so the models can be prefetched
+     */
+    private fun isChargingOrUnmetered(): Boolean {
+        val battery = registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+        if ((battery?.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) ?: 0) != 0) return true
+        val connMgr = getSystemService(CONNECTIVITY_SERVICE) as ConnectivityManager
+        return connMgr.activeNetwork != null && !connMgr.isActiveNetworkMetered
+    }
+
     /**
      * Update the recent models' menu. That is, it adds a menu item for each URI in the history with an Icon.
      */
@@ -740,6 +850,18 @@ class MainActivity : AppCompatActivity(), EventListener, ContentUtils.ContentRes
         return super.onOptionsItemSelected(item)
     }
 
+    override fun onDestroy() {
+        // the singletons outlive the activity: they must not keep it
+        EnginePool.getInstance().setEvictor(null)
+        ModelPrefetcher.getInstance().setLoader(null, null)
+        super.onDestroy()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        EnginePool.getInstance().onTrimMemory(level)
+    }
+
     override fun onSupportNavigateUp(): Boolean {
         val navController = findNavController(R.id.nav_host_fragment_content_main)
         return navController.navigateUp(appBarConfiguration) || super.onSupportNavigateUp()
@@ -0,0 +1,170 @@
+package org.the3deer.android.viewer.services;
+
+import android.content.SharedPreferences;
+
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+/**
+ * Options for the model loaders registered by the application.
+ * <p>
+ * The loaders are registered once per process (see <code>MainActivity</code>), before any engine
+ * exists, so this bean is a singleton. It is restored from the preferences at startup and it is
+ * also registered in every engine, so the options are listed in the Settings screen.
+ * </p>
+ */
+@Bean(name = "loader", category = "general", experimental = true)
+public class LoaderOptions {
+
+    private static final LoaderOptions INSTANCE = new LoaderOptions();
+
+    /**
+     * Parse OBJ files with the streaming parser
+     */
+    @BeanProperty
+    private boolean streaming = false;
+
+    /**
+     * Parse the OBJ groups in parallel (only when streaming)
+     */
+    @BeanProperty
+    private boolean parallel = false;
+
+    /**
+     * Memory-map STL files
+     */
+    @BeanProperty
+    private boolean stlMapped = false;
+
+    /**
+     * Weld duplicated STL vertices into an indexed mesh (only when mapped)
+     */
+    @BeanProperty
+    private boolean stlWeld = false;
+
+    /**
+     * Memory-map GLB files with static meshes
+     */
+    @BeanProperty
+    private boolean glbMapped = false;
+
+    /**
+     * Show the objects while the rest of the model is loading
+     */
+    @BeanProperty
+    private boolean progressive = false;
+
+    /**
+     * Cache the loaded models for a faster reopen
+     */
+    @BeanProperty
+    private boolean cache = false;
+
+    /**
+     * Reorder the triangles and vertices of the meshes for the GPU, before they are added to the scene
+     */
+    @BeanProperty
+    private boolean optimize = false;
+
+    /**
+     * Generate simplified levels of detail of the meshes, and draw the one that fits the distance to the camera
+     */
+    @BeanProperty
+    private boolean lod = false;
+
+    private LoaderOptions() {
+    }
+
+    public static LoaderOptions getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Restore the options from the preferences.
+     * Keys follow the <code>&lt;className&gt;.&lt;propertyName&gt;</code> convention.
+     */
+    public void restore(SharedPreferences preferences) {
+        final String prefix = LoaderOptions.class.getName() + ".";
+        streaming = preferences.getBoolean(prefix + "streaming", streaming);
+        parallel = preferences.getBoolean(prefix + "parallel", parallel);
+        stlMapped = preferences.getBoolean(prefix + "stlMapped", stlMapped);
+        stlWeld = preferences.getBoolean(prefix + "stlWeld", stlWeld);
+        glbMapped = preferences.getBoolean(prefix + "glbMapped", glbMapped);
+        progressive = preferences.getBoolean(prefix + "progressive", progressive);
+        cache = preferences.getBoolean(prefix + "cache", cache);
+        optimize = preferences.getBoolean(prefix + "optimize", optimize);
+        lod = preferences.getBoolean(prefix + "lod", lod);
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isStlMapped() {
+        return stlMapped;
+    }
+
+    public void setStlMapped(boolean stlMapped) {
+        this.stlMapped = stlMapped;
+    }
+
+    public boolean isStlWeld() {
+        return stlWeld;
+    }
+
+    public void setStlWeld(boolean stlWeld) {
+        this.stlWeld = stlWeld;
+    }
+
+    public boolean isGlbMapped() {
+        return glbMapped;
+    }
+
+    public void setGlbMapped(boolean glbMapped) {
+        this.glbMapped = glbMapped;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    public boolean isCache() {
+        return cache;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    public boolean isLod() {
+        return lod;
+    }
+
+    public void setLod(boolean lod) {
+        this.lod = lod;
+    }
+}
@@ -0,0 +1,182 @@
+package org.the3deer.android.viewer.services;
+
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.viewer.util.MeshOptimizer;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Optimizes the meshes after they are loaded, before they are added to the scene (and uploaded to the GPU).
+ * <p>
+ * Indexed triangle lists get their triangles reordered for the vertex cache and for overdraw, and their
+ * vertices renumbered in the order they are used. Objects of subclasses (i.e. animated models, with
+ * joints and weights per vertex) only get their triangles reordered, so no vertex attribute is left behind.
+ * </p>
+ *
+ * @see LoaderOptions#isOptimize()
+ * @see MeshOptimizer
+ */
+public final class MeshOptimization {
+
+    private static final Logger logger = Logger.getLogger(MeshOptimization.class.getSimpleName());
+
+    /**
+     * Cache stats of a mesh, before and after the optimization
+     */
+    public static final class Report {
+
+        private final String id;
+        private final MeshOptimizer.CacheStats before;
+        private final MeshOptimizer.CacheStats after;
+        private final long time;
+
+        Report(String id, MeshOptimizer.CacheStats before, MeshOptimizer.CacheStats after, long time) {
+            this.id = id;
+            this.before = before;
+            this.after = after;
+            this.time = time;
+        }
+
+        public MeshOptimizer.CacheStats getBefore() {
+            return before;
+        }
+
+        public MeshOptimizer.CacheStats getAfter() {
+            return after;
+        }
+
+        @Override
+        public String toString() {
+            return "Optimized '" + id + "' in " + time + " ms. Before: " + before + ". After: " + after;
+        }
+    }
+
+    /**
+     * Optimizes the objects of one load. Objects read from the same accessors (i.e. the instances of a mesh) have
+     * the same buffers: they are optimized once, and then they get the same optimized buffers, so they are still shared.
+     */
+    public static final class Session {
+
+        private final Map<Key, Object3D> optimized = new HashMap<>();
+
+        /**
+         * The buffers of an object before it's optimized, compared by identity
+         */
+        private static final class Key {
+            final Buffer[] buffers;
+
+            Key(Object3D obj) {
+                this.buffers = new Buffer[]{obj.getIndexBuffer(), obj.getVertexBuffer(), obj.getNormalsBuffer(),
+                        obj.getTextureBuffer(), obj.getColorsBuffer()};
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                for (int i = 0; i < buffers.length; i++) {
+                    if (buffers[i] != ((Key) o).buffers[i]) return false;
+                }
+                return true;
+            }
+
+            @Override
+            public int hashCode() {
+                int ret = 0;
+                for (Buffer buffer : buffers) ret = 31 * ret + System.identityHashCode(buffer);
+                return ret;
+            }
+        }
+
+        /**
+         * @see MeshOptimization#optimize(Object3D)
+         */
+        public synchronized Report optimize(Object3D obj) {
+            final Key key = new Key(obj);
+            final Object3D result = obj.getIndexBuffer() != null ? optimized.get(key) : null;
+            if (result != null) {
+                obj.setIndexBuffer(result.getIndexBuffer());
+                obj.setVertexBuffer(result.getVertexBuffer());
+                if (obj.getNormalsBuffer() != null) obj.setNormalsBuffer(result.getNormalsBuffer());
+                if (obj.getTextureBuffer() != null) obj.setTextureBuffer(result.getTextureBuffer());
+                if (obj.getColorsBuffer() != null) obj.setColorsBuffer(result.getColorsBuffer());
+                return null;
+            }
+
+            final Report ret = MeshOptimization.optimize(obj);
+            if (ret != null) optimized.put(key, obj);
+            return ret;
+        }
+    }
+
+    private MeshOptimization() {
+    }
+
+    /**
+     * Optimize the object, replacing its buffers
+     *
+     * @param obj the object, not yet in the scene
+     * @return the report, or <code>null</code> if the object is not an indexed triangle list
+     */
+    public static Report optimize(Object3D obj) {
+        final FloatBuffer vertices = obj.getVertexBuffer();
+        final IntBuffer indexBuffer = obj.getIndexBuffer();
+        if (obj.getDrawMode() != GLES20.GL_TRIANGLES || vertices == null || indexBuffer == null) return null;
+
+        final long start = System.currentTimeMillis();
+        final int vertexCount = vertices.limit() / 3;
+        int[] indices = new int[indexBuffer.limit()];
+        final IntBuffer source = indexBuffer.duplicate();
+        source.position(0);
+        source.get(indices);
+        if (indices.length < 3 || indices.length % 3 != 0) return null;
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                logger.warning("Not optimizing '" + obj.getId() + "': index out of range: " + index);
+                return null;
+            }
+        }
+
+        final MeshOptimizer.CacheStats before = MeshOptimizer.analyzeVertexCache(indices, vertexCount, MeshOptimizer.CACHE_SIZE);
+        indices = MeshOptimizer.optimizeVertexCache(indices, vertexCount, MeshOptimizer.CACHE_SIZE);
+        indices = MeshOptimizer.optimizeOverdraw(indices, vertices, vertexCount, MeshOptimizer.CACHE_SIZE, MeshOptimizer.OVERDRAW_THRESHOLD);
+
+        if (canRemap(obj, vertexCount)) {
+            final int[] remap = MeshOptimizer.optimizeVertexFetch(indices, vertexCount);
+            obj.setVertexBuffer(MeshOptimizer.remapBuffer(vertices, 3, remap));
+            if (obj.getNormalsBuffer() != null) obj.setNormalsBuffer(MeshOptimizer.remapBuffer(obj.getNormalsBuffer(), 3, remap));
+            if (obj.getTextureBuffer() != null) obj.setTextureBuffer(MeshOptimizer.remapBuffer(obj.getTextureBuffer(), 2, remap));
+            if (obj.getColorsBuffer() != null) obj.setColorsBuffer(MeshOptimizer.remapBuffer(obj.getColorsBuffer(), 4, remap));
+        }
+
+        final IntBuffer optimized = ByteBuffer.allocateDirect(indices.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        optimized.put(indices).position(0);
+        obj.setIndexBuffer(optimized);
+
+        final Report ret = new Report(obj.getId(), before,
+                MeshOptimizer.analyzeVertexCache(indices, vertexCount, MeshOptimizer.CACHE_SIZE), System.currentTimeMillis() - start);
+        logger.info(ret.toString());
+        return ret;
+    }
+
+    /**
+     * @return true if all the vertex attributes are known, and they have one value per vertex
+     */
+    private static boolean canRemap(Object3D obj, int vertexCount) {
+        if (obj.getClass() != Object3D.class) return false;
+        final FloatBuffer normals = obj.getNormalsBuffer();
+        final FloatBuffer texture = obj.getTextureBuffer();
+        final FloatBuffer colors = obj.getColorsBuffer();
+        return (normals == null || normals.limit() == vertexCount * 3)
+                && (texture == null || texture.limit() == vertexCount * 2)
+                && (colors == null || colors.limit() == vertexCount * 4);
+    }
+}
@@ -0,0 +1,264 @@
+package org.the3deer.android.viewer.services.batching;
+
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.viewer.services.lod.LodChain;
+import org.the3deer.util.io.IOUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Static objects merged in one object, so they are drawn with one draw call.
+ * <p>
+ * The vertices of the members are transformed to world space, and appended in the buffers of the merged object.
+ * The range of indices of each member is kept, so a member can be hidden (its range is left out of the index buffer),
+ * and the triangles of the merged object can be mapped back to the member.
+ * The members keep their own buffers, so their bounding boxes are the same.
+ * </p>
+ */
+public final class Batch {
+
+    private final Object3D object;
+    private final List<Object3D> members;
+
+    // per member: range in the full index array, and the model matrix when merged
+    private final int[] first;
+    private final int[] count;
+    private final float[][] matrices;
+    private final int[] indices;
+
+    // per member: shown, and the first triangle in the current index buffer (-1 if hidden)
+    private final boolean[] shown;
+    private final int[] triangles;
+
+    private Batch(Object3D object, List<Object3D> members, int[] first, int[] count, float[][] matrices, int[] indices) {
+        this.object = object;
+        this.members = members;
+        this.first = first;
+        this.count = count;
+        this.matrices = matrices;
+        this.indices = indices;
+        this.shown = new boolean[members.size()];
+        this.triangles = new int[members.size()];
+        Arrays.fill(shown, true);
+        updateIndices();
+    }
+
+    /**
+     * Merge the objects. All of them must have the same attributes and the same color
+     *
+     * @param id      id of the merged object
+     * @param members objects to merge, drawn as {@link GLES20#GL_TRIANGLES}
+     */
+    static Batch merge(String id, List<Object3D> members) {
+        final Object3D head = members.get(0);
+        final boolean normals = head.getNormalsBuffer() != null;
+        final boolean colors = head.getColorsBuffer() != null;
+
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (Object3D obj : members) {
+            final IntBuffer source = LodChain.getFullDetail(obj);
+            vertexCount += obj.getVertexBuffer().limit() / 3;
+            indexCount += source != null ? source.limit() : obj.getVertexBuffer().limit() / 3;
+        }
+
+        final FloatBuffer vertexBuffer = IOUtils.createFloatBuffer(vertexCount * 3);
+        final FloatBuffer normalsBuffer = normals ? IOUtils.createFloatBuffer(vertexCount * 3) : null;
+        final FloatBuffer colorsBuffer = colors ? IOUtils.createFloatBuffer(vertexCount * 4) : null;
+        final int[] indices = new int[indexCount];
+        final int[] first = new int[members.size()];
+        final int[] count = new int[members.size()];
+        final float[][] matrices = new float[members.size()][];
+
+        final float[] vertex = new float[3];
+        int base = 0;
+        int offset = 0;
+        for (int m = 0; m < members.size(); m++) {
+            final Object3D obj = members.get(m);
+            final float[] matrix = obj.getModelMatrix();
+            matrices[m] = matrix != null ? matrix.clone() : null;
+            final float[] normalMatrix = matrix != null ? normalMatrix(matrix) : null;
+
+            final FloatBuffer vertices = obj.getVertexBuffer();
+            final int vertices3 = vertices.limit();
+            for (int i = 0; i < vertices3; i += 3) {
+                vertex[0] = vertices.get(i);
+                vertex[1] = vertices.get(i + 1);
+                vertex[2] = vertices.get(i + 2);
+                if (matrix != null) transform(matrix, vertex, 1);
+                vertexBuffer.put(vertex);
+                if (normals) {
+                    final FloatBuffer source = obj.getNormalsBuffer();
+                    vertex[0] = source.get(i);
+                    vertex[1] = source.get(i + 1);
+                    vertex[2] = source.get(i + 2);
+                    if (normalMatrix != null) transform(normalMatrix, vertex, 0);
+                    normalsBuffer.put(vertex);
+                }
+            }
+            if (colors) {
+                final FloatBuffer source = obj.getColorsBuffer();
+                for (int i = 0; i < source.limit(); i++) colorsBuffer.put(source.get(i));
+            }
+
+            final IntBuffer source = LodChain.getFullDetail(obj);
+            first[m] = offset;
+            if (source != null) {
+                for (int i = 0; i < source.limit(); i++) indices[offset++] = base + source.get(i);
+            } else {
+                for (int i = 0; i < vertices3 / 3; i++) indices[offset++] = base + i;
+            }
+            count[m] = offset - first[m];
+            base += vertices3 / 3;
+        }
+
+        vertexBuffer.position(0);
+        final Object3D object = new Object3D(vertexBuffer, IOUtils.createIntBuffer(indexCount));
+        object.setId(id);
+        object.setDrawMode(GLES20.GL_TRIANGLES);
+        if (normals) object.setNormalsBuffer((FloatBuffer) normalsBuffer.position(0));
+        if (colors) object.setColorsBuffer((FloatBuffer) colorsBuffer.position(0));
+        if (head.getColor() != null) object.setColor(head.getColor().clone());
+        return new Batch(object, Collections.unmodifiableList(members), first, count, matrices, indices);
+    }
+
+    /**
+     * @return the merged object
+     */
+    public Object3D getObject() {
+        return object;
+    }
+
+    public List<Object3D> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return true if the member is drawn by the batch
+     */
+    public boolean isVisible(Object3D member) {
+        final int m = indexOf(member);
+        return m != -1 && shown[m];
+    }
+
+    /**
+     * Show or hide the member. The index buffer of the merged object is replaced
+     */
+    public void setVisible(Object3D member, boolean visible) {
+        final int m = indexOf(member);
+        if (m == -1 || shown[m] == visible) return;
+        shown[m] = visible;
+        updateIndices();
+    }
+
+    /**
+     * @param triangle index of a triangle of the current index buffer of the merged object
+     * @return the member, or <code>null</code> if the triangle is out of range
+     */
+    public Object3D getMember(int triangle) {
+        for (int m = 0; m < members.size(); m++) {
+            if (triangles[m] != -1 && triangle >= triangles[m] && triangle < triangles[m] + count[m] / 3) {
+                return members.get(m);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param triangle index of a triangle of the current index buffer of the merged object
+     * @return index of the triangle in the mesh of the member, or -1 if the triangle is out of range
+     */
+    public int getMemberTriangle(int triangle) {
+        for (int m = 0; m < members.size(); m++) {
+            if (triangles[m] != -1 && triangle >= triangles[m] && triangle < triangles[m] + count[m] / 3) {
+                return triangle - triangles[m];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the member moved since it was merged
+     */
+    boolean isMoved(Object3D member) {
+        final int m = indexOf(member);
+        return m != -1 && !Arrays.equals(matrices[m], member.getModelMatrix());
+    }
+
+    /**
+     * @return number of members drawn by the batch
+     */
+    int getVisibleCount() {
+        int ret = 0;
+        for (boolean visible : shown) if (visible) ret++;
+        return ret;
+    }
+
+    private int indexOf(Object3D member) {
+        for (int m = 0; m < members.size(); m++) {
+            if (members.get(m) == member) return m;
+        }
+        return -1;
+    }
+
+    private void updateIndices() {
+        int size = 0;
+        for (int m = 0; m < members.size(); m++) {
+            triangles[m] = shown[m] ? size / 3 : -1;
+            if (shown[m]) size += count[m];
+        }
+        final IntBuffer buffer = IOUtils.createIntBuffer(size);
+        for (int m = 0; m < members.size(); m++) {
+            if (shown[m]) buffer.put(indices, first[m], count[m]);
+        }
+        buffer.position(0);
+        object.setIndexBuffer(buffer);
+    }
+
+    /**
+     * Multiply the column major 4x4 matrix by the vector (x, y, z, w)
+     */
+    static void transform(float[] matrix, float[] vector, float w) {
+        final float x = vector[0], y = vector[1], z = vector[2];
+        vector[0] = matrix[0] * x + matrix[4] * y + matrix[8] * z + matrix[12] * w;
+        vector[1] = matrix[1] * x + matrix[5] * y + matrix[9] * z + matrix[13] * w;
+        vector[2] = matrix[2] * x + matrix[6] * y + matrix[10] * z + matrix[14] * w;
+        if (w == 0) {
+            final float length = (float) Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+            if (length > 0) {
+                vector[0] /= length;
+                vector[1] /= length;
+                vector[2] /= length;
+            }
+        }
+    }
+
+    /**
+     * @return the cofactors of the upper 3x3 of the matrix, as a 4x4 matrix. That's the inverse transpose,
+     * up to a scale, so it keeps the normals perpendicular under non uniform scales
+     */
+    static float[] normalMatrix(float[] m) {
+        final float[] ret = new float[16];
+        ret[0] = m[5] * m[10] - m[6] * m[9];
+        ret[1] = m[6] * m[8] - m[4] * m[10];
+        ret[2] = m[4] * m[9] - m[5] * m[8];
+        ret[4] = m[2] * m[9] - m[1] * m[10];
+        ret[5] = m[0] * m[10] - m[2] * m[8];
+        ret[6] = m[1] * m[8] - m[0] * m[9];
+        ret[8] = m[1] * m[6] - m[2] * m[5];
+        ret[9] = m[2] * m[4] - m[0] * m[6];
+        ret[10] = m[0] * m[5] - m[1] * m[4];
+        // mirrored: keep the normals pointing out
+        if (m[0] * ret[0] + m[4] * ret[4] + m[8] * ret[8] < 0) {
+            for (int i = 0; i < 11; i++) ret[i] = -ret[i];
+        }
+        ret[15] = 1;
+        return ret;
+    }
+}
@@ -0,0 +1,39 @@
+package org.the3deer.android.viewer.services.batching;
+
+import java.util.EventObject;
+
+/**
+ * Fired when the batches of the scene change, with the number of draw calls before and after merging
+ */
+public class BatchEvent extends EventObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int drawCallsBefore;
+    private final int drawCallsAfter;
+    private final int batches;
+
+    public BatchEvent(Object source, int drawCallsBefore, int drawCallsAfter, int batches) {
+        super(source);
+        this.drawCallsBefore = drawCallsBefore;
+        this.drawCallsAfter = drawCallsAfter;
+        this.batches = batches;
+    }
+
+    public int getDrawCallsBefore() {
+        return drawCallsBefore;
+    }
+
+    public int getDrawCallsAfter() {
+        return drawCallsAfter;
+    }
+
+    public int getBatches() {
+        return batches;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchEvent{drawCalls=" + drawCallsBefore + " -> " + drawCallsAfter + ", batches=" + batches + '}';
+    }
+}
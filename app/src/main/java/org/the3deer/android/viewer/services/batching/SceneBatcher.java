@@ -0,0 +1,301 @@
+package org.the3deer.android.viewer.services.batching;
+
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.culling.SceneCuller;
+import org.the3deer.android.viewer.services.lod.LodChain;
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Merges the small static objects of the scene that look the same, so they are drawn with fewer draw calls.
+ * <p>
+ * The objects are grouped by their attributes (normals, colors) and their color, and each group is merged in a
+ * {@link Batch} that is added to the scene. The members are hidden, so the renderer only draws the batch.
+ * Textured and animated objects are not merged. When a member moves, it's taken out of its batch and shown again.
+ * </p>
+ * <p>
+ * The visibility of the members must be changed with {@link #setVisible(Object3D, boolean)}, and the triangles
+ * hit on a batch are mapped back to the member with {@link Batch#getMember(int)}. A member shown directly is shown
+ * by its batch instead. The visibility of the batches is changed through the {@link SceneCuller}, if any, so
+ * a culled batch is not shown again with its members hidden.
+ * The engine keeps one batcher per model. The draw calls before and after are available for the stats.
+ * </p>
+ */
+@Bean(name = "batching", category = "general", experimental = true)
+public class SceneBatcher {
+
+    private static final Logger logger = Logger.getLogger(SceneBatcher.class.getSimpleName());
+
+    // objects with more vertices are drawn on their own
+    static final int MAX_OBJECT_VERTICES = 4096;
+    // so culling and re-uploads stay fine-grained
+    static final int MAX_BATCH_VERTICES = 65536;
+
+    /**
+     * Merge the small objects of the scene
+     */
+    @BeanProperty
+    private boolean enabled = false;
+
+    private final List<Batch> batches = new ArrayList<>();
+    private final Map<Object3D, Batch> memberships = new IdentityHashMap<>();
+    private Scene scene;
+    private boolean active;
+    private SceneCuller culler;
+
+    private int drawCallsBefore;
+    private int drawCallsAfter;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param culler the culler of the model, may be <code>null</code>
+     */
+    public synchronized void setCuller(SceneCuller culler) {
+        this.culler = culler;
+    }
+
+    /**
+     * Merge the objects of the scene. The batches are built the first time, and shown again after {@link #restore()}
+     *
+     * @return true if the draw calls changed
+     */
+    public synchronized boolean batch(Scene scene) {
+        if (active && this.scene == scene) return false;
+        if (this.scene != scene) {
+            restore();
+            build(scene);
+        }
+
+        final int before = countDrawCalls(scene);
+        for (Batch batch : batches) {
+            for (Object3D member : batch.getMembers()) {
+                if (memberships.get(member) == batch) member.setVisible(false);
+            }
+            show(batch.getObject(), batch.getVisibleCount() > 0);
+        }
+        active = true;
+        drawCallsBefore = before;
+        drawCallsAfter = countDrawCalls(scene);
+        return drawCallsBefore != drawCallsAfter;
+    }
+
+    /**
+     * Take the members that moved out of their batch
+     *
+     * @return true if the draw calls changed
+     */
+    public synchronized boolean update() {
+        if (!active) return false;
+        boolean changed = false;
+        for (Batch batch : batches) {
+            for (Object3D member : batch.getMembers()) {
+                if (memberships.get(member) != batch) continue;
+                if (member.isVisible() && !batch.isMoved(member)) {
+                    // shown directly (i.e. by the engine): shown by the batch instead
+                    setVisible(member, true);
+                    continue;
+                }
+                if (!batch.isMoved(member)) continue;
+                final boolean visible = batch.isVisible(member) || member.isVisible();
+                batch.setVisible(member, false);
+                memberships.remove(member);
+                member.setVisible(visible);
+                if (batch.getVisibleCount() == 0) show(batch.getObject(), false);
+                logger.fine("Object '" + member.getId() + "' moved. Taken out of '" + batch.getObject().getId() + "'");
+                changed = true;
+            }
+        }
+        if (changed) drawCallsAfter = countDrawCalls(scene);
+        return changed;
+    }
+
+    /**
+     * Show the members, and hide the batches
+     */
+    public synchronized void restore() {
+        if (!active) return;
+        for (Batch batch : batches) {
+            show(batch.getObject(), false);
+            for (Object3D member : batch.getMembers()) {
+                if (memberships.get(member) == batch) member.setVisible(batch.isVisible(member));
+            }
+        }
+        active = false;
+        drawCallsAfter = drawCallsBefore;
+    }
+
+    /**
+     * Show or hide the object, even if it's merged in a batch
+     */
+    public synchronized void setVisible(Object3D obj, boolean visible) {
+        final Batch batch = memberships.get(obj);
+        if (batch == null) {
+            show(obj, visible);
+            return;
+        }
+        batch.setVisible(obj, visible);
+        if (active) {
+            obj.setVisible(false);
+            show(batch.getObject(), batch.getVisibleCount() > 0);
+        } else {
+            show(obj, visible);
+        }
+    }
+
+    /**
+     * @return true if the object is shown, even if it's merged in a batch
+     */
+    public synchronized boolean isVisible(Object3D obj) {
+        final Batch batch = memberships.get(obj);
+        return batch != null ? batch.isVisible(obj) : obj.isVisible();
+    }
+
+    /**
+     * @param obj an object of the scene
+     * @return the batch drawn by the object, or <code>null</code> if it's not a batch
+     */
+    public synchronized Batch getBatch(Object3D obj) {
+        for (Batch batch : batches) {
+            if (batch.getObject() == obj) return batch;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the object is a batch, or it's merged in one
+     */
+    public synchronized boolean isBatched(Object3D obj) {
+        return memberships.containsKey(obj) || getBatch(obj) != null;
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return true if the scene is merged
+     */
+    public synchronized boolean isActive(Scene scene) {
+        return active && this.scene == scene;
+    }
+
+    public synchronized List<Batch> getBatches() {
+        return Collections.unmodifiableList(new ArrayList<>(batches));
+    }
+
+    /**
+     * @return visible objects of the scene, when the batches were shown
+     */
+    public synchronized int getDrawCallsBefore() {
+        return drawCallsBefore;
+    }
+
+    /**
+     * @return visible objects of the scene, with the batches
+     */
+    public synchronized int getDrawCallsAfter() {
+        return drawCallsAfter;
+    }
+
+    private void build(Scene scene) {
+        this.scene = scene;
+        batches.clear();
+        memberships.clear();
+
+        // group by look, keeping the order of the scene
+        final Map<String, List<Object3D>> groups = new LinkedHashMap<>();
+        for (Object3D obj : new ArrayList<>(scene.getObjects())) {
+            if (!canMerge(obj)) continue;
+            final String key = (obj.getNormalsBuffer() != null) + ":" + (obj.getColorsBuffer() != null) + ":" + Arrays.toString(obj.getColor());
+            List<Object3D> group = groups.get(key);
+            if (group == null) groups.put(key, group = new ArrayList<>());
+            group.add(obj);
+        }
+
+        final long start = System.currentTimeMillis();
+        for (List<Object3D> group : groups.values()) {
+            int from = 0;
+            int vertices = 0;
+            for (int i = 0; i <= group.size(); i++) {
+                final int count = i < group.size() ? group.get(i).getVertexBuffer().limit() / 3 : 0;
+                if (i < group.size() && vertices + count <= MAX_BATCH_VERTICES) {
+                    vertices += count;
+                    continue;
+                }
+                if (i - from > 1) add(scene, Batch.merge("batch_" + batches.size(), new ArrayList<>(group.subList(from, i))));
+                from = i;
+                vertices = count;
+            }
+        }
+        if (!batches.isEmpty()) {
+            logger.info("Merged " + memberships.size() + " objects in " + batches.size() + " batches. Time: "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private void add(Scene scene, Batch batch) {
+        batch.getObject().setVisible(false);
+        batches.add(batch);
+        for (Object3D member : batch.getMembers()) memberships.put(member, batch);
+        scene.addObject(batch.getObject());
+    }
+
+    private void show(Object3D obj, boolean visible) {
+        if (culler != null) culler.setVisible(obj, visible);
+        else obj.setVisible(visible);
+    }
+
+    /**
+     * @return true if the object is visible, static, untextured and small, and all its attributes are known
+     */
+    private static boolean canMerge(Object3D obj) {
+        if (obj.getClass() != Object3D.class || !obj.isVisible() || obj.getDrawMode() != GLES20.GL_TRIANGLES) return false;
+        final FloatBuffer vertices = obj.getVertexBuffer();
+        if (vertices == null || obj.getTextureBuffer() != null) return false;
+        final int vertexCount = vertices.limit() / 3;
+        if (vertexCount == 0 || vertexCount > MAX_OBJECT_VERTICES) return false;
+
+        final FloatBuffer normals = obj.getNormalsBuffer();
+        final FloatBuffer colors = obj.getColorsBuffer();
+        if ((normals != null && normals.limit() != vertexCount * 3) || (colors != null && colors.limit() != vertexCount * 4)) {
+            return false;
+        }
+
+        final IntBuffer indices = LodChain.getFullDetail(obj);
+        if (indices == null) return vertexCount % 3 == 0;
+        if (indices.limit() % 3 != 0) return false;
+        for (int i = 0; i < indices.limit(); i++) {
+            if (indices.get(i) < 0 || indices.get(i) >= vertexCount) return false;
+        }
+        return true;
+    }
+
+    private static int countDrawCalls(Scene scene) {
+        int ret = 0;
+        for (Object3D obj : new ArrayList<>(scene.getObjects())) {
+            if (obj.isVisible()) ret++;
+        }
+        return ret;
+    }
+}
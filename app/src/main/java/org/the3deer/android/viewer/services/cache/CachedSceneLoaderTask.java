@@ -0,0 +1,54 @@
+package org.the3deer.android.viewer.services.cache;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoaderTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Loads a model from its {@link SceneCache} file.
+ * The file is memory-mapped, so the buffers of the objects are not copied.
+ */
+class CachedSceneLoaderTask extends LoaderTask {
+
+    private static final Logger logger = Logger.getLogger(CachedSceneLoaderTask.class.getSimpleName());
+
+    private final File file;
+
+    CachedSceneLoaderTask(URI uri, LoadListener callback, File file) {
+        super(uri, callback);
+        this.file = file;
+    }
+
+    @Override
+    protected List<Object3D> build() throws Exception {
+
+        final long start = System.currentTimeMillis();
+        final List<List<Object3D>> scenes;
+        try {
+            scenes = SceneCacheFile.read(file);
+        } catch (IOException e) {
+            SceneCache.getInstance().invalidate(file);
+            throw e;
+        }
+        logger.info("Loaded " + uri + " from cache in " + (System.currentTimeMillis() - start) + " ms");
+
+        final List<Object3D> ret = new ArrayList<>();
+        for (List<Object3D> objects : scenes) {
+            final Scene scene = new Scene();
+            for (Object3D obj : objects) {
+                onLoadObject(scene, obj);
+                ret.add(obj);
+            }
+            onLoadScene(scene);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,304 @@
+package org.the3deer.android.viewer.services.cache;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import org.the3deer.android.engine.Model;
+import org.the3deer.android.engine.model.Material;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.model.Texture;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoaderTask;
+import org.the3deer.android.viewer.services.LoaderOptions;
+import org.the3deer.android.viewer.util.MappedContent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of loaded models, so the recently viewed models open instantly.
+ * <p>
+ * After a model is loaded, its scenes are written to the app cache storage in the {@link SceneCacheFile} format.
+ * When the same content is opened again, the {@link #newLoader(URI, LoadListener)} task maps the file
+ * instead of parsing the original model.
+ * </p>
+ * <p>
+ * Files are named after a hash of the uri, the size and a sample of the content, so a modified
+ * model gets a new entry. Content that is not backed by a file (i.e. cloud documents) is not read just to
+ * compute the key: it's keyed by the size and modification date reported by its provider, or not cached
+ * if the provider doesn't report them. Least recently used files are deleted when the cache exceeds {@link #MAX_SIZE}.
+ * </p>
+ * <p>
+ * The geometry, colors, transformations and materials are cached, with the images of the color textures.
+ * Models with animations are not cached, nor the textures the loader didn't keep the image of,
+ * since they would be restored incomplete.
+ * </p>
+ *
+ * @see LoaderOptions#isCache()
+ */
+public final class SceneCache {
+
+    private static final Logger logger = Logger.getLogger(SceneCache.class.getSimpleName());
+
+    private static final SceneCache INSTANCE = new SceneCache();
+
+    /**
+     * Maximum size of the cache in bytes
+     */
+    static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final String EXTENSION = ".scene";
+
+    // bytes hashed from the start, middle and end of the content
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "SceneCache");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private File directory;
+    private ContentResolver contentResolver;
+
+    private SceneCache() {
+    }
+
+    public static SceneCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the cache directory. Until then, nothing is cached
+     */
+    public synchronized void init(Context context) {
+        this.directory = new File(context.getCacheDir(), "scenes");
+        this.contentResolver = context.getContentResolver();
+    }
+
+    private synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Create a loader for the cached copy of the model
+     *
+     * @return the loader, or <code>null</code> if the cache is disabled or the model is not cached
+     */
+    public LoaderTask newLoader(URI uri, LoadListener listener) {
+        final File directory = getDirectory();
+        if (directory == null || !LoaderOptions.getInstance().isCache()) return null;
+        try {
+            final String key = getKey(uri);
+            if (key == null) return null;
+            final File file = new File(directory, key + EXTENSION);
+            if (!file.isFile()) return null;
+            if (!SceneCacheFile.isValid(file)) {
+                invalidate(file);
+                return null;
+            }
+
+            // least recently used
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                logger.fine("Cache file timestamp not updated: " + file);
+            }
+            return new CachedSceneLoaderTask(uri, listener, file);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Error checking scene cache for " + uri + ". " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the scenes of the loaded model in the background, unless already cached
+     *
+     * @param uri   the uri the model was loaded from
+     * @param model the loaded model
+     */
+    public void store(URI uri, Model model) {
+        store(uri, model, obj -> false);
+    }
+
+    /**
+     * Write the scenes of the loaded model in the background, unless already cached.
+     * The objects of the scenes are copied on the calling thread, so it must be the thread that modifies them
+     *
+     * @param uri      the uri the model was loaded from
+     * @param model    the loaded model
+     * @param excluded objects added to the scenes after loading, that are not cached (i.e. the batches)
+     */
+    public void store(URI uri, Model model, Predicate<Object3D> excluded) {
+        final File directory = getDirectory();
+        if (directory == null || !LoaderOptions.getInstance().isCache()) return;
+
+        final List<Scene> scenes = model.getScenes();
+        if (!isCacheable(scenes)) {
+            logger.info("Model not cached (animations or texture without image): " + uri);
+            return;
+        }
+        final List<List<Object3D>> objects = new ArrayList<>(scenes.size());
+        for (Scene scene : scenes) {
+            final List<Object3D> list = new ArrayList<>(scene.getObjects());
+            list.removeIf(excluded);
+            objects.add(list);
+        }
+
+        executor.execute(() -> {
+            try {
+                final String key = getKey(uri);
+                if (key == null) {
+                    logger.info("Model not cached (no size or date): " + uri);
+                    return;
+                }
+                final File file = new File(directory, key + EXTENSION);
+                if (file.isFile()) return;
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Can't create directory " + directory);
+                }
+
+                final long start = System.currentTimeMillis();
+                SceneCacheFile.write(file, objects);
+                logger.info("Cached " + uri + " (" + file.length() / 1024 + " KB) in " + (System.currentTimeMillis() - start) + " ms");
+
+                trim(directory, MAX_SIZE);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Error caching " + uri + ". " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Delete a cached file that can't be read (i.e. written by another version)
+     */
+    void invalidate(File file) {
+        if (file.delete()) {
+            logger.info("Deleted invalid cache file: " + file);
+        }
+    }
+
+    static boolean isCacheable(List<Scene> scenes) {
+        if (scenes.isEmpty()) return false;
+        for (Scene scene : scenes) {
+            if (scene.getAnimations() != null && !scene.getAnimations().isEmpty()) return false;
+            for (Object3D obj : scene.getObjects()) {
+                final Material material = obj.getMaterial();
+                final Texture texture = material != null ? material.getColorTexture() : null;
+                if (texture != null && texture.getData() == null) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the key of the content, or <code>null</code> if it can't be identified without reading it
+     */
+    private String getKey(URI uri) throws IOException {
+        final ByteBuffer data = MappedContent.mapFile(uri, contentResolver);
+        if (data != null) return getKey(uri, data);
+        if (!"content".equals(uri.getScheme()) || contentResolver == null) return null;
+
+        try (Cursor cursor = contentResolver.query(Uri.parse(uri.toString()), null, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) return null;
+            final int size = cursor.getColumnIndex(OpenableColumns.SIZE);
+            final int modified = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (size == -1 || modified == -1 || cursor.isNull(size) || cursor.isNull(modified)) return null;
+            return getKey(uri, cursor.getLong(size), cursor.getLong(modified));
+        }
+    }
+
+    /**
+     * Hash of the uri, the format version, the size and a sample of the content.
+     * Hashing the whole content would take longer than loading some models.
+     *
+     * @param uri  the model uri
+     * @param data the model contents
+     * @return the key, in hex
+     */
+    static String getKey(URI uri, ByteBuffer data) {
+        final MessageDigest digest = newDigest();
+        final int size = data.limit();
+        digest.update((SceneCacheFile.VERSION + "|" + uri + "|" + size).getBytes(StandardCharsets.UTF_8));
+        update(digest, data, 0, SAMPLE_SIZE);
+        update(digest, data, size / 2 - SAMPLE_SIZE / 2, SAMPLE_SIZE);
+        update(digest, data, size - SAMPLE_SIZE, SAMPLE_SIZE);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hash of the uri, the format version, the size and the modification date of content that can't be mapped
+     *
+     * @param uri      the model uri
+     * @param size     the size reported by the provider
+     * @param modified the modification date reported by the provider
+     * @return the key, in hex
+     */
+    static String getKey(URI uri, long size, long modified) {
+        final MessageDigest digest = newDigest();
+        digest.update((SceneCacheFile.VERSION + "|" + uri + "|" + size + "|" + modified).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        final StringBuilder ret = new StringBuilder(40);
+        for (byte b : hash) {
+            ret.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return ret.toString();
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer data, int start, int length) {
+        final ByteBuffer sample = data.duplicate();
+        start = Math.max(0, start);
+        sample.limit(Math.min(data.limit(), start + length)).position(start);
+        digest.update(sample);
+    }
+
+    /**
+     * Delete the least recently used files until the directory is not bigger than the size
+     */
+    static void trim(File directory, long maxSize) {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) return;
+
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= maxSize) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= maxSize) break;
+            final long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                logger.info("Evicted cache file: " + file.getName());
+            }
+        }
+    }
+}
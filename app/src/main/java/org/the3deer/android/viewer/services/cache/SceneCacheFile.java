@@ -0,0 +1,410 @@
+package org.the3deer.android.viewer.services.cache;
+
+import org.the3deer.android.engine.model.Material;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Texture;
+import org.the3deer.android.viewer.services.lod.LodChain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file with the scenes of a loaded model.
+ * <p>
+ * Everything is written in the native byte order and aligned to 4 bytes, so when the file is
+ * mapped, the buffers of the objects are views of the mapping and nothing is parsed or copied.
+ * </p>
+ * <pre>
+ *     INT32        - Magic ('3DVC')
+ *     INT32        - Version
+ *     INT32        - Number of materials
+ *     foreach material
+ *         STRING    - Name
+ *         ARRAY     - Diffuse color (length -1 if none)
+ *         STRING    - File of the color texture
+ *         BYTES     - Image of the color texture (length -1 if none)
+ *     INT32        - Number of scenes
+ *     foreach scene
+ *         INT32    - Number of objects
+ *         foreach object
+ *             STRING    - Id
+ *             INT32     - Draw mode
+ *             INT32     - Flags (color, normals, textures, indices, material)
+ *             REAL32[4] - Color (optional)
+ *             REAL32[9] - Location, scale, rotation
+ *             INT32     - Index of the material (optional)
+ *             ARRAY     - Vertices, normals (optional), texture coordinates (optional), indices (optional)
+ * </pre>
+ * Strings, arrays and bytes are written as their length followed by the data, padded to 4 bytes.
+ * The materials are written once, even if they are shared by several objects. The images of the textures are
+ * kept encoded, as the loader read them.
+ */
+final class SceneCacheFile {
+
+    static final int MAGIC = ('3' << 24) | ('D' << 16) | ('V' << 8) | 'C';
+
+    /**
+     * Increase whenever the layout changes, so old files are discarded
+     */
+    static final int VERSION = 2;
+
+    private static final int FLAG_COLOR = 1;
+    private static final int FLAG_NORMALS = 1 << 1;
+    private static final int FLAG_TEXTURES = 1 << 2;
+    private static final int FLAG_INDICES = 1 << 3;
+    private static final int FLAG_MATERIAL = 1 << 4;
+
+    private SceneCacheFile() {
+    }
+
+    /**
+     * Write the scenes. The file is written next to the target and then renamed,
+     * so a partial file is never read.
+     *
+     * @param scenes the objects of each scene
+     */
+    static void write(File file, List<List<Object3D>> scenes) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp);
+             FileChannel channel = stream.getChannel()) {
+            final Writer writer = new Writer(channel);
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+
+            final Map<Material, Integer> materials = new IdentityHashMap<>();
+            for (List<Object3D> objects : scenes) {
+                for (Object3D obj : objects) {
+                    if (obj.getMaterial() != null && !materials.containsKey(obj.getMaterial())) {
+                        materials.put(obj.getMaterial(), materials.size());
+                    }
+                }
+            }
+            final Material[] table = new Material[materials.size()];
+            for (Map.Entry<Material, Integer> entry : materials.entrySet()) table[entry.getValue()] = entry.getKey();
+            writer.putInt(table.length);
+            for (Material material : table) {
+                writeMaterial(writer, material);
+            }
+
+            writer.putInt(scenes.size());
+            for (List<Object3D> objects : scenes) {
+                writer.putInt(objects.size());
+                for (Object3D obj : objects) {
+                    writeObject(writer, obj, materials);
+                }
+            }
+            writer.flush();
+        } catch (IOException | RuntimeException e) {
+            if (!temp.delete()) temp.deleteOnExit();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            if (!temp.delete()) temp.deleteOnExit();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    private static void writeMaterial(Writer writer, Material material) throws IOException {
+        final Texture texture = material.getColorTexture();
+        writer.putString(material.getName());
+        writer.putFloatArray(material.getDiffuse());
+        writer.putString(texture != null ? texture.getFile() : null);
+        writer.putBytes(texture != null ? texture.getData() : null);
+    }
+
+    private static void writeObject(Writer writer, Object3D obj, Map<Material, Integer> materials) throws IOException {
+        final float[] color = obj.getColor();
+        final Material material = obj.getMaterial();
+        final FloatBuffer normals = obj.getNormalsBuffer();
+        final FloatBuffer textures = obj.getTextureBuffer();
+        // full detail, even if a simplified level is being drawn
+        final IntBuffer indices = LodChain.getFullDetail(obj);
+
+        writer.putString(obj.getId());
+        writer.putInt(obj.getDrawMode());
+        writer.putInt((color != null ? FLAG_COLOR : 0) | (normals != null ? FLAG_NORMALS : 0)
+                | (textures != null ? FLAG_TEXTURES : 0) | (indices != null ? FLAG_INDICES : 0)
+                | (material != null ? FLAG_MATERIAL : 0));
+        if (color != null) {
+            for (int i = 0; i < 4; i++) writer.putFloat(i < color.length ? color[i] : 1f);
+        }
+        writer.putFloats(obj.getLocation(), 0f);
+        writer.putFloats(obj.getScale(), 1f);
+        writer.putFloats(obj.getRotation(), 0f);
+        if (material != null) writer.putInt(materials.get(material));
+        writer.putBuffer(obj.getVertexBuffer());
+        if (normals != null) writer.putBuffer(normals);
+        if (textures != null) writer.putBuffer(textures);
+        if (indices != null) writer.putBuffer(indices);
+    }
+
+    /**
+     * Check the header of the file
+     *
+     * @return true if the file can be read by this version
+     */
+    static boolean isValid(File file) {
+        try (RandomAccessFile stream = new RandomAccessFile(file, "r");
+             FileChannel channel = stream.getChannel()) {
+            final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) break;
+            }
+            return !header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == VERSION;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Map the file and build the objects of every scene
+     *
+     * @throws IOException if the file is not valid, or it was written by another version
+     */
+    static List<List<Object3D>> read(File file) throws IOException {
+        final MappedByteBuffer data;
+        // private mode requires a writable channel, but the file is never modified
+        try (RandomAccessFile stream = new RandomAccessFile(file, "rw");
+             FileChannel channel = stream.getChannel()) {
+            // private: copy on write, in case the engine modifies the buffers
+            data = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+        }
+        data.order(ByteOrder.nativeOrder());
+
+        try {
+            if (data.getInt() != MAGIC) throw new IOException("Not a scene cache file (or different byte order)");
+            if (data.getInt() != VERSION) throw new IOException("Scene cache version mismatch");
+
+            final Material[] materials = new Material[data.getInt()];
+            for (int m = 0; m < materials.length; m++) {
+                materials[m] = readMaterial(data);
+            }
+
+            final int sceneCount = data.getInt();
+            final List<List<Object3D>> scenes = new ArrayList<>(sceneCount);
+            for (int s = 0; s < sceneCount; s++) {
+                final int objectCount = data.getInt();
+                final List<Object3D> objects = new ArrayList<>(objectCount);
+                for (int o = 0; o < objectCount; o++) {
+                    objects.add(readObject(data, materials));
+                }
+                scenes.add(objects);
+            }
+            return scenes;
+        } catch (RuntimeException e) {
+            // truncated or corrupted file
+            throw new IOException("Invalid scene cache file: " + file + ". " + e.getMessage(), e);
+        }
+    }
+
+    private static Material readMaterial(ByteBuffer data) {
+        final Material ret = new Material(getString(data));
+        final int diffuse = data.getInt();
+        if (diffuse >= 0) ret.setDiffuse(getFloats(data, diffuse));
+        final String file = getString(data);
+        final byte[] image = getBytes(data);
+        if (file != null || image != null) {
+            final Texture texture = new Texture();
+            texture.setFile(file);
+            texture.setData(image);
+            ret.setColorTexture(texture);
+        }
+        return ret;
+    }
+
+    private static Object3D readObject(ByteBuffer data, Material[] materials) {
+        final String id = getString(data);
+        final int drawMode = data.getInt();
+        final int flags = data.getInt();
+        final float[] color = (flags & FLAG_COLOR) != 0 ? getFloats(data, 4) : null;
+        final float[] location = getFloats(data, 3);
+        final float[] scale = getFloats(data, 3);
+        final float[] rotation = getFloats(data, 3);
+        final Material material = (flags & FLAG_MATERIAL) != 0 ? materials[data.getInt()] : null;
+        final FloatBuffer vertices = getSection(data).asFloatBuffer();
+        final FloatBuffer normals = (flags & FLAG_NORMALS) != 0 ? getSection(data).asFloatBuffer() : null;
+        final FloatBuffer textures = (flags & FLAG_TEXTURES) != 0 ? getSection(data).asFloatBuffer() : null;
+        final IntBuffer indices = (flags & FLAG_INDICES) != 0 ? getSection(data).asIntBuffer() : null;
+
+        final Object3D obj = indices != null ? new Object3D(vertices, indices) : new Object3D(vertices);
+        obj.setId(id);
+        obj.setDrawMode(drawMode);
+        if (color != null) obj.setColor(color);
+        if (normals != null) obj.setNormalsBuffer(normals);
+        if (textures != null) obj.setTextureBuffer(textures);
+        if (material != null) obj.setMaterial(material);
+        obj.setLocation(location);
+        obj.setScale(scale);
+        obj.setRotation(rotation);
+        return obj;
+    }
+
+    private static float[] getFloats(ByteBuffer data, int count) {
+        final float[] ret = new float[count];
+        for (int i = 0; i < count; i++) ret[i] = data.getFloat();
+        return ret;
+    }
+
+    private static String getString(ByteBuffer data) {
+        final int length = data.getInt();
+        if (length < 0) return null;
+        final byte[] bytes = new byte[length];
+        data.get(bytes);
+        data.position(align(data.position()));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the next bytes, or <code>null</code> if none were written
+     */
+    private static byte[] getBytes(ByteBuffer data) {
+        final int length = data.getInt();
+        if (length < 0) return null;
+        final byte[] ret = new byte[length];
+        data.get(ret);
+        data.position(align(data.position()));
+        return ret;
+    }
+
+    /**
+     * @return a view of the next array, without copying it
+     */
+    private static ByteBuffer getSection(ByteBuffer data) {
+        final int bytes = data.getInt() * 4;
+        final ByteBuffer section = data.duplicate();
+        section.limit(section.position() + bytes);
+        data.position(data.position() + bytes);
+        return section.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static int align(int position) {
+        return (position + 3) & ~3;
+    }
+
+    /**
+     * Buffered writer. Values are written in the native order
+     */
+    private static final class Writer {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.nativeOrder());
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(4);
+            buffer.putFloat(value);
+        }
+
+        void putFloats(float[] values, float defaultValue) throws IOException {
+            for (int i = 0; i < 3; i++) putFloat(values != null && i < values.length ? values[i] : defaultValue);
+        }
+
+        void putFloatArray(float[] values) throws IOException {
+            if (values == null) {
+                putInt(-1);
+                return;
+            }
+            putInt(values.length);
+            for (float value : values) putFloat(value);
+        }
+
+        void putBytes(byte[] value) throws IOException {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            putInt(value.length);
+            for (int offset = 0; offset < value.length; ) {
+                ensure(4);
+                final int n = Math.min(buffer.remaining(), value.length - offset);
+                buffer.put(value, offset, n);
+                offset += n;
+            }
+            // the buffer ends aligned, so the padding fits
+            while ((buffer.position() & 3) != 0) buffer.put((byte) 0);
+        }
+
+        void putString(String value) throws IOException {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length + 3);
+            buffer.put(bytes);
+            while ((buffer.position() & 3) != 0) buffer.put((byte) 0);
+        }
+
+        /**
+         * Write the whole buffer (from 0 to its limit), without modifying it
+         */
+        void putBuffer(Buffer source) throws IOException {
+            final int count = source.limit();
+            putInt(count);
+            if (source instanceof FloatBuffer) {
+                final FloatBuffer floats = ((FloatBuffer) source).duplicate();
+                floats.position(0);
+                while (floats.hasRemaining()) {
+                    ensure(4);
+                    final FloatBuffer target = buffer.asFloatBuffer();
+                    final int n = Math.min(target.remaining(), floats.remaining());
+                    final int limit = floats.limit();
+                    floats.limit(floats.position() + n);
+                    target.put(floats);
+                    floats.limit(limit);
+                    buffer.position(buffer.position() + n * 4);
+                }
+            } else if (source instanceof IntBuffer) {
+                final IntBuffer ints = ((IntBuffer) source).duplicate();
+                ints.position(0);
+                while (ints.hasRemaining()) {
+                    ensure(4);
+                    final IntBuffer target = buffer.asIntBuffer();
+                    final int n = Math.min(target.remaining(), ints.remaining());
+                    final int limit = ints.limit();
+                    ints.limit(ints.position() + n);
+                    target.put(ints);
+                    ints.limit(limit);
+                    buffer.position(buffer.position() + n * 4);
+                }
+            } else {
+                throw new IOException("Unsupported buffer: " + source.getClass().getName());
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            flush();
+            if (buffer.remaining() < bytes) throw new IOException("Value too large: " + bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.the3deer.android.viewer.services.culling;
+
+import org.the3deer.android.engine.model.Camera;
+import org.the3deer.android.engine.model.Dimensions;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.util.AabbTree;
+import org.the3deer.android.viewer.util.Frustum;
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hides the objects of the scene that are out of the view of the camera, so the renderer skips them.
+ * <p>
+ * The bounding boxes of the objects are kept in an {@link AabbTree}. The tree is rebuilt when objects are
+ * added or removed, and refitted when the box of an object changes (i.e. it moved or it's animated).
+ * Each frame, the tree is tested against the {@link Frustum} of the active camera, and the objects outside
+ * are set invisible. The culled objects are kept apart from the visibility of the objects: only the objects hidden
+ * by the culler are shown again, and an object shown by someone else meanwhile is no longer considered culled.
+ * The visibility of the objects must be changed with {@link #setVisible(Object3D, boolean)}, so a culled object
+ * hidden by the user is not shown again when it comes into view.
+ * </p>
+ * <p>
+ * The engine keeps one culler per model. The counts of the last frame are available for the stats.
+ * </p>
+ */
+@Bean(name = "culling", category = "general", experimental = true)
+public class SceneCuller {
+
+    // box of objects with no dimensions: always visible
+    private static final float UNBOUNDED = 1e18f;
+
+    /**
+     * Hide the objects out of the view
+     */
+    @BeanProperty
+    private boolean enabled = false;
+
+    private final Frustum frustum = new Frustum();
+
+    private List<Object3D> objects = Collections.emptyList();
+    private float[] boxes = new float[0];
+    private boolean[] visible = new boolean[0];
+    private AabbTree tree;
+
+    // objects hidden by the culler, that would be visible otherwise
+    private final Set<Object3D> hidden = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private int visibleCount;
+    private int culledCount;
+    private int refitCount;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Cull the objects of the scene
+     *
+     * @param scene  the scene being drawn
+     * @param camera the active camera
+     * @param aspect width / height of the viewport
+     * @return true if an object was shown or hidden
+     */
+    public synchronized boolean cull(Scene scene, Camera camera, float aspect) {
+        final List<Object3D> current = new ArrayList<>(scene.getObjects());
+        if (!isSame(current)) rebuild(current);
+        else refit();
+
+        if (tree == null || !frustum.set(camera.getPos(), camera.getView(), camera.getProjection().getFov(), aspect,
+                camera.getProjection().getNear(), camera.getProjection().getFar())) {
+            final boolean ret = !hidden.isEmpty();
+            restore();
+            return ret;
+        }
+
+        boolean ret = false;
+        visibleCount = tree.cull(frustum, visible);
+        culledCount = objects.size() - visibleCount;
+        for (int i = 0; i < objects.size(); i++) {
+            final Object3D obj = objects.get(i);
+            // shown by someone else: it's not culled anymore
+            if (obj.isVisible()) hidden.remove(obj);
+            if (visible[i]) {
+                if (hidden.remove(obj)) {
+                    obj.setVisible(true);
+                    ret = true;
+                }
+            } else if (obj.isVisible()) {
+                obj.setVisible(false);
+                hidden.add(obj);
+                ret = true;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Show the objects hidden by the culler
+     */
+    public synchronized void restore() {
+        for (Object3D obj : hidden) obj.setVisible(true);
+        hidden.clear();
+        visibleCount = objects.size();
+        culledCount = 0;
+    }
+
+    /**
+     * Show or hide the object. A culled object stays hidden until it comes into view, or for good if it's hidden
+     */
+    public synchronized void setVisible(Object3D obj, boolean visible) {
+        if (hidden.contains(obj)) {
+            if (!visible) hidden.remove(obj);
+            return;
+        }
+        obj.setVisible(visible);
+    }
+
+    /**
+     * @return true if the object is shown, even if it's culled
+     */
+    public synchronized boolean isVisible(Object3D obj) {
+        return hidden.contains(obj) || obj.isVisible();
+    }
+
+    public synchronized int getVisibleCount() {
+        return visibleCount;
+    }
+
+    public synchronized int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * @return number of objects whose box changed since the tree was built
+     */
+    public synchronized int getRefitCount() {
+        return refitCount;
+    }
+
+    private boolean isSame(List<Object3D> current) {
+        if (current.size() != objects.size()) return false;
+        for (int i = 0; i < current.size(); i++) {
+            if (current.get(i) != objects.get(i)) return false;
+        }
+        return true;
+    }
+
+    private void rebuild(List<Object3D> current) {
+        // removed objects are shown again, in case they are added back later
+        final Set<Object3D> remaining = Collections.newSetFromMap(new IdentityHashMap<>());
+        remaining.addAll(current);
+        for (Object3D obj : new ArrayList<>(hidden)) {
+            if (!remaining.contains(obj)) {
+                obj.setVisible(true);
+                hidden.remove(obj);
+            }
+        }
+
+        objects = current;
+        boxes = new float[current.size() * 6];
+        visible = new boolean[current.size()];
+        for (int i = 0; i < current.size(); i++) getBox(current.get(i), boxes, i * 6);
+        tree = current.isEmpty() ? null : new AabbTree(boxes, current.size());
+        refitCount = 0;
+    }
+
+    private void refit() {
+        final float[] box = new float[6];
+        for (int i = 0; i < objects.size(); i++) {
+            getBox(objects.get(i), box, 0);
+            boolean changed = false;
+            for (int k = 0; k < 6; k++) changed |= box[k] != boxes[i * 6 + k];
+            if (!changed) continue;
+            System.arraycopy(box, 0, boxes, i * 6, 6);
+            tree.update(i, box, 0);
+            refitCount++;
+        }
+    }
+
+    /**
+     * Get the box of the object, from the center of its bounding box and its dimensions
+     */
+    private static void getBox(Object3D obj, float[] box, int offset) {
+        final Dimensions dimensions = obj.getDimensions();
+        final float[] center = obj.getBoundingBox() != null ? obj.getBoundingBox().getCenter() : null;
+        if (dimensions == null || center == null) {
+            for (int k = 0; k < 3; k++) {
+                box[offset + k] = -UNBOUNDED;
+                box[offset + 3 + k] = UNBOUNDED;
+            }
+            return;
+        }
+        final float[] half = {dimensions.getWidth() / 2, dimensions.getHeight() / 2, dimensions.getDepth() / 2};
+        for (int k = 0; k < 3; k++) {
+            box[offset + k] = center[k] - half[k];
+            box[offset + 3 + k] = center[k] + half[k];
+        }
+    }
+}
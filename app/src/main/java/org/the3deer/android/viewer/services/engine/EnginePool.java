@@ -0,0 +1,240 @@
+package org.the3deer.android.viewer.services.engine;
+
+import android.content.ComponentCallbacks2;
+import android.content.SharedPreferences;
+
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the engines of the recently viewed models warm, so switching back to them doesn't load them again.
+ * <p>
+ * When the view of a model is closed, its GL context goes with it, so the GPU buffers are released first, but the
+ * engine (the scene and its CPU geometry) is kept, up to a memory budget. Over the budget, or when the system
+ * is low on memory, the least recently used engines are evicted. Opening a warm model only starts its engine again,
+ * i.e. uploads the geometry, without reading or parsing the file.
+ * </p>
+ * <p>
+ * The engines are kept by the {@link org.the3deer.android.engine.ModelEngineViewModel}, so this bean is a singleton
+ * like the {@link org.the3deer.android.viewer.services.LoaderOptions}, and the eviction is done by a callback.
+ * It is restored from the preferences at startup.
+ * </p>
+ */
+@Bean(name = "engines", category = "general", experimental = true)
+public final class EnginePool {
+
+    private static final Logger logger = Logger.getLogger(EnginePool.class.getSimpleName());
+
+    public static final String OFF = "off";
+
+    private static final EnginePool INSTANCE = new EnginePool();
+
+    /**
+     * Memory of the models kept warm, in MB. Switching back to them takes no loading
+     */
+    @BeanProperty(values = {OFF, "128", "256", "512"})
+    private String budget = OFF;
+
+    // id -> memory of the model, least recently used first
+    private final LinkedHashMap<String, Long> warm = new LinkedHashMap<>(16, 0.75f, true);
+    private String active;
+    private Consumer<String> evictor;
+
+    private long hits;
+    private long evictions;
+
+    EnginePool() {
+    }
+
+    public static EnginePool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Restore the options from the preferences.
+     * Keys follow the <code>&lt;className&gt;.&lt;propertyName&gt;</code> convention.
+     */
+    public void restore(SharedPreferences preferences) {
+        setBudget(preferences.getString(EnginePool.class.getName() + ".budget", budget));
+    }
+
+    public String getBudget() {
+        return budget;
+    }
+
+    public void setBudget(String budget) {
+        if (!OFF.equals(budget)) {
+            try {
+                if (Integer.parseInt(budget) <= 0) throw new IllegalArgumentException("Invalid budget: " + budget);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid budget: " + budget);
+            }
+        }
+        this.budget = budget;
+        trim(getBudgetBytes());
+    }
+
+    public boolean isEnabled() {
+        return !OFF.equals(budget);
+    }
+
+    /**
+     * @return the budget in bytes, or 0 if off
+     */
+    public long getBudgetBytes() {
+        return OFF.equals(budget) ? 0 : Integer.parseInt(budget) * 1024L * 1024L;
+    }
+
+    /**
+     * @param evictor releases the engine of the id, i.e. <code>ModelEngineViewModel.resetEngine</code>.
+     *                Called on the thread that caused the eviction
+     */
+    public synchronized void setEvictor(Consumer<String> evictor) {
+        this.evictor = evictor;
+    }
+
+    /**
+     * The model is being viewed
+     *
+     * @return true if its engine was kept warm, so it doesn't have to be loaded
+     */
+    public synchronized boolean activate(String id) {
+        active = id;
+        final boolean ret = warm.remove(id) != null;
+        if (ret) hits++;
+        return ret;
+    }
+
+    /**
+     * The model is no longer viewed. Its engine is kept if it fits in the budget
+     *
+     * @param memoryBytes memory of the model, i.e. <code>Model.getMemoryUsage()</code>
+     * @return true if the engine is kept warm, false if the caller has to release it
+     */
+    public boolean deactivate(String id, long memoryBytes) {
+        final List<String> evicted;
+        synchronized (this) {
+            if (id.equals(active)) active = null;
+            // even an empty model is not kept
+            if (!isEnabled()) return false;
+            final long budget = getBudgetBytes();
+            if (memoryBytes > budget) return false;
+            warm.put(id, memoryBytes);
+            evicted = collect(budget);
+        }
+        evict(evicted);
+        return true;
+    }
+
+    /**
+     * Forget the engine, e.g. because it was released by someone else
+     */
+    public synchronized void remove(String id) {
+        warm.remove(id);
+        if (id.equals(active)) active = null;
+    }
+
+    /**
+     * Release the warm engines as the system asks for memory
+     *
+     * @param level the level of {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        final long budget;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // next in line to be killed, or the foreground is starving: keep nothing
+            budget = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            budget = getBudgetBytes() / 2;
+        } else {
+            return;
+        }
+        logger.info("Trim memory (level " + level + "): " + getWarmBytes() / 1024 / 1024 + " MB warm");
+        trim(budget);
+    }
+
+    /**
+     * @return number of engines kept warm, not counting the active one
+     */
+    public synchronized int getWarmCount() {
+        return warm.size();
+    }
+
+    /**
+     * @return memory of the models kept warm
+     */
+    public synchronized long getWarmBytes() {
+        long ret = 0;
+        for (long bytes : warm.values()) ret += bytes;
+        return ret;
+    }
+
+    /**
+     * @return true if the model is being viewed
+     */
+    public synchronized boolean isActive(String id) {
+        return id.equals(active);
+    }
+
+    public synchronized boolean isWarm(String id) {
+        return warm.containsKey(id);
+    }
+
+    /**
+     * @return models opened from a warm engine
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictions;
+    }
+
+    private void trim(long budget) {
+        final List<String> evicted;
+        synchronized (this) {
+            evicted = collect(budget);
+        }
+        evict(evicted);
+    }
+
+    /**
+     * @return the least recently used engines, removed until the others fit in the budget
+     */
+    private List<String> collect(long budget) {
+        final List<String> ret = new ArrayList<>();
+        long total = 0;
+        for (long bytes : warm.values()) total += bytes;
+        for (Iterator<Map.Entry<String, Long>> it = warm.entrySet().iterator(); it.hasNext() && total > budget; ) {
+            final Map.Entry<String, Long> entry = it.next();
+            total -= entry.getValue();
+            ret.add(entry.getKey());
+            it.remove();
+        }
+        evictions += ret.size();
+        return ret;
+    }
+
+    /**
+     * Release the engines, out of the lock, since the evictor may take a while
+     */
+    private void evict(List<String> ids) {
+        final Consumer<String> evictor;
+        synchronized (this) {
+            evictor = this.evictor;
+        }
+        for (String id : ids) {
+            logger.info("Evicted engine: " + id);
+            if (evictor != null) evictor.accept(id);
+        }
+    }
+}
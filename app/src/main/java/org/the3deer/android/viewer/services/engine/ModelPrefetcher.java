@@ -0,0 +1,409 @@
+package org.the3deer.android.viewer.services.engine;
+
+import android.content.SharedPreferences;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Loads the most recent models of the history in the background, so opening them from the drawer is instant.
+ * <p>
+ * Once no model has been opened for a while, and the device is charging or on an unmetered network, the first
+ * models of the history are loaded one at a time, the least recent first. Each loaded model is written to the
+ * {@link org.the3deer.android.viewer.services.cache.SceneCache} by the loader, and kept warm by the
+ * {@link EnginePool} if it fits in its budget, or released otherwise. Nothing is loaded while the app uses most of
+ * its heap. Opening a model cancels the prefetch at once. The loader of the model being prefetched runs at the
+ * lowest priority, and stops at its next object once cancelled (see {@link #wrap(URI, LoadListener)}), so the
+ * model is only released when its load is over, and not while the loader still fills it. If the model opened is
+ * the one being prefetched, its loader is {@link #adopt(String, LongConsumer) handed over} instead, so it's not
+ * loaded twice.
+ * </p>
+ * <p>
+ * The models are loaded by the engines of the view model, so this bean is a singleton like the {@link EnginePool},
+ * and the loading is done by a {@link Loader}. It is restored from the preferences at startup.
+ * </p>
+ */
+@Bean(name = "prefetch", category = "general", experimental = true)
+public final class ModelPrefetcher {
+
+    private static final Logger logger = Logger.getLogger(ModelPrefetcher.class.getSimpleName());
+
+    /**
+     * Loads the models for the prefetcher, i.e. with the <code>ModelEngineViewModel</code>
+     */
+    public interface Loader {
+
+        /**
+         * Load the model in the background
+         *
+         * @param done called with the memory of the model, or -1 if it couldn't be loaded
+         */
+        void load(String uri, String name, String type, LongConsumer done);
+
+        /**
+         * Release the model, loaded or being loaded
+         */
+        void release(String uri);
+    }
+
+    // no model opened for this long
+    private static final long IDLE_DELAY = 10_000;
+
+    // share of the heap over which nothing is loaded
+    private static final float MAX_HEAP = 0.6f;
+
+    private static final ModelPrefetcher INSTANCE = new ModelPrefetcher(EnginePool.getInstance(),
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "ModelPrefetcher");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }), IDLE_DELAY);
+
+    /**
+     * Load the recent models in the background, when idle and charging or on Wi-Fi
+     */
+    @BeanProperty
+    private boolean enabled = false;
+
+    /**
+     * Recent models to load
+     */
+    @BeanProperty(values = {"1", "2", "3", "5"})
+    private String models = "2";
+
+    private final EnginePool pool;
+    private final ScheduledExecutorService executor;
+    private final long idleDelay;
+
+    private Loader loader;
+    private BooleanSupplier conditions = () -> true;
+
+    // history entries to load, next first
+    private final List<String> queue = new ArrayList<>();
+    private ScheduledFuture<?> scheduled;
+    private String loading;
+    // cancelled, released when its load is over
+    private String cancelled;
+    // handed over to the foreground, and what to call when it's loaded
+    private String adopted;
+    private LongConsumer adoptedDone;
+    private BackgroundListener background;
+    private long prefetched;
+
+    ModelPrefetcher(EnginePool pool, ScheduledExecutorService executor, long idleDelay) {
+        this.pool = pool;
+        this.executor = executor;
+        this.idleDelay = idleDelay;
+    }
+
+    public static ModelPrefetcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Restore the options from the preferences.
+     * Keys follow the <code>&lt;className&gt;.&lt;propertyName&gt;</code> convention.
+     */
+    public void restore(SharedPreferences preferences) {
+        final String prefix = ModelPrefetcher.class.getName() + ".";
+        setEnabled(preferences.getBoolean(prefix + "enabled", enabled));
+        setModels(preferences.getString(prefix + "models", models));
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) cancel();
+    }
+
+    public synchronized String getModels() {
+        return models;
+    }
+
+    public synchronized void setModels(String models) {
+        try {
+            if (Integer.parseInt(models) <= 0) throw new IllegalArgumentException("Invalid models: " + models);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid models: " + models);
+        }
+        this.models = models;
+    }
+
+    /**
+     * @param loader     loads and releases the models, or <code>null</code> to stop prefetching
+     * @param conditions whether the device is charging or on Wi-Fi. Called from a background thread
+     */
+    public synchronized void setLoader(Loader loader, BooleanSupplier conditions) {
+        if (loader == null) cancel();
+        this.loader = loader;
+        this.conditions = conditions != null ? conditions : () -> true;
+    }
+
+    /**
+     * Prefetch the history once the app is idle. Called when the history changes, i.e. a model was opened
+     *
+     * @param history entries <code>uri|name|type</code>, most recent first
+     * @param active  uri of the model being viewed, not prefetched
+     */
+    public synchronized void schedule(List<String> history, String active) {
+        cancel();
+        if (!enabled || loader == null) return;
+        final int count = Integer.parseInt(models);
+        for (int i = 0; i < history.size() && queue.size() < count; i++) {
+            final String uri = getUri(history.get(i));
+            if (uri.isEmpty() || uri.equals(active) || pool.isWarm(uri)) continue;
+            // least recent first, so the most recent is the last one evicted
+            queue.add(0, history.get(i));
+        }
+        if (!queue.isEmpty()) scheduled = executor.schedule(this::step, idleDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop prefetching, e.g. because a model is being opened.
+     * The model being loaded is released once its loader stops, unless it's the model being opened
+     */
+    public synchronized void cancel() {
+        queue.clear();
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        if (loading != null) {
+            logger.info("Prefetch cancelled: " + loading);
+            cancelled = loading;
+            loading = null;
+            background = null;
+        }
+    }
+
+    /**
+     * Hand the model being prefetched over to the foreground, e.g. because the user opens it. Its loader goes on at
+     * its normal priority, with the same listener, and the model is neither kept warm nor released by the prefetcher.
+     * The other models are not prefetched any more. If the model is not being prefetched, this is a {@link #cancel()}
+     *
+     * @param done called instead of the prefetcher with the memory of the model, or -1 if it couldn't be loaded.
+     *             Called from the thread of the loader, so it must not block
+     * @return true if the model is handed over, so it must not be loaded again
+     */
+    public boolean adopt(String uri, LongConsumer done) {
+        final BackgroundListener listener;
+        synchronized (this) {
+            if (!uri.equals(loading)) {
+                cancel();
+                return false;
+            }
+            loading = null;
+            cancel();
+            logger.info("Prefetch handed over: " + uri);
+            adopted = uri;
+            adoptedDone = done;
+            listener = background;
+            background = null;
+        }
+        if (listener != null) listener.promote();
+        return true;
+    }
+
+    /**
+     * @return true if the model was handed over to the foreground, and it's still loading
+     */
+    public synchronized boolean isAdopted(String uri) {
+        return uri.equals(adopted);
+    }
+
+    public synchronized boolean isLoading() {
+        return loading != null;
+    }
+
+    /**
+     * @return true if the model is being prefetched, and it's not cancelled
+     */
+    public synchronized boolean isLoading(String uri) {
+        return uri.equals(loading);
+    }
+
+    /**
+     * Wrap the listener of the loader of the model, if it's being prefetched. The loader then runs at the lowest
+     * priority, and it's aborted with a {@link CancellationException} at its next object once cancelled
+     *
+     * @param uri      the model being loaded
+     * @param listener the listener of the engine
+     * @return the listener to give to the loader
+     */
+    public synchronized LoadListener wrap(URI uri, LoadListener listener) {
+        final String id = uri.toString();
+        if (!isLoading(id)) return listener;
+        background = new BackgroundListener(id, listener);
+        return background;
+    }
+
+    /**
+     * @return models loaded in the background
+     */
+    public synchronized long getPrefetchedCount() {
+        return prefetched;
+    }
+
+    /**
+     * Load the next model of the queue, if the device allows it
+     */
+    synchronized void step() {
+        scheduled = null;
+        if (queue.isEmpty() || loading != null || loader == null) return;
+        final Runtime runtime = Runtime.getRuntime();
+        if (!conditions.getAsBoolean() || runtime.totalMemory() - runtime.freeMemory() > runtime.maxMemory() * MAX_HEAP) {
+            logger.fine("Prefetch postponed");
+            scheduled = executor.schedule(this::step, idleDelay, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        final String entry = queue.remove(0);
+        final String uri = getUri(entry);
+        final String[] parts = entry.split("\\|");
+        final String name = parts.length > 1 ? parts[1] : uri.substring(uri.lastIndexOf('/') + 1);
+        final String type = parts.length > 2 ? parts[2] : uri.substring(uri.lastIndexOf('.') + 1);
+
+        logger.info("Prefetching " + uri);
+        loading = uri;
+        final long start = System.currentTimeMillis();
+        loader.load(uri, name, type, memory -> onLoaded(uri, memory, start));
+    }
+
+    private synchronized void onLoaded(String uri, long memory, long start) {
+        if (uri.equals(adopted)) {
+            // the foreground takes it from here
+            final LongConsumer done = adoptedDone;
+            adopted = null;
+            adoptedDone = null;
+            logger.info("Loaded in the foreground " + uri + " in " + (System.currentTimeMillis() - start) + " ms");
+            done.accept(memory);
+            return;
+        }
+        if (uri.equals(cancelled)) {
+            // the loader is done with it: it can be released. unless the user opened it meanwhile
+            cancelled = null;
+            if (loader != null && !pool.isActive(uri)) loader.release(uri);
+            return;
+        }
+        if (!uri.equals(loading)) return;
+        loading = null;
+        background = null;
+
+        if (memory >= 0 && pool.deactivate(uri, memory)) {
+            prefetched++;
+            logger.info("Prefetched " + uri + " (" + memory / 1024 / 1024 + " MB) in " + (System.currentTimeMillis() - start) + " ms");
+        } else {
+            // only in the scene cache, if it could be loaded
+            loader.release(uri);
+        }
+        if (!queue.isEmpty()) scheduled = executor.schedule(this::step, idleDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lowers the priority of the thread of the loader, and aborts it once the prefetch is cancelled. Once the model is
+     * handed over, the priority is restored and the loader goes on
+     */
+    private final class BackgroundListener implements LoadListener {
+
+        private final String uri;
+        private final LoadListener listener;
+        private Thread thread;
+        private int priority;
+        private boolean foreground;
+
+        BackgroundListener(String uri, LoadListener listener) {
+            this.uri = uri;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onLoadStart() {
+            check();
+            listener.onLoadStart();
+        }
+
+        @Override
+        public void onLoadObject(Scene scene, Object3D obj) {
+            check();
+            listener.onLoadObject(scene, obj);
+        }
+
+        @Override
+        public void onLoadScene(Scene scene) {
+            check();
+            listener.onLoadScene(scene);
+        }
+
+        @Override
+        public void onProgress(String message) {
+            check();
+            listener.onProgress(message);
+        }
+
+        @Override
+        public void onLoadError(Exception ex) {
+            restore();
+            listener.onLoadError(ex);
+        }
+
+        @Override
+        public void onLoadComplete() {
+            restore();
+            listener.onLoadComplete();
+        }
+
+        // the lock of the prefetcher is never taken while holding this one
+        private void check() {
+            if (isAdopted(uri)) {
+                promote();
+                return;
+            }
+            synchronized (this) {
+                if (thread == null && !foreground) {
+                    thread = Thread.currentThread();
+                    priority = thread.getPriority();
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                }
+            }
+            if (!isLoading(uri) && !isAdopted(uri)) throw new CancellationException("Prefetch cancelled: " + uri);
+        }
+
+        /**
+         * The model is loaded for the user: restore the priority, from any thread
+         */
+        synchronized void promote() {
+            if (foreground) return;
+            foreground = true;
+            if (thread != null) thread.setPriority(priority);
+        }
+
+        // the threads of the loaders are shared with the models the user opens
+        private synchronized void restore() {
+            if (thread == Thread.currentThread()) thread.setPriority(priority);
+        }
+    }
+
+    private static String getUri(String entry) {
+        final int separator = entry.indexOf('|');
+        return separator == -1 ? entry : entry.substring(0, separator);
+    }
+}
@@ -0,0 +1,124 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import android.content.ContentResolver;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoaderTask;
+import org.the3deer.android.util.ContentUtils;
+import org.the3deer.android.viewer.util.MappedContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * GLB loader that memory-maps the file, so the vertex buffers are views of the BIN chunk.
+ * <p>
+ * The Java heap only holds the glTF document, so big static models (i.e. scans or CAD exports) can be
+ * loaded with a small heap. Files with animations, skins or textures are loaded by the default glTF loader.
+ * </p>
+ * <p>
+ * This is also the loader of GLB files compressed with <code>EXT_meshopt_compression</code>, or instanced with
+ * <code>EXT_mesh_gpu_instancing</code>, even if mapping is disabled, see {@link #accepts(URI, ContentResolver, boolean)}.
+ * </p>
+ *
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isGlbMapped()
+ */
+public class GlbMappedLoaderTask extends LoaderTask {
+
+    private static final Logger logger = Logger.getLogger(GlbMappedLoaderTask.class.getSimpleName());
+
+    private final ContentResolver contentResolver;
+
+    public GlbMappedLoaderTask(URI uri, LoadListener callback, ContentResolver contentResolver) {
+        super(uri, callback);
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Check whether the file should be loaded by this loader: a GLB with static meshes only, when mapping is enabled
+     * or when it's compressed or instanced, which is not supported by the default glTF loader.
+     * Only the JSON chunk is read, once.
+     *
+     * @param mapped whether mapping is enabled
+     * @return true if the file should be loaded by this loader
+     */
+    public static boolean accepts(URI uri, ContentResolver contentResolver, boolean mapped) {
+        try {
+            final Map<String, Object> json = readJson(uri, contentResolver);
+            if (json == null || !mapped && !GlbMappedParser.isCompressed(json) && !GlbMappedParser.isInstanced(json)) {
+                return false;
+            }
+            final String unsupported = GlbMappedParser.getUnsupportedFeature(json);
+            if (unsupported != null) {
+                logger.info("GLB can't be mapped (" + unsupported + "): " + uri);
+                return false;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warning("GLB can't be mapped: " + uri + ". " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the glTF document, or <code>null</code> if the file is not a GLB
+     */
+    private static Map<String, Object> readJson(URI uri, ContentResolver contentResolver) throws IOException {
+        final ByteBuffer data = MappedContent.mapFile(uri, contentResolver);
+        if (data != null) return GlbMappedParser.isGlb(data) ? GlbMappedParser.readJson(data) : null;
+
+        // not backed by a file (i.e. assets): read the header and the JSON chunk only
+        try (InputStream stream = ContentUtils.getInputStream(uri)) {
+            return GlbMappedParser.readJson(stream);
+        }
+    }
+
+    @Override
+    protected List<Object3D> build() throws Exception {
+
+        final long start = System.currentTimeMillis();
+        final GlbMappedParser.Result result = GlbMappedParser.parse(MappedContent.map(uri, contentResolver));
+        logger.info("Parsed " + result.getPrimitives().size() + " primitives in " + (System.currentTimeMillis() - start) + " ms. "
+                + "Mapped: " + result.getMappedBytes() / 1024 + " KB, Copied: " + result.getCopiedBytes() / 1024 + " KB, "
+                + "Decoded: " + result.getDecodedBytes() / 1024 + " KB, Instances: " + result.getSharedCount());
+
+        final Scene scene = new Scene();
+        final List<Object3D> objects = new ArrayList<>(result.getPrimitives().size());
+        for (GlbMappedParser.Primitive primitive : result.getPrimitives()) {
+            final Object3D obj = primitive.getIndices() != null ?
+                    new Object3D(primitive.getPositions(), primitive.getIndices()) : new Object3D(primitive.getPositions());
+            obj.setId(primitive.getName());
+            obj.setDrawMode(primitive.getMode());
+            if (primitive.getNormals() != null) {
+                obj.setNormalsBuffer(primitive.getNormals());
+            }
+            if (primitive.getTexCoords() != null) {
+                obj.setTextureBuffer(primitive.getTexCoords());
+            }
+            if (primitive.getColor() != null) {
+                obj.setColor(primitive.getColor());
+            }
+            if (primitive.getLocation() != null) {
+                obj.setLocation(primitive.getLocation());
+            }
+            if (primitive.getRotation() != null) {
+                obj.setRotation(primitive.getRotation());
+            }
+            if (primitive.getScale() != null) {
+                obj.setScale(primitive.getScale());
+            }
+            objects.add(obj);
+            onLoadObject(scene, obj);
+        }
+        onLoadScene(scene);
+        return objects;
+    }
+}
@@ -0,0 +1,931 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import org.the3deer.android.viewer.util.JsonParser;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * GLB parser working on a {@link ByteBuffer}, usually a memory-mapped file.
+ * <p>
+ * GLB layout (little endian):
+ * <pre>
+ *     UINT32       - Magic ('glTF')
+ *     UINT32       - Version (2)
+ *     UINT32       - Length
+ *     foreach chunk
+ *         UINT32   - Chunk length
+ *         UINT32   - Chunk type ('JSON' or 'BIN')
+ *         UINT8[]  - Chunk data
+ * </pre>
+ * </p>
+ * <p>
+ * Accessors of float vertex data and 32 bit indices that are tightly packed are returned as views of the
+ * BIN chunk, so the geometry is never copied to the Java heap. Other accessors (interleaved, quantized,
+ * or 16 bit indices) are converted into new direct buffers. Nodes with a transformation other than the
+ * identity get their positions and normals transformed, into new direct buffers as well.
+ * </p>
+ * <p>
+ * Buffer views compressed with <code>EXT_meshopt_compression</code> are decoded in parallel, before
+ * reading the meshes, into direct buffers that are then used like the BIN chunk.
+ * </p>
+ * <p>
+ * Meshes referenced by several nodes, or instanced with <code>EXT_mesh_gpu_instancing</code>, are read once:
+ * all the instances share the same buffers, and each instance gets its transformation as a location, a rotation
+ * and a scale. Only instances with a shear, that can't be decomposed, get their own transformed positions
+ * and normals, but they still share the indices and the texture coordinates.
+ * </p>
+ * <p>
+ * Only static meshes are supported: see {@link #getUnsupportedFeature(Map)}.
+ * </p>
+ */
+public final class GlbMappedParser {
+
+    public static final int MAGIC = 0x46546C67;
+    private static final int CHUNK_JSON = 0x4E4F534A;
+    private static final int CHUNK_BIN = 0x004E4942;
+
+    private static final int FLOAT = 5126;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int UNSIGNED_SHORT = 5123;
+    private static final int UNSIGNED_BYTE = 5121;
+    private static final int SHORT = 5122;
+    private static final int BYTE = 5120;
+
+    static final String EXT_MESHOPT = "EXT_meshopt_compression";
+    static final String KHR_DRACO = "KHR_draco_mesh_compression";
+    static final String EXT_INSTANCING = "EXT_mesh_gpu_instancing";
+    private static final List<String> SUPPORTED_EXTENSIONS = Arrays.asList(EXT_MESHOPT, EXT_INSTANCING, "KHR_mesh_quantization");
+
+    /**
+     * Mesh primitive, ready to be drawn
+     */
+    public static final class Primitive {
+
+        private final String name;
+        private final int mode;
+        private final FloatBuffer positions;
+        private final FloatBuffer normals;
+        private final FloatBuffer texCoords;
+        private final IntBuffer indices;
+        private final float[] color;
+        private final float[] location;
+        private final float[] rotation;
+        private final float[] scale;
+
+        Primitive(String name, int mode, FloatBuffer positions, FloatBuffer normals, FloatBuffer texCoords,
+                  IntBuffer indices, float[] color, float[] location, float[] rotation, float[] scale) {
+            this.name = name;
+            this.mode = mode;
+            this.positions = positions;
+            this.normals = normals;
+            this.texCoords = texCoords;
+            this.indices = indices;
+            this.color = color;
+            this.location = location;
+            this.rotation = rotation;
+            this.scale = scale;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the draw mode. glTF modes have the same values as the GL constants
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        public FloatBuffer getPositions() {
+            return positions;
+        }
+
+        public FloatBuffer getNormals() {
+            return normals;
+        }
+
+        public FloatBuffer getTexCoords() {
+            return texCoords;
+        }
+
+        /**
+         * @return the indices, or <code>null</code> if the primitive is not indexed
+         */
+        public IntBuffer getIndices() {
+            return indices;
+        }
+
+        /**
+         * @return the base color factor, or <code>null</code> if there is no material
+         */
+        public float[] getColor() {
+            return color;
+        }
+
+        /**
+         * @return the translation of the instance, or <code>null</code> if the positions are already in place
+         */
+        public float[] getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the rotation of the instance, in degrees around X, Y and Z, or <code>null</code> if not rotated
+         * @see #decompose(float[])
+         */
+        public float[] getRotation() {
+            return rotation;
+        }
+
+        /**
+         * @return the scale of the instance, or <code>null</code> if not scaled
+         */
+        public float[] getScale() {
+            return scale;
+        }
+    }
+
+    /**
+     * Parsed file
+     */
+    public static final class Result {
+
+        private final List<Primitive> primitives = new ArrayList<>();
+        private long mappedBytes;
+        private long copiedBytes;
+        private long decodedBytes;
+        private int sharedCount;
+
+        public List<Primitive> getPrimitives() {
+            return primitives;
+        }
+
+        /**
+         * @return number of primitives that are instances of a previous one, so they share its buffers
+         */
+        public int getSharedCount() {
+            return sharedCount;
+        }
+
+        /**
+         * @return bytes of the buffers that are views of the file
+         */
+        public long getMappedBytes() {
+            return mappedBytes;
+        }
+
+        /**
+         * @return bytes of the buffers that had to be converted
+         */
+        public long getCopiedBytes() {
+            return copiedBytes;
+        }
+
+        /**
+         * @return bytes of the buffer views decompressed
+         */
+        public long getDecodedBytes() {
+            return decodedBytes;
+        }
+    }
+
+    private final ByteBuffer bin;
+    private final Map<String, Object> json;
+    private final Result result = new Result();
+
+    // decompressed buffer views, by index
+    private ByteBuffer[] decoded;
+
+    // instances of each mesh in the scene
+    private int[] instances;
+    // accessors already read, so the instances share the buffers
+    private final Map<Long, FloatBuffer> floatCache = new HashMap<>();
+    private final Map<Integer, IntBuffer> indexCache = new HashMap<>();
+
+    private GlbMappedParser(ByteBuffer bin, Map<String, Object> json) {
+        this.bin = bin;
+        this.json = json;
+    }
+
+    /**
+     * @return true if the buffer starts like a GLB file
+     */
+    public static boolean isGlb(ByteBuffer glb) {
+        return glb.limit() >= 20 && glb.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == MAGIC;
+    }
+
+    /**
+     * Parse the JSON chunk
+     *
+     * @param glb the whole file
+     * @return the glTF document
+     * @throws IOException if the file is not a GLB
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> readJson(ByteBuffer glb) throws IOException {
+        if (!isGlb(glb)) throw new IOException("Not a GLB file");
+        if (glb.getInt(4) != 2) throw new IOException("Unsupported GLB version: " + glb.getInt(4));
+
+        final int length = glb.getInt(12);
+        if (glb.getInt(16) != CHUNK_JSON || length < 0 || 20L + length > glb.limit()) {
+            throw new IOException("Missing JSON chunk");
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer chunk = glb.duplicate();
+        chunk.position(20);
+        chunk.get(bytes);
+        final Object root = JsonParser.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (!(root instanceof Map)) throw new IOException("Invalid glTF document");
+        return (Map<String, Object>) root;
+    }
+
+    /**
+     * Parse the JSON chunk, reading only the header and the chunk from the stream
+     *
+     * @param stream the stream of the file, at its start
+     * @return the glTF document
+     * @throws IOException if the file is not a GLB
+     */
+    public static Map<String, Object> readJson(InputStream stream) throws IOException {
+        final DataInputStream input = new DataInputStream(stream);
+        final byte[] header = new byte[20];
+        input.readFully(header);
+        final ByteBuffer glb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (!isGlb(glb)) throw new IOException("Not a GLB file");
+
+        final int length = glb.getInt(12);
+        if (length < 0) throw new IOException("Missing JSON chunk");
+        final byte[] bytes = Arrays.copyOf(header, 20 + length);
+        input.readFully(bytes, 20, length);
+        return readJson(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Check whether the file uses features not supported by this parser
+     *
+     * @param json the glTF document
+     * @return the first unsupported feature, or <code>null</code> if the file is supported
+     */
+    public static String getUnsupportedFeature(Map<String, Object> json) {
+        if (!list(json, "animations").isEmpty()) return "animations";
+        if (!list(json, "skins").isEmpty()) return "skins";
+        if (!list(json, "images").isEmpty()) return "textures";
+        for (Object extension : list(json, "extensionsRequired")) {
+            if (KHR_DRACO.equals(extension)) return "Draco compression";
+            if (!SUPPORTED_EXTENSIONS.contains(extension)) return "extension " + extension;
+        }
+        final List<Object> buffers = list(json, "buffers");
+        for (int i = 0; i < buffers.size(); i++) {
+            final Map<String, Object> buffer = map(buffers.get(i));
+            // the only buffer is the BIN chunk. others can only be placeholders of compressed data
+            if (buffer.containsKey("uri")) return "external buffers";
+            if (i > 0 && !Boolean.TRUE.equals(map(map(buffer.get("extensions")).get(EXT_MESHOPT)).get("fallback"))) {
+                return "external buffers";
+            }
+        }
+        for (Object accessor : list(json, "accessors")) {
+            if (map(accessor).containsKey("sparse")) return "sparse accessors";
+        }
+        for (Object mesh : list(json, "meshes")) {
+            if (!list(map(mesh), "weights").isEmpty()) return "morph targets";
+            for (Object primitive : list(map(mesh), "primitives")) {
+                if (!list(map(primitive), "targets").isEmpty()) return "morph targets";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param json the glTF document
+     * @return true if the file can't be read without decompressing it
+     */
+    public static boolean isCompressed(Map<String, Object> json) {
+        return list(json, "extensionsRequired").contains(EXT_MESHOPT);
+    }
+
+    /**
+     * @param json the glTF document
+     * @return true if the file has meshes instanced with <code>EXT_mesh_gpu_instancing</code>
+     */
+    public static boolean isInstanced(Map<String, Object> json) {
+        return list(json, "extensionsUsed").contains(EXT_INSTANCING) || list(json, "extensionsRequired").contains(EXT_INSTANCING);
+    }
+
+    /**
+     * Parse the meshes of the default scene. Compressed data is decoded on the common pool
+     *
+     * @see #parse(ByteBuffer, ExecutorService)
+     */
+    public static Result parse(ByteBuffer glb) throws IOException {
+        return parse(glb, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parse the meshes of the default scene
+     *
+     * @param glb      the whole file, i.e. the {@link java.nio.MappedByteBuffer}. It is not modified
+     * @param executor where compressed buffer views are decoded
+     * @return the primitives, in scene order
+     * @throws IOException if the file is not valid or it's not supported
+     */
+    public static Result parse(ByteBuffer glb, ExecutorService executor) throws IOException {
+        final Map<String, Object> json = readJson(glb);
+        final String unsupported = getUnsupportedFeature(json);
+        if (unsupported != null) throw new IOException("Unsupported glTF feature: " + unsupported);
+
+        // BIN chunk, 4 byte aligned
+        final int binStart = 20 + ((glb.getInt(12) + 3) & ~3);
+        ByteBuffer bin = null;
+        if (binStart + 8 <= glb.limit() && glb.getInt(binStart + 4) == CHUNK_BIN) {
+            final int length = glb.getInt(binStart);
+            if (length < 0 || (long) binStart + 8 + length > glb.limit()) throw new IOException("Truncated BIN chunk");
+            final ByteBuffer chunk = glb.duplicate();
+            chunk.limit(binStart + 8 + length).position(binStart + 8);
+            bin = chunk.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        final GlbMappedParser parser = new GlbMappedParser(bin, json);
+        parser.decodeBufferViews(executor);
+        parser.parseScene();
+        return parser.result;
+    }
+
+    /**
+     * Decode all the compressed buffer views, one task each
+     */
+    private void decodeBufferViews(ExecutorService executor) throws IOException {
+        final List<Object> views = list(json, "bufferViews");
+        decoded = new ByteBuffer[views.size()];
+
+        final List<Integer> indices = new ArrayList<>();
+        final List<Callable<ByteBuffer>> tasks = new ArrayList<>();
+        for (int i = 0; i < views.size(); i++) {
+            final Map<String, Object> extension = map(map(map(views.get(i)).get("extensions")).get(EXT_MESHOPT));
+            if (extension.isEmpty()) continue;
+            if (bin == null) throw new IOException("Missing BIN chunk");
+            if (integer(extension, "buffer", 0) != 0) throw new IOException("Compressed data not in BIN chunk: " + i);
+
+            final int offset = integer(extension, "byteOffset", 0);
+            final int length = integer(extension, "byteLength", 0);
+            if (offset < 0 || length < 0 || (long) offset + length > bin.limit()) {
+                throw new IOException("Compressed buffer view out of bounds: " + i);
+            }
+            final int count = integer(extension, "count", 0);
+            final int stride = integer(extension, "byteStride", 0);
+            final Object mode = extension.get("mode");
+            final Object filter = extension.get("filter");
+            indices.add(i);
+            tasks.add(() -> MeshoptDecoder.decode(slice(bin, offset, length), count, stride,
+                    String.valueOf(mode), filter instanceof String ? (String) filter : null));
+        }
+        if (tasks.isEmpty()) return;
+
+        try {
+            final List<Future<ByteBuffer>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                final ByteBuffer data = futures.get(i).get();
+                decoded[indices.get(i)] = data;
+                result.decodedBytes += data.capacity();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error decoding buffer views", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    private void parseScene() throws IOException {
+        final List<Object> scenes = list(json, "scenes");
+        if (scenes.isEmpty()) {
+            // no scene: show every mesh
+            final List<Object> meshes = list(json, "meshes");
+            for (int i = 0; i < meshes.size(); i++) {
+                parseMesh(i, null);
+            }
+            return;
+        }
+        final int scene = integer(json, "scene", 0);
+        if (scene < 0 || scene >= scenes.size()) throw new IOException("Invalid scene: " + scene);
+        instances = new int[list(json, "meshes").size()];
+        for (Object node : list(map(scenes.get(scene)), "nodes")) {
+            countInstances(index(node), 0);
+        }
+        for (Object node : list(map(scenes.get(scene)), "nodes")) {
+            parseNode(index(node), null, 0);
+        }
+    }
+
+    private void countInstances(int index, int depth) throws IOException {
+        final List<Object> nodes = list(json, "nodes");
+        if (index < 0 || index >= nodes.size()) throw new IOException("Invalid node: " + index);
+        if (depth > nodes.size()) throw new IOException("Cycle in node hierarchy");
+
+        final Map<String, Object> node = map(nodes.get(index));
+        final int mesh = integer(node, "mesh", -1);
+        if (mesh >= 0 && mesh < instances.length) {
+            final Map<String, Object> attributes = map(map(map(node.get("extensions")).get(EXT_INSTANCING)).get("attributes"));
+            instances[mesh] += attributes.isEmpty() ? 1 : instanceCount(attributes);
+        }
+        for (Object child : list(node, "children")) {
+            countInstances(index(child), depth + 1);
+        }
+    }
+
+    private void parseNode(int index, float[] parentMatrix, int depth) throws IOException {
+        final List<Object> nodes = list(json, "nodes");
+        if (index < 0 || index >= nodes.size()) throw new IOException("Invalid node: " + index);
+        if (depth > nodes.size()) throw new IOException("Cycle in node hierarchy");
+
+        final Map<String, Object> node = map(nodes.get(index));
+        final float[] local = localMatrix(node);
+        final float[] matrix = parentMatrix == null ? local : local == null ? parentMatrix : multiply(parentMatrix, local);
+
+        if (node.containsKey("mesh")) {
+            final Map<String, Object> attributes = map(map(map(node.get("extensions")).get(EXT_INSTANCING)).get("attributes"));
+            if (attributes.isEmpty()) {
+                parseMesh(integer(node, "mesh", -1), matrix);
+            } else {
+                for (float[] instance : instanceMatrices(attributes)) {
+                    parseMesh(integer(node, "mesh", -1), matrix == null ? instance : multiply(matrix, instance));
+                }
+            }
+        }
+        for (Object child : list(node, "children")) {
+            parseNode(index(child), matrix, depth + 1);
+        }
+    }
+
+    private void parseMesh(int index, float[] matrix) throws IOException {
+        final List<Object> meshes = list(json, "meshes");
+        if (index < 0 || index >= meshes.size()) throw new IOException("Invalid mesh: " + index);
+        final Map<String, Object> mesh = map(meshes.get(index));
+        final String name = mesh.get("name") instanceof String ? (String) mesh.get("name") : "mesh_" + index;
+
+        for (Object item : list(mesh, "primitives")) {
+            final Map<String, Object> primitive = map(item);
+            final Map<String, Object> attributes = map(primitive.get("attributes"));
+            if (!attributes.containsKey("POSITION")) continue;
+
+            final int positionsAccessor = integer(attributes, "POSITION", -1);
+            if (floatCache.containsKey(positionsAccessor * 8L + 3)) result.sharedCount++;
+
+            FloatBuffer positions = floats(positionsAccessor, 3);
+            FloatBuffer normals = attributes.containsKey("NORMAL") ? floats(integer(attributes, "NORMAL", -1), 3) : null;
+            final FloatBuffer texCoords = attributes.containsKey("TEXCOORD_0") ? floats(integer(attributes, "TEXCOORD_0", -1), 2) : null;
+            final IntBuffer indices = primitive.containsKey("indices") ? indices(integer(primitive, "indices", -1)) : null;
+
+            float[] location = null, rotation = null, scale = null;
+            if (matrix != null && !isIdentity(matrix)) {
+                final float[] trs = instances != null && instances[index] > 1 ? decompose(matrix) : null;
+                if (trs != null) {
+                    // shared: the buffers are kept as they are, and the instance is transformed when drawn
+                    location = new float[]{trs[0], trs[1], trs[2]};
+                    if (!isNear(trs, 3, 0)) rotation = new float[]{trs[3], trs[4], trs[5]};
+                    if (!isNear(trs, 6, 1)) scale = new float[]{trs[6], trs[7], trs[8]};
+                } else {
+                    positions = transform(positions, matrix, 1);
+                    if (normals != null) normals = transform(normals, normalMatrix(matrix), 0);
+                }
+            }
+
+            result.primitives.add(new Primitive(name, integer(primitive, "mode", 4), positions, normals, texCoords,
+                    indices, color(primitive), location, rotation, scale));
+        }
+    }
+
+    private float[] color(Map<String, Object> primitive) throws IOException {
+        if (!primitive.containsKey("material")) return null;
+        final List<Object> materials = list(json, "materials");
+        final int index = integer(primitive, "material", -1);
+        if (index < 0 || index >= materials.size()) throw new IOException("Invalid material: " + index);
+        final Map<String, Object> pbr = map(map(materials.get(index)).get("pbrMetallicRoughness"));
+        final List<Object> factor = list(pbr, "baseColorFactor");
+        if (factor.size() != 4) return new float[]{1, 1, 1, 1};
+        final float[] ret = new float[4];
+        for (int i = 0; i < 4; i++) ret[i] = number(factor.get(i));
+        return ret;
+    }
+
+    // ------------------------------------------------------------------ accessors
+
+    /**
+     * Accessor data location
+     */
+    private static final class View {
+        ByteBuffer data;
+        boolean mapped;
+        int offset;
+        int stride;
+        int count;
+        int components;
+        int componentType;
+        boolean normalized;
+    }
+
+    private View view(int index, int components) throws IOException {
+        final List<Object> accessors = list(json, "accessors");
+        if (index < 0 || index >= accessors.size()) throw new IOException("Invalid accessor: " + index);
+        final Map<String, Object> accessor = map(accessors.get(index));
+
+        final View ret = new View();
+        ret.count = integer(accessor, "count", 0);
+        ret.componentType = integer(accessor, "componentType", FLOAT);
+        ret.normalized = Boolean.TRUE.equals(accessor.get("normalized"));
+        ret.components = components(accessor.get("type"));
+        if (components > 0 && ret.components != components) {
+            throw new IOException("Accessor " + index + " has " + ret.components + " components, expected " + components);
+        }
+
+        final List<Object> views = list(json, "bufferViews");
+        final int viewIndex = integer(accessor, "bufferView", -1);
+        if (viewIndex < 0 || viewIndex >= views.size()) throw new IOException("Accessor without data: " + index);
+        final Map<String, Object> bufferView = map(views.get(viewIndex));
+
+        final int elementSize = ret.components * componentSize(ret.componentType);
+        if (decoded[viewIndex] != null) {
+            ret.data = decoded[viewIndex];
+            ret.offset = integer(accessor, "byteOffset", 0);
+        } else {
+            if (bin == null || integer(bufferView, "buffer", 0) != 0) throw new IOException("Missing BIN chunk");
+            ret.data = bin;
+            ret.mapped = true;
+            ret.offset = integer(bufferView, "byteOffset", 0) + integer(accessor, "byteOffset", 0);
+        }
+        ret.stride = integer(bufferView, "byteStride", 0);
+        if (ret.stride == 0) ret.stride = elementSize;
+        if (ret.count < 0 || ret.offset < 0 || ret.stride < elementSize
+                || (ret.count > 0 && (long) ret.offset + (long) (ret.count - 1) * ret.stride + elementSize > ret.data.limit())) {
+            throw new IOException("Accessor out of bounds: " + index);
+        }
+        return ret;
+    }
+
+    private FloatBuffer floats(int accessor, int components) throws IOException {
+        final Long key = accessor * 8L + components;
+        FloatBuffer ret = floatCache.get(key);
+        if (ret == null) {
+            ret = readFloats(accessor, components);
+            floatCache.put(key, ret);
+        }
+        return ret;
+    }
+
+    private FloatBuffer readFloats(int accessor, int components) throws IOException {
+        final View view = view(accessor, components);
+        final int floats = view.count * view.components;
+
+        // zero copy: the data is already what GL expects
+        if (view.componentType == FLOAT && view.stride == view.components * 4 && (view.offset & 3) == 0
+                && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            if (view.mapped) result.mappedBytes += floats * 4L;
+            return slice(view.data, view.offset, floats * 4).asFloatBuffer();
+        }
+
+        final FloatBuffer ret = createFloatBuffer(floats);
+        for (int i = 0; i < view.count; i++) {
+            final int element = view.offset + i * view.stride;
+            for (int c = 0; c < view.components; c++) {
+                ret.put(component(view.data, element, c, view.componentType, view.normalized));
+            }
+        }
+        ret.position(0);
+        result.copiedBytes += floats * 4L;
+        return ret;
+    }
+
+    private IntBuffer indices(int accessor) throws IOException {
+        IntBuffer ret = indexCache.get(accessor);
+        if (ret == null) {
+            ret = readIndices(accessor);
+            indexCache.put(accessor, ret);
+        }
+        return ret;
+    }
+
+    private IntBuffer readIndices(int accessor) throws IOException {
+        final View view = view(accessor, 1);
+
+        if (view.componentType == UNSIGNED_INT && view.stride == 4 && (view.offset & 3) == 0
+                && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            if (view.mapped) result.mappedBytes += view.count * 4L;
+            return slice(view.data, view.offset, view.count * 4).asIntBuffer();
+        }
+
+        final IntBuffer ret = createIntBuffer(view.count);
+        for (int i = 0, offset = view.offset; i < view.count; i++, offset += view.stride) {
+            switch (view.componentType) {
+                case UNSIGNED_INT:
+                    ret.put(view.data.getInt(offset));
+                    break;
+                case UNSIGNED_SHORT:
+                    ret.put(view.data.getShort(offset) & 0xFFFF);
+                    break;
+                case UNSIGNED_BYTE:
+                    ret.put(view.data.get(offset) & 0xFF);
+                    break;
+                default:
+                    throw new IOException("Invalid index type: " + view.componentType);
+            }
+        }
+        ret.position(0);
+        result.copiedBytes += view.count * 4L;
+        return ret;
+    }
+
+    private static float component(ByteBuffer bin, int element, int c, int type, boolean normalized) throws IOException {
+        switch (type) {
+            case FLOAT:
+                return bin.getFloat(element + c * 4);
+            case UNSIGNED_BYTE:
+                return normalized ? (bin.get(element + c) & 0xFF) / 255f : bin.get(element + c) & 0xFF;
+            case BYTE:
+                return normalized ? Math.max(bin.get(element + c) / 127f, -1f) : bin.get(element + c);
+            case UNSIGNED_SHORT:
+                return normalized ? (bin.getShort(element + c * 2) & 0xFFFF) / 65535f : bin.getShort(element + c * 2) & 0xFFFF;
+            case SHORT:
+                return normalized ? Math.max(bin.getShort(element + c * 2) / 32767f, -1f) : bin.getShort(element + c * 2);
+            default:
+                throw new IOException("Invalid component type: " + type);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer bin, int offset, int length) {
+        final ByteBuffer ret = bin.duplicate();
+        ret.limit(offset + length).position(offset);
+        return ret.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int componentSize(int type) throws IOException {
+        switch (type) {
+            case FLOAT:
+            case UNSIGNED_INT:
+                return 4;
+            case UNSIGNED_SHORT:
+            case SHORT:
+                return 2;
+            case UNSIGNED_BYTE:
+            case BYTE:
+                return 1;
+            default:
+                throw new IOException("Invalid component type: " + type);
+        }
+    }
+
+    private static int components(Object type) throws IOException {
+        if ("SCALAR".equals(type)) return 1;
+        if ("VEC2".equals(type)) return 2;
+        if ("VEC3".equals(type)) return 3;
+        if ("VEC4".equals(type)) return 4;
+        throw new IOException("Unsupported accessor type: " + type);
+    }
+
+    // ------------------------------------------------------------------ transformations
+
+    /**
+     * @return the column-major matrix of the node, or <code>null</code> if it has no transformation
+     */
+    private static float[] localMatrix(Map<String, Object> node) throws IOException {
+        final List<Object> matrix = list(node, "matrix");
+        if (matrix.size() == 16) {
+            final float[] ret = new float[16];
+            for (int i = 0; i < 16; i++) ret[i] = number(matrix.get(i));
+            return ret;
+        }
+        final List<Object> t = list(node, "translation");
+        final List<Object> r = list(node, "rotation");
+        final List<Object> s = list(node, "scale");
+        if (t.isEmpty() && r.isEmpty() && s.isEmpty()) return null;
+
+        final float tx = t.size() == 3 ? number(t.get(0)) : 0, ty = t.size() == 3 ? number(t.get(1)) : 0, tz = t.size() == 3 ? number(t.get(2)) : 0;
+        final float qx = r.size() == 4 ? number(r.get(0)) : 0, qy = r.size() == 4 ? number(r.get(1)) : 0;
+        final float qz = r.size() == 4 ? number(r.get(2)) : 0, qw = r.size() == 4 ? number(r.get(3)) : 1;
+        final float sx = s.size() == 3 ? number(s.get(0)) : 1, sy = s.size() == 3 ? number(s.get(1)) : 1, sz = s.size() == 3 ? number(s.get(2)) : 1;
+        return trs(tx, ty, tz, qx, qy, qz, qw, sx, sy, sz);
+    }
+
+    /**
+     * @return T * R * S, as a column-major matrix
+     */
+    private static float[] trs(float tx, float ty, float tz, float qx, float qy, float qz, float qw, float sx, float sy, float sz) {
+        return new float[]{
+                (1 - 2 * (qy * qy + qz * qz)) * sx, 2 * (qx * qy + qz * qw) * sx, 2 * (qx * qz - qy * qw) * sx, 0,
+                2 * (qx * qy - qz * qw) * sy, (1 - 2 * (qx * qx + qz * qz)) * sy, 2 * (qy * qz + qx * qw) * sy, 0,
+                2 * (qx * qz + qy * qw) * sz, 2 * (qy * qz - qx * qw) * sz, (1 - 2 * (qx * qx + qy * qy)) * sz, 0,
+                tx, ty, tz, 1};
+    }
+
+    /**
+     * @param attributes the attributes of <code>EXT_mesh_gpu_instancing</code>
+     * @return the number of instances
+     */
+    private int instanceCount(Map<String, Object> attributes) throws IOException {
+        int ret = -1;
+        for (String attribute : Arrays.asList("TRANSLATION", "ROTATION", "SCALE")) {
+            if (!attributes.containsKey(attribute)) continue;
+            final int index = integer(attributes, attribute, -1);
+            final List<Object> accessors = list(json, "accessors");
+            if (index < 0 || index >= accessors.size()) throw new IOException("Invalid accessor: " + index);
+            final int count = integer(map(accessors.get(index)), "count", 0);
+            if (ret != -1 && ret != count) throw new IOException("Instance attributes with different counts");
+            ret = count;
+        }
+        return Math.max(ret, 0);
+    }
+
+    /**
+     * @param attributes the attributes of <code>EXT_mesh_gpu_instancing</code>
+     * @return the local matrix of each instance
+     */
+    private float[][] instanceMatrices(Map<String, Object> attributes) throws IOException {
+        final int count = instanceCount(attributes);
+        final FloatBuffer t = attributes.containsKey("TRANSLATION") ? floats(integer(attributes, "TRANSLATION", -1), 3) : null;
+        final FloatBuffer r = attributes.containsKey("ROTATION") ? floats(integer(attributes, "ROTATION", -1), 4) : null;
+        final FloatBuffer s = attributes.containsKey("SCALE") ? floats(integer(attributes, "SCALE", -1), 3) : null;
+
+        final float[][] ret = new float[count][];
+        for (int i = 0; i < count; i++) {
+            ret[i] = trs(t != null ? t.get(i * 3) : 0, t != null ? t.get(i * 3 + 1) : 0, t != null ? t.get(i * 3 + 2) : 0,
+                    r != null ? r.get(i * 4) : 0, r != null ? r.get(i * 4 + 1) : 0, r != null ? r.get(i * 4 + 2) : 0, r != null ? r.get(i * 4 + 3) : 1,
+                    s != null ? s.get(i * 3) : 1, s != null ? s.get(i * 3 + 1) : 1, s != null ? s.get(i * 3 + 2) : 1);
+        }
+        return ret;
+    }
+
+    static float[] multiply(float[] a, float[] b) {
+        final float[] ret = new float[16];
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) sum += a[k * 4 + row] * b[col * 4 + k];
+                ret[col * 4 + row] = sum;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Decompose the matrix like the model matrix of an object: translation * rotation X * rotation Y * rotation Z * scale
+     *
+     * @param m column-major matrix
+     * @return the location, the rotation in degrees and the scale, or <code>null</code> if the matrix has a shear
+     * or a projection, so it can't be decomposed
+     */
+    static float[] decompose(float[] m) {
+        if (m[3] != 0 || m[7] != 0 || m[11] != 0 || m[15] != 1) return null;
+        float sx = length(m[0], m[1], m[2]);
+        final float sy = length(m[4], m[5], m[6]);
+        final float sz = length(m[8], m[9], m[10]);
+        if (sx == 0 || sy == 0 || sz == 0) return null;
+
+        // the axes must stay perpendicular
+        final float tolerance = 1e-4f;
+        if (Math.abs(m[0] * m[4] + m[1] * m[5] + m[2] * m[6]) > tolerance * sx * sy
+                || Math.abs(m[0] * m[8] + m[1] * m[9] + m[2] * m[10]) > tolerance * sx * sz
+                || Math.abs(m[4] * m[8] + m[5] * m[9] + m[6] * m[10]) > tolerance * sy * sz) {
+            return null;
+        }
+        // mirrored
+        final float det = m[0] * (m[5] * m[10] - m[9] * m[6]) - m[4] * (m[1] * m[10] - m[9] * m[2]) + m[8] * (m[1] * m[6] - m[5] * m[2]);
+        if (det < 0) sx = -sx;
+
+        final float r00 = m[0] / sx, r10 = m[1] / sx;
+        final float r01 = m[4] / sy, r11 = m[5] / sy;
+        final float r02 = m[8] / sz, r12 = m[9] / sz, r22 = m[10] / sz;
+        final double y = Math.asin(Math.max(-1, Math.min(1, r02)));
+        final double x, z;
+        if (Math.abs(r02) < 0.99999f) {
+            x = Math.atan2(-r12, r22);
+            z = Math.atan2(-r01, r00);
+        } else {
+            // gimbal lock: the rotations around X and Z are the same
+            x = Math.atan2(r10 * Math.signum(r02), r11);
+            z = 0;
+        }
+        return new float[]{m[12], m[13], m[14],
+                (float) Math.toDegrees(x), (float) Math.toDegrees(y), (float) Math.toDegrees(z), sx, sy, sz};
+    }
+
+    /**
+     * @return true if the 3 values from the offset are the value, give or take the rounding of the matrix
+     */
+    private static boolean isNear(float[] values, int offset, float value) {
+        for (int i = offset; i < offset + 3; i++) {
+            if (Math.abs(values[i] - value) > 1e-5f) return false;
+        }
+        return true;
+    }
+
+    private static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    private static boolean isIdentity(float[] m) {
+        for (int i = 0; i < 16; i++) {
+            if (m[i] != (i % 5 == 0 ? 1f : 0f)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the inverse transpose of the upper 3x3, as a column-major 4x4 matrix
+     */
+    private static float[] normalMatrix(float[] m) {
+        final float a = m[0], b = m[4], c = m[8];
+        final float d = m[1], e = m[5], f = m[9];
+        final float g = m[2], h = m[6], i = m[10];
+        final float det = a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+        final float inv = det != 0 ? 1 / det : 0;
+        // transpose of the inverse = cofactors / det
+        return new float[]{
+                (e * i - f * h) * inv, (c * h - b * i) * inv, (b * f - c * e) * inv, 0,
+                (f * g - d * i) * inv, (a * i - c * g) * inv, (c * d - a * f) * inv, 0,
+                (d * h - e * g) * inv, (b * g - a * h) * inv, (a * e - b * d) * inv, 0,
+                0, 0, 0, 1};
+    }
+
+    /**
+     * Transform the vectors into a new buffer
+     *
+     * @param w 1 for points, 0 for directions (normalized after the transformation)
+     */
+    private FloatBuffer transform(FloatBuffer source, float[] m, int w) {
+        final int count = source.limit() / 3;
+        final FloatBuffer ret = createFloatBuffer(count * 3);
+        for (int i = 0; i < count; i++) {
+            final float x = source.get(i * 3), y = source.get(i * 3 + 1), z = source.get(i * 3 + 2);
+            float tx = m[0] * x + m[4] * y + m[8] * z + m[12] * w;
+            float ty = m[1] * x + m[5] * y + m[9] * z + m[13] * w;
+            float tz = m[2] * x + m[6] * y + m[10] * z + m[14] * w;
+            if (w == 0) {
+                final float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+                if (length > 0) {
+                    tx /= length;
+                    ty /= length;
+                    tz /= length;
+                }
+            }
+            ret.put(tx).put(ty).put(tz);
+        }
+        ret.position(0);
+        result.copiedBytes += count * 12L;
+        return ret;
+    }
+
+    // ------------------------------------------------------------------ json helpers
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Map<String, Object> map, String key) {
+        final Object value = map.get(key);
+        return value instanceof List ? (List<Object>) value : Collections.emptyList();
+    }
+
+    private static int integer(Map<String, Object> map, String key, int defaultValue) throws IOException {
+        final Object value = map.get(key);
+        if (value == null) return defaultValue;
+        return index(value);
+    }
+
+    private static int index(Object value) throws IOException {
+        if (!(value instanceof Number)) throw new IOException("Expected number: " + value);
+        return ((Number) value).intValue();
+    }
+
+    private static float number(Object value) throws IOException {
+        if (!(value instanceof Number)) throw new IOException("Expected number: " + value);
+        return ((Number) value).floatValue();
+    }
+
+    private static FloatBuffer createFloatBuffer(int floats) {
+        return ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static IntBuffer createIntBuffer(int ints) {
+        return ByteBuffer.allocateDirect(ints * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
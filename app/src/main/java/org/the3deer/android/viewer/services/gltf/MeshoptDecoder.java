@@ -0,0 +1,467 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decoder of the <code>EXT_meshopt_compression</code> glTF extension (meshoptimizer codecs).
+ * <p>
+ * Modes:
+ * <ul>
+ *     <li>ATTRIBUTES: vertex codec. Vertices are split in blocks, and every byte of the vertex is
+ *     delta-encoded against the previous vertex and bit-packed in groups of 16</li>
+ *     <li>TRIANGLES: index codec. Triangles are encoded with an edge FIFO and a vertex FIFO, so most of
+ *     them take a single byte</li>
+ *     <li>INDICES: index sequence codec. Variable-length deltas against one of two baselines</li>
+ * </ul>
+ * Filters (OCTAHEDRAL, QUATERNION, EXPONENTIAL) are applied in place after decoding the vertices.
+ * </p>
+ * <p>
+ * Input buffers must be little endian. Output is written in glTF layout (little endian),
+ * from position 0 of the destination buffer.
+ * </p>
+ */
+public final class MeshoptDecoder {
+
+    private static final int VERTEX_HEADER = 0xA0;
+    private static final int INDEX_HEADER = 0xE0;
+    private static final int SEQUENCE_HEADER = 0xD0;
+
+    private static final int VERTEX_BLOCK_SIZE_BYTES = 8192;
+    private static final int VERTEX_BLOCK_MAX_SIZE = 256;
+    private static final int BYTE_GROUP_SIZE = 16;
+    private static final int BYTE_GROUP_DECODE_LIMIT = 24;
+    private static final int TAIL_MAX_SIZE = 32;
+
+    private MeshoptDecoder() {
+    }
+
+    /**
+     * Decode a buffer view
+     *
+     * @param source the compressed data
+     * @param count  number of elements
+     * @param stride size of each element
+     * @param mode   ATTRIBUTES, TRIANGLES or INDICES
+     * @param filter NONE, OCTAHEDRAL, QUATERNION or EXPONENTIAL. <code>null</code> is NONE
+     * @return a new direct buffer with <code>count * stride</code> bytes
+     * @throws IOException if the data is malformed or the mode is not supported
+     */
+    public static ByteBuffer decode(ByteBuffer source, int count, int stride, String mode, String filter) throws IOException {
+        if (count < 0 || stride <= 0 || (long) count * stride > Integer.MAX_VALUE) {
+            throw new IOException("Invalid meshopt buffer: count " + count + ", stride " + stride);
+        }
+        final ByteBuffer ret = ByteBuffer.allocateDirect(count * stride).order(ByteOrder.LITTLE_ENDIAN);
+        if ("ATTRIBUTES".equals(mode)) {
+            decodeVertexBuffer(ret, count, stride, source);
+            if (filter != null && !"NONE".equals(filter)) decodeFilter(ret, count, stride, filter);
+        } else if ("TRIANGLES".equals(mode)) {
+            decodeIndexBuffer(ret, count, stride, source);
+        } else if ("INDICES".equals(mode)) {
+            decodeIndexSequence(ret, count, stride, source);
+        } else {
+            throw new IOException("Unsupported meshopt mode: " + mode);
+        }
+        return ret;
+    }
+
+    // ------------------------------------------------------------------ vertex codec
+
+    /**
+     * @param destination buffer of <code>count * size</code> bytes
+     * @param size        vertex size in bytes. Multiple of 4, up to 256
+     */
+    static void decodeVertexBuffer(ByteBuffer destination, int count, int size, ByteBuffer source) throws IOException {
+        if (size <= 0 || size > 256 || size % 4 != 0) throw new IOException("Invalid vertex size: " + size);
+
+        final int end = source.limit();
+        if (end < 1 || (source.get(0) & 0xF0) != VERTEX_HEADER) throw new IOException("Invalid vertex buffer header");
+        final int version = source.get(0) & 0x0F;
+        if (version != 0) throw new IOException("Unsupported vertex codec version: " + version);
+
+        int pos = 1;
+        final int tailSize = Math.max(size, TAIL_MAX_SIZE);
+        if (end - pos < tailSize) throw new IOException("Truncated vertex buffer");
+
+        // the first vertex is stored at the end, and it's the base of the first delta
+        final byte[] last = new byte[size];
+        for (int k = 0; k < size; k++) last[k] = source.get(end - size + k);
+
+        final int blockSize = getVertexBlockSize(size);
+        final byte[] buffer = new byte[VERTEX_BLOCK_MAX_SIZE];
+        final byte[] transposed = new byte[VERTEX_BLOCK_SIZE_BYTES];
+        final ByteBuffer output = destination.duplicate();
+
+        for (int offset = 0; offset < count; offset += blockSize) {
+            final int vertices = Math.min(blockSize, count - offset);
+            final int aligned = (vertices + BYTE_GROUP_SIZE - 1) & ~(BYTE_GROUP_SIZE - 1);
+            for (int k = 0; k < size; k++) {
+                pos = decodeBytes(source, pos, end, buffer, aligned);
+                int p = last[k];
+                for (int i = 0, t = k; i < vertices; i++, t += size) {
+                    final int v = buffer[i] & 0xFF;
+                    p = (byte) (((-(v & 1)) ^ (v >>> 1)) + p);
+                    transposed[t] = (byte) p;
+                }
+            }
+            output.position(offset * size);
+            output.put(transposed, 0, vertices * size);
+            System.arraycopy(transposed, (vertices - 1) * size, last, 0, size);
+        }
+
+        if (end - pos != tailSize) throw new IOException("Invalid vertex buffer length");
+    }
+
+    private static int getVertexBlockSize(int size) {
+        final int ret = (VERTEX_BLOCK_SIZE_BYTES / size) & ~(BYTE_GROUP_SIZE - 1);
+        return Math.min(ret, VERTEX_BLOCK_MAX_SIZE);
+    }
+
+    /**
+     * Decode a byte stream of <code>length</code> bytes: a 2-bit header per group of 16 bytes,
+     * followed by the groups
+     *
+     * @return the position after the data
+     */
+    private static int decodeBytes(ByteBuffer source, int pos, int end, byte[] buffer, int length) throws IOException {
+        final int header = pos;
+        final int headerSize = (length / BYTE_GROUP_SIZE + 3) / 4;
+        if (end - pos < headerSize) throw new IOException("Truncated vertex buffer");
+        pos += headerSize;
+
+        for (int i = 0; i < length; i += BYTE_GROUP_SIZE) {
+            if (end - pos < BYTE_GROUP_DECODE_LIMIT) throw new IOException("Truncated vertex buffer");
+            final int group = i / BYTE_GROUP_SIZE;
+            final int bitsLog2 = (source.get(header + group / 4) >> ((group % 4) * 2)) & 3;
+            pos = decodeBytesGroup(source, pos, buffer, i, bitsLog2);
+        }
+        return pos;
+    }
+
+    private static int decodeBytesGroup(ByteBuffer source, int pos, byte[] buffer, int offset, int bitsLog2) {
+        switch (bitsLog2) {
+            case 0:
+                for (int i = 0; i < BYTE_GROUP_SIZE; i++) buffer[offset + i] = 0;
+                return pos;
+            case 3:
+                for (int i = 0; i < BYTE_GROUP_SIZE; i++) buffer[offset + i] = source.get(pos + i);
+                return pos + BYTE_GROUP_SIZE;
+            default:
+                // 2 or 4 bits per value, most significant bits first. The max value means "read the next extra byte"
+                final int bits = 1 << bitsLog2;
+                final int mask = (1 << bits) - 1;
+                final int perByte = 8 / bits;
+                int extra = pos + BYTE_GROUP_SIZE / perByte;
+                for (int i = 0; i < BYTE_GROUP_SIZE; i++) {
+                    final int packed = source.get(pos + i / perByte) & 0xFF;
+                    final int value = (packed >> (8 - bits - (i % perByte) * bits)) & mask;
+                    if (value == mask) {
+                        buffer[offset + i] = source.get(extra++);
+                    } else {
+                        buffer[offset + i] = (byte) value;
+                    }
+                }
+                return extra;
+        }
+    }
+
+    // ------------------------------------------------------------------ index codec
+
+    /**
+     * @param destination buffer of <code>count * indexSize</code> bytes
+     * @param count       number of indices, multiple of 3
+     * @param indexSize   2 or 4
+     */
+    static void decodeIndexBuffer(ByteBuffer destination, int count, int indexSize, ByteBuffer source) throws IOException {
+        if (count % 3 != 0) throw new IOException("Invalid index count: " + count);
+        if (indexSize != 2 && indexSize != 4) throw new IOException("Invalid index size: " + indexSize);
+
+        // header, 1 byte per triangle, and the 16 byte table of codes
+        final int size = source.limit();
+        if (size < 1 + count / 3 + 16) throw new IOException("Truncated index buffer");
+        if ((source.get(0) & 0xF0) != INDEX_HEADER) throw new IOException("Invalid index buffer header");
+        final int version = source.get(0) & 0x0F;
+        if (version > 1) throw new IOException("Unsupported index codec version: " + version);
+
+        final int[] edgeFifo = new int[32];
+        final int[] vertexFifo = new int[16];
+        Arrays.fill(edgeFifo, -1);
+        Arrays.fill(vertexFifo, -1);
+        int edgeOffset = 0;
+        int vertexOffset = 0;
+        int next = 0;
+        int last = 0;
+        final int fecMax = version >= 1 ? 13 : 15;
+
+        int code = 1;
+        final int[] data = {1 + count / 3};
+        final int dataSafeEnd = size - 16;
+
+        for (int i = 0; i < count; i += 3) {
+            // a triangle reads at most 16 bytes of data
+            if (data[0] > dataSafeEnd) throw new IOException("Truncated index buffer");
+
+            final int codeTri = source.get(code++) & 0xFF;
+            final int a, b, c;
+
+            if (codeTri < 0xF0) {
+                // the first edge is in the edge fifo
+                final int fe = codeTri >> 4;
+                final int edge = ((edgeOffset - 1 - fe) & 15) * 2;
+                a = edgeFifo[edge];
+                b = edgeFifo[edge + 1];
+                final int fec = codeTri & 15;
+
+                if (fec < fecMax) {
+                    // third vertex is the next one, or it's in the vertex fifo
+                    if (fec == 0) {
+                        c = next++;
+                        vertexFifo[vertexOffset] = c;
+                        vertexOffset = (vertexOffset + 1) & 15;
+                    } else {
+                        c = vertexFifo[(vertexOffset - 1 - fec) & 15];
+                    }
+                } else {
+                    // 13 and 14 are -1 and +1 from the last free index. 15 is a free index
+                    c = fec != 15 ? last + (fec - (fec ^ 3)) : decodeIndex(source, data, last);
+                    last = c;
+                    vertexFifo[vertexOffset] = c;
+                    vertexOffset = (vertexOffset + 1) & 15;
+                }
+
+                edgeOffset = pushEdge(edgeFifo, edgeOffset, c, b);
+                edgeOffset = pushEdge(edgeFifo, edgeOffset, a, c);
+            } else {
+                final int feb, fec;
+                final boolean fea;
+                if (codeTri < 0xFE) {
+                    // codes from the table. first vertex is always the next one
+                    final int codeAux = source.get(dataSafeEnd + (codeTri & 15)) & 0xFF;
+                    fea = true;
+                    feb = codeAux >> 4;
+                    fec = codeAux & 15;
+                } else {
+                    // codes in the data. 0xFE: first vertex is the next one. 0xFF: it's a free index
+                    final int codeAux = source.get(data[0]++) & 0xFF;
+                    fea = codeTri == 0xFE;
+                    feb = codeAux >> 4;
+                    fec = codeAux & 15;
+                    // reset marker
+                    if (codeAux == 0) next = 0;
+                }
+
+                // next is incremented for all three vertices before decoding free indices, like the encoder does
+                int va = fea ? next++ : 0;
+                int vb = feb == 0 ? next++ : vertexFifo[(vertexOffset - feb) & 15];
+                int vc = fec == 0 ? next++ : vertexFifo[(vertexOffset - fec) & 15];
+                if (!fea) last = va = decodeIndex(source, data, last);
+                if (feb == 15) last = vb = decodeIndex(source, data, last);
+                if (fec == 15) last = vc = decodeIndex(source, data, last);
+                a = va;
+                b = vb;
+                c = vc;
+
+                vertexFifo[vertexOffset] = a;
+                vertexOffset = (vertexOffset + 1) & 15;
+                vertexFifo[vertexOffset] = b;
+                vertexOffset = (vertexOffset + (feb == 0 || feb == 15 ? 1 : 0)) & 15;
+                vertexFifo[vertexOffset] = c;
+                vertexOffset = (vertexOffset + (fec == 0 || fec == 15 ? 1 : 0)) & 15;
+
+                edgeOffset = pushEdge(edgeFifo, edgeOffset, b, a);
+                edgeOffset = pushEdge(edgeFifo, edgeOffset, c, b);
+                edgeOffset = pushEdge(edgeFifo, edgeOffset, a, c);
+            }
+
+            writeIndex(destination, i, indexSize, a);
+            writeIndex(destination, i + 1, indexSize, b);
+            writeIndex(destination, i + 2, indexSize, c);
+        }
+
+        // all the data must be read, up to the table of codes
+        if (data[0] != dataSafeEnd) throw new IOException("Invalid index buffer length");
+    }
+
+    private static int pushEdge(int[] fifo, int offset, int a, int b) {
+        fifo[offset * 2] = a;
+        fifo[offset * 2 + 1] = b;
+        return (offset + 1) & 15;
+    }
+
+    private static int decodeIndex(ByteBuffer source, int[] pos, int last) {
+        final int v = decodeVByte(source, pos);
+        return last + ((v >>> 1) ^ -(v & 1));
+    }
+
+    private static int decodeVByte(ByteBuffer source, int[] pos) {
+        final int lead = source.get(pos[0]++) & 0xFF;
+        if (lead < 128) return lead;
+
+        // up to 4 more groups of 7 bits
+        int ret = lead & 127;
+        int shift = 7;
+        for (int i = 0; i < 4; i++) {
+            final int group = source.get(pos[0]++) & 0xFF;
+            ret |= (group & 127) << shift;
+            shift += 7;
+            if (group < 128) break;
+        }
+        return ret;
+    }
+
+    private static void writeIndex(ByteBuffer destination, int i, int indexSize, int index) {
+        if (indexSize == 2) {
+            destination.putShort(i * 2, (short) index);
+        } else {
+            destination.putInt(i * 4, index);
+        }
+    }
+
+    // ------------------------------------------------------------------ index sequence codec
+
+    /**
+     * @param destination buffer of <code>count * indexSize</code> bytes
+     * @param indexSize   2 or 4
+     */
+    static void decodeIndexSequence(ByteBuffer destination, int count, int indexSize, ByteBuffer source) throws IOException {
+        if (indexSize != 2 && indexSize != 4) throw new IOException("Invalid index size: " + indexSize);
+
+        // header, at least 1 byte per index, and a 4 byte tail
+        final int size = source.limit();
+        if (size < 1 + count + 4) throw new IOException("Truncated index sequence");
+        if ((source.get(0) & 0xF0) != SEQUENCE_HEADER) throw new IOException("Invalid index sequence header");
+        final int version = source.get(0) & 0x0F;
+        if (version > 1) throw new IOException("Unsupported index sequence version: " + version);
+
+        final int[] pos = {1};
+        final int dataSafeEnd = size - 4;
+        final int[] last = new int[2];
+
+        for (int i = 0; i < count; i++) {
+            // an index reads at most 5 bytes, and the tail is 4 bytes
+            if (pos[0] >= dataSafeEnd) throw new IOException("Truncated index sequence");
+
+            int v = decodeVByte(source, pos);
+            // lowest bit selects the baseline
+            final int baseline = v & 1;
+            v >>>= 1;
+            final int index = last[baseline] + ((v >>> 1) ^ -(v & 1));
+            last[baseline] = index;
+            writeIndex(destination, i, indexSize, index);
+        }
+
+        if (pos[0] != dataSafeEnd) throw new IOException("Invalid index sequence length");
+    }
+
+    // ------------------------------------------------------------------ filters
+
+    static void decodeFilter(ByteBuffer data, int count, int stride, String filter) throws IOException {
+        switch (filter) {
+            case "OCTAHEDRAL":
+                if (stride == 4) {
+                    decodeFilterOct8(data, count);
+                } else if (stride == 8) {
+                    decodeFilterOct16(data, count);
+                } else {
+                    throw new IOException("Invalid stride for octahedral filter: " + stride);
+                }
+                break;
+            case "QUATERNION":
+                if (stride != 8) throw new IOException("Invalid stride for quaternion filter: " + stride);
+                decodeFilterQuat(data, count);
+                break;
+            case "EXPONENTIAL":
+                if (stride % 4 != 0) throw new IOException("Invalid stride for exponential filter: " + stride);
+                decodeFilterExp(data, count * stride / 4);
+                break;
+            default:
+                throw new IOException("Unsupported meshopt filter: " + filter);
+        }
+    }
+
+    /**
+     * Octahedral encoded unit vectors, 8 bits per component. The 3rd component encodes 1.0
+     */
+    private static void decodeFilterOct8(ByteBuffer data, int count) {
+        final float[] xyz = new float[3];
+        for (int i = 0; i < count; i++) {
+            final int offset = i * 4;
+            decodeOct(data.get(offset), data.get(offset + 1), data.get(offset + 2), 127f, xyz);
+            data.put(offset, (byte) round(xyz[0]));
+            data.put(offset + 1, (byte) round(xyz[1]));
+            data.put(offset + 2, (byte) round(xyz[2]));
+        }
+    }
+
+    /**
+     * Octahedral encoded unit vectors, 16 bits per component. The 3rd component encodes 1.0
+     */
+    private static void decodeFilterOct16(ByteBuffer data, int count) {
+        final float[] xyz = new float[3];
+        for (int i = 0; i < count; i++) {
+            final int offset = i * 8;
+            decodeOct(data.getShort(offset), data.getShort(offset + 2), data.getShort(offset + 4), 32767f, xyz);
+            data.putShort(offset, (short) round(xyz[0]));
+            data.putShort(offset + 2, (short) round(xyz[1]));
+            data.putShort(offset + 4, (short) round(xyz[2]));
+        }
+    }
+
+    private static void decodeOct(float x, float y, float one, float max, float[] out) {
+        final float z = one - Math.abs(x) - Math.abs(y);
+
+        // fixup octahedral coordinates for z < 0
+        final float t = z >= 0 ? 0 : z;
+        x += x >= 0 ? t : -t;
+        y += y >= 0 ? t : -t;
+
+        final float scale = max / (float) Math.sqrt(x * x + y * y + z * z);
+        out[0] = x * scale;
+        out[1] = y * scale;
+        out[2] = z * scale;
+    }
+
+    /**
+     * Unit quaternions with 3 components. The 4th component has the index of the dropped component,
+     * and the scale of the others
+     */
+    private static void decodeFilterQuat(ByteBuffer data, int count) {
+        final float scale = (float) (1 / Math.sqrt(2));
+        for (int i = 0; i < count; i++) {
+            final int offset = i * 8;
+            final short q3 = data.getShort(offset + 6);
+            final float ss = scale / (q3 | 3);
+
+            final float x = data.getShort(offset) * ss;
+            final float y = data.getShort(offset + 2) * ss;
+            final float z = data.getShort(offset + 4) * ss;
+            final float ww = 1 - x * x - y * y - z * z;
+            final float w = (float) Math.sqrt(ww >= 0 ? ww : 0);
+
+            // output order depends on the dropped component
+            final int qc = q3 & 3;
+            data.putShort(offset + ((qc + 1) & 3) * 2, (short) round(x * 32767f));
+            data.putShort(offset + ((qc + 2) & 3) * 2, (short) round(y * 32767f));
+            data.putShort(offset + ((qc + 3) & 3) * 2, (short) round(z * 32767f));
+            data.putShort(offset + qc * 2, (short) round(w * 32767f));
+        }
+    }
+
+    /**
+     * Floats as 24 bit mantissa and 8 bit exponent
+     */
+    private static void decodeFilterExp(ByteBuffer data, int count) {
+        for (int i = 0; i < count; i++) {
+            final int v = data.getInt(i * 4);
+            final int mantissa = (v << 8) >> 8;
+            final int exponent = v >> 24;
+            data.putFloat(i * 4, Float.intBitsToFloat((exponent + 127) << 23) * mantissa);
+        }
+    }
+
+    private static int round(float value) {
+        return (int) (value + (value >= 0 ? 0.5f : -0.5f));
+    }
+}
@@ -0,0 +1,183 @@
+package org.the3deer.android.viewer.services.lod;
+
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.viewer.util.MeshSimplifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Levels of detail of an indexed triangle list.
+ * <p>
+ * Level 0 is the index buffer of the object as loaded. Each next level is simplified from the previous one
+ * by the {@link MeshSimplifier}, to the ratios of {@link #RATIOS}. All the levels share the vertex buffers,
+ * so switching the level only switches the index buffer of the object.
+ * </p>
+ * <p>
+ * The level is chosen by the size on screen of its geometric error: the coarsest level whose error spans
+ * less than {@link #SCREEN_ERROR} of the viewport height is drawn.
+ * </p>
+ */
+public final class LodChain {
+
+    /**
+     * Triangles of each level, relative to the previous level
+     */
+    static final float[] RATIOS = {0.5f, 0.5f, 0.5f};
+
+    /**
+     * Error limit of each level, relative to the largest dimension of the mesh
+     */
+    static final float[] MAX_ERRORS = {0.01f, 0.02f, 0.04f};
+
+    /**
+     * Maximum error on screen, as a fraction of the viewport height (2 pixels of a 1000 pixels high viewport)
+     */
+    public static final float SCREEN_ERROR = 0.002f;
+
+    // levels smaller than this are not worth switching to
+    private static final float MIN_REDUCTION = 0.9f;
+
+    // objects currently drawn with a simplified level
+    private static final Map<Object3D, LodChain> simplified = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Object3D obj;
+    private final IntBuffer[] levels;
+    private final float[] errors;
+    private int level;
+
+    private LodChain(Object3D obj, IntBuffer[] levels, float[] errors) {
+        this.obj = obj;
+        this.levels = levels;
+        this.errors = errors;
+    }
+
+    /**
+     * Generate the levels of the object
+     *
+     * @return the chain, or <code>null</code> if the object is not an indexed triangle list, or can't be simplified
+     */
+    public static LodChain build(Object3D obj) {
+        final FloatBuffer vertices = obj.getVertexBuffer();
+        final IntBuffer indexBuffer = obj.getIndexBuffer();
+        if (obj.getDrawMode() != GLES20.GL_TRIANGLES || vertices == null || indexBuffer == null) return null;
+
+        final int vertexCount = vertices.limit() / 3;
+        int[] indices = new int[indexBuffer.limit()];
+        final IntBuffer source = indexBuffer.duplicate();
+        source.position(0);
+        source.get(indices);
+        if (indices.length < 3 || indices.length % 3 != 0) return null;
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) return null;
+        }
+
+        final List<IntBuffer> levels = new ArrayList<>();
+        final List<Float> errors = new ArrayList<>();
+        levels.add(indexBuffer);
+        errors.add(0f);
+        for (int i = 0; i < RATIOS.length; i++) {
+            final int target = (int) (indices.length / 3 * RATIOS[i]) * 3;
+            final MeshSimplifier.Result result = MeshSimplifier.simplify(indices, vertices, vertexCount, target, MAX_ERRORS[i]);
+            final int[] simplified = result.getIndices();
+            if (simplified.length == 0 || simplified.length > indices.length * MIN_REDUCTION) break;
+
+            // errors add up, since each level is simplified from the previous one
+            levels.add(toBuffer(simplified));
+            errors.add(errors.get(errors.size() - 1) + result.getError());
+            indices = simplified;
+        }
+        if (levels.size() == 1) return null;
+
+        final float[] ret = new float[errors.size()];
+        for (int i = 0; i < ret.length; i++) ret[i] = errors.get(i);
+        return new LodChain(obj, levels.toArray(new IntBuffer[0]), ret);
+    }
+
+    /**
+     * @return the index buffer of the full detail mesh of the object, even if a simplified level is being drawn
+     */
+    public static IntBuffer getFullDetail(Object3D obj) {
+        final LodChain chain = simplified.get(obj);
+        return chain != null ? chain.levels[0] : obj.getIndexBuffer();
+    }
+
+    /**
+     * Choose the level for the distance to the camera
+     *
+     * @param errors   error of each level, relative to the extent
+     * @param extent   largest dimension of the object
+     * @param distance distance from the camera to the center of the object
+     * @param fov      vertical field of view, in degrees
+     * @return the coarsest level whose error is not visible
+     */
+    static int selectLevel(float[] errors, float extent, float distance, float fov) {
+        if (distance <= 0 || extent <= 0) return 0;
+        final double viewport = 2 * distance * Math.tan(Math.toRadians(fov > 0 ? fov : 45) / 2);
+        int ret = 0;
+        for (int i = 1; i < errors.length; i++) {
+            if (errors[i] * extent / viewport <= SCREEN_ERROR) ret = i;
+        }
+        return ret;
+    }
+
+    public Object3D getObject() {
+        return obj;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int getTriangles(int level) {
+        return levels[level].limit() / 3;
+    }
+
+    public float getError(int level) {
+        return errors[level];
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Draw the level for the distance to the camera
+     *
+     * @return true if the level changed
+     * @see #selectLevel(float[], float, float, float)
+     */
+    public boolean update(float extent, float distance, float fov) {
+        return setLevel(selectLevel(errors, extent, distance, fov));
+    }
+
+    /**
+     * Switch the index buffer of the object
+     *
+     * @return true if the level changed
+     */
+    public boolean setLevel(int level) {
+        if (level == this.level) return false;
+        // registered while a simplified level is set, so the full detail can still be found
+        if (level != 0) simplified.put(obj, this);
+        obj.setIndexBuffer(levels[level]);
+        if (level == 0) simplified.remove(obj);
+        this.level = level;
+        return true;
+    }
+
+    private static IntBuffer toBuffer(int[] indices) {
+        final IntBuffer ret = ByteBuffer.allocateDirect(indices.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        ret.put(indices).position(0);
+        return ret;
+    }
+}
@@ -0,0 +1,76 @@
+package org.the3deer.android.viewer.services.lod;
+
+import org.the3deer.android.engine.model.Object3D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates the {@link LodChain} of the objects of a model, one object per task.
+ * <p>
+ * The simplification of each object is deterministic, so the chains are the same whatever the number of threads.
+ * </p>
+ *
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isLod()
+ */
+public final class LodGenerator {
+
+    private static final Logger logger = Logger.getLogger(LodGenerator.class.getSimpleName());
+
+    // shared by all the models. idle workers are released by the pool
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private LodGenerator() {
+    }
+
+    /**
+     * Generate the chains in the background
+     *
+     * @param objects  the objects of the model
+     * @param callback called from a worker thread, with the chains of the objects that could be simplified
+     * @return the future, to cancel the generation
+     */
+    public static Future<?> submit(List<Object3D> objects, Consumer<List<LodChain>> callback) {
+        return POOL.submit(() -> {
+            try {
+                callback.accept(generate(objects, POOL));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Generate the chains, in parallel
+     *
+     * @return the chains of the objects that could be simplified, in the order of the objects
+     */
+    public static List<LodChain> generate(List<Object3D> objects, ExecutorService executor) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final List<Callable<LodChain>> tasks = new ArrayList<>();
+        for (Object3D obj : objects) {
+            tasks.add(() -> LodChain.build(obj));
+        }
+
+        final List<LodChain> ret = new ArrayList<>();
+        for (Future<LodChain> future : executor.invokeAll(tasks)) {
+            try {
+                final LodChain chain = future.get();
+                if (chain != null) ret.add(chain);
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Error simplifying object. " + e.getCause(), e.getCause());
+            }
+        }
+        logger.info("Levels of detail generated for " + ret.size() + " of " + objects.size() + " objects in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return ret;
+    }
+}
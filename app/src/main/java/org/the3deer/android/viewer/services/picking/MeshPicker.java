@@ -0,0 +1,258 @@
+package org.the3deer.android.viewer.services.picking;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import org.the3deer.android.engine.model.Camera;
+import org.the3deer.android.engine.model.Dimensions;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.batching.Batch;
+import org.the3deer.android.viewer.services.batching.SceneBatcher;
+import org.the3deer.android.viewer.services.lod.LodChain;
+import org.the3deer.android.viewer.util.TriangleBvh;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Ray casting against the triangles of the objects of a scene.
+ * <p>
+ * Each object gets a {@link TriangleBvh} the first time a ray gets near it (its bounding sphere is tested first),
+ * and the tree is kept while the buffers of the object are the same. The tree is built on the full detail
+ * of the mesh, even if a simplified level is being drawn. Rays are transformed to the space of the
+ * object with the inverse of its model matrix, so the tree is valid while the object moves.
+ * </p>
+ * <p>
+ * If the objects are merged by a {@link SceneBatcher}, the hits on a batch are reported on the member hit.
+ * The engine keeps one picker per model, and the objects tapped on the view are picked with
+ * {@link #pick(Scene, float, float, int, int)}.
+ * </p>
+ */
+public class MeshPicker {
+
+    private static final Logger logger = Logger.getLogger(MeshPicker.class.getSimpleName());
+
+    private final Map<Object3D, Entry> trees = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final SceneBatcher batcher;
+
+    public MeshPicker() {
+        this(null);
+    }
+
+    /**
+     * @param batcher the batcher of the model, may be <code>null</code>
+     */
+    public MeshPicker(SceneBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Nearest object hit by a ray
+     */
+    public static final class Hit {
+
+        private final Object3D object;
+        private final int triangle;
+        private final float distance;
+
+        Hit(Object3D object, int triangle, float distance) {
+            this.object = object;
+            this.triangle = triangle;
+            this.distance = distance;
+        }
+
+        public Object3D getObject() {
+            return object;
+        }
+
+        /**
+         * @return index of the triangle in the mesh of the object
+         */
+        public int getTriangle() {
+            return triangle;
+        }
+
+        /**
+         * @return distance along the ray, in units of the length of the direction
+         */
+        public float getDistance() {
+            return distance;
+        }
+    }
+
+    private static final class Entry {
+
+        private final FloatBuffer vertices;
+        private final IntBuffer indices;
+        private final TriangleBvh tree;
+
+        Entry(FloatBuffer vertices, IntBuffer indices, TriangleBvh tree) {
+            this.vertices = vertices;
+            this.indices = indices;
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * Find the nearest visible object of the scene under a point of the view, seen from the active camera
+     *
+     * @param x      horizontal position in the view, in pixels
+     * @param y      vertical position in the view, in pixels, from the top
+     * @param width  width of the view
+     * @param height height of the view
+     * @return the hit, or <code>null</code> if no object is hit or the scene has no camera
+     */
+    public Hit pick(Scene scene, float x, float y, int width, int height) {
+        final Camera camera = scene.getActiveCamera();
+        if (camera == null || camera.getPos() == null || camera.getView() == null || width == 0 || height == 0) return null;
+        final float[] origin = camera.getPos().clone();
+        return pick(scene, origin, getRay(origin, camera.getView(), camera.getProjection().getFov(), width, height, x, y));
+    }
+
+    /**
+     * Find the nearest visible object of the scene hit by the ray
+     *
+     * @param origin    origin of the ray, in world space
+     * @param direction direction of the ray, in world space
+     * @return the hit, or <code>null</code> if no object is hit
+     */
+    public Hit pick(Scene scene, float[] origin, float[] direction) {
+        return pick(new ArrayList<>(scene.getObjects()), origin, direction);
+    }
+
+    /**
+     * Find the nearest visible object hit by the ray
+     *
+     * @see #pick(Scene, float[], float[])
+     */
+    public Hit pick(List<Object3D> objects, float[] origin, float[] direction) {
+        final float[] inverse = new float[16];
+        final float[] localOrigin = new float[4];
+        final float[] localDirection = new float[4];
+        final TriangleBvh.Hit hit = new TriangleBvh.Hit();
+
+        Hit ret = null;
+        float nearest = Float.MAX_VALUE;
+        for (Object3D obj : objects) {
+            if (!obj.isVisible() || obj.getDrawMode() != GLES20.GL_TRIANGLES || !isNear(obj, origin, direction, nearest)) continue;
+            final TriangleBvh tree = getTree(obj);
+            if (tree == null) continue;
+
+            // the parameter of the ray is the same in both spaces
+            final float[] model = obj.getModelMatrix();
+            if (model != null && Matrix.invertM(inverse, 0, model, 0)) {
+                Matrix.multiplyMV(localOrigin, 0, inverse, 0, new float[]{origin[0], origin[1], origin[2], 1}, 0);
+                Matrix.multiplyMV(localDirection, 0, inverse, 0, new float[]{direction[0], direction[1], direction[2], 0}, 0);
+            } else {
+                System.arraycopy(origin, 0, localOrigin, 0, 3);
+                System.arraycopy(direction, 0, localDirection, 0, 3);
+            }
+
+            if (tree.intersect(localOrigin, localDirection, nearest, hit)) {
+                nearest = hit.getDistance();
+                final Batch batch = batcher != null ? batcher.getBatch(obj) : null;
+                if (batch != null && batch.getMember(hit.getTriangle()) != null) {
+                    ret = new Hit(batch.getMember(hit.getTriangle()), batch.getMemberTriangle(hit.getTriangle()), nearest);
+                } else {
+                    ret = new Hit(obj, hit.getTriangle(), nearest);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Direction of the ray from the camera through a point of the view. The Y axis is up, like in the renderer
+     *
+     * @param eye    position of the camera
+     * @param center point the camera looks at
+     * @param fov    vertical field of view, in degrees
+     * @param x      horizontal position in the view, in pixels
+     * @param y      vertical position in the view, in pixels, from the top
+     * @return the direction, in world space
+     */
+    static float[] getRay(float[] eye, float[] center, float fov, int width, int height, float x, float y) {
+        final float[] forward = normalize(new float[]{center[0] - eye[0], center[1] - eye[1], center[2] - eye[2]});
+        // Y up, unless looking along it
+        final float[] up = Math.abs(forward[1]) > 0.999f ? new float[]{0, 0, -Math.signum(forward[1])} : new float[]{0, 1, 0};
+        final float[] side = normalize(cross(forward, up));
+        final float[] u = cross(side, forward);
+
+        final float tan = (float) Math.tan(Math.toRadians(fov > 0 ? fov : 45) / 2);
+        final float dx = (2 * x / width - 1) * tan * width / height;
+        final float dy = (1 - 2 * y / height) * tan;
+        return new float[]{
+                forward[0] + side[0] * dx + u[0] * dy,
+                forward[1] + side[1] * dx + u[1] * dy,
+                forward[2] + side[2] * dx + u[2] * dy};
+    }
+
+    private static float[] cross(float[] a, float[] b) {
+        return new float[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static float[] normalize(float[] v) {
+        final float length = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        if (length > 0) {
+            v[0] /= length;
+            v[1] /= length;
+            v[2] /= length;
+        }
+        return v;
+    }
+
+    /**
+     * @return the tree of the object, built if needed, or <code>null</code> if the object has no triangles
+     */
+    TriangleBvh getTree(Object3D obj) {
+        final FloatBuffer vertices = obj.getVertexBuffer();
+        final IntBuffer indices = LodChain.getFullDetail(obj);
+        if (vertices == null) return null;
+
+        final Entry entry = trees.get(obj);
+        if (entry != null && entry.vertices == vertices && entry.indices == indices) return entry.tree;
+
+        final long start = System.currentTimeMillis();
+        final TriangleBvh tree;
+        try {
+            tree = new TriangleBvh(vertices, indices);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Not picking '" + obj.getId() + "'. " + e.getMessage());
+            return null;
+        }
+        trees.put(obj, new Entry(vertices, indices, tree));
+        logger.fine("Picking tree of '" + obj.getId() + "' built in " + (System.currentTimeMillis() - start) + " ms. Triangles: "
+                + tree.getTriangleCount() + ", nodes: " + tree.getNodeCount());
+        return tree;
+    }
+
+    /**
+     * @return true if the ray passes through the bounding sphere of the object, before the max distance
+     */
+    private static boolean isNear(Object3D obj, float[] origin, float[] direction, float max) {
+        final Dimensions dimensions = obj.getDimensions();
+        final float[] center = obj.getBoundingBox() != null ? obj.getBoundingBox().getCenter() : null;
+        if (dimensions == null || center == null) return true;
+
+        final float w = dimensions.getWidth(), h = dimensions.getHeight(), d = dimensions.getDepth();
+        final float radius = (float) Math.sqrt(w * w + h * h + d * d) / 2;
+        final float length2 = direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2];
+        if (length2 == 0) return false;
+
+        // closest point of the ray to the center
+        final float cx = center[0] - origin[0], cy = center[1] - origin[1], cz = center[2] - origin[2];
+        final float t = Math.max(0, (cx * direction[0] + cy * direction[1] + cz * direction[2]) / length2);
+        final float px = cx - t * direction[0], py = cy - t * direction[1], pz = cz - t * direction[2];
+        if (px * px + py * py + pz * pz > radius * radius) return false;
+        // the sphere starts before the nearest hit so far
+        return t - radius / (float) Math.sqrt(length2) <= max;
+    }
+}
@@ -0,0 +1,139 @@
+package org.the3deer.android.viewer.services.profiling;
+
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the time spent per frame in each stage of the viewer, in ring buffers.
+ * <p>
+ * Each stage keeps the start and the duration of its last {@link #CAPACITY} samples, in preallocated arrays,
+ * so {@link #record(int, long, long)} doesn't allocate and can be called on every frame. The percentiles are
+ * computed on demand, and the samples can be exported as a trace in the Chrome trace event format
+ * (i.e. for <code>chrome://tracing</code> or Perfetto).
+ * </p>
+ * <p>
+ * The engine keeps one profiler per model. Nothing is recorded while it's disabled.
+ * </p>
+ */
+@Bean(name = "profiler", category = "general", experimental = true)
+public class FrameProfiler {
+
+    /**
+     * Interval between two display frames, on the UI thread
+     */
+    public static final int FRAME = 0;
+    public static final int CULLING = 1;
+    public static final int BATCHING = 2;
+    public static final int LOD = 3;
+    public static final int SCHEDULING = 4;
+
+    static final String[] STAGES = {"frame", "culling", "batching", "lod", "scheduling"};
+    static final int CAPACITY = 1024;
+
+    /**
+     * Record the time of each stage
+     */
+    @BeanProperty
+    private boolean enabled = false;
+
+    private final long[][] starts = new long[STAGES.length][CAPACITY];
+    private final long[][] durations = new long[STAGES.length][CAPACITY];
+    // samples recorded per stage, since the last clear
+    private final long[] recorded = new long[STAGES.length];
+    private final long[] scratch = new long[CAPACITY];
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Record a sample. Does nothing if the profiler is disabled
+     *
+     * @param stage    one of the stage constants
+     * @param start    start of the sample, from {@link System#nanoTime()}
+     * @param duration duration, in nanoseconds
+     */
+    public synchronized void record(int stage, long start, long duration) {
+        if (!enabled) return;
+        final int slot = (int) (recorded[stage] % CAPACITY);
+        starts[stage][slot] = start;
+        durations[stage][slot] = duration;
+        recorded[stage]++;
+    }
+
+    /**
+     * @return number of samples of the stage in the buffer
+     */
+    public synchronized int getCount(int stage) {
+        return (int) Math.min(recorded[stage], CAPACITY);
+    }
+
+    /**
+     * @param stage      one of the stage constants
+     * @param percentile between 0 and 100
+     * @return the duration at the percentile, in nanoseconds, or -1 if there are no samples
+     */
+    public synchronized long getPercentile(int stage, float percentile) {
+        final int count = getCount(stage);
+        if (count == 0) return -1;
+        System.arraycopy(durations[stage], 0, scratch, 0, count);
+        Arrays.sort(scratch, 0, count);
+        // nearest rank
+        final int rank = (int) Math.ceil(percentile / 100 * count);
+        return scratch[Math.max(0, Math.min(count - 1, rank - 1))];
+    }
+
+    /**
+     * @return the p50, p95 and p99 of each stage, in nanoseconds (-1 if the stage has no samples)
+     */
+    public synchronized long[][] getPercentiles() {
+        final long[][] ret = new long[STAGES.length][];
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            ret[stage] = new long[]{getPercentile(stage, 50), getPercentile(stage, 95), getPercentile(stage, 99)};
+        }
+        return ret;
+    }
+
+    public static String getName(int stage) {
+        return STAGES[stage];
+    }
+
+    public static int getStageCount() {
+        return STAGES.length;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(recorded, 0);
+    }
+
+    /**
+     * Write the samples in the buffers as complete events of the Chrome trace event format, one thread per stage
+     */
+    public synchronized void export(Writer writer) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            final int count = getCount(stage);
+            // oldest first
+            final int oldest = recorded[stage] > CAPACITY ? (int) (recorded[stage] % CAPACITY) : 0;
+            for (int i = 0; i < count; i++) {
+                final int slot = (oldest + i) % CAPACITY;
+                if (!first) writer.write(',');
+                first = false;
+                writer.write(String.format(Locale.US, "\n{\"name\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f}",
+                        STAGES[stage], stage, starts[stage][slot] / 1000.0, durations[stage][slot] / 1000.0));
+            }
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+}
@@ -0,0 +1,41 @@
+package org.the3deer.android.viewer.services.profiling;
+
+import java.util.EventObject;
+import java.util.Locale;
+
+/**
+ * Periodic summary of the {@link FrameProfiler}: the p50, p95 and p99 of each stage
+ */
+public class ProfileEvent extends EventObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[][] percentiles;
+
+    /**
+     * @param percentiles per stage, the p50, p95 and p99 in nanoseconds (-1 if there are no samples)
+     */
+    public ProfileEvent(Object source, long[][] percentiles) {
+        super(source);
+        this.percentiles = percentiles;
+    }
+
+    /**
+     * @param stage one of the stage constants of {@link FrameProfiler}
+     * @return the p50, p95 and p99 of the stage, in nanoseconds
+     */
+    public long[] getPercentiles(int stage) {
+        return percentiles[stage];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder ret = new StringBuilder("ProfileEvent{");
+        for (int stage = 0; stage < percentiles.length; stage++) {
+            if (percentiles[stage][0] < 0) continue;
+            ret.append(String.format(Locale.US, "%s=%.2f/%.2f/%.2f ms ", FrameProfiler.getName(stage),
+                    percentiles[stage][0] / 1e6, percentiles[stage][1] / 1e6, percentiles[stage][2] / 1e6));
+        }
+        return ret.append('}').toString();
+    }
+}
@@ -0,0 +1,162 @@
+package org.the3deer.android.viewer.services.raster;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Color and depth buffer of the {@link SoftwareRenderer}.
+ * <p>
+ * The colors are ARGB ints, rows from top to bottom, as in {@link Bitmap}. The depth goes from 0 (near plane)
+ * to 1 (far plane). Images can be saved and read as binary PPM, so the golden images of the tests are plain files,
+ * and compared with a tolerance per channel.
+ * </p>
+ */
+public final class RasterImage {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final float[] depth;
+
+    public RasterImage(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.depth = new float[width * height];
+        Arrays.fill(depth, 1);
+    }
+
+    /**
+     * Fill the image with the color, and reset the depth to the far plane
+     */
+    public void clear(int argb) {
+        Arrays.fill(pixels, argb);
+        Arrays.fill(depth, 1);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the ARGB colors. Not a copy
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the depths, between 0 and 1. Not a copy
+     */
+    float[] getDepths() {
+        return depth;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public float getDepth(int x, int y) {
+        return depth[y * width + x];
+    }
+
+    /**
+     * @param tolerance max difference per channel (0-255) for pixels considered equal
+     * @return number of pixels that differ
+     */
+    public int countDifferences(RasterImage other, int tolerance) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Different sizes: " + width + "x" + height + ", " + other.width + "x" + other.height);
+        }
+        int ret = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            final int a = pixels[i], b = other.pixels[i];
+            for (int shift = 0; shift < 32; shift += 8) {
+                if (Math.abs((a >>> shift & 0xFF) - (b >>> shift & 0xFF)) > tolerance) {
+                    ret++;
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return a copy of the colors as a bitmap, i.e. for a thumbnail
+     */
+    public Bitmap toBitmap() {
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Write the colors as a binary PPM (P6). The alpha is dropped
+     */
+    public void writePpm(OutputStream out) throws IOException {
+        out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+        final byte[] row = new byte[width * 3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int argb = pixels[y * width + x];
+                row[x * 3] = (byte) (argb >> 16);
+                row[x * 3 + 1] = (byte) (argb >> 8);
+                row[x * 3 + 2] = (byte) argb;
+            }
+            out.write(row);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a binary PPM (P6) with 8 bits per channel. The pixels are opaque
+     */
+    public static RasterImage readPpm(InputStream in) throws IOException {
+        if (!"P6".equals(readToken(in))) throw new IOException("Not a binary PPM");
+        final int width = Integer.parseInt(readToken(in));
+        final int height = Integer.parseInt(readToken(in));
+        if (!"255".equals(readToken(in))) throw new IOException("Only 8 bits per channel are supported");
+
+        final RasterImage ret = new RasterImage(width, height);
+        final byte[] row = new byte[width * 3];
+        for (int y = 0; y < height; y++) {
+            for (int read = 0; read < row.length; ) {
+                final int n = in.read(row, read, row.length - read);
+                if (n == -1) throw new IOException("Unexpected end of image");
+                read += n;
+            }
+            for (int x = 0; x < width; x++) {
+                ret.pixels[y * width + x] = 0xFF000000 | (row[x * 3] & 0xFF) << 16 | (row[x * 3 + 1] & 0xFF) << 8 | row[x * 3 + 2] & 0xFF;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read a token of the header, and the single whitespace after it. Comments are skipped
+     */
+    private static String readToken(InputStream in) throws IOException {
+        final StringBuilder ret = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '#' && ret.length() == 0) {
+                while ((c = in.read()) != -1 && c != '\n') ;
+            } else if (Character.isWhitespace(c)) {
+                if (ret.length() > 0) break;
+            } else {
+                ret.append((char) c);
+            }
+        }
+        if (ret.length() == 0) throw new IOException("Unexpected end of header");
+        return ret.toString();
+    }
+}
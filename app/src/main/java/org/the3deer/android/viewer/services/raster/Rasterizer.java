@@ -0,0 +1,226 @@
+package org.the3deer.android.viewer.services.raster;
+
+import org.the3deer.android.viewer.util.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Draws triangles in screen space into a {@link RasterImage}, tile by tile.
+ * <p>
+ * The triangles are first binned to the tiles of {@link #TILE} pixels they overlap, and then the tiles are drawn
+ * in parallel, each one by a single task, so no pixel is shared between threads. Inside a tile, each triangle is
+ * drawn by rows: the span of the row is solved from the edge equations, and the barycentric weights are stepped
+ * along it. The triangles of a tile are drawn in the order they were added, so the image doesn't depend on
+ * the number of threads.
+ * </p>
+ * <p>
+ * Each vertex has {@link #STRIDE} floats: x and y in pixels, z between 0 and 1, 1/w, and the color (RGBA)
+ * and texture coordinates, all multiplied by 1/w so they are interpolated with perspective.
+ * </p>
+ */
+final class Rasterizer {
+
+    static final int TILE = 32;
+    static final int STRIDE = 10;
+
+    // attributes in a vertex
+    static final int X = 0, Y = 1, Z = 2, Q = 3, R = 4, G = 5, B = 6, A = 7, U = 8, V = 9;
+
+    private float[] vertices = new float[STRIDE * 3 * 256];
+    private TextureImage[] textures = new TextureImage[256];
+    private int count;
+
+    /**
+     * Remove all the triangles
+     */
+    void clear() {
+        count = 0;
+        // release the textures
+        Arrays.fill(textures, null);
+    }
+
+    int getTriangleCount() {
+        return count;
+    }
+
+    /**
+     * Add a triangle. The arrays are copied
+     *
+     * @param texture texture to sample, or <code>null</code>
+     */
+    void add(float[] v0, float[] v1, float[] v2, TextureImage texture) {
+        if (count == textures.length) {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+            textures = Arrays.copyOf(textures, textures.length * 2);
+        }
+        final int offset = count * STRIDE * 3;
+        System.arraycopy(v0, 0, vertices, offset, STRIDE);
+        System.arraycopy(v1, 0, vertices, offset + STRIDE, STRIDE);
+        System.arraycopy(v2, 0, vertices, offset + STRIDE * 2, STRIDE);
+        textures[count++] = texture;
+    }
+
+    /**
+     * Draw the triangles added so far
+     *
+     * @param executor where to draw the tiles
+     */
+    void draw(RasterImage target, ExecutorService executor) throws InterruptedException {
+        final int tilesX = (target.getWidth() + TILE - 1) / TILE;
+        final int tilesY = (target.getHeight() + TILE - 1) / TILE;
+        final IntArrayList[] bins = new IntArrayList[tilesX * tilesY];
+
+        // bin by bounding box
+        for (int t = 0; t < count; t++) {
+            final int offset = t * STRIDE * 3;
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            for (int k = 0; k < 3; k++) {
+                final float x = vertices[offset + k * STRIDE + X], y = vertices[offset + k * STRIDE + Y];
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+            if (maxX < 0 || maxY < 0 || minX >= target.getWidth() || minY >= target.getHeight()) continue;
+            final int fromX = Math.max(0, (int) minX / TILE), toX = Math.min(tilesX - 1, (int) maxX / TILE);
+            final int fromY = Math.max(0, (int) minY / TILE), toY = Math.min(tilesY - 1, (int) maxY / TILE);
+            for (int ty = fromY; ty <= toY; ty++) {
+                for (int tx = fromX; tx <= toX; tx++) {
+                    IntArrayList bin = bins[ty * tilesX + tx];
+                    if (bin == null) bins[ty * tilesX + tx] = bin = new IntArrayList();
+                    bin.add(t);
+                }
+            }
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < bins.length; i++) {
+            final IntArrayList bin = bins[i];
+            if (bin == null) continue;
+            final int x0 = i % tilesX * TILE, y0 = i / tilesX * TILE;
+            final int x1 = Math.min(target.getWidth(), x0 + TILE), y1 = Math.min(target.getHeight(), y0 + TILE);
+            tasks.add(() -> {
+                for (int k = 0; k < bin.size(); k++) drawTriangle(bin.get(k), target, x0, y0, x1, y1);
+                return null;
+            });
+        }
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Error drawing tile", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Draw the part of the triangle inside the rectangle (x1 and y1 exclusive)
+     */
+    private void drawTriangle(int triangle, RasterImage target, int x0, int y0, int x1, int y1) {
+        final float[] v = vertices;
+        final int p0 = triangle * STRIDE * 3, p1 = p0 + STRIDE, p2 = p1 + STRIDE;
+        final float ax = v[p0 + X], ay = v[p0 + Y], bx = v[p1 + X], by = v[p1 + Y], cx = v[p2 + X], cy = v[p2 + Y];
+        final float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        if (area == 0 || Float.isNaN(area)) return;
+
+        // weight of each vertex: w = dx * x + dy * y + c, from the edge in front of it
+        final float dx0 = -(cy - by) / area, dy0 = (cx - bx) / area, c0 = ((cy - by) * bx - (cx - bx) * by) / area;
+        final float dx1 = -(ay - cy) / area, dy1 = (ax - cx) / area, c1 = ((ay - cy) * cx - (ax - cx) * cy) / area;
+        final float dx2 = -(by - ay) / area, dy2 = (bx - ax) / area, c2 = ((by - ay) * ax - (bx - ax) * ay) / area;
+
+        final int fromY = Math.max(y0, (int) Math.ceil(Math.min(ay, Math.min(by, cy)) - 0.5f));
+        final int toY = Math.min(y1 - 1, (int) Math.floor(Math.max(ay, Math.max(by, cy)) - 0.5f));
+        final TextureImage texture = textures[triangle];
+        final int[] pixels = target.getPixels();
+        final float[] depths = target.getDepths();
+        final int width = target.getWidth();
+
+        for (int y = fromY; y <= toY; y++) {
+            final float py = y + 0.5f;
+            final float r0 = dy0 * py + c0, r1 = dy1 * py + c1, r2 = dy2 * py + c2;
+
+            // span of the row, where the three weights are positive
+            float lo = x0 + 0.5f, hi = x1 - 0.5f;
+            if (dx0 > 0) lo = Math.max(lo, -r0 / dx0);
+            else if (dx0 < 0) hi = Math.min(hi, -r0 / dx0);
+            else if (r0 < 0) continue;
+            if (dx1 > 0) lo = Math.max(lo, -r1 / dx1);
+            else if (dx1 < 0) hi = Math.min(hi, -r1 / dx1);
+            else if (r1 < 0) continue;
+            if (dx2 > 0) lo = Math.max(lo, -r2 / dx2);
+            else if (dx2 < 0) hi = Math.min(hi, -r2 / dx2);
+            else if (r2 < 0) continue;
+            final int fromX = Math.max(x0, (int) Math.ceil(lo - 0.5f));
+            final int toX = Math.min(x1 - 1, (int) Math.floor(hi - 0.5f));
+            if (fromX > toX) continue;
+
+            float w0 = dx0 * (fromX + 0.5f) + r0, w1 = dx1 * (fromX + 0.5f) + r1, w2 = dx2 * (fromX + 0.5f) + r2;
+            for (int x = fromX; x <= toX; x++, w0 += dx0, w1 += dx1, w2 += dx2) {
+                final int index = y * width + x;
+                final float z = w0 * v[p0 + Z] + w1 * v[p1 + Z] + w2 * v[p2 + Z];
+                if (z < 0 || z > 1 || z >= depths[index]) continue;
+
+                final float q = w0 * v[p0 + Q] + w1 * v[p1 + Q] + w2 * v[p2 + Q];
+                float r = (w0 * v[p0 + R] + w1 * v[p1 + R] + w2 * v[p2 + R]) / q;
+                float g = (w0 * v[p0 + G] + w1 * v[p1 + G] + w2 * v[p2 + G]) / q;
+                float b = (w0 * v[p0 + B] + w1 * v[p1 + B] + w2 * v[p2 + B]) / q;
+                float a = (w0 * v[p0 + A] + w1 * v[p1 + A] + w2 * v[p2 + A]) / q;
+                if (texture != null) {
+                    final int texel = sample(texture, (w0 * v[p0 + U] + w1 * v[p1 + U] + w2 * v[p2 + U]) / q,
+                            (w0 * v[p0 + V] + w1 * v[p1 + V] + w2 * v[p2 + V]) / q);
+                    r *= (texel >>> 24) / 255f;
+                    g *= (texel >>> 16 & 0xFF) / 255f;
+                    b *= (texel >>> 8 & 0xFF) / 255f;
+                    a *= (texel & 0xFF) / 255f;
+                }
+                if (a <= 1 / 255f) continue;
+
+                if (a < 0.999f) {
+                    // blended over what's behind. the depth is kept, so it doesn't hide what's drawn later
+                    final int dst = pixels[index];
+                    r = r * a + (dst >> 16 & 0xFF) / 255f * (1 - a);
+                    g = g * a + (dst >> 8 & 0xFF) / 255f * (1 - a);
+                    b = b * a + (dst & 0xFF) / 255f * (1 - a);
+                    a = a + (dst >>> 24) / 255f * (1 - a);
+                } else {
+                    depths[index] = z;
+                }
+                pixels[index] = toByte(a) << 24 | toByte(r) << 16 | toByte(g) << 8 | toByte(b);
+            }
+        }
+    }
+
+    /**
+     * Bilinear sample, repeating the texture
+     *
+     * @return the color, as RGBA
+     */
+    static int sample(TextureImage texture, float u, float v) {
+        final int width = texture.getWidth(), height = texture.getHeight();
+        final float x = (u - (float) Math.floor(u)) * width - 0.5f;
+        final float y = (v - (float) Math.floor(v)) * height - 0.5f;
+        final int ix = (int) Math.floor(x), iy = (int) Math.floor(y);
+        final float fx = x - ix, fy = y - iy;
+        final int xa = Math.floorMod(ix, width), xb = Math.floorMod(ix + 1, width);
+        final int ya = Math.floorMod(iy, height), yb = Math.floorMod(iy + 1, height);
+
+        final byte[] pixels = texture.getPixels();
+        int ret = 0;
+        for (int c = 0; c < 4; c++) {
+            final float top = (pixels[(ya * width + xa) * 4 + c] & 0xFF) * (1 - fx) + (pixels[(ya * width + xb) * 4 + c] & 0xFF) * fx;
+            final float bottom = (pixels[(yb * width + xa) * 4 + c] & 0xFF) * (1 - fx) + (pixels[(yb * width + xb) * 4 + c] & 0xFF) * fx;
+            ret = ret << 8 | Math.round(top * (1 - fy) + bottom * fy);
+        }
+        return ret;
+    }
+
+    private static int toByte(float value) {
+        return value <= 0 ? 0 : value >= 1 ? 255 : Math.round(value * 255);
+    }
+}
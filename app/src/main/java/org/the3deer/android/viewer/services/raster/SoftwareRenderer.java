@@ -0,0 +1,451 @@
+package org.the3deer.android.viewer.services.raster;
+
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Camera;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders a {@link Scene} on the CPU, without OpenGL, i.e. for the rendering tests on machines with no GPU,
+ * or for the thumbnails of the models.
+ * <p>
+ * The visible objects are drawn as the renderer draws them: the vertices are transformed by the model matrix of
+ * the object and the view and projection of the camera, the triangles are clipped against the near plane,
+ * and the {@link Rasterizer} draws them with a depth test, on a pool with one thread per CPU.
+ * The color of an object comes from its colors buffer or its color, and is multiplied by its texture
+ * (see {@link #setTexture(Object3D, TextureImage)}), if it has texture coordinates.
+ * The light is a directional light from the camera, and the triangles are lit on both sides,
+ * per vertex ({@link #GOURAUD}) or per face ({@link #FLAT}).
+ * </p>
+ * <p>
+ * The camera is assumed to have the Y axis up. Only objects drawn as triangles are supported; the rest are skipped.
+ * The time of the last frame is split in the time spent on the scene (traversal, matrices, lighting and clipping)
+ * and the time spent drawing the pixels.
+ * </p>
+ */
+public class SoftwareRenderer {
+
+    public static final String UNLIT = "unlit";
+    public static final String FLAT = "flat";
+    public static final String GOURAUD = "gouraud";
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private static final float AMBIENT = 0.3f;
+    private static final float[] DEFAULT_COLOR = {0.8f, 0.8f, 0.8f, 1};
+
+    private final ExecutorService executor;
+    private final Rasterizer rasterizer = new Rasterizer();
+    private final Map<Object3D, TextureImage> textures = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private String lighting = GOURAUD;
+
+    // per vertex of the current object
+    private float[] clip = new float[0];
+    private float[] world = new float[0];
+    private float[] colors = new float[0];
+
+    // stats of the last frame
+    private long sceneTime;
+    private long rasterTime;
+    private int objectCount;
+    private int triangleCount;
+    private int skippedCount;
+
+    public SoftwareRenderer() {
+        this(POOL);
+    }
+
+    /**
+     * @param executor where to draw the tiles of the image
+     */
+    public SoftwareRenderer(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public String getLighting() {
+        return lighting;
+    }
+
+    /**
+     * @param lighting {@link #UNLIT}, {@link #FLAT} or {@link #GOURAUD}
+     */
+    public void setLighting(String lighting) {
+        if (!UNLIT.equals(lighting) && !FLAT.equals(lighting) && !GOURAUD.equals(lighting)) {
+            throw new IllegalArgumentException("Unknown lighting: " + lighting);
+        }
+        this.lighting = lighting;
+    }
+
+    /**
+     * @param texture the texture of the object, or <code>null</code> to remove it
+     */
+    public void setTexture(Object3D obj, TextureImage texture) {
+        if (texture == null) textures.remove(obj);
+        else textures.put(obj, texture);
+    }
+
+    /**
+     * Render the scene from its active camera
+     *
+     * @param target the image, cleared by the caller
+     * @throws IllegalStateException if the scene has no camera
+     */
+    public void render(Scene scene, RasterImage target) throws InterruptedException {
+        final Camera camera = scene.getActiveCamera();
+        if (camera == null || camera.getPos() == null || camera.getView() == null) {
+            throw new IllegalStateException("The scene has no camera");
+        }
+        render(new ArrayList<>(scene.getObjects()), camera.getPos(), camera.getView(), camera.getProjection().getFov(),
+                camera.getProjection().getNear(), camera.getProjection().getFar(), target);
+    }
+
+    /**
+     * Render the objects
+     *
+     * @param eye    position of the camera
+     * @param center point the camera looks at
+     * @param fov    vertical field of view, in degrees
+     * @param near   distance to the near plane
+     * @param far    distance to the far plane
+     * @param target the image, cleared by the caller
+     */
+    public synchronized void render(List<Object3D> objects, float[] eye, float[] center, float fov, float near, float far,
+                                    RasterImage target) throws InterruptedException {
+        final long start = System.nanoTime();
+        final float[] view = lookAt(eye, center);
+        final float[] projection = perspective(fov, (float) target.getWidth() / target.getHeight(), near, far);
+        final float[] viewProjection = multiply(projection, view);
+        final float[] light = normalize(new float[]{eye[0] - center[0], eye[1] - center[1], eye[2] - center[2]});
+
+        rasterizer.clear();
+        objectCount = 0;
+        skippedCount = 0;
+        for (Object3D obj : objects) {
+            if (!obj.isVisible() || obj.getVertexBuffer() == null) continue;
+            if (obj.getDrawMode() != GLES20.GL_TRIANGLES) {
+                skippedCount++;
+                continue;
+            }
+            addObject(obj, viewProjection, light, target);
+            objectCount++;
+        }
+        triangleCount = rasterizer.getTriangleCount();
+
+        final long middle = System.nanoTime();
+        rasterizer.draw(target, executor);
+        sceneTime = middle - start;
+        rasterTime = System.nanoTime() - middle;
+    }
+
+    /**
+     * Render the objects of the scene, framed by a camera looking down the Z axis
+     *
+     * @param size       width and height of the image
+     * @param background the color behind the model, as ARGB
+     */
+    public RasterImage renderThumbnail(Scene scene, int size, int background) throws InterruptedException {
+        final List<Object3D> objects = new ArrayList<>(scene.getObjects());
+        final float[] bounds = getBounds(objects);
+        final RasterImage ret = new RasterImage(size, size);
+        ret.clear(background);
+        if (bounds == null) return ret;
+
+        final float[] center = {(bounds[0] + bounds[3]) / 2, (bounds[1] + bounds[4]) / 2, (bounds[2] + bounds[5]) / 2};
+        final float radius = Math.max(1e-6f, (float) Math.sqrt(
+                sq(bounds[3] - bounds[0]) + sq(bounds[4] - bounds[1]) + sq(bounds[5] - bounds[2])) / 2);
+        final float fov = 45;
+        // the bounding sphere fits in the view
+        final float distance = radius / (float) Math.sin(Math.toRadians(fov / 2));
+        final float[] eye = {center[0], center[1], center[2] + distance};
+        render(objects, eye, center, fov, Math.max(distance - radius, distance * 0.001f), distance + radius, ret);
+        return ret;
+    }
+
+    /**
+     * @return nanoseconds spent on the scene in the last frame: traversal, matrices, lighting and clipping
+     */
+    public synchronized long getSceneTime() {
+        return sceneTime;
+    }
+
+    /**
+     * @return nanoseconds spent drawing the pixels in the last frame
+     */
+    public synchronized long getRasterTime() {
+        return rasterTime;
+    }
+
+    public synchronized int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * @return triangles drawn in the last frame, after clipping
+     */
+    public synchronized int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return objects skipped in the last frame, since they are not drawn as triangles
+     */
+    public synchronized int getSkippedCount() {
+        return skippedCount;
+    }
+
+    private void addObject(Object3D obj, float[] viewProjection, float[] light, RasterImage target) {
+        final FloatBuffer vertexBuffer = obj.getVertexBuffer();
+        final FloatBuffer normalsBuffer = obj.getNormalsBuffer();
+        final FloatBuffer colorsBuffer = obj.getColorsBuffer();
+        final FloatBuffer textureBuffer = obj.getTextureBuffer();
+        final IntBuffer indexBuffer = obj.getIndexBuffer();
+        final int vertexCount = vertexBuffer.capacity() / 3;
+        final float[] model = obj.getModelMatrix() != null ? obj.getModelMatrix() : IDENTITY;
+        final float[] mvp = multiply(viewProjection, model);
+        final float[] normalMatrix = getNormalMatrix(model);
+        final float[] color = obj.getColor() != null ? obj.getColor() : DEFAULT_COLOR;
+        final boolean hasNormals = normalsBuffer != null && normalsBuffer.capacity() >= vertexCount * 3;
+        final boolean hasColors = colorsBuffer != null && colorsBuffer.capacity() >= vertexCount * 4;
+        final TextureImage texture = textureBuffer != null && textureBuffer.capacity() >= vertexCount * 2 ? textures.get(obj) : null;
+        final String lighting = GOURAUD.equals(this.lighting) && !hasNormals ? FLAT : this.lighting;
+
+        if (clip.length < vertexCount * 4) {
+            clip = new float[vertexCount * 4];
+            world = new float[vertexCount * 3];
+            colors = new float[vertexCount * 4];
+        }
+        final float[] position = new float[4];
+        final float[] normal = new float[3];
+        for (int i = 0; i < vertexCount; i++) {
+            position[0] = vertexBuffer.get(i * 3);
+            position[1] = vertexBuffer.get(i * 3 + 1);
+            position[2] = vertexBuffer.get(i * 3 + 2);
+            position[3] = 1;
+            transform(mvp, position, clip, i * 4);
+            for (int k = 0; k < 3; k++) {
+                world[i * 3 + k] = model[k] * position[0] + model[4 + k] * position[1] + model[8 + k] * position[2] + model[12 + k];
+            }
+            for (int k = 0; k < 4; k++) colors[i * 4 + k] = hasColors ? colorsBuffer.get(i * 4 + k) : color[k];
+
+            if (GOURAUD.equals(lighting)) {
+                final float nx = normalsBuffer.get(i * 3), ny = normalsBuffer.get(i * 3 + 1), nz = normalsBuffer.get(i * 3 + 2);
+                normal[0] = normalMatrix[0] * nx + normalMatrix[3] * ny + normalMatrix[6] * nz;
+                normal[1] = normalMatrix[1] * nx + normalMatrix[4] * ny + normalMatrix[7] * nz;
+                normal[2] = normalMatrix[2] * nx + normalMatrix[5] * ny + normalMatrix[8] * nz;
+                normalize(normal);
+                final float intensity = getIntensity(normal, light);
+                for (int k = 0; k < 3; k++) colors[i * 4 + k] *= intensity;
+            }
+        }
+
+        final int triangles = (indexBuffer != null ? indexBuffer.capacity() : vertexCount) / 3;
+        final float[][] polygon = new float[4][Rasterizer.STRIDE];
+        final float[][] in = new float[3][Rasterizer.STRIDE];
+        final int[] corners = new int[3];
+        for (int t = 0; t < triangles; t++) {
+            for (int k = 0; k < 3; k++) corners[k] = indexBuffer != null ? indexBuffer.get(t * 3 + k) : t * 3 + k;
+            final int a = corners[0], b = corners[1], c = corners[2];
+            if (a < 0 || b < 0 || c < 0 || a >= vertexCount || b >= vertexCount || c >= vertexCount) continue;
+            if (isOutside(a, b, c)) continue;
+
+            float intensity = 1;
+            if (FLAT.equals(lighting)) intensity = getIntensity(getFaceNormal(a, b, c), light);
+
+            // clip space vertices: x, y, z, w, color, uv
+            for (int k = 0; k < 3; k++) {
+                final int vertex = corners[k];
+                final float[] v = in[k];
+                System.arraycopy(clip, vertex * 4, v, 0, 4);
+                for (int i = 0; i < 3; i++) v[4 + i] = colors[vertex * 4 + i] * intensity;
+                v[7] = colors[vertex * 4 + 3];
+                if (texture != null) {
+                    v[8] = textureBuffer.get(vertex * 2);
+                    v[9] = textureBuffer.get(vertex * 2 + 1);
+                }
+            }
+            final int size = clipNear(in, polygon);
+            for (int k = 0; k < size; k++) toScreen(polygon[k], target);
+            for (int k = 1; k + 1 < size; k++) rasterizer.add(polygon[0], polygon[k], polygon[k + 1], texture);
+        }
+    }
+
+    /**
+     * @return true if the triangle is outside one of the planes of the view volume
+     */
+    private boolean isOutside(int a, int b, int c) {
+        final float wa = clip[a * 4 + 3], wb = clip[b * 4 + 3], wc = clip[c * 4 + 3];
+        for (int axis = 0; axis < 3; axis++) {
+            final float va = clip[a * 4 + axis], vb = clip[b * 4 + axis], vc = clip[c * 4 + axis];
+            if (va < -wa && vb < -wb && vc < -wc) return true;
+            if (va > wa && vb > wb && vc > wc) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Clip the triangle against the near plane (z = -w). The result has 0, 3 or 4 vertices
+     *
+     * @param in  the 3 vertices, in clip space
+     * @param out the vertices of the clipped polygon
+     * @return number of vertices of the polygon
+     */
+    static int clipNear(float[][] in, float[][] out) {
+        int ret = 0;
+        for (int k = 0; k < 3; k++) {
+            final float[] current = in[k], next = in[(k + 1) % 3];
+            final float dc = current[2] + current[3], dn = next[2] + next[3];
+            if (dc >= 0) System.arraycopy(current, 0, out[ret++], 0, Rasterizer.STRIDE);
+            if (dc >= 0 != dn >= 0) {
+                final float t = dc / (dc - dn);
+                final float[] v = out[ret++];
+                for (int i = 0; i < Rasterizer.STRIDE; i++) v[i] = current[i] + (next[i] - current[i]) * t;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Project the vertex from clip space to the pixels of the image, in place
+     */
+    private static void toScreen(float[] v, RasterImage target) {
+        final float q = 1 / v[3];
+        final float x = v[0] * q, y = v[1] * q, z = v[2] * q;
+        v[Rasterizer.X] = (x * 0.5f + 0.5f) * target.getWidth();
+        v[Rasterizer.Y] = (0.5f - y * 0.5f) * target.getHeight();
+        v[Rasterizer.Z] = z * 0.5f + 0.5f;
+        v[Rasterizer.Q] = q;
+        for (int i = Rasterizer.R; i < Rasterizer.STRIDE; i++) v[i] *= q;
+    }
+
+    private float[] getFaceNormal(int a, int b, int c) {
+        final float ux = world[b * 3] - world[a * 3], uy = world[b * 3 + 1] - world[a * 3 + 1], uz = world[b * 3 + 2] - world[a * 3 + 2];
+        final float vx = world[c * 3] - world[a * 3], vy = world[c * 3 + 1] - world[a * 3 + 1], vz = world[c * 3 + 2] - world[a * 3 + 2];
+        return normalize(new float[]{uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx});
+    }
+
+    /**
+     * Diffuse light on both sides, plus the ambient
+     */
+    private static float getIntensity(float[] normal, float[] light) {
+        final float dot = Math.abs(normal[0] * light[0] + normal[1] * light[1] + normal[2] * light[2]);
+        return AMBIENT + (1 - AMBIENT) * dot;
+    }
+
+    /**
+     * @return min xyz and max xyz of the visible objects, in world space, or <code>null</code> if there are none
+     */
+    static float[] getBounds(List<Object3D> objects) {
+        float[] ret = null;
+        final float[] position = new float[4];
+        final float[] out = new float[4];
+        for (Object3D obj : objects) {
+            final FloatBuffer vertices = obj.getVertexBuffer();
+            if (!obj.isVisible() || vertices == null) continue;
+            final float[] model = obj.getModelMatrix() != null ? obj.getModelMatrix() : IDENTITY;
+            for (int i = 0; i + 2 < vertices.capacity(); i += 3) {
+                position[0] = vertices.get(i);
+                position[1] = vertices.get(i + 1);
+                position[2] = vertices.get(i + 2);
+                position[3] = 1;
+                transform(model, position, out, 0);
+                if (ret == null) ret = new float[]{out[0], out[1], out[2], out[0], out[1], out[2]};
+                for (int k = 0; k < 3; k++) {
+                    ret[k] = Math.min(ret[k], out[k]);
+                    ret[k + 3] = Math.max(ret[k + 3], out[k]);
+                }
+            }
+        }
+        return ret;
+    }
+
+    // matrices are column major, as in OpenGL
+
+    private static final float[] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    static float[] multiply(float[] a, float[] b) {
+        final float[] ret = new float[16];
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) sum += a[k * 4 + row] * b[column * 4 + k];
+                ret[column * 4 + row] = sum;
+            }
+        }
+        return ret;
+    }
+
+    private static void transform(float[] m, float[] v, float[] out, int offset) {
+        for (int row = 0; row < 4; row++) {
+            out[offset + row] = m[row] * v[0] + m[4 + row] * v[1] + m[8 + row] * v[2] + m[12 + row] * v[3];
+        }
+    }
+
+    static float[] lookAt(float[] eye, float[] center) {
+        final float[] forward = normalize(new float[]{center[0] - eye[0], center[1] - eye[1], center[2] - eye[2]});
+        // Y up, unless looking along it
+        final float[] up = Math.abs(forward[1]) > 0.999f ? new float[]{0, 0, -Math.signum(forward[1])} : new float[]{0, 1, 0};
+        final float[] side = normalize(cross(forward, up));
+        final float[] u = cross(side, forward);
+        return new float[]{
+                side[0], u[0], -forward[0], 0,
+                side[1], u[1], -forward[1], 0,
+                side[2], u[2], -forward[2], 0,
+                -dot(side, eye), -dot(u, eye), dot(forward, eye), 1};
+    }
+
+    static float[] perspective(float fov, float aspect, float near, float far) {
+        final float f = 1 / (float) Math.tan(Math.toRadians(fov > 0 ? fov : 45) / 2);
+        final float[] ret = new float[16];
+        ret[0] = f / aspect;
+        ret[5] = f;
+        ret[10] = (far + near) / (near - far);
+        ret[11] = -1;
+        ret[14] = 2 * far * near / (near - far);
+        return ret;
+    }
+
+    /**
+     * @return the inverse transpose of the upper 3x3 of the matrix, column major, so normals stay normal
+     * with non uniform scales
+     */
+    private static float[] getNormalMatrix(float[] m) {
+        final float a = m[0], b = m[4], c = m[8], d = m[1], e = m[5], f = m[9], g = m[2], h = m[6], i = m[10];
+        final float det = a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+        if (det == 0) return new float[]{a, d, g, b, e, h, c, f, i};
+        // transpose of the inverse is the cofactor matrix over the determinant
+        return new float[]{
+                (e * i - f * h) / det, -(b * i - c * h) / det, (b * f - c * e) / det,
+                -(d * i - f * g) / det, (a * i - c * g) / det, -(a * f - c * d) / det,
+                (d * h - e * g) / det, -(a * h - b * g) / det, (a * e - b * d) / det};
+    }
+
+    private static float[] cross(float[] a, float[] b) {
+        return new float[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static float dot(float[] a, float[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static float[] normalize(float[] v) {
+        final float length = (float) Math.sqrt(dot(v, v));
+        if (length > 0) for (int k = 0; k < 3; k++) v[k] /= length;
+        return v;
+    }
+
+    private static float sq(float value) {
+        return value * value;
+    }
+}
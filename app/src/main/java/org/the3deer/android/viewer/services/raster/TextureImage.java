@@ -0,0 +1,64 @@
+package org.the3deer.android.viewer.services.raster;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Uncompressed image, with 4 bytes per pixel (RGBA), rows from top to bottom.
+ */
+public final class TextureImage {
+
+    private final int width;
+    private final int height;
+    private final byte[] pixels;
+
+    /**
+     * @param pixels the RGBA bytes, <code>width * height * 4</code>
+     */
+    public TextureImage(int width, int height, byte[] pixels) {
+        if (width <= 0 || height <= 0 || pixels.length != width * height * 4) {
+            throw new IllegalArgumentException("Invalid image: " + width + "x" + height + ", bytes: " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Copy the pixels of the bitmap. The bitmap can be recycled afterwards
+     */
+    public static TextureImage of(Bitmap bitmap) {
+        final Bitmap rgba = bitmap.getConfig() == Bitmap.Config.ARGB_8888 ? bitmap : bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        final byte[] pixels = new byte[rgba.getWidth() * rgba.getHeight() * 4];
+        // ARGB_8888 is stored as RGBA bytes
+        rgba.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+        if (rgba != bitmap) rgba.recycle();
+        return new TextureImage(bitmap.getWidth(), bitmap.getHeight(), pixels);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the RGBA bytes. Not a copy
+     */
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return true if any pixel is not opaque
+     */
+    public boolean hasAlpha() {
+        for (int i = 3; i < pixels.length; i += 4) {
+            if (pixels[i] != (byte) 0xFF) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,137 @@
+package org.the3deer.android.viewer.services.rendering;
+
+import org.the3deer.android.engine.event.CameraEvent;
+import org.the3deer.android.engine.event.FPSEvent;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.util.bean.Bean;
+import org.the3deer.util.bean.BeanProperty;
+
+import java.util.EventObject;
+
+/**
+ * Decides when a frame has to be drawn, so a static model is not redrawn 60 times per second.
+ * <p>
+ * In the <code>on_demand</code> mode, a frame is only drawn when the scene is {@link #invalidate() invalidated}:
+ * when an event is received (i.e. a model or a scene event, or a button of the overlay), when the surface is
+ * touched, or when the animation is changed. The scene is not checked for changes, so anything else that changes
+ * it must invalidate it too. Scenes playing an animation are always drawn.
+ * </p>
+ * <p>
+ * The camera may keep moving by itself (i.e. inertia or auto-rotation), so after a camera event the display
+ * frames are checked until one is drawn without the camera moving.
+ * </p>
+ * <p>
+ * The {@link #setListener(Runnable) listener} is told when a frame is requested, so nothing has to run while
+ * the model doesn't change. The engine keeps one scheduler per model.
+ * </p>
+ */
+@Bean(name = "rendering", category = "general", experimental = true)
+public class RenderScheduler {
+
+    public static final String CONTINUOUS = "continuous";
+    public static final String ON_DEMAND = "on_demand";
+
+    /**
+     * Draw the frames continuously, or only when the scene changes
+     */
+    @BeanProperty(values = {CONTINUOUS, ON_DEMAND})
+    private String mode = CONTINUOUS;
+
+    private volatile boolean invalidated = true;
+    private volatile boolean cameraMoved;
+    private volatile boolean cameraMoving;
+    private volatile Runnable listener;
+
+    private Scene lastScene;
+
+    private long drawnFrames;
+    private long idleFrames;
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        if (!CONTINUOUS.equals(mode) && !ON_DEMAND.equals(mode)) throw new IllegalArgumentException("Invalid mode: " + mode);
+        this.mode = mode;
+        invalidate();
+    }
+
+    public boolean isOnDemand() {
+        return ON_DEMAND.equals(mode);
+    }
+
+    /**
+     * @param listener called when a frame is requested, from any thread. May be <code>null</code>
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Draw the next frame. Can be called from any thread
+     */
+    public void invalidate() {
+        invalidated = true;
+        final Runnable listener = this.listener;
+        if (listener != null) listener.run();
+    }
+
+    /**
+     * Draw the next frame, unless the event is only a report of the renderer. A camera event also draws the
+     * frames after it, while the camera keeps moving
+     */
+    public void onEvent(EventObject event) {
+        if (event instanceof FPSEvent) return;
+        if (event instanceof CameraEvent) cameraMoved = true;
+        invalidate();
+    }
+
+    /**
+     * Check whether a frame was requested. To be called when a frame is requested, and every display frame
+     * while {@link #isAnimated(Scene)}
+     *
+     * @param scene the active scene, may be <code>null</code>
+     * @return true if a frame has to be drawn
+     */
+    public synchronized boolean update(Scene scene) {
+        boolean ret = invalidated;
+        invalidated = false;
+
+        // the camera is moving as long as it moves on every frame drawn
+        cameraMoving = cameraMoved;
+        cameraMoved = false;
+
+        if (scene != lastScene) {
+            lastScene = scene;
+            ret = true;
+        }
+        ret |= isAnimated(scene);
+
+        if (ret) drawnFrames++;
+        else idleFrames++;
+        return ret;
+    }
+
+    /**
+     * @return true if the scene has to be drawn every display frame: while an animation is playing, or the
+     * camera is moving
+     */
+    public boolean isAnimated(Scene scene) {
+        return cameraMoving || scene != null && scene.getActiveAnimation() != null;
+    }
+
+    /**
+     * @return frames drawn since the scheduler was created
+     */
+    public synchronized long getDrawnFrames() {
+        return drawnFrames;
+    }
+
+    /**
+     * @return display frames checked without drawing since the scheduler was created
+     */
+    public synchronized long getIdleFrames() {
+        return idleFrames;
+    }
+}
@@ -0,0 +1,73 @@
+package org.the3deer.android.viewer.services.stl;
+
+import android.content.ContentResolver;
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoaderTask;
+import org.the3deer.android.viewer.util.MappedContent;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * STL loader that memory-maps the file.
+ * <p>
+ * <code>file://</code> and <code>content://</code> uris are mapped with {@link FileChannel#map}, so
+ * the triangles are read by the {@link STLMappedParser} directly from the page cache.
+ * Other uris (i.e. assets) can't be mapped, so they are read into memory first.
+ * </p>
+ *
+ * @see MappedContent#map(URI, ContentResolver)
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isStlMapped()
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isStlWeld()
+ */
+public class STLMappedLoaderTask extends LoaderTask {
+
+    private static final Logger logger = Logger.getLogger(STLMappedLoaderTask.class.getSimpleName());
+
+    private final ContentResolver contentResolver;
+    private final boolean weld;
+
+    /**
+     * @param uri             the model uri
+     * @param callback        the listener
+     * @param contentResolver resolver to open <code>content://</code> uris
+     * @param weld            true to weld duplicated vertices into an indexed mesh
+     */
+    public STLMappedLoaderTask(URI uri, LoadListener callback, ContentResolver contentResolver, boolean weld) {
+        super(uri, callback);
+        this.contentResolver = contentResolver;
+        this.weld = weld;
+    }
+
+    @Override
+    protected List<Object3D> build() throws Exception {
+
+        final long start = System.currentTimeMillis();
+        final ByteBuffer buffer = MappedContent.map(uri, contentResolver);
+        // not ASCII either: parsed as binary, so a truncated file is reported instead of loaded empty
+        final STLMappedParser.Result result = STLMappedParser.isBinary(buffer) || !STLMappedParser.isAscii(buffer) ?
+                STLMappedParser.parse(buffer, weld) : STLMappedParser.parseAscii(buffer, weld);
+
+        logger.info("Parsed " + result.getTriangleCount() + " triangles in " + (System.currentTimeMillis() - start) + " ms. "
+                + "Vertices: " + result.getVertexCount() + ", Memory: " + result.getMemoryUsage() / 1024 + " KB");
+
+        final Object3D obj = result.getIndices() != null ?
+                new Object3D(result.getVertices(), result.getIndices()) : new Object3D(result.getVertices());
+        obj.setNormalsBuffer(result.getNormals());
+        obj.setDrawMode(GLES20.GL_TRIANGLES);
+        obj.setId(uri.getPath() != null ? uri.getPath().substring(uri.getPath().lastIndexOf('/') + 1) : uri.toString());
+
+        final Scene scene = new Scene();
+        onLoadObject(scene, obj);
+        onLoadScene(scene);
+        return Collections.singletonList(obj);
+    }
+}
@@ -0,0 +1,314 @@
+package org.the3deer.android.viewer.services.stl;
+
+import org.the3deer.android.viewer.util.FloatArrayList;
+import org.the3deer.android.viewer.util.VertexWelder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Binary STL parser working on a {@link ByteBuffer}, usually a memory-mapped file.
+ * <p>
+ * Binary STL layout (little endian):
+ * <pre>
+ *     UINT8[80]    - Header
+ *     UINT32       - Number of triangles
+ *     foreach triangle (50 bytes)
+ *         REAL32[3] - Normal vector
+ *         REAL32[3] - Vertex 1
+ *         REAL32[3] - Vertex 2
+ *         REAL32[3] - Vertex 3
+ *         UINT16    - Attribute byte count
+ * </pre>
+ * </p>
+ * <p>
+ * Records are read with absolute gets on the buffer and written straight into direct buffers,
+ * so there is no intermediate array. Optionally, vertices with the same position are welded,
+ * so the result is an indexed mesh with smooth normals. Faces meeting at more than {@link #CREASE_ANGLE} are not
+ * welded, so the hard edges of CAD models stay sharp.
+ * </p>
+ * <p>
+ * ASCII files are also supported by {@link #parseAscii(ByteBuffer, boolean)}, although they are not
+ * optimized, since they are rarely used for big models.
+ * </p>
+ */
+public final class STLMappedParser {
+
+    public static final int HEADER_SIZE = 84;
+    public static final int RECORD_SIZE = 50;
+
+    /**
+     * Faces meeting at a wider angle, in degrees, keep their own vertices when welding
+     */
+    public static final float CREASE_ANGLE = 30;
+
+    /**
+     * Parsed mesh
+     */
+    public static final class Result {
+
+        private final FloatBuffer vertices;
+        private final FloatBuffer normals;
+        private final IntBuffer indices;
+        private final int triangleCount;
+
+        Result(FloatBuffer vertices, FloatBuffer normals, IntBuffer indices, int triangleCount) {
+            this.vertices = vertices;
+            this.normals = normals;
+            this.indices = indices;
+            this.triangleCount = triangleCount;
+        }
+
+        public FloatBuffer getVertices() {
+            return vertices;
+        }
+
+        public FloatBuffer getNormals() {
+            return normals;
+        }
+
+        /**
+         * @return the index buffer, or <code>null</code> if the mesh is not welded
+         */
+        public IntBuffer getIndices() {
+            return indices;
+        }
+
+        public int getTriangleCount() {
+            return triangleCount;
+        }
+
+        public int getVertexCount() {
+            return vertices.capacity() / 3;
+        }
+
+        /**
+         * @return bytes used by the direct buffers
+         */
+        public long getMemoryUsage() {
+            return (vertices.capacity() + normals.capacity() + (indices != null ? indices.capacity() : 0)) * 4L;
+        }
+    }
+
+    private STLMappedParser() {
+    }
+
+    /**
+     * Checks whether the data is a binary STL. Some exporters write binary files starting with "solid",
+     * so the size declared in the header is what decides.
+     *
+     * @param buffer the whole file
+     * @return true if the buffer is a binary STL
+     */
+    public static boolean isBinary(ByteBuffer buffer) {
+        final long size = buffer.limit();
+        if (size < HEADER_SIZE) return false;
+        final long count = buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(80) & 0xFFFFFFFFL;
+        final long expected = HEADER_SIZE + count * RECORD_SIZE;
+        if (expected == size) return true;
+        return expected < size && !isAscii(buffer);
+    }
+
+    /**
+     * @param buffer the whole file
+     * @return true if the buffer starts with "solid", like the ASCII files. Binary files may also start with it
+     */
+    public static boolean isAscii(ByteBuffer buffer) {
+        final byte[] solid = {'s', 'o', 'l', 'i', 'd'};
+        if (buffer.limit() < solid.length) return false;
+        for (int i = 0; i < solid.length; i++) {
+            if (buffer.get(i) != solid[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the binary STL
+     *
+     * @param buffer the whole file, i.e. the {@link java.nio.MappedByteBuffer}
+     * @param weld   true to weld the vertices and build an index buffer
+     * @return the mesh
+     * @throws IOException if the buffer is not a binary STL, or it has fewer triangles than its header says
+     */
+    public static Result parse(ByteBuffer buffer, boolean weld) throws IOException {
+        if (!isBinary(buffer)) throw new IOException(isAscii(buffer) ? "Not a binary STL" : "Truncated binary STL");
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        final int triangles = buffer.getInt(80);
+        if (triangles < 0 || triangles > (Integer.MAX_VALUE / 9)) {
+            throw new IOException("Too many triangles: " + (triangles & 0xFFFFFFFFL));
+        }
+        return weld ? parseWelded(buffer, triangles) : parseTriangles(buffer, triangles);
+    }
+
+    private static Result parseTriangles(ByteBuffer buffer, int triangles) {
+        final FloatBuffer vertices = createFloatBuffer(triangles * 9);
+        final FloatBuffer normals = createFloatBuffer(triangles * 9);
+        final float[] normal = new float[3];
+
+        for (int t = 0, offset = HEADER_SIZE; t < triangles; t++, offset += RECORD_SIZE) {
+            for (int i = 12; i < 48; i += 4) {
+                vertices.put(buffer.getFloat(offset + i));
+            }
+            readNormal(buffer, offset, normal);
+            for (int v = 0; v < 3; v++) {
+                normals.put(normal);
+            }
+        }
+        vertices.position(0);
+        normals.position(0);
+        return new Result(vertices, normals, null, triangles);
+    }
+
+    private static Result parseWelded(ByteBuffer buffer, int triangles) {
+        // a closed mesh has about half as many vertices as triangles
+        final VertexWelder welder = new VertexWelder(Math.max(triangles / 2, 16), CREASE_ANGLE);
+        final IntBuffer indices = createIntBuffer(triangles * 3);
+        final float[] normal = new float[3];
+
+        for (int t = 0, offset = HEADER_SIZE; t < triangles; t++, offset += RECORD_SIZE) {
+            readNormal(buffer, offset, normal);
+            for (int i = 12; i < 48; i += 12) {
+                indices.put(welder.add(
+                        buffer.getFloat(offset + i),
+                        buffer.getFloat(offset + i + 4),
+                        buffer.getFloat(offset + i + 8),
+                        normal[0], normal[1], normal[2]));
+            }
+        }
+        welder.normalize();
+        indices.position(0);
+        return new Result(toBuffer(welder.getPositions()), toBuffer(welder.getNormals()), indices, triangles);
+    }
+
+    /**
+     * Parse an ASCII STL. Only the <code>vertex</code> statements are read, normals are calculated.
+     *
+     * @param buffer the whole file
+     * @param weld   true to weld the vertices and build an index buffer
+     * @return the mesh
+     * @throws IOException if the file is malformed
+     */
+    public static Result parseAscii(ByteBuffer buffer, boolean weld) throws IOException {
+        final FloatArrayList corners = new FloatArrayList(9 * 1024);
+        final byte[] keyword = {'v', 'e', 'r', 't', 'e', 'x'};
+        final StringBuilder token = new StringBuilder();
+        final int limit = buffer.limit();
+
+        int i = 0;
+        while (i < limit) {
+            // find "vertex" at the start of a token
+            boolean match = i + keyword.length < limit && (i == 0 || buffer.get(i - 1) <= ' ');
+            for (int k = 0; match && k < keyword.length; k++) {
+                match = buffer.get(i + k) == keyword[k];
+            }
+            if (!match) {
+                i++;
+                continue;
+            }
+            i += keyword.length;
+            for (int c = 0; c < 3; c++) {
+                while (i < limit && buffer.get(i) <= ' ') i++;
+                token.setLength(0);
+                while (i < limit && buffer.get(i) > ' ') token.append((char) buffer.get(i++));
+                try {
+                    corners.add(Float.parseFloat(token.toString()));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed vertex: " + token, e);
+                }
+            }
+        }
+
+        final int triangles = corners.size() / 9;
+        final float[] data = corners.array();
+        final float[] normal = new float[3];
+        if (weld) {
+            final VertexWelder welder = new VertexWelder(Math.max(triangles / 2, 16), CREASE_ANGLE);
+            final IntBuffer indices = createIntBuffer(triangles * 3);
+            for (int t = 0; t < triangles; t++) {
+                calculateNormal(data, t * 9, normal);
+                for (int v = t * 9; v < t * 9 + 9; v += 3) {
+                    indices.put(welder.add(data[v], data[v + 1], data[v + 2], normal[0], normal[1], normal[2]));
+                }
+            }
+            welder.normalize();
+            indices.position(0);
+            return new Result(toBuffer(welder.getPositions()), toBuffer(welder.getNormals()), indices, triangles);
+        }
+
+        final FloatBuffer vertices = createFloatBuffer(triangles * 9);
+        final FloatBuffer normals = createFloatBuffer(triangles * 9);
+        vertices.put(data, 0, triangles * 9);
+        for (int t = 0; t < triangles; t++) {
+            calculateNormal(data, t * 9, normal);
+            for (int v = 0; v < 3; v++) {
+                normals.put(normal);
+            }
+        }
+        vertices.position(0);
+        normals.position(0);
+        return new Result(vertices, normals, null, triangles);
+    }
+
+    private static void calculateNormal(float[] data, int offset, float[] normal) {
+        final float ax = data[offset + 3] - data[offset];
+        final float ay = data[offset + 4] - data[offset + 1];
+        final float az = data[offset + 5] - data[offset + 2];
+        final float bx = data[offset + 6] - data[offset];
+        final float by = data[offset + 7] - data[offset + 1];
+        final float bz = data[offset + 8] - data[offset + 2];
+        normalize(ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx, normal);
+    }
+
+    private static void normalize(float x, float y, float z, float[] out) {
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length > 0) {
+            x /= length;
+            y /= length;
+            z /= length;
+        }
+        out[0] = x;
+        out[1] = y;
+        out[2] = z;
+    }
+
+    /**
+     * Read the facet normal. Many exporters write 0,0,0 so in that case it is calculated.
+     */
+    private static void readNormal(ByteBuffer buffer, int offset, float[] normal) {
+        final float nx = buffer.getFloat(offset);
+        final float ny = buffer.getFloat(offset + 4);
+        final float nz = buffer.getFloat(offset + 8);
+        if (nx != 0 || ny != 0 || nz != 0) {
+            normal[0] = nx;
+            normal[1] = ny;
+            normal[2] = nz;
+            return;
+        }
+        final float ax = buffer.getFloat(offset + 24) - buffer.getFloat(offset + 12);
+        final float ay = buffer.getFloat(offset + 28) - buffer.getFloat(offset + 16);
+        final float az = buffer.getFloat(offset + 32) - buffer.getFloat(offset + 20);
+        final float bx = buffer.getFloat(offset + 36) - buffer.getFloat(offset + 12);
+        final float by = buffer.getFloat(offset + 40) - buffer.getFloat(offset + 16);
+        final float bz = buffer.getFloat(offset + 44) - buffer.getFloat(offset + 20);
+        normalize(ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx, normal);
+    }
+
+    private static FloatBuffer toBuffer(FloatArrayList list) {
+        final FloatBuffer buffer = createFloatBuffer(list.size());
+        list.copyTo(buffer);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private static FloatBuffer createFloatBuffer(int floats) {
+        return ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static IntBuffer createIntBuffer(int ints) {
+        return ByteBuffer.allocateDirect(ints * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
@@ -0,0 +1,112 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import android.content.ContentResolver;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoaderTask;
+import org.the3deer.android.viewer.services.MeshOptimization;
+import org.the3deer.android.viewer.util.MappedContent;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Logger;
+
+/**
+ * Wavefront loader that parses the groups of the file in parallel.
+ * <p>
+ * The file is mapped in memory and parsed by the {@link WavefrontParallelParser}. The material libraries
+ * are loaded concurrently with the groups. Each group is converted to an {@link Object3D}, and optimized if enabled,
+ * in the worker thread, and published in file order, so the scene is the same as the one of the
+ * {@link StreamingWavefrontLoaderTask}.
+ * </p>
+ * <p>
+ * The texture coordinates are kept, and the colors of the materials are applied as soon as their libraries are
+ * loaded, like the {@link StreamingWavefrontLoaderTask}.
+ * </p>
+ *
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isParallel()
+ */
+public class ParallelWavefrontLoaderTask extends LoaderTask {
+
+    private static final Logger logger = Logger.getLogger(ParallelWavefrontLoaderTask.class.getSimpleName());
+
+    // shared by all the loads. idle workers are released by the pool
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final ContentResolver contentResolver;
+    private final boolean optimize;
+
+    /**
+     * @param callback the listener of the engine, not wrapped by the optimization, since it's done by the workers
+     * @param optimize true to optimize the meshes, i.e. {@link MeshOptimization#optimize(Object3D)}
+     */
+    public ParallelWavefrontLoaderTask(URI uri, LoadListener callback, ContentResolver contentResolver, boolean optimize) {
+        super(uri, callback);
+        this.contentResolver = contentResolver;
+        this.optimize = optimize;
+    }
+
+    @Override
+    protected List<Object3D> build() throws Exception {
+
+        final Scene scene = new Scene();
+        final List<ForkJoinTask<Map<String, float[]>>> libraries = new ArrayList<>();
+
+        final WavefrontParallelParser parser = new WavefrontParallelParser(POOL);
+        final WavefrontParallelParser.Listener<Object3D> listener = new WavefrontParallelParser.Listener<Object3D>() {
+
+            private Map<String, float[]> colors;
+
+            @Override
+            public void onMaterialLibrary(String path) {
+                libraries.add(POOL.submit(() -> StreamingWavefrontLoaderTask.loadColors(uri, path)));
+            }
+
+            @Override
+            public Object3D onMesh(WavefrontStreamParser.Mesh mesh) {
+                final Object3D obj = StreamingWavefrontLoaderTask.toObject3D(mesh);
+                final float[] color = mesh.getMaterial() != null ? getColors().get(mesh.getMaterial()) : null;
+                if (color != null) {
+                    obj.setColor(color);
+                }
+                // in the worker, so the groups are optimized in parallel
+                if (optimize) MeshOptimization.optimize(obj);
+                return obj;
+            }
+
+            @Override
+            public void onResult(Object3D obj) {
+                onLoadObject(scene, obj);
+            }
+
+            private synchronized Map<String, float[]> getColors() {
+                if (colors == null) {
+                    // same precedence as the sequential loader: last library wins
+                    colors = new HashMap<>();
+                    for (ForkJoinTask<Map<String, float[]>> library : libraries) {
+                        colors.putAll(library.join());
+                    }
+                }
+                return colors;
+            }
+        };
+
+        final long start = System.currentTimeMillis();
+        final ByteBuffer data = MappedContent.map(uri, contentResolver);
+        final List<Object3D> objects = parser.parse(data, listener);
+        logger.info("Parsed " + data.limit() / 1024 + " KB in " + (System.currentTimeMillis() - start) + " ms. "
+                + "Vertices: " + parser.getVertexCount() + ", Triangles: " + parser.getFaceCount()
+                + ", Objects: " + parser.getMeshCount() + ", Threads: " + POOL.getParallelism());
+
+        onLoadScene(scene);
+        return objects;
+    }
+}
@@ -0,0 +1,148 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import android.opengl.GLES20;
+
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoaderTask;
+import org.the3deer.android.util.ContentUtils;
+import org.the3deer.android.viewer.util.FloatArrayList;
+import org.the3deer.android.viewer.util.IntArrayList;
+import org.the3deer.util.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wavefront loader for very large OBJ files (i.e. 3D scans).
+ * <p>
+ * The file is read with the {@link WavefrontStreamParser}, so there is no intermediate object model.
+ * Each group is converted to an {@link Object3D} and published as soon as it is parsed.
+ * Only the diffuse color (<code>Kd</code>) and transparency (<code>d</code>) of the materials are applied.
+ * </p>
+ *
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isStreaming()
+ */
+public class StreamingWavefrontLoaderTask extends LoaderTask {
+
+    private static final Logger logger = Logger.getLogger(StreamingWavefrontLoaderTask.class.getSimpleName());
+
+    public StreamingWavefrontLoaderTask(URI uri, LoadListener callback) {
+        super(uri, callback);
+    }
+
+    @Override
+    protected List<Object3D> build() throws Exception {
+
+        final Scene scene = new Scene();
+        final List<Object3D> objects = new ArrayList<>();
+        final Map<String, float[]> colors = new HashMap<>();
+
+        final WavefrontStreamParser parser = new WavefrontStreamParser(new WavefrontStreamParser.Handler() {
+
+            @Override
+            public void onMaterialLibrary(String path) {
+                colors.putAll(loadColors(uri, path));
+            }
+
+            @Override
+            public void onMesh(WavefrontStreamParser.Mesh mesh) {
+                final Object3D obj = toObject3D(mesh);
+                final float[] color = mesh.getMaterial() != null ? colors.get(mesh.getMaterial()) : null;
+                if (color != null) {
+                    obj.setColor(color);
+                }
+                objects.add(obj);
+                onLoadObject(scene, obj);
+            }
+        });
+
+        final long start = System.currentTimeMillis();
+        try (InputStream stream = ContentUtils.getInputStream(uri)) {
+            parser.parse(stream);
+        }
+        logger.info("Parsed " + parser.getBytesRead() / 1024 + " KB in " + (System.currentTimeMillis() - start) + " ms. "
+                + "Vertices: " + parser.getVertexCount() + ", Triangles: " + parser.getFaceCount()
+                + ", Objects: " + parser.getMeshCount());
+
+        onLoadScene(scene);
+        return objects;
+    }
+
+    /**
+     * Copy the (reused) parser mesh into the direct buffers of a new {@link Object3D}
+     */
+    static Object3D toObject3D(WavefrontStreamParser.Mesh mesh) {
+
+        final FloatBuffer vertexBuffer = toBuffer(mesh.getVertices());
+        final IntArrayList indices = mesh.getIndices();
+        final IntBuffer indexBuffer = IOUtils.createIntBuffer(indices.size());
+        indices.copyTo(indexBuffer);
+        indexBuffer.position(0);
+
+        final Object3D obj = new Object3D(vertexBuffer, indexBuffer);
+        obj.setDrawMode(GLES20.GL_TRIANGLES);
+        if (mesh.getName() != null) {
+            obj.setId(mesh.getName());
+        }
+        if (mesh.getNormals() != null) {
+            obj.setNormalsBuffer(toBuffer(mesh.getNormals()));
+        }
+        if (mesh.getTextures() != null) {
+            obj.setTextureBuffer(toBuffer(mesh.getTextures()));
+        }
+        return obj;
+    }
+
+    private static FloatBuffer toBuffer(FloatArrayList list) {
+        final FloatBuffer buffer = IOUtils.createFloatBuffer(list.size());
+        list.copyTo(buffer);
+        buffer.position(0);
+        return buffer;
+    }
+
+    /**
+     * Read the diffuse color of every material in the library. Failures are not fatal.
+     */
+    static Map<String, float[]> loadColors(URI modelUri, String path) {
+        final Map<String, float[]> ret = new HashMap<>();
+        try (InputStream stream = ContentUtils.getInputStream(modelUri.resolve(path.replace(" ", "%20")));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+
+            float[] current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("newmtl ")) {
+                    current = new float[]{1f, 1f, 1f, 1f};
+                    ret.put(line.substring(7).trim(), current);
+                } else if (current != null && line.startsWith("Kd ")) {
+                    final String[] rgb = line.substring(3).trim().split("\\s+");
+                    for (int i = 0; i < 3 && i < rgb.length; i++) {
+                        current[i] = Float.parseFloat(rgb[i]);
+                    }
+                } else if (current != null && line.startsWith("d ")) {
+                    current[3] = Float.parseFloat(line.substring(2).trim());
+                } else if (current != null && line.startsWith("Tr ")) {
+                    current[3] = 1f - Float.parseFloat(line.substring(3).trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Material library not loaded: " + path + ". " + e.getMessage());
+        }
+        return ret;
+    }
+}
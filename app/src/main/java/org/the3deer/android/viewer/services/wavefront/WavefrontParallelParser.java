@@ -0,0 +1,211 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import org.the3deer.android.viewer.util.MappedContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses the groups of an OBJ file in parallel.
+ * <p>
+ * The file is scanned once to read the attributes (<code>v</code>, <code>vt</code>, <code>vn</code>) and
+ * to find where the faces of each group start and end. Then every group is parsed on the
+ * {@link ForkJoinPool} by its own {@link WavefrontStreamParser}, sharing the attributes of the scan.
+ * </p>
+ * <p>
+ * Results are delivered in file order, as soon as a group and all the groups before it are done,
+ * so the output is the same as the sequential {@link WavefrontStreamParser}.
+ * </p>
+ */
+public final class WavefrontParallelParser {
+
+    /**
+     * Callbacks of the parser
+     *
+     * @param <T> the type of the converted meshes
+     */
+    public interface Listener<T> {
+
+        /**
+         * Called during the scan, in the calling thread, for every <code>mtllib</code> statement
+         */
+        void onMaterialLibrary(String path);
+
+        /**
+         * Called from a worker thread when a group is parsed.
+         * The mesh is reused by the parser, so it must be converted (copied) here.
+         *
+         * @return the converted mesh, or <code>null</code> to skip it
+         */
+        T onMesh(WavefrontStreamParser.Mesh mesh) throws IOException;
+
+        /**
+         * Called in file order, one call at a time, but not necessarily from the calling thread
+         */
+        void onResult(T result);
+    }
+
+    private final ForkJoinPool pool;
+
+    // stats of the last parse
+    private int vertexCount;
+    private long faceCount;
+    private int meshCount;
+
+    public WavefrontParallelParser(ForkJoinPool pool) {
+        if (pool == null) throw new IllegalArgumentException("pool can't be null");
+        this.pool = pool;
+    }
+
+    /**
+     * Parse the whole file
+     *
+     * @param data     the file contents, i.e. {@link MappedContent#map}. It is not modified
+     * @param listener the listener
+     * @param <T>      the type of the converted meshes
+     * @return the converted meshes, in file order
+     * @throws IOException if the file is malformed, or the listener fails
+     */
+    public <T> List<T> parse(ByteBuffer data, Listener<T> listener) throws IOException {
+
+        final List<WavefrontStreamParser.Block> blocks = new ArrayList<>();
+        final WavefrontStreamParser scanner = new WavefrontStreamParser(new WavefrontStreamParser.Handler() {
+            @Override
+            public void onMaterialLibrary(String path) {
+                listener.onMaterialLibrary(path);
+            }
+
+            @Override
+            public void onMesh(WavefrontStreamParser.Mesh mesh) {
+                // not called while scanning
+            }
+        });
+        scanner.scan(MappedContent.newInputStream(data, 0, data.limit()), blocks);
+
+        this.vertexCount = scanner.getVertexCount();
+        this.faceCount = 0;
+        this.meshCount = 0;
+        if (blocks.isEmpty()) return Collections.emptyList();
+
+        final Delivery<T> delivery = new Delivery<>(blocks.size(), listener);
+        final List<RecursiveAction> tasks = new ArrayList<>(blocks.size());
+        for (WavefrontStreamParser.Block block : blocks) {
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        parseBlock(scanner, data, block, delivery);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the pool may wrap the exception thrown by the worker
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            }
+            throw e;
+        }
+        return delivery.getResults();
+    }
+
+    private <T> void parseBlock(WavefrontStreamParser scanner, ByteBuffer data, WavefrontStreamParser.Block block,
+                                Delivery<T> delivery) throws IOException {
+        final List<T> results = new ArrayList<>(1);
+        final WavefrontStreamParser parser = scanner.newBlockParser(new WavefrontStreamParser.Handler() {
+            @Override
+            public void onMaterialLibrary(String path) {
+                // already notified by the scan
+            }
+
+            @Override
+            public void onMesh(WavefrontStreamParser.Mesh mesh) throws IOException {
+                results.add(delivery.listener.onMesh(mesh));
+            }
+        });
+        try (InputStream stream = MappedContent.newInputStream(data, (int) block.start, (int) block.end)) {
+            parser.parseBlock(stream, block);
+        }
+        delivery.complete(block.index, results.isEmpty() ? null : results.get(0), parser.getFaceCount());
+    }
+
+    /**
+     * @return number of vertices (<code>v</code> statements) of the last file
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return number of triangles of the last file
+     */
+    public synchronized long getFaceCount() {
+        return faceCount;
+    }
+
+    /**
+     * @return number of meshes delivered for the last file
+     */
+    public synchronized int getMeshCount() {
+        return meshCount;
+    }
+
+    /**
+     * Delivers the results in order
+     */
+    private final class Delivery<T> {
+
+        private final Listener<T> listener;
+        private final List<T> results;
+        private final Object[] pending;
+        private final boolean[] done;
+        private int next;
+
+        Delivery(int count, Listener<T> listener) {
+            this.listener = listener;
+            this.results = new ArrayList<>(count);
+            this.pending = new Object[count];
+            this.done = new boolean[count];
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(int index, T result, long faces) {
+            synchronized (WavefrontParallelParser.this) {
+                faceCount += faces;
+                pending[index] = result;
+                done[index] = true;
+                while (next < done.length && done[next]) {
+                    final T ready = (T) pending[next];
+                    pending[next++] = null;
+                    if (ready == null) continue;
+                    meshCount++;
+                    results.add(ready);
+                    listener.onResult(ready);
+                }
+            }
+        }
+
+        List<T> getResults() {
+            synchronized (WavefrontParallelParser.this) {
+                return results;
+            }
+        }
+    }
+}
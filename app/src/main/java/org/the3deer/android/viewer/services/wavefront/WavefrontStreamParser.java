@@ -0,0 +1,713 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import org.the3deer.android.viewer.util.FloatArrayList;
+import org.the3deer.android.viewer.util.IntArrayList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming Wavefront OBJ parser.
+ * <p>
+ * The parser tokenizes the raw bytes of the stream, so no {@link String} is created per line and
+ * no {@link String#split(String)} is ever called. Numbers are parsed in place and accumulated into
+ * growable primitive arrays. Only group, object, material names allocate.
+ * </p>
+ * <p>
+ * Every time a group (<code>o</code>, <code>g</code>) or material (<code>usemtl</code>) ends, the
+ * finished {@link Mesh} is handed to the {@link Handler}, so the caller can build the
+ * <code>Object3D</code> while the rest of the file is still being read.
+ * The mesh is indexed: each unique <code>v/vt/vn</code> combination becomes a single vertex.
+ * </p>
+ * <p>
+ * The {@link Mesh} instance is reused between callbacks, so the handler must copy the data.
+ * </p>
+ */
+public final class WavefrontStreamParser {
+
+    /**
+     * Receives the parsed data
+     */
+    public interface Handler {
+
+        /**
+         * Called when a <code>mtllib</code> statement is found
+         *
+         * @param path the library path, relative to the model
+         */
+        void onMaterialLibrary(String path);
+
+        /**
+         * Called when a mesh is complete. The mesh is reused, so data must be copied.
+         *
+         * @param mesh the finished mesh
+         */
+        void onMesh(Mesh mesh) throws IOException;
+    }
+
+    /**
+     * Indexed triangle mesh for a single group/material
+     */
+    public static final class Mesh {
+
+        private String name;
+        private String material;
+        private boolean withNormals;
+        private boolean withTextures;
+
+        final FloatArrayList vertices = new FloatArrayList(3 * 1024);
+        final FloatArrayList normals = new FloatArrayList(3 * 1024);
+        final FloatArrayList textures = new FloatArrayList(2 * 1024);
+        final IntArrayList indices = new IntArrayList(3 * 1024);
+
+        public String getName() {
+            return name;
+        }
+
+        public String getMaterial() {
+            return material;
+        }
+
+        /**
+         * @return xyz positions
+         */
+        public FloatArrayList getVertices() {
+            return vertices;
+        }
+
+        /**
+         * @return xyz normals or <code>null</code> if the mesh has no normals
+         */
+        public FloatArrayList getNormals() {
+            return withNormals ? normals : null;
+        }
+
+        /**
+         * @return uv coordinates or <code>null</code> if the mesh has no texture coordinates
+         */
+        public FloatArrayList getTextures() {
+            return withTextures ? textures : null;
+        }
+
+        /**
+         * @return triangle indices
+         */
+        public IntArrayList getIndices() {
+            return indices;
+        }
+
+        public int getVertexCount() {
+            return vertices.size() / 3;
+        }
+
+        private void clear() {
+            vertices.clear();
+            normals.clear();
+            textures.clear();
+            indices.clear();
+            withNormals = false;
+            withTextures = false;
+        }
+    }
+
+    /**
+     * Range of the file with the faces of a single mesh.
+     * The counters are the number of attributes and lines before the block, to resolve relative indices
+     * and to report errors.
+     */
+    static final class Block {
+        final int index;
+        final long start;
+        final long end;
+        final String name;
+        final String material;
+        final int positions;
+        final int texCoords;
+        final int normals;
+        final int lines;
+
+        Block(int index, long start, long end, String name, String material, int positions, int texCoords, int normals, int lines) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.name = name;
+            this.material = material;
+            this.positions = positions;
+            this.texCoords = texCoords;
+            this.normals = normals;
+            this.lines = lines;
+        }
+    }
+
+    // parse everything
+    private static final int MODE_FULL = 0;
+    // parse attributes and record the face blocks, but skip faces
+    private static final int MODE_SCAN = 1;
+    // parse the faces of a block, attributes are taken from a previous scan
+    private static final int MODE_FACES = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final Handler handler;
+
+    // global attribute pools (obj indices are global for the whole file)
+    private final FloatArrayList positions;
+    private final FloatArrayList texCoords;
+    private final FloatArrayList normals;
+
+    private int mode = MODE_FULL;
+
+    // MODE_SCAN: blocks found so far
+    private List<Block> blocks;
+    private long blockStart = -1;
+    private int blockPositions;
+    private int blockTexCoords;
+    private int blockNormals;
+    private int blockLines;
+
+    // MODE_FACES: attributes defined before and inside the block
+    private int basePositions;
+    private int baseTexCoords;
+    private int baseNormals;
+
+    // current mesh
+    private final Mesh mesh = new Mesh();
+
+    // v/vt/vn -> mesh index (open addressing, cleared in O(1) by bumping the generation)
+    private int[] slotKeys = new int[3 * 4096];
+    private int[] slotValues = new int[4096];
+    private int[] slotGeneration = new int[4096];
+    private int generation = 1;
+    private int slotCount;
+
+    // face corners of the current line
+    private int[] corners = new int[16];
+
+    // line tokenizer state
+    private InputStream in;
+    private long streamOffset;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private int scan;
+    private boolean eof;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+    private int p;
+
+    // stats
+    private long bytesRead;
+    private long faceCount;
+    private int meshCount;
+
+    public WavefrontStreamParser(Handler handler) {
+        this(handler, new FloatArrayList(3 * 4096), new FloatArrayList(2 * 4096), new FloatArrayList(3 * 4096));
+    }
+
+    /**
+     * Parser sharing the attributes of another parser, so blocks of the same file can be parsed in parallel
+     */
+    private WavefrontStreamParser(Handler handler, FloatArrayList positions, FloatArrayList texCoords, FloatArrayList normals) {
+        if (handler == null) throw new IllegalArgumentException("handler can't be null");
+        this.handler = handler;
+        this.positions = positions;
+        this.texCoords = texCoords;
+        this.normals = normals;
+    }
+
+    /**
+     * Parse the stream until the end. The stream is not closed.
+     * The parser can be reused, in which case the internal arrays are recycled.
+     *
+     * @param in the obj stream
+     * @throws IOException if there is an error reading or the obj is malformed
+     */
+    public void parse(InputStream in) throws IOException {
+        this.mode = MODE_FULL;
+        positions.clear();
+        texCoords.clear();
+        normals.clear();
+        mesh.name = null;
+        mesh.material = null;
+        run(in, 0);
+    }
+
+    /**
+     * Parse the attributes (<code>v</code>, <code>vt</code>, <code>vn</code>) and record the blocks of faces,
+     * so they can be parsed later with {@link #parseBlock(InputStream, Block)}.
+     *
+     * @param in     the whole obj stream
+     * @param blocks the list where the blocks are added, in file order
+     */
+    void scan(InputStream in, List<Block> blocks) throws IOException {
+        this.mode = MODE_SCAN;
+        this.blocks = blocks;
+        this.blockStart = -1;
+        positions.clear();
+        texCoords.clear();
+        normals.clear();
+        mesh.name = null;
+        mesh.material = null;
+        try {
+            run(in, 0);
+        } finally {
+            this.blocks = null;
+        }
+    }
+
+    /**
+     * Create a parser for the blocks found by this parser. Each parser can be used in a different thread.
+     */
+    WavefrontStreamParser newBlockParser(Handler handler) {
+        return new WavefrontStreamParser(handler, positions, texCoords, normals);
+    }
+
+    /**
+     * Parse the faces of a block found by {@link #scan(InputStream, List)}.
+     * The handler is called once, unless the block has no faces.
+     *
+     * @param in    stream with the contents of the block only
+     * @param block the block
+     */
+    void parseBlock(InputStream in, Block block) throws IOException {
+        this.mode = MODE_FACES;
+        this.basePositions = block.positions;
+        this.baseTexCoords = block.texCoords;
+        this.baseNormals = block.normals;
+        mesh.name = block.name;
+        mesh.material = block.material;
+        run(in, block.lines);
+    }
+
+    private void run(InputStream in, int firstLine) throws IOException {
+        this.in = in;
+        this.streamOffset = 0;
+        this.pos = 0;
+        this.limit = 0;
+        this.scan = 0;
+        this.eof = false;
+        this.lineNumber = firstLine;
+        this.bytesRead = 0;
+        this.faceCount = 0;
+        this.meshCount = 0;
+        mesh.clear();
+        generation++;
+        slotCount = 0;
+
+        while (nextLine()) {
+            skipSpaces();
+            if (p >= lineEnd) continue;
+
+            final byte c0 = buf[p];
+            final byte c1 = p + 1 < lineEnd ? buf[p + 1] : (byte) ' ';
+            if (c0 == 'v' && mode == MODE_FACES) {
+                // attributes are already parsed, but relative indices depend on them
+                if (isSpace(c1)) basePositions++;
+                else if (c1 == 't') baseTexCoords++;
+                else if (c1 == 'n') baseNormals++;
+            } else if (c0 == 'v') {
+                if (isSpace(c1)) {
+                    p += 1;
+                    positions.add(parseFloat(), parseFloat(), parseFloat());
+                } else if (c1 == 't') {
+                    p += 2;
+                    final float u = parseFloat();
+                    skipSpaces();
+                    texCoords.add(u, p < lineEnd ? parseFloat() : 0f);
+                } else if (c1 == 'n') {
+                    p += 2;
+                    normals.add(parseFloat(), parseFloat(), parseFloat());
+                }
+            } else if (c0 == 'f' && isSpace(c1)) {
+                if (mode == MODE_SCAN) {
+                    if (blockStart < 0) {
+                        blockStart = streamOffset + lineStart;
+                        blockPositions = positions.size() / 3;
+                        blockTexCoords = texCoords.size() / 2;
+                        blockNormals = normals.size() / 3;
+                        blockLines = lineNumber - 1;
+                    }
+                    continue;
+                }
+                p += 1;
+                parseFace();
+            } else if ((c0 == 'o' || c0 == 'g') && isSpace(c1)) {
+                p += 1;
+                flush();
+                mesh.name = parseName();
+            } else if (startsWith("usemtl")) {
+                p += 6;
+                flush();
+                mesh.material = parseName();
+            } else if (startsWith("mtllib")) {
+                p += 6;
+                final String library = parseName();
+                if (library != null && mode != MODE_FACES) handler.onMaterialLibrary(library);
+            }
+        }
+        // the last block ends at the end of the stream
+        lineStart = limit;
+        flush();
+        this.in = null;
+    }
+
+    /**
+     * @return total number of bytes read from the stream
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return total number of <code>v</code> statements parsed
+     */
+    public int getVertexCount() {
+        return positions.size() / 3;
+    }
+
+    /**
+     * @return total number of <code>vt</code> statements parsed
+     */
+    public int getTexCoordCount() {
+        return texCoords.size() / 2;
+    }
+
+    /**
+     * @return total number of triangles emitted (after polygon triangulation)
+     */
+    public long getFaceCount() {
+        return faceCount;
+    }
+
+    /**
+     * @return total number of meshes emitted
+     */
+    public int getMeshCount() {
+        return meshCount;
+    }
+
+    private void flush() throws IOException {
+        if (mode == MODE_SCAN) {
+            if (blockStart >= 0) {
+                blocks.add(new Block(blocks.size(), blockStart, streamOffset + lineStart, mesh.name, mesh.material,
+                        blockPositions, blockTexCoords, blockNormals, blockLines));
+                meshCount++;
+                blockStart = -1;
+            }
+            return;
+        }
+        if (!mesh.indices.isEmpty()) {
+            meshCount++;
+            handler.onMesh(mesh);
+        }
+        mesh.clear();
+        generation++;
+        slotCount = 0;
+    }
+
+    private void parseFace() throws IOException {
+        int count = 0;
+        skipSpaces();
+        while (p < lineEnd) {
+            final int v = resolve(parseInt(), mode == MODE_FACES ? basePositions : positions.size() / 3);
+            int vt = -1;
+            int vn = -1;
+            if (p < lineEnd && buf[p] == '/') {
+                p++;
+                if (p < lineEnd && buf[p] != '/' && !isSpace(buf[p])) {
+                    vt = resolve(parseInt(), mode == MODE_FACES ? baseTexCoords : texCoords.size() / 2);
+                }
+                if (p < lineEnd && buf[p] == '/') {
+                    p++;
+                    if (p < lineEnd && !isSpace(buf[p])) {
+                        vn = resolve(parseInt(), mode == MODE_FACES ? baseNormals : normals.size() / 3);
+                    }
+                }
+            }
+            if (count == corners.length) corners = Arrays.copyOf(corners, count * 2);
+            corners[count++] = vertex(v, vt, vn);
+            skipSpaces();
+        }
+        if (count < 3) return;
+
+        // triangulate as a fan
+        final IntArrayList indices = mesh.indices;
+        for (int i = 2; i < count; i++) {
+            indices.add(corners[0], corners[i - 1], corners[i]);
+        }
+        faceCount += count - 2;
+    }
+
+    private int resolve(int index, int count) throws IOException {
+        final int resolved = index < 0 ? count + index : index - 1;
+        if (resolved < 0 || resolved >= count) {
+            throw new IOException("Index out of range at line " + lineNumber + ": " + index + ", available: " + count);
+        }
+        return resolved;
+    }
+
+    /**
+     * Get the mesh index for the v/vt/vn combination, adding the vertex if it's new.
+     */
+    private int vertex(int v, int vt, int vn) {
+        if (slotCount * 2 >= slotValues.length) rehash();
+
+        final int mask = slotValues.length - 1;
+        int slot = hash(v, vt, vn) & mask;
+        while (slotGeneration[slot] == generation) {
+            final int k = slot * 3;
+            if (slotKeys[k] == v && slotKeys[k + 1] == vt && slotKeys[k + 2] == vn) {
+                return slotValues[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        final int index = mesh.vertices.size() / 3;
+        final float[] pos = positions.array();
+        mesh.vertices.add(pos[v * 3], pos[v * 3 + 1], pos[v * 3 + 2]);
+        if (vt >= 0) {
+            final float[] tex = texCoords.array();
+            mesh.textures.add(tex[vt * 2], tex[vt * 2 + 1]);
+            mesh.withTextures = true;
+        } else {
+            mesh.textures.add(0f, 0f);
+        }
+        if (vn >= 0) {
+            final float[] nor = normals.array();
+            mesh.normals.add(nor[vn * 3], nor[vn * 3 + 1], nor[vn * 3 + 2]);
+            mesh.withNormals = true;
+        } else {
+            mesh.normals.add(0f, 0f, 0f);
+        }
+
+        final int k = slot * 3;
+        slotKeys[k] = v;
+        slotKeys[k + 1] = vt;
+        slotKeys[k + 2] = vn;
+        slotValues[slot] = index;
+        slotGeneration[slot] = generation;
+        slotCount++;
+        return index;
+    }
+
+    private void rehash() {
+        final int[] oldKeys = slotKeys;
+        final int[] oldValues = slotValues;
+        final int[] oldGeneration = slotGeneration;
+
+        final int capacity = oldValues.length * 2;
+        slotKeys = new int[capacity * 3];
+        slotValues = new int[capacity];
+        slotGeneration = new int[capacity];
+
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldGeneration[i] != generation) continue;
+            final int v = oldKeys[i * 3], vt = oldKeys[i * 3 + 1], vn = oldKeys[i * 3 + 2];
+            int slot = hash(v, vt, vn) & mask;
+            while (slotGeneration[slot] == generation) slot = (slot + 1) & mask;
+            slotKeys[slot * 3] = v;
+            slotKeys[slot * 3 + 1] = vt;
+            slotKeys[slot * 3 + 2] = vn;
+            slotValues[slot] = oldValues[i];
+            slotGeneration[slot] = generation;
+        }
+    }
+
+    private static int hash(int v, int vt, int vn) {
+        int h = v * 0x9E3779B1;
+        h ^= vt * 0x85EBCA77;
+        h ^= vn * 0xC2B2AE3D;
+        return h ^ (h >>> 15);
+    }
+
+    // ------------------------------------------------------------------ tokenizer
+
+    /**
+     * Make the next line available in the buffer, between {@link #p} and {@link #lineEnd}
+     */
+    private boolean nextLine() throws IOException {
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    p = lineStart = pos;
+                    lineNumber++;
+                    lineEnd = i;
+                    pos = i + 1;
+                    scan = pos;
+                    return true;
+                }
+            }
+            scan = limit;
+
+            if (eof) {
+                if (pos < limit) {
+                    p = lineStart = pos;
+                    lineNumber++;
+                    lineEnd = limit;
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+
+            // compact
+            if (pos > 0) {
+                streamOffset += pos;
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                scan -= pos;
+                pos = 0;
+            }
+
+            // line longer than the buffer
+            if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+
+            final int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+                bytesRead += read;
+            }
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private void skipSpaces() {
+        while (p < lineEnd && isSpace(buf[p])) p++;
+    }
+
+    private boolean startsWith(String keyword) {
+        final int length = keyword.length();
+        if (p + length >= lineEnd || !isSpace(buf[p + length])) return false;
+        for (int i = 0; i < length; i++) {
+            if (buf[p + i] != keyword.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String parseName() {
+        skipSpaces();
+        int end = lineEnd;
+        while (end > p && isSpace(buf[end - 1])) end--;
+        if (end == p) return null;
+        return new String(buf, p, end - p, StandardCharsets.UTF_8);
+    }
+
+    private int parseInt() throws IOException {
+        skipSpaces();
+        boolean negative = false;
+        if (p < lineEnd && (buf[p] == '-' || buf[p] == '+')) {
+            negative = buf[p] == '-';
+            p++;
+        }
+        final int start = p;
+        int value = 0;
+        while (p < lineEnd) {
+            final int d = buf[p] - '0';
+            if (d < 0 || d > 9) break;
+            value = value * 10 + d;
+            p++;
+        }
+        if (p == start) throw malformed();
+        return negative ? -value : value;
+    }
+
+    private float parseFloat() throws IOException {
+        skipSpaces();
+        boolean negative = false;
+        if (p < lineEnd && (buf[p] == '-' || buf[p] == '+')) {
+            negative = buf[p] == '-';
+            p++;
+        }
+
+        final int start = p;
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+
+        // integer part
+        while (p < lineEnd) {
+            final int d = buf[p] - '0';
+            if (d < 0 || d > 9) break;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + d;
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            p++;
+        }
+
+        // fraction
+        if (p < lineEnd && buf[p] == '.') {
+            p++;
+            while (p < lineEnd) {
+                final int d = buf[p] - '0';
+                if (d < 0 || d > 9) break;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                p++;
+            }
+        }
+
+        if (p == start) {
+            return parseSpecial(negative);
+        }
+
+        // exponent
+        if (p < lineEnd && (buf[p] == 'e' || buf[p] == 'E')) {
+            p++;
+            exponent += parseInt();
+        }
+
+        double value = mantissa;
+        if (exponent != 0 && mantissa != 0) {
+            if (exponent > 0) {
+                value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+            } else {
+                value = -exponent < POW10.length ? value / POW10[-exponent] : value / Math.pow(10, -exponent);
+            }
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Some exporters write <code>nan</code> or <code>inf</code>
+     */
+    private float parseSpecial(boolean negative) throws IOException {
+        if (p + 2 < lineEnd) {
+            final int c = buf[p] | 0x20;
+            if (c == 'n') {
+                p += 3;
+                return Float.NaN;
+            } else if (c == 'i') {
+                while (p < lineEnd && !isSpace(buf[p])) p++;
+                return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+            }
+        }
+        throw malformed();
+    }
+
+    private IOException malformed() {
+        return new IOException("Malformed line " + lineNumber + ": '"
+                + new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8).trim() + "'");
+    }
+}
@@ -15,6 +15,7 @@ import org.the3deer.android.engine.Model;
 import org.the3deer.android.engine.ModelEngine;
 import org.the3deer.android.engine.animation.Animation;
 import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.rendering.RenderScheduler;
 
 import java.util.List;
 
@@ -51,6 +52,8 @@ public class AnimationDialogFragment extends DialogFragment {
             return createNotAvailableDialog(builder, "No animations available");
         }
 
+        final RenderScheduler scheduler = modelEngine.getBeanFactory().find(RenderScheduler.class);
+
         final Animation currentAnimation = currentScene.getActiveAnimation();
         final int animationIndex = animations.indexOf(currentAnimation);
 
@@ -74,6 +77,8 @@ public class AnimationDialogFragment extends DialogFragment {
                         } else {
                             currentScene.setActiveAnimation(null);
                         }
+                        // playing or stopped: draw the next frame
+                        if (scheduler != null) scheduler.invalidate();
                     }})
 
 
@@ -20,6 +20,12 @@ import org.the3deer.android.engine.model.Camera;
 import org.the3deer.android.engine.model.Dimensions;
 import org.the3deer.android.engine.model.Object3D;
 import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.batching.SceneBatcher;
+import org.the3deer.android.viewer.services.culling.SceneCuller;
+import org.the3deer.android.viewer.services.engine.EnginePool;
+import org.the3deer.android.viewer.services.engine.ModelPrefetcher;
+import org.the3deer.android.viewer.services.profiling.FrameProfiler;
+import org.the3deer.android.viewer.services.rendering.RenderScheduler;
 
 import java.util.Locale;
 
@@ -98,6 +104,31 @@ public class ModelInfoDialogFragment extends DialogFragment {
                 info.append("Objects: ").append(model.getActiveScene().getObjects().size()).append("\n");
                 info.append("Cameras: ").append(model.getActiveScene().getCameras().size()).append("\n");
                 info.append("Animations: ").append(model.getActiveScene().getAnimations().size()).append("\n");
+                final SceneCuller culler = modelEngine.getBeanFactory().find(SceneCuller.class);
+                if (culler != null && culler.isEnabled()) {
+                    info.append("Visible: ").append(culler.getVisibleCount())
+                            .append(" (culled: ").append(culler.getCulledCount()).append(")\n");
+                }
+                final SceneBatcher batcher = modelEngine.getBeanFactory().find(SceneBatcher.class);
+                if (batcher != null && batcher.isActive()) {
+                    info.append("Draw calls: ").append(batcher.getDrawCallsAfter())
+                            .append(" (merged from: ").append(batcher.getDrawCallsBefore()).append(")\n");
+                }
+                final RenderScheduler scheduler = modelEngine.getBeanFactory().find(RenderScheduler.class);
+                if (scheduler != null && scheduler.isOnDemand()) {
+                    info.append("Frames: ").append(scheduler.getDrawnFrames())
+                            .append(" (idle: ").append(scheduler.getIdleFrames()).append(")\n");
+                }
+                final FrameProfiler profiler = modelEngine.getBeanFactory().find(FrameProfiler.class);
+                if (profiler != null && profiler.isEnabled()) {
+                    final long[][] percentiles = profiler.getPercentiles();
+                    for (int stage = 0; stage < percentiles.length; stage++) {
+                        if (percentiles[stage][0] < 0) continue;
+                        info.append(String.format(Locale.US, "%s (p50/p95/p99): %.2f/%.2f/%.2f ms\n",
+                                FrameProfiler.getName(stage), percentiles[stage][0] / 1e6,
+                                percentiles[stage][1] / 1e6, percentiles[stage][2] / 1e6));
+                    }
+                }
             }
             info.append("\n");
         }
@@ -130,8 +161,11 @@ public class ModelInfoDialogFragment extends DialogFragment {
             modelMemory = active.getModel().getMemoryUsage();
         }
 
-        return String.format(Locale.getDefault(), "Memory: %d/%d MB\nModel: %d MB",
-                usedMemory / 1024 / 1024, maxMemory / 1024 / 1024, modelMemory / 1024 / 1024);
+        final EnginePool engines = EnginePool.getInstance();
+        return String.format(Locale.getDefault(), "Memory: %d/%d MB\nModel: %d MB\nWarm models: %d (%d MB, evicted: %d, preloaded: %d)",
+                usedMemory / 1024 / 1024, maxMemory / 1024 / 1024, modelMemory / 1024 / 1024,
+                engines.getWarmCount(), engines.getWarmBytes() / 1024 / 1024, engines.getEvictedCount(),
+                ModelPrefetcher.getInstance().getPrefetchedCount());
     }
 
     private String getSceneDimensionsInfo() {
@@ -0,0 +1,98 @@
+package org.the3deer.android.viewer.ui.home;
+
+import android.os.Handler;
+
+import org.the3deer.android.engine.Model;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.batching.BatchEvent;
+import org.the3deer.android.viewer.services.batching.SceneBatcher;
+import org.the3deer.android.viewer.services.culling.SceneCuller;
+import org.the3deer.android.viewer.services.profiling.FrameProfiler;
+import org.the3deer.util.event.EventManager;
+
+import java.util.logging.Logger;
+
+/**
+ * Runs the {@link SceneBatcher} of the model periodically, on the UI thread.
+ * <p>
+ * The active scene is merged when batching is enabled, and restored when it's disabled. The draw calls
+ * before and after are propagated as a {@link BatchEvent} every time they change.
+ * </p>
+ */
+final class BatchingDriver {
+
+    private static final Logger logger = Logger.getLogger(BatchingDriver.class.getSimpleName());
+
+    private static final long PERIOD_MS = 200;
+
+    private final Model model;
+    private final SceneBatcher batcher;
+    private final SceneCuller culler;
+    private final EventManager eventManager;
+    private final FrameProfiler profiler;
+    private final Handler handler;
+
+    private final Runnable poll = this::poll;
+
+    private boolean stopped;
+
+    /**
+     * @param model        the model
+     * @param batcher      the batcher of the model
+     * @param culler       the culler of the model. It's restored before merging, so it doesn't show the members again
+     * @param eventManager where to propagate the draw calls, may be <code>null</code>
+     * @param profiler     where to record the time of each pass
+     * @param handler      handler of the UI thread
+     */
+    BatchingDriver(Model model, SceneBatcher batcher, SceneCuller culler, EventManager eventManager,
+                   FrameProfiler profiler, Handler handler) {
+        this.model = model;
+        this.batcher = batcher;
+        this.culler = culler;
+        this.eventManager = eventManager;
+        this.profiler = profiler;
+        this.handler = handler;
+    }
+
+    /**
+     * Merge the scene now, if enabled, and check again periodically
+     */
+    void start() {
+        update();
+        handler.postDelayed(poll, PERIOD_MS);
+    }
+
+    void stop() {
+        handler.removeCallbacks(poll);
+        stopped = true;
+        batcher.restore();
+    }
+
+    private void poll() {
+        if (stopped) return;
+        update();
+        handler.postDelayed(poll, PERIOD_MS);
+    }
+
+    private void update() {
+        final long start = System.nanoTime();
+        final Scene scene = model.getActiveScene();
+        final boolean changed;
+        if (!batcher.isEnabled() || scene == null) {
+            changed = batcher.isActive();
+            batcher.restore();
+        } else if (!batcher.isActive(scene)) {
+            culler.restore();
+            changed = batcher.batch(scene);
+        } else {
+            changed = batcher.update();
+        }
+        profiler.record(FrameProfiler.BATCHING, start, System.nanoTime() - start);
+        if (!changed) return;
+
+        final BatchEvent event = new BatchEvent(batcher, batcher.getDrawCallsBefore(), batcher.getDrawCallsAfter(),
+                batcher.getBatches().size());
+        logger.info(event.toString());
+        if (eventManager != null) eventManager.propagate(event);
+    }
+}
@@ -0,0 +1,106 @@
+package org.the3deer.android.viewer.ui.home;
+
+import android.view.Choreographer;
+import android.view.View;
+
+import org.the3deer.android.engine.Model;
+import org.the3deer.android.engine.model.Camera;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.culling.SceneCuller;
+import org.the3deer.android.viewer.services.profiling.FrameProfiler;
+
+import java.util.ConcurrentModificationException;
+import java.util.logging.Logger;
+
+/**
+ * Runs the {@link SceneCuller} of the model once per frame, on the UI thread.
+ * <p>
+ * Frames are only requested while culling is enabled: once disabled, the hidden objects are restored and the
+ * driver waits until it's started again (i.e. when the settings change). Objects shown or hidden are notified,
+ * so the next frame is drawn.
+ * The counts are logged when they change, at most once per second.
+ * </p>
+ */
+final class CullingDriver implements Choreographer.FrameCallback {
+
+    private static final Logger logger = Logger.getLogger(CullingDriver.class.getSimpleName());
+
+    private static final long LOG_PERIOD_NS = 1_000_000_000L;
+
+    private final Model model;
+    private final SceneCuller culler;
+    private final View view;
+    private final FrameProfiler profiler;
+    private final Runnable onChange;
+
+    private boolean stopped;
+    private boolean posted;
+    private long lastLog;
+    private int lastVisible = -1;
+
+    /**
+     * @param model    the model
+     * @param culler   the culler of the model
+     * @param view     the view where the model is drawn, for the aspect ratio
+     * @param profiler where to record the time of each pass
+     * @param onChange called when objects were shown or hidden
+     */
+    CullingDriver(Model model, SceneCuller culler, View view, FrameProfiler profiler, Runnable onChange) {
+        this.model = model;
+        this.culler = culler;
+        this.view = view;
+        this.profiler = profiler;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Cull every frame, if culling is enabled. Can be called again to resume
+     */
+    void start() {
+        if (stopped || posted || !culler.isEnabled()) return;
+        posted = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stop() {
+        stopped = true;
+        posted = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        culler.restore();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        posted = false;
+        if (stopped) return;
+        if (!culler.isEnabled()) {
+            culler.restore();
+            onChange.run();
+            return;
+        }
+        start();
+
+        final Scene scene = model.getActiveScene();
+        final Camera camera = scene != null ? scene.getActiveCamera() : null;
+        if (camera == null || camera.getPos() == null || camera.getView() == null
+                || view.getWidth() == 0 || view.getHeight() == 0) {
+            culler.restore();
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            if (culler.cull(scene, camera, (float) view.getWidth() / view.getHeight())) onChange.run();
+        } catch (ConcurrentModificationException e) {
+            // the scene changed meanwhile. try again next frame
+            return;
+        }
+        profiler.record(FrameProfiler.CULLING, start, System.nanoTime() - start);
+
+        if (culler.getVisibleCount() != lastVisible && frameTimeNanos - lastLog > LOG_PERIOD_NS) {
+            lastVisible = culler.getVisibleCount();
+            lastLog = frameTimeNanos;
+            logger.fine("Culling. Visible: " + culler.getVisibleCount() + ", culled: " + culler.getCulledCount());
+        }
+    }
+}
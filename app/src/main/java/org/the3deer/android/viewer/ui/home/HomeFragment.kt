@@ -1,12 +1,17 @@
 package org.the3deer.android.viewer.ui.home
 
+import android.content.SharedPreferences
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
+import android.os.SystemClock
 import android.util.Log
+import android.view.GestureDetector
 import android.view.LayoutInflater
+import android.view.MotionEvent
 import android.view.View
 import android.view.ViewGroup
+import android.widget.Toast
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.activityViewModels
 import androidx.preference.PreferenceManager
@@ -17,10 +22,28 @@ import org.the3deer.android.engine.renderer.GLSurfaceView
 import org.the3deer.android.engine.shader.ShaderManager
 import org.the3deer.android.viewer.SharedViewModel
 import org.the3deer.android.viewer.databinding.FragmentHomeBinding
+import org.the3deer.android.viewer.services.LoaderOptions
+import org.the3deer.android.viewer.services.batching.SceneBatcher
+import org.the3deer.android.viewer.services.cache.SceneCache
+import org.the3deer.android.viewer.services.culling.SceneCuller
+import org.the3deer.android.viewer.services.engine.EnginePool
+import org.the3deer.android.viewer.services.engine.ModelPrefetcher
+import org.the3deer.android.viewer.services.lod.LodGenerator
+import org.the3deer.android.viewer.services.picking.MeshPicker
+import org.the3deer.android.viewer.services.profiling.FrameProfiler
+import org.the3deer.android.viewer.services.rendering.RenderScheduler
 import org.the3deer.android.viewer.ui.settings.SettingsFragment
 import org.the3deer.android.viewer.ui.settings.SettingsOptions
 import org.the3deer.util.event.EventListener
+import org.the3deer.util.event.EventManager
+import java.io.File
+import java.io.FileWriter
+import java.io.IOException
+import java.net.URI
 import java.util.EventObject
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 open class HomeFragment : Fragment(), EventListener {
 
@@ -33,6 +56,27 @@ open class HomeFragment : Fragment(), EventListener {
     private val sharedViewModel: SharedViewModel by activityViewModels()
     private val modelEngineViewModel: ModelEngineViewModel by activityViewModels()
     protected val handler = Handler(Looper.getMainLooper())
+    private var progressiveLoader: ProgressiveLoader? = null
+    private var lodGeneration: Future<*>? = null
+    private var lodSelector: LodSelector? = null
+    private val culler = SceneCuller()
+    private var cullingDriver: CullingDriver? = null
+    private var batcher = SceneBatcher()
+    private var batchingDriver: BatchingDriver? = null
+    private val renderScheduler = RenderScheduler()
+    private var renderDriver: RenderDriver? = null
+    private val profiler = FrameProfiler()
+    private var profilingDriver: ProfilingDriver? = null
+    private var picking: ExecutorService? = null
+
+    // the drivers only request frames while their feature is enabled, so they are resumed when the settings change.
+    // posted, so the settings are applied to the engine first
+    private val preferenceListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+        handler.post {
+            cullingDriver?.start()
+            renderDriver?.start()
+        }
+    }
 
 
     override fun onCreateView(
@@ -110,6 +154,9 @@ open class HomeFragment : Fragment(), EventListener {
             }
         }
 
+        PreferenceManager.getDefaultSharedPreferences(requireContext())
+            .registerOnSharedPreferenceChangeListener(preferenceListener)
+
         // Start engine setup
         setupAndStartEngine(uriString)
 
@@ -125,6 +172,10 @@ open class HomeFragment : Fragment(), EventListener {
             // debug
             Log.i(TAG, "setupAndStartEngine $uriString")
 
+            // the user comes first: stop loading the recent models in the background, unless it's this one
+            val prefetcher = ModelPrefetcher.getInstance()
+            if (!prefetcher.isLoading(uriString)) prefetcher.cancel()
+
             // Initialize engine view model with this model's metadata
             modelEngineViewModel.initEngine(uriString, modelName, modelType) {
 
@@ -141,67 +192,230 @@ open class HomeFragment : Fragment(), EventListener {
                     return@initEngine
                 }
 
+                // a warm engine keeps the batches of its scenes
+                if (EnginePool.getInstance().isWarm(uriString)) {
+                    engine.beanFactory.find(SceneBatcher::class.java)?.let { batcher = it }
+                }
+                batcher.setCuller(culler)
+
                 // setup engine with UI/Context components
                 engine.addOrReplace("gl.surfaceView", _binding?.glSurfaceView)
                 engine.addOrReplace("gl.renderer", _binding?.glSurfaceView?.renderer)
                 engine.addOrReplace("ui.settings", SettingsOptions())
+                engine.addOrReplace("loader.options", LoaderOptions.getInstance())
+                engine.addOrReplace("engine.pool", EnginePool.getInstance())
+                engine.addOrReplace("engine.prefetch", ModelPrefetcher.getInstance())
+                engine.addOrReplace("scene.culler", culler)
+                engine.addOrReplace("scene.batcher", batcher)
+                val picker = MeshPicker(batcher)
+                engine.addOrReplace("scene.picker", picker)
+                engine.addOrReplace("gl.scheduler", renderScheduler)
+                engine.addOrReplace("scene.profiler", profiler)
                 engine.addOrReplace("ui.fragment", this)
 
+                // select the object tapped
+                _binding?.glSurfaceView?.let { setupPicking(it, engine, picker) }
+
+                // draw only when something changes, if enabled
+                _binding?.glSurfaceView?.let { surface ->
+                    renderDriver = RenderDriver(engine.model, renderScheduler, surface, profiler).also { it.start() }
+                }
+
+                // frame times, if enabled
+                profilingDriver = ProfilingDriver(profiler, engine.beanFactory.find(EventManager::class.java)).also { it.start() }
+
+                // warm engine: the model is still in memory, so it's only started again
+                if (EnginePool.getInstance().activate(uriString) && engine.status == ModelEngine.Status.OK) {
+                    startWarmEngine(engine)
+                    return@initEngine
+                }
+
+                // being prefetched: its loader goes on in the foreground, instead of loading the model again
+                if (prefetcher.adopt(uriString) { handler.post { startLoadedEngine(engine) } }) {
+                    Log.i(TAG, "setupAndStartEngine Loading handed over by the prefetcher")
+                    return@initEngine
+                }
+
+                // progressive mode: start the engine as soon as the first objects are loaded
+                progressiveLoader = if (LoaderOptions.getInstance().isProgressive) {
+                    ProgressiveLoader(uriString, engine.model, handler, renderScheduler::invalidate) {
+                        applyPreferences(engine)
+                        modelEngineViewModel.startEngine(uriString) {
+                            if (engine.status == ModelEngine.Status.OK) {
+                                modelEngineViewModel.setActiveEngine(uriString)
+                                Log.i(TAG, "setupAndStartEngine Engine activated while loading")
+                            }
+                        }
+                    }.also { it.start() }
+                } else null
+                val progressive = progressiveLoader
+
                 // load engine
                 modelEngineViewModel.loadEngine(uriString) {
 
-                    // [SAFE APPLY] Apply saved preferences (Theme, Language, OpenGL settings, etc.)
-                    // We use activity?.let to ensure we have a valid context and to skip if detaching
-                    activity?.let { activity ->
-                        try {
-                            SettingsFragment.applySavedPreferences(engine, activity)
-                        } catch (e: Exception) {
-                            Log.e(TAG, "Error applying saved preferences", e)
-                        }
+                    // already started while loading
+                    progressiveLoader = null
+                    if (progressive?.stop() == true) {
+                        if (engine.status == ModelEngine.Status.OK) onEngineLoaded(engine)
+                        return@loadEngine
+                    }
+
+                    startLoadedEngine(engine)
+                };
+            };
+        } catch (ex: Exception) {
+            Log.e(TAG, "setupAndStartEngine finished with exception", ex)
+        }
+    }
+
+    /**
+     * Select the object tapped on the surface with the [MeshPicker], so the members of a batch are selected
+     * and not the batch. The ray is cast in the background, since the first pick of an object builds its tree
+     */
+    private fun setupPicking(surface: View, engine: ModelEngine, picker: MeshPicker) {
+        val executor = Executors.newSingleThreadExecutor().also { picking = it }
+        val detector = GestureDetector(requireContext(), object : GestureDetector.SimpleOnGestureListener() {
+            override fun onSingleTapConfirmed(e: MotionEvent): Boolean {
+                val scene = engine.model.activeScene ?: return false
+                val x = e.x
+                val y = e.y
+                val width = surface.width
+                val height = surface.height
+                executor.execute {
+                    val hit = picker.pick(scene, x, y, width, height)
+                    handler.post {
+                        if (_binding == null) return@post
+                        scene.selectedObject = hit?.getObject()
+                        renderScheduler.invalidate()
                     }
+                }
+                return true
+            }
+        })
+        // the engine still gets all the events, and the camera may move: draw the next frame
+        surface.setOnTouchListener { _, event ->
+            detector.onTouchEvent(event)
+            renderScheduler.invalidate()
+            false
+        }
+    }
 
-                    // boot engine
-                    modelEngineViewModel.startEngine(uriString) {
+    /**
+     * Start the engine once its model is loaded, and activate it
+     */
+    private fun startLoadedEngine(engine: ModelEngine) {
+        if (_binding == null) return
 
-                        // log success
-                        Log.i(TAG, "setupAndStartEngine Activating engine...")
+        applyPreferences(engine)
 
-                        // check status
-                        if (engine.status == ModelEngine.Status.OK) {
+        // boot engine
+        modelEngineViewModel.startEngine(uriString) {
 
-                            // activate engine if no error
-                            modelEngineViewModel.setActiveEngine(uriString)
+            // log success
+            Log.i(TAG, "startLoadedEngine Activating engine...")
 
-                            // update shared state (history, etc)
-                            sharedViewModel.onModelOpened(uriString, modelName, modelType)
+            // check status
+            if (engine.status == ModelEngine.Status.OK) {
 
-                            // log success
-                            Log.i(TAG, "setupAndStartEngine Engine activated successfully")
+                // activate engine if no error
+                modelEngineViewModel.setActiveEngine(uriString)
 
-                        } else {
+                onEngineLoaded(engine)
 
-                            // log error
-                            Log.e(
-                                TAG,
-                                "setupAndStartEngine Starting engine finished with error: ${engine.message}"
-                            )
-                        }
+                // log success
+                Log.i(TAG, "startLoadedEngine Engine activated successfully")
+
+            } else {
+
+                // log error
+                Log.e(
+                    TAG,
+                    "startLoadedEngine Starting engine finished with error: ${engine.message}"
+                )
+            }
+        }
+    }
+
+    /**
+     * Start the engine kept by the [EnginePool], without loading the model
+     */
+    private fun startWarmEngine(engine: ModelEngine) {
+        val start = SystemClock.elapsedRealtime()
+        applyPreferences(engine)
+        modelEngineViewModel.startEngine(uriString) {
+            if (engine.status == ModelEngine.Status.OK) {
+                modelEngineViewModel.setActiveEngine(uriString)
+                onEngineLoaded(engine)
+                Log.i(TAG, "startWarmEngine Engine activated in " + (SystemClock.elapsedRealtime() - start) + " ms")
+            } else {
+                Log.e(TAG, "startWarmEngine Starting engine finished with error: ${engine.message}")
+            }
+        }
+    }
+
+    private fun applyPreferences(engine: ModelEngine) {
+        // [SAFE APPLY] Apply saved preferences (Theme, Language, OpenGL settings, etc.)
+        // We use activity?.let to ensure we have a valid context and to skip if detaching
+        activity?.let { activity ->
+            try {
+                SettingsFragment.applySavedPreferences(engine, activity)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error applying saved preferences", e)
+            }
+        }
+    }
+
+    /**
+     * Called when the model is fully loaded and the engine is active
+     */
+    private fun onEngineLoaded(engine: ModelEngine) {
+
+        // update shared state (history, etc)
+        sharedViewModel.onModelOpened(uriString, modelName, modelType)
+
+        // load the other recent models in the background, once idle
+        sharedViewModel.history.value?.let { ModelPrefetcher.getInstance().schedule(it, uriString) }
+
+        // cache the model, so it opens faster next time
+        try {
+            SceneCache.getInstance().store(URI.create(uriString), engine.model) { batcher.getBatch(it) != null }
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "Model not cached. Invalid uri: $uriString")
+        }
+
+        // merge the small objects, so there are fewer draw calls
+        batchingDriver = BatchingDriver(engine.model, batcher, culler,
+            engine.beanFactory.find(EventManager::class.java), profiler, handler).also { it.start() }
+
+        // hide the objects out of the view
+        val surface = _binding?.glSurfaceView
+        if (surface != null) {
+            cullingDriver = CullingDriver(engine.model, culler, surface, profiler, renderScheduler::invalidate).also { it.start() }
+        }
+
+        // simplified levels of detail, switched as the camera moves
+        if (LoaderOptions.getInstance().isLod) {
+            val objects = engine.model.scenes.flatMap { ArrayList(it.objects) }.filter { !batcher.isBatched(it) }
+            lodGeneration = LodGenerator.submit(objects) { chains ->
+                handler.post {
+                    if (_binding != null && chains.isNotEmpty()) {
+                        lodSelector = LodSelector(engine.model, chains, profiler, handler, renderScheduler::invalidate).also { it.start() }
                     }
-                };
-            };
-        } catch (ex: Exception) {
-            Log.e(TAG, "setupAndStartEngine finished with exception", ex)
+                }
+            }
         }
     }
 
     override fun onEvent(event: EventObject?): Boolean {
         // Global events like LOAD_ERROR are now handled by MainActivity via ViewModel observation
+        event?.let { renderScheduler.onEvent(it) }
         return false
     }
     
     override fun onResume() {
         super.onResume()
         _binding?.glSurfaceView?.onResume()
+        renderScheduler.invalidate()
     }
 
     override fun onPause() {
@@ -211,11 +425,74 @@ open class HomeFragment : Fragment(), EventListener {
 
     override fun onDestroyView() {
         super.onDestroyView()
-        
-        // Reset engine to clear resources (GPU and memory)
-        modelEngineViewModel.resetEngine(uriString)
+
+        PreferenceManager.getDefaultSharedPreferences(requireContext())
+            .unregisterOnSharedPreferenceChangeListener(preferenceListener)
+        progressiveLoader?.stop()
+        progressiveLoader = null
+        picking?.shutdownNow()
+        picking = null
+        lodGeneration?.cancel(true)
+        lodSelector?.stop()
+        lodSelector = null
+        cullingDriver?.stop()
+        cullingDriver = null
+        batchingDriver?.stop()
+        batchingDriver = null
+        renderDriver?.stop()
+        renderDriver = null
+        profilingDriver?.stop()
+        profilingDriver = null
+        exportProfile()
+
+        // Keep the engine warm if it fits in the memory budget (its GPU buffers go with the surface),
+        // or reset it to clear resources (GPU and memory)
+        val engine = modelEngineViewModel.getEngine(uriString)
+        val memory = if (engine?.status == ModelEngine.Status.OK) engine.model.memoryUsage else Long.MAX_VALUE
+        if (!EnginePool.getInstance().deactivate(uriString, memory)) {
+            modelEngineViewModel.resetEngine(uriString)
+        } else if (engine != null) {
+            // the warm engine must not keep the view, nor the activity through it. set again when reactivated
+            engine.addOrReplace("gl.surfaceView", null)
+            engine.addOrReplace("gl.renderer", null)
+            engine.addOrReplace("ui.fragment", null)
+        }
 
         handler.removeCallbacksAndMessages(null)
         _binding = null
     }
+
+    /**
+     * Save the frame times of the model, if the profiler is enabled, as a trace that can be opened in Perfetto.
+     * The file is written in the background, and the result is shown on the UI thread
+     */
+    private fun exportProfile() {
+        if (!profiler.isEnabled || profiler.getCount(FrameProfiler.FRAME) == 0) return
+        val context = context?.applicationContext ?: return
+        val dir = context.getExternalFilesDir(null) ?: return
+        val file = File(dir, "profile-" + System.currentTimeMillis() + ".json")
+        // the fragment is going away: nothing of it is kept by the task
+        val profiler = profiler
+        val handler = handler
+        val tag = TAG
+        exporter.execute {
+            val message = try {
+                FileWriter(file).use { profiler.export(it) }
+                Log.i(tag, "Profile saved: " + file.absolutePath)
+                "Profile saved: " + file.name
+            } catch (e: IOException) {
+                Log.e(tag, "Error saving profile", e)
+                "Error saving profile: " + e.message
+            }
+            profiler.clear()
+            handler.post { Toast.makeText(context, message, Toast.LENGTH_SHORT).show() }
+        }
+    }
+
+    companion object {
+        // the profiles are written one at a time, out of the UI thread
+        private val exporter: ExecutorService = Executors.newSingleThreadExecutor { r ->
+            Thread(r, "ProfileExport").apply { priority = Thread.MIN_PRIORITY }
+        }
+    }
 }
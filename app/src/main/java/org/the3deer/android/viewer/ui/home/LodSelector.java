@@ -0,0 +1,96 @@
+package org.the3deer.android.viewer.ui.home;
+
+import android.os.Handler;
+
+import org.the3deer.android.engine.Model;
+import org.the3deer.android.engine.model.Camera;
+import org.the3deer.android.engine.model.Dimensions;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.services.lod.LodChain;
+import org.the3deer.android.viewer.services.profiling.FrameProfiler;
+
+import java.util.List;
+
+/**
+ * Switches the level of detail of the objects, as the camera moves.
+ * <p>
+ * The distance from the camera to each object is checked periodically on the UI thread, and the
+ * {@link LodChain} of the object sets the index buffer of the level that fits, and the change is notified
+ * so the next frame is drawn. When stopped, the objects are restored to full detail.
+ * </p>
+ *
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isLod()
+ */
+final class LodSelector {
+
+    private static final long PERIOD_MS = 200;
+
+    private final Model model;
+    private final List<LodChain> chains;
+    private final FrameProfiler profiler;
+    private final Handler handler;
+    private final Runnable onChange;
+
+    private final Runnable poll = this::poll;
+
+    private boolean stopped;
+
+    /**
+     * @param model    the model
+     * @param chains   the levels of the objects of the model
+     * @param profiler where to record the time of each pass
+     * @param handler  handler of the UI thread
+     * @param onChange called when a level changed
+     */
+    LodSelector(Model model, List<LodChain> chains, FrameProfiler profiler, Handler handler, Runnable onChange) {
+        this.model = model;
+        this.chains = chains;
+        this.profiler = profiler;
+        this.handler = handler;
+        this.onChange = onChange;
+    }
+
+    void start() {
+        handler.post(poll);
+    }
+
+    void stop() {
+        handler.removeCallbacks(poll);
+        stopped = true;
+        for (LodChain chain : chains) chain.setLevel(0);
+    }
+
+    private void poll() {
+        if (stopped) return;
+        final long start = System.nanoTime();
+        update();
+        profiler.record(FrameProfiler.LOD, start, System.nanoTime() - start);
+        handler.postDelayed(poll, PERIOD_MS);
+    }
+
+    private void update() {
+        final Scene scene = model.getActiveScene();
+        final Camera camera = scene != null ? scene.getActiveCamera() : null;
+        if (camera == null || camera.getPos() == null) return;
+
+        final float[] pos = camera.getPos();
+        final float fov = camera.getProjection().getFov();
+        boolean changed = false;
+        for (LodChain chain : chains) {
+            final Object3D obj = chain.getObject();
+            final Dimensions dimensions = obj.getDimensions();
+            final float[] center = obj.getBoundingBox().getCenter();
+            if (dimensions == null || center == null) continue;
+
+            final float extent = Math.max(dimensions.getWidth(), Math.max(dimensions.getHeight(), dimensions.getDepth()));
+            final float dx = center[0] - pos[0];
+            final float dy = center[1] - pos[1];
+            final float dz = center[2] - pos[2];
+            // distance to the nearest point of the bounding sphere
+            final float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - extent / 2;
+            changed |= chain.update(extent, distance, fov);
+        }
+        if (changed) onChange.run();
+    }
+}
@@ -0,0 +1,64 @@
+package org.the3deer.android.viewer.ui.home;
+
+import android.view.Choreographer;
+
+import org.the3deer.android.viewer.services.profiling.FrameProfiler;
+import org.the3deer.android.viewer.services.profiling.ProfileEvent;
+import org.the3deer.util.event.EventManager;
+
+import java.util.logging.Logger;
+
+/**
+ * Records the interval between display frames in the {@link FrameProfiler}, and propagates
+ * a {@link ProfileEvent} once per second, on the UI thread.
+ */
+final class ProfilingDriver implements Choreographer.FrameCallback {
+
+    private static final Logger logger = Logger.getLogger(ProfilingDriver.class.getSimpleName());
+
+    private static final long REPORT_PERIOD_NS = 1_000_000_000L;
+
+    private final FrameProfiler profiler;
+    private final EventManager eventManager;
+
+    private boolean stopped;
+    private long lastFrame;
+    private long lastReport;
+
+    /**
+     * @param profiler     the profiler of the model
+     * @param eventManager where to propagate the summaries, may be <code>null</code>
+     */
+    ProfilingDriver(FrameProfiler profiler, EventManager eventManager) {
+        this.profiler = profiler;
+        this.eventManager = eventManager;
+    }
+
+    void start() {
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stop() {
+        stopped = true;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (stopped) return;
+        Choreographer.getInstance().postFrameCallback(this);
+
+        if (!profiler.isEnabled()) {
+            lastFrame = 0;
+            return;
+        }
+        if (lastFrame != 0) profiler.record(FrameProfiler.FRAME, lastFrame, frameTimeNanos - lastFrame);
+        lastFrame = frameTimeNanos;
+
+        if (frameTimeNanos - lastReport < REPORT_PERIOD_NS) return;
+        lastReport = frameTimeNanos;
+        final ProfileEvent event = new ProfileEvent(profiler, profiler.getPercentiles());
+        logger.fine(event.toString());
+        if (eventManager != null) eventManager.propagate(event);
+    }
+}
@@ -0,0 +1,227 @@
+package org.the3deer.android.viewer.ui.home;
+
+import android.os.Handler;
+
+import org.the3deer.android.engine.Model;
+import org.the3deer.android.engine.model.Camera;
+import org.the3deer.android.engine.model.Dimensions;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Shows the model while it's still loading.
+ * <p>
+ * The loader keeps adding objects to the scene in the background, and notifies each one with
+ * {@link #onLoadObject(URI, Scene, Object3D)}. The objects are queued, and handled on the UI thread at most
+ * every {@link #PERIOD_MS}: when the first objects arrive, the engine is started (so they are drawn),
+ * and then the camera is fitted to the bounding box of the objects loaded so far, until the user
+ * moves the camera or the load finishes. The scene itself is never read while the loader modifies it.
+ * </p>
+ *
+ * @see org.the3deer.android.viewer.services.LoaderOptions#isProgressive()
+ */
+public final class ProgressiveLoader {
+
+    private static final Logger logger = Logger.getLogger(ProgressiveLoader.class.getSimpleName());
+
+    private static final long PERIOD_MS = 100;
+
+    // distance margin, so the model doesn't touch the borders of the screen
+    private static final float MARGIN = 1.2f;
+
+    // loads being followed, by uri
+    private static final Map<String, ProgressiveLoader> loaders = new ConcurrentHashMap<>();
+
+    private final String uri;
+    private final Model model;
+    private final Handler handler;
+    private final Runnable onChange;
+    private final Runnable onFirstObjects;
+
+    private final Runnable update = this::update;
+
+    // objects notified by the loader, not handled yet
+    private final Queue<Object[]> loaded = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean posted = new AtomicBoolean();
+
+    // scene being followed
+    private Scene scene;
+
+    // running bounding box
+    private final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    private final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+
+    // camera position set by the last fit. if it changes, the user moved the camera
+    private float[] fittedPos;
+
+    private boolean started;
+    private boolean stopped;
+
+    /**
+     * @param uri            the uri of the model being loaded
+     * @param model          the model being loaded
+     * @param handler        handler of the UI thread
+     * @param onChange       called when objects were added, or the camera was fitted
+     * @param onFirstObjects called once, when the first objects are in the scene
+     */
+    ProgressiveLoader(String uri, Model model, Handler handler, Runnable onChange, Runnable onFirstObjects) {
+        this.uri = uri;
+        this.model = model;
+        this.handler = handler;
+        this.onChange = onChange;
+        this.onFirstObjects = onFirstObjects;
+    }
+
+    /**
+     * Notify an object added to the scene by the loader. Called from the loader thread
+     *
+     * @param uri   the uri being loaded
+     * @param scene the scene the object was added to
+     * @param obj   the object
+     */
+    public static void onLoadObject(URI uri, Scene scene, Object3D obj) {
+        final ProgressiveLoader loader = loaders.get(uri.toString());
+        if (loader != null) loader.offer(scene, obj);
+    }
+
+    void start() {
+        loaders.put(uri, this);
+    }
+
+    /**
+     * Stop following the load. The camera is fitted a last time, so it frames the whole model
+     *
+     * @return true if the engine was already started by this loader
+     */
+    boolean stop() {
+        loaders.remove(uri, this);
+        handler.removeCallbacks(update);
+        if (!stopped && started) update();
+        stopped = true;
+        return started;
+    }
+
+    private void offer(Scene scene, Object3D obj) {
+        loaded.add(new Object[]{scene, obj});
+        if (posted.compareAndSet(false, true)) {
+            handler.postDelayed(update, PERIOD_MS);
+        }
+    }
+
+    private void update() {
+        posted.set(false);
+        if (stopped) return;
+
+        boolean grown = false;
+        for (Object[] next; (next = loaded.poll()) != null; ) {
+            if (scene == null) {
+                scene = model.getActiveScene() != null ? model.getActiveScene() : (Scene) next[0];
+            }
+            if (next[0] == scene) grown |= include((Object3D) next[1]);
+        }
+        if (scene == null) return;
+
+        if (!started) {
+            started = true;
+            if (model.getActiveScene() == null) {
+                model.setActiveScene(scene);
+            }
+            logger.info("First objects loaded. Starting engine...");
+            onFirstObjects.run();
+        }
+        if (grown) fitCamera(scene.getActiveCamera());
+        onChange.run();
+    }
+
+    /**
+     * @return true if the bounding box grew
+     */
+    private boolean include(Object3D obj) {
+        final Dimensions dimensions = obj.getDimensions();
+        final float[] center = obj.getBoundingBox().getCenter();
+        if (dimensions == null || center == null) return false;
+
+        final float[] half = {dimensions.getWidth() / 2, dimensions.getHeight() / 2, dimensions.getDepth() / 2};
+        boolean grown = false;
+        for (int i = 0; i < 3; i++) {
+            if (center[i] - half[i] < min[i]) {
+                min[i] = center[i] - half[i];
+                grown = true;
+            }
+            if (center[i] + half[i] > max[i]) {
+                max[i] = center[i] + half[i];
+                grown = true;
+            }
+        }
+        return grown;
+    }
+
+    private void fitCamera(Camera camera) {
+        if (camera == null || camera.getPos() == null || camera.getView() == null) return;
+
+        final float[] pos = camera.getPos();
+        if (fittedPos != null && !isSame(fittedPos, pos)) {
+            // the user took control
+            return;
+        }
+
+        // bounding sphere of the box
+        final float[] center = new float[3];
+        float radius = 0;
+        for (int i = 0; i < 3; i++) {
+            center[i] = (min[i] + max[i]) / 2;
+            radius += (max[i] - center[i]) * (max[i] - center[i]);
+        }
+        fit(pos, camera.getView(), center, (float) Math.sqrt(radius), camera.getProjection().getFov());
+        fittedPos = pos.clone();
+    }
+
+    /**
+     * Move the camera along its current direction, so the sphere is in view
+     *
+     * @param pos    camera position, updated
+     * @param view   camera target, updated
+     * @param center center of the sphere
+     * @param radius radius of the sphere
+     * @param fov    vertical field of view, in degrees
+     */
+    static void fit(float[] pos, float[] view, float[] center, float radius, float fov) {
+        float dx = pos[0] - view[0];
+        float dy = pos[1] - view[1];
+        float dz = pos[2] - view[2];
+        final float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (length > 0) {
+            dx /= length;
+            dy /= length;
+            dz /= length;
+        } else {
+            dx = 0;
+            dy = 0;
+            dz = 1;
+        }
+        final double halfFov = Math.toRadians(fov > 0 ? fov : 45) / 2;
+        final float distance = (float) (radius / Math.sin(halfFov)) * MARGIN;
+
+        view[0] = center[0];
+        view[1] = center[1];
+        view[2] = center[2];
+        pos[0] = center[0] + dx * distance;
+        pos[1] = center[1] + dy * distance;
+        pos[2] = center[2] + dz * distance;
+    }
+
+    private static boolean isSame(float[] a, float[] b) {
+        for (int i = 0; i < 3; i++) {
+            if (Math.abs(a[i] - b[i]) > 1e-4f * Math.max(1f, Math.abs(a[i]))) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+package org.the3deer.android.viewer.ui.home;
+
+import android.view.Choreographer;
+
+import org.the3deer.android.engine.Model;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.renderer.GLSurfaceView;
+import org.the3deer.android.viewer.services.profiling.FrameProfiler;
+import org.the3deer.android.viewer.services.rendering.RenderScheduler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Applies the mode of the {@link RenderScheduler} to the surface, and requests the frames to draw, on the UI thread.
+ * <p>
+ * In the on demand mode, a display frame is only waited for when the scheduler requests one, or while the scene
+ * is animated, so nothing runs while the model doesn't change. In the continuous mode the surface draws by itself,
+ * so no frames are requested until the mode changes.
+ * </p>
+ */
+final class RenderDriver implements Choreographer.FrameCallback {
+
+    private final Model model;
+    private final RenderScheduler scheduler;
+    private final GLSurfaceView view;
+    private final FrameProfiler profiler;
+
+    // the scheduler may request frames from any thread
+    private final AtomicBoolean requested = new AtomicBoolean();
+    private final Runnable request = () -> {
+        requested.set(false);
+        start();
+    };
+
+    private boolean stopped;
+    private boolean posted;
+    private boolean onDemand;
+
+    /**
+     * @param model     the model
+     * @param scheduler the scheduler of the model
+     * @param view      the surface where the model is drawn
+     * @param profiler  where to record the time of each check
+     */
+    RenderDriver(Model model, RenderScheduler scheduler, GLSurfaceView view, FrameProfiler profiler) {
+        this.model = model;
+        this.scheduler = scheduler;
+        this.view = view;
+        this.profiler = profiler;
+        scheduler.setListener(() -> {
+            if (requested.compareAndSet(false, true)) view.post(request);
+        });
+    }
+
+    /**
+     * Apply the mode, and draw the next frame if requested. Can be called again to resume
+     */
+    void start() {
+        if (stopped || posted) return;
+        posted = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stop() {
+        stopped = true;
+        posted = false;
+        scheduler.setListener(null);
+        view.removeCallbacks(request);
+        Choreographer.getInstance().removeFrameCallback(this);
+        view.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        posted = false;
+        if (stopped) return;
+
+        if (scheduler.isOnDemand() != onDemand) {
+            onDemand = scheduler.isOnDemand();
+            view.setRenderMode(onDemand ? GLSurfaceView.RENDERMODE_WHEN_DIRTY : GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+            scheduler.invalidate();
+        }
+        if (!onDemand) return;
+
+        final long start = System.nanoTime();
+        final Scene scene = model.getActiveScene();
+        if (scheduler.update(scene)) view.requestRender();
+        // otherwise, wait until the next request
+        if (scheduler.isAnimated(scene)) start();
+        profiler.record(FrameProfiler.SCHEDULING, start, System.nanoTime() - start);
+    }
+}
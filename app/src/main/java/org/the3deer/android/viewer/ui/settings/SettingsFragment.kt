@@ -15,6 +15,9 @@ import androidx.preference.PreferenceManager
 import androidx.preference.SwitchPreferenceCompat
 import org.the3deer.android.engine.ModelEngineViewModel
 import org.the3deer.android.viewer.R
+import org.the3deer.android.viewer.services.LoaderOptions
+import org.the3deer.android.viewer.services.engine.EnginePool
+import org.the3deer.android.viewer.services.engine.ModelPrefetcher
 import org.the3deer.android.engine.ModelEngine
 import org.the3deer.android.engine.shader.ShaderManager
 import org.the3deer.util.bean.Bean
@@ -396,6 +399,15 @@ class SettingsFragment : PreferenceFragmentCompat(), SharedPreferences.OnSharedP
                     AppCompatDelegate.setDefaultNightMode(mode)
                 }
             }
+
+            // Apply loader options (loaders are registered before any engine is created)
+            LoaderOptions.getInstance().restore(sharedPreferences)
+
+            // Apply engine pool options (the engines outlive the fragments)
+            EnginePool.getInstance().restore(sharedPreferences)
+
+            // Apply prefetch options (the recent models are loaded by the activity)
+            ModelPrefetcher.getInstance().restore(sharedPreferences)
         }
 
         private fun applyPreferenceToEngine(context: Context, beanManager: BeanManager, sharedPreferences: SharedPreferences, key: String) {
@@ -0,0 +1,186 @@
+package org.the3deer.android.viewer.util;
+
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy over axis aligned boxes, stored in flat primitive arrays.
+ * <p>
+ * The tree is built top down, splitting the items at the median of their centers along the longest axis,
+ * with one item per leaf. When an item moves, {@link #update} refits the boxes from its leaf up to the root,
+ * stopping at the first node that doesn't change, so the topology is kept. That's cheap, but the tree
+ * loosens if the items move far: rebuild it when the set of items changes.
+ * </p>
+ */
+public final class AabbTree {
+
+    private final int count;
+
+    // per node: min xyz, max xyz
+    private final float[] bounds;
+    // children of the inner nodes. leaves have left = -1 - item
+    private final int[] left;
+    private final int[] right;
+    private final int[] parent;
+    private final int[] leaves;
+    private int nodes;
+
+    // traversal stack
+    private final int[] stack;
+
+    /**
+     * @param boxes min xyz and max xyz of each item
+     * @param count number of items
+     */
+    public AabbTree(float[] boxes, int count) {
+        this.count = count;
+        final int capacity = Math.max(1, count * 2 - 1);
+        this.bounds = new float[capacity * 6];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.parent = new int[capacity];
+        this.leaves = new int[count];
+        this.stack = new int[capacity];
+        if (count == 0) return;
+
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) keys[i] = i;
+        build(boxes, keys, 0, count, -1);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * Set the box of the item, and refit its ancestors
+     *
+     * @param box    array with the box, as min xyz and max xyz
+     * @param offset offset of the box in the array
+     */
+    public void update(int item, float[] box, int offset) {
+        int node = leaves[item];
+        System.arraycopy(box, offset, bounds, node * 6, 6);
+        for (node = parent[node]; node != -1; node = parent[node]) {
+            if (!union(node, left[node], right[node])) break;
+        }
+    }
+
+    /**
+     * Find the items in the frustum
+     *
+     * @param frustum the view volume
+     * @param visible set to the visibility of each item
+     * @return number of visible items
+     */
+    public int cull(Frustum frustum, boolean[] visible) {
+        Arrays.fill(visible, 0, count, false);
+        if (count == 0) return 0;
+
+        int ret = 0;
+        int size = 0;
+        stack[size++] = 0;
+        while (size > 0) {
+            final int node = stack[--size];
+            final int result = frustum.test(bounds, node * 6);
+            if (result == Frustum.OUTSIDE) continue;
+            if (result == Frustum.INSIDE) {
+                ret += markAll(node, visible);
+            } else if (left[node] < 0) {
+                visible[-1 - left[node]] = true;
+                ret++;
+            } else {
+                stack[size++] = left[node];
+                stack[size++] = right[node];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the node index
+     */
+    private int build(float[] boxes, long[] keys, int start, int end, int parentNode) {
+        final int node = nodes++;
+        parent[node] = parentNode;
+        if (end - start == 1) {
+            final int item = (int) keys[start];
+            System.arraycopy(boxes, item * 6, bounds, node * 6, 6);
+            left[node] = -1 - item;
+            right[node] = -1;
+            leaves[item] = node;
+            return node;
+        }
+
+        // split along the longest axis of the centers
+        final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = start; i < end; i++) {
+            final int item = (int) keys[i];
+            for (int k = 0; k < 3; k++) {
+                final float center = (boxes[item * 6 + k] + boxes[item * 6 + 3 + k]) / 2;
+                if (center < min[k]) min[k] = center;
+                if (center > max[k]) max[k] = center;
+            }
+        }
+        int axis = 0;
+        if (max[1] - min[1] > max[axis] - min[axis]) axis = 1;
+        if (max[2] - min[2] > max[axis] - min[axis]) axis = 2;
+
+        // sort by center, then by item, so the tree only depends on the boxes
+        for (int i = start; i < end; i++) {
+            final int item = (int) keys[i];
+            final float center = (boxes[item * 6 + axis] + boxes[item * 6 + 3 + axis]) / 2;
+            keys[i] = ((long) sortable(center) << 32) | item;
+        }
+        Arrays.sort(keys, start, end);
+        for (int i = start; i < end; i++) keys[i] &= 0xFFFFFFFFL;
+
+        final int middle = (start + end) >>> 1;
+        left[node] = build(boxes, keys, start, middle, node);
+        right[node] = build(boxes, keys, middle, end, node);
+        union(node, left[node], right[node]);
+        return node;
+    }
+
+    /**
+     * Set the box of the node to the union of the boxes of a and b
+     *
+     * @return true if the box changed
+     */
+    private boolean union(int node, int a, int b) {
+        boolean changed = false;
+        for (int k = 0; k < 3; k++) {
+            final float min = Math.min(bounds[a * 6 + k], bounds[b * 6 + k]);
+            final float max = Math.max(bounds[a * 6 + 3 + k], bounds[b * 6 + 3 + k]);
+            if (bounds[node * 6 + k] != min || bounds[node * 6 + 3 + k] != max) {
+                bounds[node * 6 + k] = min;
+                bounds[node * 6 + 3 + k] = max;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Mark all the items under the node. The tree is balanced, so the recursion is shallow
+     */
+    private int markAll(int node, boolean[] visible) {
+        if (left[node] < 0) {
+            visible[-1 - left[node]] = true;
+            return 1;
+        }
+        return markAll(left[node], visible) + markAll(right[node], visible);
+    }
+
+    /**
+     * @return the bits of the float, as an int that sorts in the same order (signed)
+     */
+    private static int sortable(float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits >= 0 ? bits : bits ^ 0x7FFFFFFF;
+    }
+}
@@ -0,0 +1,96 @@
+package org.the3deer.android.viewer.util;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive floats.
+ * <p>
+ * Used by the loaders to accumulate geometry without boxing. The backing array is exposed
+ * through {@link #array()} so it can be copied in bulk into a direct buffer.
+ * </p>
+ */
+public final class FloatArrayList {
+
+    private float[] data;
+    private int size;
+
+    public FloatArrayList() {
+        this(16);
+    }
+
+    public FloatArrayList(int capacity) {
+        this.data = new float[Math.max(capacity, 4)];
+    }
+
+    public void add(float value) {
+        if (size == data.length) grow(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(float x, float y) {
+        if (size + 2 > data.length) grow(size + 2);
+        data[size++] = x;
+        data[size++] = y;
+    }
+
+    public void add(float x, float y, float z) {
+        if (size + 3 > data.length) grow(size + 3);
+        data[size++] = x;
+        data[size++] = y;
+        data[size++] = z;
+    }
+
+    public float get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return data[index];
+    }
+
+    public void set(int index, float value) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        data[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Reset the size to 0. The backing array is kept so it can be reused.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) grow(capacity);
+    }
+
+    /**
+     * @return the backing array. Only the first {@link #size()} elements are valid
+     */
+    public float[] array() {
+        return data;
+    }
+
+    public float[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Copy the contents into the buffer, starting at the current buffer position.
+     */
+    public void copyTo(FloatBuffer buffer) {
+        buffer.put(data, 0, size);
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = data.length + (data.length >> 1);
+        if (newCapacity < minCapacity) newCapacity = minCapacity;
+        data = Arrays.copyOf(data, newCapacity);
+    }
+}
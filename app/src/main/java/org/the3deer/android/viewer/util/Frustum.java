@@ -0,0 +1,83 @@
+package org.the3deer.android.viewer.util;
+
+/**
+ * View volume of a perspective camera, for culling.
+ * <p>
+ * The sides of the frustum are bounded by the cone through its corners, so the volume only depends on the
+ * position and direction of the camera, and not on its up vector (the frustum may roll inside the cone).
+ * The near and far planes are exact. Boxes are tested by their bounding sphere, so the test is conservative:
+ * a box may be reported as intersecting when it's just outside, but never as outside when it's visible.
+ * </p>
+ */
+public final class Frustum {
+
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECTS = 1;
+    public static final int INSIDE = 2;
+
+    private final float[] eye = new float[3];
+    private final float[] axis = new float[3];
+    private float sin;
+    private float cos;
+    private float near;
+    private float far;
+
+    /**
+     * @param eye    position of the camera
+     * @param target point the camera looks at
+     * @param fov    vertical field of view, in degrees
+     * @param aspect width / height of the viewport
+     * @param near   distance to the near plane
+     * @param far    distance to the far plane
+     * @return false if the camera has no direction
+     */
+    public boolean set(float[] eye, float[] target, float fov, float aspect, float near, float far) {
+        float length = 0;
+        for (int i = 0; i < 3; i++) {
+            this.eye[i] = eye[i];
+            axis[i] = target[i] - eye[i];
+            length += axis[i] * axis[i];
+        }
+        length = (float) Math.sqrt(length);
+        if (length == 0) return false;
+        for (int i = 0; i < 3; i++) axis[i] /= length;
+
+        // half angle of the cone through the corners
+        final double tan = Math.tan(Math.toRadians(fov > 0 ? fov : 45) / 2);
+        final double angle = Math.atan(tan * Math.sqrt(1 + aspect * aspect));
+        this.sin = (float) Math.sin(angle);
+        this.cos = (float) Math.cos(angle);
+        this.near = near;
+        this.far = far > near ? far : Float.MAX_VALUE;
+        return true;
+    }
+
+    /**
+     * Test the box
+     *
+     * @param bounds array of boxes, as min xyz and max xyz
+     * @param offset offset of the box in the array
+     * @return {@link #OUTSIDE}, {@link #INTERSECTS} or {@link #INSIDE}
+     */
+    public int test(float[] bounds, int offset) {
+        final float dx = (bounds[offset] + bounds[offset + 3]) / 2 - eye[0];
+        final float dy = (bounds[offset + 1] + bounds[offset + 4]) / 2 - eye[1];
+        final float dz = (bounds[offset + 2] + bounds[offset + 5]) / 2 - eye[2];
+        final float hx = (bounds[offset + 3] - bounds[offset]) / 2;
+        final float hy = (bounds[offset + 4] - bounds[offset + 1]) / 2;
+        final float hz = (bounds[offset + 5] - bounds[offset + 2]) / 2;
+        final float radius = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+
+        final float along = dx * axis[0] + dy * axis[1] + dz * axis[2];
+        final float px = dx - along * axis[0];
+        final float py = dy - along * axis[1];
+        final float pz = dz - along * axis[2];
+        final float distance = (float) Math.sqrt(px * px + py * py + pz * pz);
+
+        // signed distance from the center of the sphere to the surface of the cone
+        final float side = distance * cos - along * sin;
+        if (side > radius || along + radius < near || along - radius > far) return OUTSIDE;
+        if (side < -radius && along - radius >= near && along + radius <= far) return INSIDE;
+        return INTERSECTS;
+    }
+}
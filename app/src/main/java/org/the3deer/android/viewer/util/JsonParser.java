@@ -0,0 +1,192 @@
+package org.the3deer.android.viewer.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser.
+ * <p>
+ * Objects are parsed into {@link Map}, arrays into {@link List}, numbers into {@link Double}, and the
+ * rest into {@link String}, {@link Boolean} or <code>null</code>. It's meant for small documents, like the
+ * JSON chunk of a GLB file, where a full featured library is not needed.
+ * </p>
+ */
+public final class JsonParser {
+
+    private final CharSequence text;
+    private int pos;
+
+    private JsonParser(CharSequence text) {
+        this.text = text;
+    }
+
+    /**
+     * Parse the document
+     *
+     * @param text the JSON document
+     * @return the root value
+     * @throws IOException if the document is malformed
+     */
+    public static Object parse(CharSequence text) throws IOException {
+        final JsonParser parser = new JsonParser(text);
+        final Object ret = parser.value();
+        parser.skipSpaces();
+        if (parser.pos < text.length()) throw parser.error("Unexpected content");
+        return ret;
+    }
+
+    private Object value() throws IOException {
+        skipSpaces();
+        if (pos >= text.length()) throw error("Unexpected end");
+        final char c = text.charAt(pos);
+        switch (c) {
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return literal("true", Boolean.TRUE);
+            case 'f':
+                return literal("false", Boolean.FALSE);
+            case 'n':
+                return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return number();
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() throws IOException {
+        final Map<String, Object> ret = new LinkedHashMap<>();
+        pos++;
+        skipSpaces();
+        if (peek() == '}') {
+            pos++;
+            return ret;
+        }
+        while (true) {
+            skipSpaces();
+            if (peek() != '"') throw error("Expected key");
+            final String key = string();
+            skipSpaces();
+            expect(':');
+            ret.put(key, value());
+            skipSpaces();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect('}');
+                return ret;
+            }
+        }
+    }
+
+    private List<Object> array() throws IOException {
+        final List<Object> ret = new ArrayList<>();
+        pos++;
+        skipSpaces();
+        if (peek() == ']') {
+            pos++;
+            return ret;
+        }
+        while (true) {
+            ret.add(value());
+            skipSpaces();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect(']');
+                return ret;
+            }
+        }
+    }
+
+    private String string() throws IOException {
+        pos++;
+        final StringBuilder ret = new StringBuilder();
+        while (pos < text.length()) {
+            final char c = text.charAt(pos++);
+            if (c == '"') return ret.toString();
+            if (c != '\\') {
+                ret.append(c);
+                continue;
+            }
+            if (pos >= text.length()) break;
+            final char e = text.charAt(pos++);
+            switch (e) {
+                case 'b':
+                    ret.append('\b');
+                    break;
+                case 'f':
+                    ret.append('\f');
+                    break;
+                case 'n':
+                    ret.append('\n');
+                    break;
+                case 'r':
+                    ret.append('\r');
+                    break;
+                case 't':
+                    ret.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length()) throw error("Bad unicode escape");
+                    try {
+                        ret.append((char) Integer.parseInt(text.subSequence(pos, pos + 4).toString(), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Bad unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    ret.append(e);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Double number() throws IOException {
+        final int start = pos;
+        while (pos < text.length()) {
+            final char c = text.charAt(pos);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') pos++;
+            else break;
+        }
+        try {
+            return Double.valueOf(text.subSequence(start, pos).toString());
+        } catch (NumberFormatException e) {
+            throw error("Bad number");
+        }
+    }
+
+    private Object literal(String literal, Object value) throws IOException {
+        if (pos + literal.length() > text.length()
+                || !literal.contentEquals(text.subSequence(pos, pos + literal.length()))) {
+            throw error("Expected " + literal);
+        }
+        pos += literal.length();
+        return value;
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) throw error("Expected '" + c + "'");
+        pos++;
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void skipSpaces() {
+        while (pos < text.length() && text.charAt(pos) <= ' ') pos++;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,117 @@
+package org.the3deer.android.viewer.util;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.the3deer.android.util.ContentUtils;
+import org.the3deer.util.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Access to the whole contents of a model as a {@link ByteBuffer}.
+ * <p>
+ * <code>file://</code> and <code>content://</code> uris are mapped with {@link FileChannel#map}, so
+ * the data is read directly from the page cache. Other uris (i.e. assets) can't be mapped, so they
+ * are read into memory.
+ * </p>
+ */
+public final class MappedContent {
+
+    private static final Logger logger = Logger.getLogger(MappedContent.class.getSimpleName());
+
+    private MappedContent() {
+    }
+
+    /**
+     * Map the file in memory, or read it if the uri is not backed by a file.
+     * The mapping stays valid after the channel is closed.
+     *
+     * @param uri             the uri
+     * @param contentResolver resolver to open <code>content://</code> uris, may be null
+     * @return the contents, positioned at 0
+     * @throws IOException if the uri can't be read
+     */
+    public static ByteBuffer map(URI uri, ContentResolver contentResolver) throws IOException {
+        final ByteBuffer ret = mapFile(uri, contentResolver);
+        if (ret != null) return ret;
+        try (InputStream stream = ContentUtils.getInputStream(uri)) {
+            return ByteBuffer.wrap(IOUtils.read(stream));
+        }
+    }
+
+    /**
+     * Map the file in memory, without reading anything if the uri is not backed by a file.
+     *
+     * @param uri             the uri
+     * @param contentResolver resolver to open <code>content://</code> uris, may be null
+     * @return the contents, positioned at 0, or <code>null</code> if the uri can't be mapped
+     * @throws IOException if the file can't be read
+     */
+    public static ByteBuffer mapFile(URI uri, ContentResolver contentResolver) throws IOException {
+        final String scheme = uri.getScheme();
+        if ("file".equals(scheme)) {
+            try (FileInputStream stream = new FileInputStream(new File(uri));
+                 FileChannel channel = stream.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        if ("content".equals(scheme) && contentResolver != null) {
+            try (ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(Uri.parse(uri.toString()), "r")) {
+                if (descriptor != null) {
+                    try (FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor());
+                         FileChannel channel = stream.getChannel()) {
+                        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // not all providers are backed by a file (i.e. cloud documents)
+                logger.warning("Content can't be mapped: " + uri + ". " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stream over a range of the buffer. The buffer is not modified, so several streams
+     * can read the same buffer concurrently.
+     *
+     * @param buffer the buffer
+     * @param start  first byte
+     * @param end    last byte (exclusive)
+     * @return the stream
+     */
+    public static InputStream newInputStream(ByteBuffer buffer, int start, int end) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return slice.hasRemaining() ? slice.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!slice.hasRemaining()) return -1;
+                final int count = Math.min(len, slice.remaining());
+                slice.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return slice.remaining();
+            }
+        };
+    }
+}
@@ -0,0 +1,377 @@
+package org.the3deer.android.viewer.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reorders triangle lists for the GPU.
+ * <p>
+ * The passes, in the order they are meant to run:
+ * <ol>
+ *     <li>{@link #optimizeVertexCache}: Tipsify (Sander, Nehab and Barczak, 2007). Triangles are emitted
+ *     by fanning around the vertices in the cache, so transformed vertices are reused</li>
+ *     <li>{@link #optimizeOverdraw}: the triangles are split in clusters where the cache order allows it,
+ *     and the clusters facing outwards are drawn first, so they occlude the rest</li>
+ *     <li>{@link #optimizeVertexFetch}: vertices are renumbered in the order they are first used,
+ *     so they are read sequentially from memory</li>
+ * </ol>
+ * {@link #analyzeVertexCache} simulates a FIFO cache, to measure the result.
+ * </p>
+ */
+public final class MeshOptimizer {
+
+    /**
+     * Post-transform cache size. 16 is a conservative value for mobile GPUs
+     */
+    public static final int CACHE_SIZE = 16;
+
+    /**
+     * Max ACMR increase allowed by {@link #optimizeOverdraw}
+     */
+    public static final float OVERDRAW_THRESHOLD = 1.05f;
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Result of {@link #analyzeVertexCache}
+     */
+    public static final class CacheStats {
+
+        private final int misses;
+        private final int triangles;
+        private final int vertices;
+
+        CacheStats(int misses, int triangles, int vertices) {
+            this.misses = misses;
+            this.triangles = triangles;
+            this.vertices = vertices;
+        }
+
+        /**
+         * @return average cache miss ratio: transformed vertices per triangle. 0.5 is the best possible
+         * for a regular grid, 3 is the worst
+         */
+        public float getAcmr() {
+            return triangles == 0 ? 0 : (float) misses / triangles;
+        }
+
+        /**
+         * @return average transformed vertex ratio: transformed vertices per vertex. 1 is the best possible
+         */
+        public float getAtvr() {
+            return vertices == 0 ? 0 : (float) misses / vertices;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "ACMR %.3f, ATVR %.3f", getAcmr(), getAtvr());
+        }
+    }
+
+    /**
+     * Simulate a FIFO post-transform cache
+     *
+     * @param indices     triangle list
+     * @param vertexCount number of vertices
+     * @param cacheSize   number of entries of the cache
+     * @return the stats
+     */
+    public static CacheStats analyzeVertexCache(int[] indices, int vertexCount, int cacheSize) {
+        // time each vertex entered the cache. a vertex is in the cache if less than cacheSize misses happened since
+        final int[] timestamps = new int[vertexCount];
+        Arrays.fill(timestamps, -cacheSize - 1);
+        final boolean[] used = new boolean[vertexCount];
+        int misses = 0;
+        int vertices = 0;
+        for (int index : indices) {
+            if (misses - timestamps[index] > cacheSize) {
+                timestamps[index] = misses++;
+            }
+            if (!used[index]) {
+                used[index] = true;
+                vertices++;
+            }
+        }
+        return new CacheStats(misses, indices.length / 3, vertices);
+    }
+
+    /**
+     * Reorder the triangles for the post-transform cache (Tipsify)
+     *
+     * @param indices     triangle list
+     * @param vertexCount number of vertices
+     * @param cacheSize   target cache size
+     * @return the new triangle list
+     */
+    public static int[] optimizeVertexCache(int[] indices, int vertexCount, int cacheSize) {
+        final int triangleCount = indices.length / 3;
+        final int[] ret = new int[triangleCount * 3];
+        if (triangleCount == 0) return ret;
+
+        // vertex -> triangles adjacency
+        final int[] live = new int[vertexCount];
+        for (int index : indices) live[index]++;
+        final int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) offsets[v + 1] = offsets[v] + live[v];
+        final int[] adjacency = new int[indices.length];
+        final int[] fill = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < indices.length; i++) adjacency[fill[indices[i]]++] = i / 3;
+
+        final int[] cacheTime = new int[vertexCount];
+        final boolean[] emitted = new boolean[triangleCount];
+        // dead-end stack: recently used vertices, to continue from when the fan has no candidates
+        final int[] deadEnd = new int[indices.length];
+        int deadEndSize = 0;
+        final int[] candidates = new int[indices.length];
+
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int out = 0;
+        int fan = 0;
+        while (fan < vertexCount && live[fan] == 0) fan++;
+
+        while (fan < vertexCount) {
+            int candidateCount = 0;
+
+            // emit all the live triangles of the vertex
+            for (int a = offsets[fan]; a < offsets[fan + 1]; a++) {
+                final int triangle = adjacency[a];
+                if (emitted[triangle]) continue;
+                emitted[triangle] = true;
+                for (int k = 0; k < 3; k++) {
+                    final int v = indices[triangle * 3 + k];
+                    ret[out++] = v;
+                    deadEnd[deadEndSize++] = v;
+                    candidates[candidateCount++] = v;
+                    live[v]--;
+                    if (time - cacheTime[v] > cacheSize) {
+                        cacheTime[v] = time++;
+                    }
+                }
+            }
+            if (out == ret.length) break;
+
+            // next fan: the candidate that will still be in the cache after emitting its triangles, the oldest first
+            int next = -1;
+            int best = 0;
+            for (int c = 0; c < candidateCount; c++) {
+                final int v = candidates[c];
+                if (live[v] <= 0 || time - cacheTime[v] + 2 * live[v] > cacheSize) continue;
+                final int priority = time - cacheTime[v];
+                if (priority > best) {
+                    best = priority;
+                    next = v;
+                }
+            }
+
+            if (next == -1) {
+                // dead end: a recent vertex, or the next vertex in input order
+                while (deadEndSize > 0 && next == -1) {
+                    final int v = deadEnd[--deadEndSize];
+                    if (live[v] > 0) next = v;
+                }
+                while (next == -1 && cursor < vertexCount) {
+                    if (live[cursor] > 0) next = cursor;
+                    else cursor++;
+                }
+            }
+            fan = next == -1 ? vertexCount : next;
+        }
+        return ret;
+    }
+
+    /**
+     * Sort the triangles so the ones facing outwards from the center of the mesh are drawn first.
+     * <p>
+     * The triangles are split in clusters: first where the cache is flushed (the 3 vertices of a triangle are misses),
+     * then inside those, wherever the ACMR of the cluster so far is below the ACMR of the whole cluster times
+     * the threshold. The clusters are then sorted, keeping the order of the triangles inside each one.
+     * </p>
+     *
+     * @param indices     triangle list, as returned by {@link #optimizeVertexCache}
+     * @param positions   vertex positions (x, y, z)
+     * @param vertexCount number of vertices
+     * @param cacheSize   cache size
+     * @param threshold   how much worse the ACMR can be, to have smaller clusters. i.e. {@link #OVERDRAW_THRESHOLD}
+     * @return the new triangle list
+     */
+    public static int[] optimizeOverdraw(int[] indices, FloatBuffer positions, int vertexCount, int cacheSize, float threshold) {
+        final int[] timestamps = new int[vertexCount];
+        final IntArrayList clusters = softBoundaries(indices, hardBoundaries(indices, cacheSize, timestamps), cacheSize, threshold, timestamps);
+        final int clusterCount = clusters.size();
+        if (clusterCount <= 1) return indices.clone();
+
+        // mesh centroid, weighted by area
+        final float[] centroid = new float[3];
+        final float[] clusterCentroid = new float[clusterCount * 3];
+        final float[] clusterNormal = new float[clusterCount * 3];
+        final float[] normal = new float[3];
+        float totalArea = 0;
+        for (int c = 0; c < clusterCount; c++) {
+            final int end = c + 1 < clusterCount ? clusters.get(c + 1) : indices.length / 3;
+            float area = 0;
+            for (int t = clusters.get(c); t < end; t++) {
+                final float a = triangleNormal(indices, t, positions, normal);
+                for (int k = 0; k < 3; k++) {
+                    final float center = (positions.get(indices[t * 3] * 3 + k) + positions.get(indices[t * 3 + 1] * 3 + k)
+                            + positions.get(indices[t * 3 + 2] * 3 + k)) / 3;
+                    clusterCentroid[c * 3 + k] += center * a;
+                    clusterNormal[c * 3 + k] += normal[k] * a;
+                    centroid[k] += center * a;
+                }
+                area += a;
+            }
+            for (int k = 0; k < 3; k++) clusterCentroid[c * 3 + k] /= area > 0 ? area : 1;
+            totalArea += area;
+        }
+        for (int k = 0; k < 3; k++) centroid[k] /= totalArea > 0 ? totalArea : 1;
+
+        // sort by the distance of the cluster plane to the center. stable, so ties keep the cache order
+        final Integer[] order = new Integer[clusterCount];
+        final float[] sortKey = new float[clusterCount];
+        for (int c = 0; c < clusterCount; c++) {
+            order[c] = c;
+            final float nx = clusterNormal[c * 3], ny = clusterNormal[c * 3 + 1], nz = clusterNormal[c * 3 + 2];
+            final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0) {
+                sortKey[c] = ((clusterCentroid[c * 3] - centroid[0]) * nx + (clusterCentroid[c * 3 + 1] - centroid[1]) * ny
+                        + (clusterCentroid[c * 3 + 2] - centroid[2]) * nz) / length;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(sortKey[b], sortKey[a]));
+
+        final int[] ret = new int[indices.length];
+        int out = 0;
+        for (int c : order) {
+            final int start = clusters.get(c) * 3;
+            final int end = c + 1 < clusterCount ? clusters.get(c + 1) * 3 : indices.length;
+            System.arraycopy(indices, start, ret, out, end - start);
+            out += end - start;
+        }
+        return ret;
+    }
+
+    private static IntArrayList hardBoundaries(int[] indices, int cacheSize, int[] timestamps) {
+        Arrays.fill(timestamps, 0);
+        final int[] time = {cacheSize + 1};
+        final IntArrayList ret = new IntArrayList();
+        for (int t = 0; t < indices.length / 3; t++) {
+            // a new patch of the mesh, not connected to the previous triangles
+            if (updateCache(indices, t, cacheSize, timestamps, time) == 3 || t == 0) ret.add(t);
+        }
+        return ret;
+    }
+
+    private static IntArrayList softBoundaries(int[] indices, IntArrayList hard, int cacheSize, float threshold, int[] timestamps) {
+        Arrays.fill(timestamps, 0);
+        final int[] time = {0};
+        final IntArrayList ret = new IntArrayList();
+        for (int c = 0; c < hard.size(); c++) {
+            final int start = hard.get(c);
+            final int end = c + 1 < hard.size() ? hard.get(c + 1) : indices.length / 3;
+
+            // ACMR of the whole cluster, from an empty cache
+            time[0] += cacheSize + 1;
+            int misses = 0;
+            for (int t = start; t < end; t++) misses += updateCache(indices, t, cacheSize, timestamps, time);
+            final float target = threshold * misses / (end - start);
+
+            // split as soon as the running ACMR is good enough
+            ret.add(start);
+            time[0] += cacheSize + 1;
+            int runningMisses = 0;
+            int runningTriangles = 0;
+            for (int t = start; t < end; t++) {
+                runningMisses += updateCache(indices, t, cacheSize, timestamps, time);
+                runningTriangles++;
+                if ((float) runningMisses / runningTriangles <= target && t + 1 < end) {
+                    ret.add(t + 1);
+                    time[0] += cacheSize + 1;
+                    runningMisses = 0;
+                    runningTriangles = 0;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of misses of the triangle
+     */
+    private static int updateCache(int[] indices, int triangle, int cacheSize, int[] timestamps, int[] time) {
+        int ret = 0;
+        for (int k = 0; k < 3; k++) {
+            final int v = indices[triangle * 3 + k];
+            if (time[0] - timestamps[v] > cacheSize) {
+                timestamps[v] = time[0]++;
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param normal the unit normal of the triangle
+     * @return the area of the triangle
+     */
+    private static float triangleNormal(int[] indices, int triangle, FloatBuffer positions, float[] normal) {
+        final int a = indices[triangle * 3] * 3, b = indices[triangle * 3 + 1] * 3, c = indices[triangle * 3 + 2] * 3;
+        final float ux = positions.get(b) - positions.get(a), uy = positions.get(b + 1) - positions.get(a + 1), uz = positions.get(b + 2) - positions.get(a + 2);
+        final float vx = positions.get(c) - positions.get(a), vy = positions.get(c + 1) - positions.get(a + 1), vz = positions.get(c + 2) - positions.get(a + 2);
+        final float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+        final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            normal[0] = normal[1] = normal[2] = 0;
+            return 0;
+        }
+        normal[0] = nx / length;
+        normal[1] = ny / length;
+        normal[2] = nz / length;
+        return length / 2;
+    }
+
+    /**
+     * Renumber the vertices in the order they are first used. The indices are updated in place.
+     * Vertices not used by any triangle are moved to the end, so the vertex count doesn't change.
+     *
+     * @param indices     triangle list, updated
+     * @param vertexCount number of vertices
+     * @return the remap table: new index of each old vertex
+     */
+    public static int[] optimizeVertexFetch(int[] indices, int vertexCount) {
+        final int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for (int i = 0; i < indices.length; i++) {
+            final int v = indices[i];
+            if (remap[v] == -1) remap[v] = next++;
+            indices[i] = remap[v];
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            if (remap[v] == -1) remap[v] = next++;
+        }
+        return remap;
+    }
+
+    /**
+     * Move the vertex attributes to their new positions
+     *
+     * @param source     the attributes
+     * @param components floats per vertex
+     * @param remap      as returned by {@link #optimizeVertexFetch}
+     * @return a new direct buffer
+     */
+    public static FloatBuffer remapBuffer(FloatBuffer source, int components, int[] remap) {
+        final FloatBuffer ret = ByteBuffer.allocateDirect(remap.length * components * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int v = 0; v < remap.length; v++) {
+            final int from = v * components;
+            final int to = remap[v] * components;
+            for (int k = 0; k < components; k++) ret.put(to + k, source.get(from + k));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,370 @@
+package org.the3deer.android.viewer.util;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Reduces the triangle count of indexed triangle lists, by collapsing edges in order of their quadric error
+ * (Garland and Heckbert, 1997).
+ * <p>
+ * Each vertex accumulates the planes of the triangles around it, weighted by their area. Collapsing an edge
+ * moves one endpoint onto the other, and the error is the mean squared distance of the remaining endpoint
+ * to the planes of both. Only the index buffer is rewritten, so the vertex buffers (and the attributes of the
+ * vertices that remain) are shared by all the levels of detail of a mesh.
+ * </p>
+ * <p>
+ * Vertices that share their position with other vertices (texture or normal seams) and vertices on the
+ * border of the mesh are locked, so the silhouette and the seams don't open. Collapses that flip a triangle
+ * are rejected.
+ * </p>
+ * <p>
+ * Edges are collapsed in passes: the candidates are sorted by error (ties broken by their position in the
+ * index buffer), and the cheapest ones that don't touch the triangles of a previous collapse of the pass are
+ * applied. So the result only depends on the input.
+ * </p>
+ */
+public final class MeshSimplifier {
+
+    /**
+     * Simplified index buffer, and the error it introduced
+     */
+    public static final class Result {
+
+        private final int[] indices;
+        private final float error;
+
+        Result(int[] indices, float error) {
+            this.indices = indices;
+            this.error = error;
+        }
+
+        public int[] getIndices() {
+            return indices;
+        }
+
+        /**
+         * @return the largest collapse error (root mean squared distance), relative to the largest dimension of the mesh
+         */
+        public float getError() {
+            return error;
+        }
+    }
+
+    private MeshSimplifier() {
+    }
+
+    /**
+     * Simplify the mesh until it has the target number of indices, or until the next collapse is over the target error
+     *
+     * @param indices          the triangle list
+     * @param positions        xyz of the vertices
+     * @param vertexCount      number of vertices
+     * @param targetIndexCount number of indices to reach
+     * @param targetError      error limit, relative to the largest dimension of the mesh (i.e. 0.01 is 1%)
+     * @return the simplified triangle list, with the same winding
+     */
+    public static Result simplify(int[] indices, FloatBuffer positions, int vertexCount, int targetIndexCount, float targetError) {
+        if (indices.length <= targetIndexCount || indices.length < 3) return new Result(indices.clone(), 0);
+
+        // normalized positions, and the vertex representing each position
+        final float[] points = normalize(indices, positions, vertexCount);
+        final int[] rep = new int[vertexCount];
+        final boolean[] locked = new boolean[vertexCount];
+        weld(points, vertexCount, rep, locked);
+        lockBorders(indices, rep, locked);
+
+        final double[] quadrics = new double[vertexCount * 10];
+        final double[] weights = new double[vertexCount];
+        for (int i = 0; i < indices.length; i += 3) {
+            addPlane(points, quadrics, weights, rep[indices[i]], rep[indices[i + 1]], rep[indices[i + 2]]);
+        }
+
+        int[] current = indices.clone();
+        int triangles = current.length / 3;
+        final int targetTriangles = targetIndexCount / 3;
+        final double limit = (double) targetError * targetError;
+        double maxCost = 0;
+
+        final int[] collapse = new int[vertexCount];
+        for (int v = 0; v < vertexCount; v++) collapse[v] = v;
+        final boolean[] touched = new boolean[vertexCount];
+
+        while (triangles > targetTriangles) {
+            final int[] offsets = new int[vertexCount + 1];
+            final int[] adjacency = buildAdjacency(current, rep, offsets);
+
+            // candidates: each edge once, in the cheapest direction
+            final int edges = current.length;
+            final int[] sources = new int[edges];
+            final int[] targets = new int[edges];
+            final float[] costs = new float[edges];
+            long[] keys = new long[edges];
+            int candidates = 0;
+            for (int i = 0; i < current.length; i++) {
+                final int a = current[i];
+                final int b = current[i - i % 3 + (i % 3 + 1) % 3];
+                final int ra = rep[a];
+                final int rb = rep[b];
+                if (ra >= rb || (locked[ra] && locked[rb])) continue;
+
+                final double ab = locked[ra] ? Double.MAX_VALUE : cost(quadrics, weights, ra, rb, points);
+                final double ba = locked[rb] ? Double.MAX_VALUE : cost(quadrics, weights, rb, ra, points);
+                final boolean forward = ab <= ba;
+                sources[candidates] = forward ? a : b;
+                targets[candidates] = forward ? b : a;
+                costs[candidates] = (float) Math.min(ab, ba);
+                keys[candidates] = ((long) Float.floatToIntBits(costs[candidates]) << 32) | candidates;
+                candidates++;
+            }
+            if (candidates == 0) break;
+            keys = Arrays.copyOf(keys, candidates);
+            Arrays.sort(keys);
+
+            Arrays.fill(touched, false);
+            int collapses = 0;
+            int removed = 0;
+            for (long key : keys) {
+                final int c = (int) key;
+                if (costs[c] > limit || triangles - removed <= targetTriangles) break;
+
+                final int src = sources[c];
+                final int dst = targets[c];
+                final int rs = rep[src];
+                final int rd = rep[dst];
+                if (touched[rs] || touched[rd]) continue;
+                if (hasFlips(current, rep, points, adjacency, offsets, rs, rd)) continue;
+
+                // src is not locked, so it's the only vertex at its position
+                collapse[src] = dst;
+                // the triangles around src change, so their vertices can't move again in this pass
+                for (int i = offsets[rs]; i < offsets[rs + 1]; i++) {
+                    final int t = adjacency[i] * 3;
+                    for (int k = 0; k < 3; k++) touched[rep[current[t + k]]] = true;
+                }
+                touched[rd] = true;
+                for (int k = 0; k < 10; k++) quadrics[rd * 10 + k] += quadrics[rs * 10 + k];
+                weights[rd] += weights[rs];
+                maxCost = Math.max(maxCost, costs[c]);
+                removed += countShared(current, rep, adjacency, offsets, rs, rd);
+                collapses++;
+            }
+            if (collapses == 0) break;
+
+            // apply the collapses, and drop the triangles left without area
+            int size = 0;
+            for (int i = 0; i < current.length; i += 3) {
+                final int a = collapse[current[i]];
+                final int b = collapse[current[i + 1]];
+                final int c = collapse[current[i + 2]];
+                if (rep[a] == rep[b] || rep[b] == rep[c] || rep[c] == rep[a]) continue;
+                current[size++] = a;
+                current[size++] = b;
+                current[size++] = c;
+            }
+            current = Arrays.copyOf(current, size);
+            triangles = size / 3;
+        }
+
+        return new Result(current, (float) Math.sqrt(maxCost));
+    }
+
+    /**
+     * @return the positions, translated and scaled so the largest dimension of the used vertices is 1
+     */
+    private static float[] normalize(int[] indices, FloatBuffer positions, int vertexCount) {
+        final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int index : indices) {
+            for (int k = 0; k < 3; k++) {
+                final float value = positions.get(index * 3 + k);
+                if (value < min[k]) min[k] = value;
+                if (value > max[k]) max[k] = value;
+            }
+        }
+        final float extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        final float scale = extent > 0 ? 1 / extent : 1;
+
+        final float[] ret = new float[vertexCount * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            for (int k = 0; k < 3; k++) {
+                ret[v * 3 + k] = (positions.get(v * 3 + k) - min[k]) * scale;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Find the first vertex with the same position. Positions with more than one vertex are locked
+     */
+    private static void weld(float[] points, int vertexCount, int[] rep, boolean[] locked) {
+        final VertexWelder welder = new VertexWelder(vertexCount, false);
+        final int[] first = new int[vertexCount];
+        Arrays.fill(first, -1);
+        for (int v = 0; v < vertexCount; v++) {
+            final int welded = welder.add(points[v * 3], points[v * 3 + 1], points[v * 3 + 2]);
+            if (first[welded] == -1) {
+                first[welded] = v;
+            } else {
+                locked[first[welded]] = true;
+            }
+            rep[v] = first[welded];
+        }
+    }
+
+    /**
+     * Lock the vertices of the edges that have no opposite edge
+     */
+    private static void lockBorders(int[] indices, int[] rep, boolean[] locked) {
+        final EdgeSet edges = new EdgeSet(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            edges.add(rep[indices[i]], rep[indices[i - i % 3 + (i % 3 + 1) % 3]]);
+        }
+        for (int i = 0; i < indices.length; i++) {
+            final int a = rep[indices[i]];
+            final int b = rep[indices[i - i % 3 + (i % 3 + 1) % 3]];
+            if (!edges.contains(b, a)) {
+                locked[a] = true;
+                locked[b] = true;
+            }
+        }
+    }
+
+    private static void addPlane(float[] points, double[] quadrics, double[] weights, int a, int b, int c) {
+        final double ux = points[b * 3] - points[a * 3], uy = points[b * 3 + 1] - points[a * 3 + 1], uz = points[b * 3 + 2] - points[a * 3 + 2];
+        final double vx = points[c * 3] - points[a * 3], vy = points[c * 3 + 1] - points[a * 3 + 1], vz = points[c * 3 + 2] - points[a * 3 + 2];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        final double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) return;
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        final double d = -(nx * points[a * 3] + ny * points[a * 3 + 1] + nz * points[a * 3 + 2]);
+        final double area = length / 2;
+
+        final double[] plane = {nx * nx, nx * ny, nx * nz, nx * d, ny * ny, ny * nz, ny * d, nz * nz, nz * d, d * d};
+        for (int corner = 0; corner < 3; corner++) {
+            final int v = corner == 0 ? a : corner == 1 ? b : c;
+            for (int k = 0; k < 10; k++) quadrics[v * 10 + k] += plane[k] * area;
+            weights[v] += area;
+        }
+    }
+
+    /**
+     * @return the error of moving the vertex src onto dst: mean squared distance to the planes of both
+     */
+    private static double cost(double[] quadrics, double[] weights, int src, int dst, float[] points) {
+        final double x = points[dst * 3], y = points[dst * 3 + 1], z = points[dst * 3 + 2];
+        final double error = evaluate(quadrics, src, x, y, z) + evaluate(quadrics, dst, x, y, z);
+        final double weight = weights[src] + weights[dst];
+        return weight > 0 ? Math.max(0, error / weight) : 0;
+    }
+
+    private static double evaluate(double[] quadrics, int v, double x, double y, double z) {
+        final int q = v * 10;
+        return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z + 2 * quadrics[q + 3] * x
+                + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z + 2 * quadrics[q + 6] * y
+                + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z + quadrics[q + 9];
+    }
+
+    /**
+     * @return the triangles around each vertex (by position), indexed by offsets
+     */
+    private static int[] buildAdjacency(int[] indices, int[] rep, int[] offsets) {
+        for (int index : indices) offsets[rep[index] + 1]++;
+        for (int v = 1; v < offsets.length; v++) offsets[v] += offsets[v - 1];
+        final int[] fill = Arrays.copyOf(offsets, offsets.length - 1);
+        final int[] ret = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) ret[fill[rep[indices[i]]]++] = i / 3;
+        return ret;
+    }
+
+    /**
+     * @return true if moving src onto dst turns any of the remaining triangles around src upside down, or flattens it
+     */
+    private static boolean hasFlips(int[] indices, int[] rep, float[] points, int[] adjacency, int[] offsets, int src, int dst) {
+        for (int i = offsets[src]; i < offsets[src + 1]; i++) {
+            final int t = adjacency[i] * 3;
+            final int a = rep[indices[t]], b = rep[indices[t + 1]], c = rep[indices[t + 2]];
+            if (a == dst || b == dst || c == dst) continue;
+
+            // also rejects triangles left without area, that rounding could leave slightly positive
+            final double before = dotNormals(points, a, b, c, a, b, c);
+            final double after = dotNormals(points, a, b, c, a == src ? dst : a, b == src ? dst : b, c == src ? dst : c);
+            if (after <= before * 1e-4) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return dot product of the normals of the triangles abc and def
+     */
+    private static double dotNormals(float[] points, int a, int b, int c, int d, int e, int f) {
+        final double ux = points[b * 3] - points[a * 3], uy = points[b * 3 + 1] - points[a * 3 + 1], uz = points[b * 3 + 2] - points[a * 3 + 2];
+        final double vx = points[c * 3] - points[a * 3], vy = points[c * 3 + 1] - points[a * 3 + 1], vz = points[c * 3 + 2] - points[a * 3 + 2];
+        final double sx = points[e * 3] - points[d * 3], sy = points[e * 3 + 1] - points[d * 3 + 1], sz = points[e * 3 + 2] - points[d * 3 + 2];
+        final double tx = points[f * 3] - points[d * 3], ty = points[f * 3 + 1] - points[d * 3 + 1], tz = points[f * 3 + 2] - points[d * 3 + 2];
+        return (uy * vz - uz * vy) * (sy * tz - sz * ty) + (uz * vx - ux * vz) * (sz * tx - sx * tz) + (ux * vy - uy * vx) * (sx * ty - sy * tx);
+    }
+
+    /**
+     * @return number of triangles around src that also have dst, i.e. that the collapse removes
+     */
+    private static int countShared(int[] indices, int[] rep, int[] adjacency, int[] offsets, int src, int dst) {
+        int ret = 0;
+        for (int i = offsets[src]; i < offsets[src + 1]; i++) {
+            final int t = adjacency[i] * 3;
+            if (rep[indices[t]] == dst || rep[indices[t + 1]] == dst || rep[indices[t + 2]] == dst) ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Set of directed edges, in an open addressing table of primitive longs
+     */
+    private static final class EdgeSet {
+
+        private static final long EMPTY = -1;
+
+        private final long[] table;
+
+        EdgeSet(int capacity) {
+            int size = 16;
+            while (size < capacity * 2) size <<= 1;
+            table = new long[size];
+            Arrays.fill(table, EMPTY);
+        }
+
+        void add(int a, int b) {
+            final long key = key(a, b);
+            final int mask = table.length - 1;
+            int slot = hash(key) & mask;
+            while (table[slot] != EMPTY) {
+                if (table[slot] == key) return;
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = key;
+        }
+
+        boolean contains(int a, int b) {
+            final long key = key(a, b);
+            final int mask = table.length - 1;
+            int slot = hash(key) & mask;
+            while (table[slot] != EMPTY) {
+                if (table[slot] == key) return true;
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        private static long key(int a, int b) {
+            return ((long) a << 32) | (b & 0xFFFFFFFFL);
+        }
+
+        private static int hash(long key) {
+            final long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package org.the3deer.android.viewer.util;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh, for ray casting.
+ * <p>
+ * The tree is built top down. Each node is split where the surface area heuristic (SAH) is lowest,
+ * evaluated on {@link #BINS} bins of the centroids along the longest axis, until
+ * {@link #LEAF_SIZE} triangles or less are left, or a split is not worth it.
+ * Everything is stored in flat primitive arrays: the positions, the corners of the triangles
+ * in the order of the leaves, and the nodes (with the two children of a node next to each other).
+ * </p>
+ * <p>
+ * Rays visit the nearest child first, and skip the nodes further than the nearest hit so far.
+ * Triangles are hit from both sides.
+ * </p>
+ */
+public final class TriangleBvh {
+
+    static final int BINS = 16;
+    static final int LEAF_SIZE = 4;
+
+    // cost of visiting a node, relative to intersecting a triangle
+    private static final float TRAVERSAL_COST = 1f;
+
+    private final float[] positions;
+    private final int[] corners;
+    private final int[] triangleIds;
+    private final int triangles;
+
+    // per node: min xyz, max xyz
+    private final float[] bounds;
+    // leaves: first triangle. inner nodes: first child (the second one is next)
+    private final int[] first;
+    // leaves: number of triangles. inner nodes: 0
+    private final int[] counts;
+    private int nodes;
+
+    /**
+     * Build the tree
+     *
+     * @param vertices xyz of the vertices
+     * @param indices  triangle list, or <code>null</code> if the vertices are not indexed
+     */
+    public TriangleBvh(FloatBuffer vertices, IntBuffer indices) {
+        final int vertexCount = vertices.limit() / 3;
+        this.positions = new float[vertexCount * 3];
+        final FloatBuffer source = vertices.duplicate();
+        source.position(0);
+        source.get(positions, 0, vertexCount * 3);
+
+        this.triangles = indices != null ? indices.limit() / 3 : vertexCount / 3;
+        this.corners = new int[triangles * 3];
+        for (int i = 0; i < corners.length; i++) corners[i] = indices != null ? indices.get(i) : i;
+        for (int index : corners) {
+            if (index < 0 || index >= vertexCount) throw new IllegalArgumentException("Index out of range: " + index);
+        }
+        this.triangleIds = new int[triangles];
+
+        final int capacity = Math.max(1, 2 * triangles);
+        this.bounds = new float[capacity * 6];
+        this.first = new int[capacity];
+        this.counts = new int[capacity];
+        build();
+    }
+
+    public int getTriangleCount() {
+        return triangles;
+    }
+
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * Find the nearest triangle hit by the ray
+     *
+     * @param origin      origin of the ray
+     * @param direction   direction of the ray. It doesn't need to be normalized: the distance is in units of its length
+     * @param maxDistance ignore the hits further than this
+     * @param hit         set to the distance and the triangle, if there is a hit
+     * @return true if a triangle was hit
+     */
+    public boolean intersect(float[] origin, float[] direction, float maxDistance, Hit hit) {
+        if (triangles == 0) return false;
+        final float ox = origin[0], oy = origin[1], oz = origin[2];
+        final float dx = direction[0], dy = direction[1], dz = direction[2];
+        final float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+
+        float nearest = maxDistance;
+        int nearestTriangle = -1;
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = 0;
+        while (size > 0) {
+            final int node = stack[--size];
+            if (size + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            if (slab(node, ox, oy, oz, ix, iy, iz, nearest) == Float.POSITIVE_INFINITY) continue;
+
+            if (counts[node] > 0) {
+                for (int i = first[node]; i < first[node] + counts[node]; i++) {
+                    final float t = intersectTriangle(i, ox, oy, oz, dx, dy, dz);
+                    if (t >= 0 && t < nearest) {
+                        nearest = t;
+                        nearestTriangle = triangleIds[i];
+                    }
+                }
+                continue;
+            }
+
+            // nearest child on top of the stack
+            final int left = first[node];
+            final float tl = slab(left, ox, oy, oz, ix, iy, iz, nearest);
+            final float tr = slab(left + 1, ox, oy, oz, ix, iy, iz, nearest);
+            if (tl <= tr) {
+                if (tr != Float.POSITIVE_INFINITY) stack[size++] = left + 1;
+                if (tl != Float.POSITIVE_INFINITY) stack[size++] = left;
+            } else {
+                if (tl != Float.POSITIVE_INFINITY) stack[size++] = left;
+                stack[size++] = left + 1;
+            }
+        }
+        if (nearestTriangle == -1) return false;
+        hit.distance = nearest;
+        hit.triangle = nearestTriangle;
+        return true;
+    }
+
+    /**
+     * Test all the triangles, without the tree. For reference
+     */
+    public boolean intersectAll(float[] origin, float[] direction, float maxDistance, Hit hit) {
+        float nearest = maxDistance;
+        int nearestTriangle = -1;
+        for (int i = 0; i < triangles; i++) {
+            final float t = intersectTriangle(i, origin[0], origin[1], origin[2], direction[0], direction[1], direction[2]);
+            if (t >= 0 && t < nearest) {
+                nearest = t;
+                nearestTriangle = triangleIds[i];
+            }
+        }
+        if (nearestTriangle == -1) return false;
+        hit.distance = nearest;
+        hit.triangle = nearestTriangle;
+        return true;
+    }
+
+    /**
+     * Nearest hit of a ray
+     */
+    public static final class Hit {
+
+        private float distance;
+        private int triangle;
+
+        /**
+         * @return distance along the ray, in units of the length of the direction
+         */
+        public float getDistance() {
+            return distance;
+        }
+
+        /**
+         * @return the index of the triangle in the mesh
+         */
+        public int getTriangle() {
+            return triangle;
+        }
+    }
+
+    private void build() {
+        // centroids and bounds of the triangles
+        final float[] centroids = new float[triangles * 3];
+        final float[] boxes = new float[triangles * 6];
+        for (int t = 0; t < triangles; t++) {
+            for (int k = 0; k < 3; k++) {
+                final float a = positions[corners[t * 3] * 3 + k];
+                final float b = positions[corners[t * 3 + 1] * 3 + k];
+                final float c = positions[corners[t * 3 + 2] * 3 + k];
+                boxes[t * 6 + k] = Math.min(a, Math.min(b, c));
+                boxes[t * 6 + 3 + k] = Math.max(a, Math.max(b, c));
+                centroids[t * 3 + k] = (boxes[t * 6 + k] + boxes[t * 6 + 3 + k]) / 2;
+            }
+        }
+
+        // the triangles are sorted in place, so each node covers a range
+        final int[] order = new int[triangles];
+        for (int t = 0; t < triangles; t++) order[t] = t;
+
+        nodes = 1;
+        first[0] = 0;
+        counts[0] = triangles;
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = 0;
+
+        final float[] binBounds = new float[BINS * 6];
+        final int[] binCounts = new int[BINS];
+        final float[] rightAreas = new float[BINS];
+        final int[] rightCounts = new int[BINS];
+        final float[] box = new float[6];
+
+        while (size > 0) {
+            final int node = stack[--size];
+            final int start = first[node];
+            final int count = counts[node];
+            computeBounds(boxes, order, start, count, bounds, node * 6);
+            if (count <= LEAF_SIZE) continue;
+
+            // bounds of the centroids
+            final float[] cmin = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+            final float[] cmax = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int i = start; i < start + count; i++) {
+                for (int k = 0; k < 3; k++) {
+                    final float c = centroids[order[i] * 3 + k];
+                    if (c < cmin[k]) cmin[k] = c;
+                    if (c > cmax[k]) cmax[k] = c;
+                }
+            }
+            int axis = 0;
+            if (cmax[1] - cmin[1] > cmax[axis] - cmin[axis]) axis = 1;
+            if (cmax[2] - cmin[2] > cmax[axis] - cmin[axis]) axis = 2;
+            final float extent = cmax[axis] - cmin[axis];
+            if (extent <= 0) continue;
+
+            // bin the triangles
+            Arrays.fill(binCounts, 0);
+            for (int b = 0; b < BINS; b++) resetBox(binBounds, b * 6);
+            final float scale = BINS / extent;
+            for (int i = start; i < start + count; i++) {
+                final int t = order[i];
+                final int b = Math.min(BINS - 1, (int) ((centroids[t * 3 + axis] - cmin[axis]) * scale));
+                binCounts[b]++;
+                grow(binBounds, b * 6, boxes, t * 6);
+            }
+
+            // sweep from the right, then from the left, to find the cheapest split
+            resetBox(box, 0);
+            int rightCount = 0;
+            for (int b = BINS - 1; b > 0; b--) {
+                rightCount += binCounts[b];
+                grow(box, 0, binBounds, b * 6);
+                rightCounts[b] = rightCount;
+                rightAreas[b] = rightCount > 0 ? area(box, 0) : 0;
+            }
+            resetBox(box, 0);
+            int leftCount = 0;
+            float bestCost = Float.MAX_VALUE;
+            int bestSplit = -1;
+            for (int b = 0; b < BINS - 1; b++) {
+                leftCount += binCounts[b];
+                grow(box, 0, binBounds, b * 6);
+                if (leftCount == 0 || rightCounts[b + 1] == 0) continue;
+                final float cost = leftCount * area(box, 0) + rightCounts[b + 1] * rightAreas[b + 1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestSplit = b;
+                }
+            }
+            final float leafCost = count * area(bounds, node * 6);
+            if (bestSplit == -1 || TRAVERSAL_COST * area(bounds, node * 6) + bestCost >= leafCost) continue;
+
+            // partition the range
+            int i = start;
+            int j = start + count - 1;
+            while (i <= j) {
+                final int t = order[i];
+                final int b = Math.min(BINS - 1, (int) ((centroids[t * 3 + axis] - cmin[axis]) * scale));
+                if (b <= bestSplit) {
+                    i++;
+                } else {
+                    order[i] = order[j];
+                    order[j--] = t;
+                }
+            }
+            final int leftSize = i - start;
+
+            final int left = nodes;
+            nodes += 2;
+            first[left] = start;
+            counts[left] = leftSize;
+            first[left + 1] = start + leftSize;
+            counts[left + 1] = count - leftSize;
+            first[node] = left;
+            counts[node] = 0;
+            if (size + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[size++] = left + 1;
+            stack[size++] = left;
+        }
+
+        // corners in the order of the leaves
+        final int[] sorted = new int[corners.length];
+        for (int i = 0; i < triangles; i++) {
+            System.arraycopy(corners, order[i] * 3, sorted, i * 3, 3);
+            triangleIds[i] = order[i];
+        }
+        System.arraycopy(sorted, 0, corners, 0, sorted.length);
+    }
+
+    /**
+     * @return the distance to the box of the node, or infinity if the ray misses it or it's further than max
+     */
+    private float slab(int node, float ox, float oy, float oz, float ix, float iy, float iz, float max) {
+        final int b = node * 6;
+        float t1 = (bounds[b] - ox) * ix, t2 = (bounds[b + 3] - ox) * ix;
+        float near = Math.min(t1, t2), far = Math.max(t1, t2);
+        t1 = (bounds[b + 1] - oy) * iy;
+        t2 = (bounds[b + 4] - oy) * iy;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (bounds[b + 2] - oz) * iz;
+        t2 = (bounds[b + 5] - oz) * iz;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        // NaN (ray parallel to a face, origin on it) is not a miss
+        if (far < near || far < 0 || near > max) return Float.POSITIVE_INFINITY;
+        return near;
+    }
+
+    /**
+     * Moller-Trumbore ray-triangle test
+     *
+     * @return the distance, or -1 if the ray misses the triangle
+     */
+    private float intersectTriangle(int i, float ox, float oy, float oz, float dx, float dy, float dz) {
+        final int a = corners[i * 3] * 3, b = corners[i * 3 + 1] * 3, c = corners[i * 3 + 2] * 3;
+        final float e1x = positions[b] - positions[a], e1y = positions[b + 1] - positions[a + 1], e1z = positions[b + 2] - positions[a + 2];
+        final float e2x = positions[c] - positions[a], e2y = positions[c + 1] - positions[a + 1], e2z = positions[c + 2] - positions[a + 2];
+        final float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        final float det = e1x * px + e1y * py + e1z * pz;
+        if (det == 0) return -1;
+        final float inv = 1 / det;
+        final float sx = ox - positions[a], sy = oy - positions[a + 1], sz = oz - positions[a + 2];
+        final float u = (sx * px + sy * py + sz * pz) * inv;
+        if (u < 0 || u > 1) return -1;
+        final float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        final float v = (dx * qx + dy * qy + dz * qz) * inv;
+        if (v < 0 || u + v > 1) return -1;
+        final float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+        return t >= 0 ? t : -1;
+    }
+
+    private static void computeBounds(float[] boxes, int[] order, int start, int count, float[] out, int offset) {
+        resetBox(out, offset);
+        for (int i = start; i < start + count; i++) grow(out, offset, boxes, order[i] * 6);
+    }
+
+    private static void resetBox(float[] box, int offset) {
+        for (int k = 0; k < 3; k++) {
+            box[offset + k] = Float.MAX_VALUE;
+            box[offset + 3 + k] = -Float.MAX_VALUE;
+        }
+    }
+
+    private static void grow(float[] box, int offset, float[] other, int otherOffset) {
+        for (int k = 0; k < 3; k++) {
+            box[offset + k] = Math.min(box[offset + k], other[otherOffset + k]);
+            box[offset + 3 + k] = Math.max(box[offset + 3 + k], other[otherOffset + 3 + k]);
+        }
+    }
+
+    private static float area(float[] box, int offset) {
+        final float x = box[offset + 3] - box[offset];
+        final float y = box[offset + 4] - box[offset + 1];
+        final float z = box[offset + 5] - box[offset + 2];
+        return x * y + y * z + z * x;
+    }
+}
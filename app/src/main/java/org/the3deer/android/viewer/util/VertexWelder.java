@@ -0,0 +1,192 @@
+package org.the3deer.android.viewer.util;
+
+import java.util.Arrays;
+
+/**
+ * Welds vertices with identical positions.
+ * <p>
+ * Positions are hashed by their exact bit pattern in an open addressing table of primitive ints,
+ * so welding doesn't allocate per vertex. The welded positions are available in {@link #getPositions()}.
+ * </p>
+ * <p>
+ * Optionally, normals can be accumulated per welded vertex and normalized at the end, so
+ * faces sharing a vertex get a smooth normal. With a crease angle, faces are only welded if their normals are
+ * within that angle, so the hard edges of e.g. a CAD model keep a vertex per side, and stay sharp.
+ * </p>
+ */
+public final class VertexWelder {
+
+    private static final int EMPTY = -1;
+
+    private final FloatArrayList positions;
+    private final FloatArrayList normals;
+    // normal of the first face of each vertex, when welding by crease angle
+    private final FloatArrayList faces;
+    private final float creaseCos;
+    private int[] table;
+    private int count;
+
+    public VertexWelder(int expectedVertices, boolean withNormals) {
+        this(expectedVertices, withNormals, null, 0);
+    }
+
+    /**
+     * Weld the vertices of faces that meet at less than the crease angle, and accumulate their normals
+     *
+     * @param creaseAngle in degrees
+     * @see #add(float, float, float, float, float, float)
+     */
+    public VertexWelder(int expectedVertices, float creaseAngle) {
+        this(expectedVertices, true, new FloatArrayList(Math.max(expectedVertices, 16) * 3),
+                (float) Math.cos(Math.toRadians(creaseAngle)));
+    }
+
+    private VertexWelder(int expectedVertices, boolean withNormals, FloatArrayList faces, float creaseCos) {
+        final int capacity = Math.max(expectedVertices, 16);
+        this.positions = new FloatArrayList(capacity * 3);
+        this.normals = withNormals ? new FloatArrayList(capacity * 3) : null;
+        this.faces = faces;
+        this.creaseCos = creaseCos;
+        this.table = new int[tableSize(capacity)];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Add the vertex, or find the existing one with the same position
+     *
+     * @return the index of the welded vertex
+     */
+    public int add(float x, float y, float z) {
+        return add(x, y, z, 0, 0, 0);
+    }
+
+    /**
+     * Add the vertex of a face, or find the existing one with the same position and a normal within the crease
+     * angle. The normal of the face is accumulated into the vertex. Without a crease angle, the normal is ignored
+     *
+     * @return the index of the welded vertex
+     */
+    public int add(float x, float y, float z, float nx, float ny, float nz) {
+        // -0.0 and 0.0 have different bits
+        if (x == 0f) x = 0f;
+        if (y == 0f) y = 0f;
+        if (z == 0f) z = 0f;
+
+        if (count * 2 >= table.length) rehash();
+
+        if (faces != null) {
+            final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0) {
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+        }
+
+        final int mask = table.length - 1;
+        int slot = hash(x, y, z) & mask;
+        final float[] data = positions.array();
+        while (true) {
+            final int index = table[slot];
+            if (index == EMPTY) break;
+            final int k = index * 3;
+            if (Float.floatToIntBits(data[k]) == Float.floatToIntBits(x)
+                    && Float.floatToIntBits(data[k + 1]) == Float.floatToIntBits(y)
+                    && Float.floatToIntBits(data[k + 2]) == Float.floatToIntBits(z)
+                    && isSmooth(k, nx, ny, nz)) {
+                if (faces != null) addNormal(index, nx, ny, nz);
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        positions.add(x, y, z);
+        if (normals != null) normals.add(0f, 0f, 0f);
+        if (faces != null) {
+            faces.add(nx, ny, nz);
+            addNormal(count, nx, ny, nz);
+        }
+        table[slot] = count;
+        return count++;
+    }
+
+    /**
+     * @return whether the face is within the crease angle of the first face of the vertex, or if degenerated
+     */
+    private boolean isSmooth(int k, float nx, float ny, float nz) {
+        if (faces == null || (nx == 0 && ny == 0 && nz == 0)) return true;
+        final float[] face = faces.array();
+        if (face[k] == 0 && face[k + 1] == 0 && face[k + 2] == 0) return true;
+        return face[k] * nx + face[k + 1] * ny + face[k + 2] * nz >= creaseCos;
+    }
+
+    /**
+     * Accumulate the normal of a face into the vertex. Call {@link #normalize()} when done.
+     */
+    public void addNormal(int index, float nx, float ny, float nz) {
+        final float[] data = normals.array();
+        final int k = index * 3;
+        data[k] += nx;
+        data[k + 1] += ny;
+        data[k + 2] += nz;
+    }
+
+    /**
+     * Normalize the accumulated normals
+     */
+    public void normalize() {
+        if (normals == null) return;
+        final float[] data = normals.array();
+        for (int k = 0; k < count * 3; k += 3) {
+            final float length = (float) Math.sqrt(data[k] * data[k] + data[k + 1] * data[k + 1] + data[k + 2] * data[k + 2]);
+            if (length > 0) {
+                data[k] /= length;
+                data[k + 1] /= length;
+                data[k + 2] /= length;
+            }
+        }
+    }
+
+    public int getVertexCount() {
+        return count;
+    }
+
+    /**
+     * @return xyz of the welded vertices
+     */
+    public FloatArrayList getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return accumulated normals, or <code>null</code> if not enabled
+     */
+    public FloatArrayList getNormals() {
+        return normals;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, EMPTY);
+        final int mask = table.length - 1;
+        final float[] data = positions.array();
+        for (int i = 0; i < count; i++) {
+            int slot = hash(data[i * 3], data[i * 3 + 1], data[i * 3 + 2]) & mask;
+            while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+            table[slot] = i;
+        }
+    }
+
+    private static int hash(float x, float y, float z) {
+        int h = Float.floatToIntBits(x) * 0x9E3779B1;
+        h ^= Float.floatToIntBits(y) * 0x85EBCA77;
+        h ^= Float.floatToIntBits(z) * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int capacity) {
+        int size = 16;
+        while (size < capacity * 2) size <<= 1;
+        return size;
+    }
+}
@@ -0,0 +1,140 @@
+package org.the3deer.android.viewer.services.batching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.GLES20;
+
+import org.junit.Test;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+public class SceneBatcherTest {
+
+    /**
+     * Quad of 2 triangles at x
+     */
+    private static Object3D quad(float x, float[] color) {
+        final Object3D ret = new Object3D(FloatBuffer.wrap(new float[]{x, 0, 0, x + 1, 0, 0, x + 1, 1, 0, x, 1, 0}),
+                IntBuffer.wrap(new int[]{0, 1, 2, 0, 2, 3}));
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        ret.setColor(color);
+        ret.setId("quad" + x);
+        return ret;
+    }
+
+    @Test
+    public void batch_mergesTheObjectsThatLookTheSame() {
+        final Scene scene = new Scene();
+        final float[] red = {1, 0, 0, 1};
+        for (int i = 0; i < 10; i++) scene.addObject(quad(i, red));
+        scene.addObject(quad(20, new float[]{0, 1, 0, 1}));
+        final Object3D textured = quad(30, red);
+        textured.setTextureBuffer(FloatBuffer.wrap(new float[8]));
+        scene.addObject(textured);
+
+        final SceneBatcher batcher = new SceneBatcher();
+        assertTrue(batcher.batch(scene));
+        assertEquals(12, batcher.getDrawCallsBefore());
+        assertEquals(3, batcher.getDrawCallsAfter());
+        assertEquals(1, batcher.getBatches().size());
+
+        final Batch batch = batcher.getBatches().get(0);
+        assertEquals(10, batch.getMembers().size());
+        assertTrue(batch.getObject().isVisible());
+        assertSame(batch, batcher.getBatch(batch.getObject()));
+        assertEquals(60, batch.getObject().getIndexBuffer().limit());
+        for (Object3D member : batch.getMembers()) {
+            assertFalse(member.isVisible());
+            assertTrue(batcher.isVisible(member));
+            assertTrue(batcher.isBatched(member));
+        }
+        assertFalse(batcher.isBatched(textured));
+
+        // the vertices of the 4th quad
+        assertSame(scene.getObjects().get(3), batch.getMember(7));
+        assertEquals(1, batch.getMemberTriangle(7));
+        assertEquals(3f, batch.getObject().getVertexBuffer().get(batch.getObject().getIndexBuffer().get(7 * 3) * 3), 0f);
+
+        // a hidden member is left out, and the next ones are shifted
+        batcher.setVisible(scene.getObjects().get(3), false);
+        assertFalse(batcher.isVisible(scene.getObjects().get(3)));
+        assertEquals(54, batch.getObject().getIndexBuffer().limit());
+        assertSame(scene.getObjects().get(4), batch.getMember(7));
+
+        batcher.restore();
+        assertFalse(batch.getObject().isVisible());
+        assertFalse(scene.getObjects().get(3).isVisible());
+        assertTrue(scene.getObjects().get(4).isVisible());
+        assertEquals(batcher.getDrawCallsBefore(), batcher.getDrawCallsAfter());
+
+        // shown again, without merging
+        assertTrue(batcher.batch(scene));
+        assertEquals(1, batcher.getBatches().size());
+        assertFalse(batcher.batch(scene));
+    }
+
+    @Test
+    public void memberShownDirectly_isShownByTheBatch() {
+        final Scene scene = new Scene();
+        final float[] red = {1, 0, 0, 1};
+        for (int i = 0; i < 3; i++) scene.addObject(quad(i, red));
+
+        final SceneBatcher batcher = new SceneBatcher();
+        batcher.batch(scene);
+        final Batch batch = batcher.getBatches().get(0);
+        final Object3D member = scene.getObjects().get(1);
+        batcher.setVisible(member, false);
+        assertEquals(12, batch.getObject().getIndexBuffer().limit());
+
+        // i.e. by the engine
+        member.setVisible(true);
+        assertFalse(batcher.update());
+        assertFalse(member.isVisible());
+        assertTrue(batcher.isVisible(member));
+        assertEquals(18, batch.getObject().getIndexBuffer().limit());
+    }
+
+    @Test
+    public void transform_keepsTheNormalsPerpendicular() {
+        // scale x by 2, then translate
+        final float[] matrix = {2, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 5, 6, 7, 1};
+        final float[] point = {1, 1, 1};
+        Batch.transform(matrix, point, 1);
+        assertArrayEquals(new float[]{7, 7, 8}, point, 1e-6f);
+
+        // normal of the plane x + y = 0
+        final float[] normal = {1, 1, 0};
+        Batch.transform(Batch.normalMatrix(matrix), normal, 0);
+        // the plane is now x/2 + y = 0, so the normal is (1, 2, 0) normalized
+        final float length = (float) Math.sqrt(5);
+        assertArrayEquals(new float[]{1 / length, 2 / length, 0}, normal, 1e-6f);
+
+        // mirrored
+        final float[] mirror = {-1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        final float[] flipped = {1, 0, 0};
+        Batch.transform(Batch.normalMatrix(mirror), flipped, 0);
+        assertArrayEquals(new float[]{-1, 0, 0}, flipped, 1e-6f);
+    }
+
+    @Test
+    public void largeObjects_areNotMerged() {
+        final Scene scene = new Scene();
+        for (int i = 0; i < 2; i++) {
+            final Object3D obj = new Object3D(FloatBuffer.wrap(new float[(SceneBatcher.MAX_OBJECT_VERTICES + 3) * 3]));
+            obj.setDrawMode(GLES20.GL_TRIANGLES);
+            scene.addObject(obj);
+        }
+        final SceneBatcher batcher = new SceneBatcher();
+        assertFalse(batcher.batch(scene));
+        assertNotNull(batcher.getBatches());
+        assertEquals(0, batcher.getBatches().size());
+    }
+}
@@ -0,0 +1,204 @@
+package org.the3deer.android.viewer.services.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.the3deer.android.engine.model.Material;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.model.Texture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SceneCacheTest {
+
+    private static FloatBuffer floats(float... values) {
+        final FloatBuffer ret = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        ret.put(values).position(0);
+        return ret;
+    }
+
+    private static IntBuffer ints(int... values) {
+        final IntBuffer ret = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        ret.put(values).position(0);
+        return ret;
+    }
+
+    private static float[] toArray(FloatBuffer buffer) {
+        final float[] ret = new float[buffer.limit()];
+        buffer.duplicate().get(ret);
+        return ret;
+    }
+
+    @Test
+    public void file_roundTrip() throws IOException {
+        final Object3D indexed = new Object3D(floats(0, 0, 0, 1, 0, 0, 0, 1, 0), ints(0, 1, 2));
+        indexed.setId("triangle \u00f1");
+        indexed.setDrawMode(4);
+        indexed.setColor(new float[]{1, 0.5f, 0.25f, 1});
+        indexed.setNormalsBuffer(floats(0, 0, 1, 0, 0, 1, 0, 0, 1));
+        indexed.setLocation(new float[]{1, 2, 3});
+
+        final Object3D plain = new Object3D(floats(0, 0, 0, 2, 0, 0, 0, 2, 0));
+        plain.setDrawMode(5);
+
+        final File file = File.createTempFile("scene", ".scene");
+        try {
+            SceneCacheFile.write(file, Collections.singletonList(Arrays.asList(indexed, plain)));
+            assertTrue(SceneCacheFile.isValid(file));
+
+            final List<List<Object3D>> scenes = SceneCacheFile.read(file);
+            assertEquals(1, scenes.size());
+            assertEquals(2, scenes.get(0).size());
+
+            final Object3D first = scenes.get(0).get(0);
+            assertEquals("triangle \u00f1", first.getId());
+            assertEquals(4, first.getDrawMode());
+            assertArrayEquals(new float[]{1, 0.5f, 0.25f, 1}, first.getColor(), 0f);
+            assertArrayEquals(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, toArray(first.getVertexBuffer()), 0f);
+            assertArrayEquals(new float[]{0, 0, 1, 0, 0, 1, 0, 0, 1}, toArray(first.getNormalsBuffer()), 0f);
+            assertEquals(3, first.getIndexBuffer().limit());
+            assertEquals(2, first.getIndexBuffer().get(2));
+            assertArrayEquals(new float[]{1, 2, 3}, first.getLocation(), 0f);
+            assertArrayEquals(new float[]{1, 1, 1}, first.getScale(), 0f);
+            assertTrue(first.getVertexBuffer().isDirect());
+
+            final Object3D second = scenes.get(0).get(1);
+            assertNull(second.getId());
+            assertNull(second.getColor());
+            assertNull(second.getIndexBuffer());
+            assertNull(second.getNormalsBuffer());
+            assertArrayEquals(new float[]{0, 0, 0, 2, 0, 0, 0, 2, 0}, toArray(second.getVertexBuffer()), 0f);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void file_texturedRoundTrip() throws IOException {
+        final Texture texture = new Texture();
+        texture.setFile("wood.png");
+        // bigger than the buffer of the writer, and not aligned
+        final byte[] image = new byte[100_003];
+        for (int i = 0; i < image.length; i++) image[i] = (byte) i;
+        texture.setData(image);
+        final Material material = new Material("wood");
+        material.setDiffuse(new float[]{1, 0.5f, 0.25f});
+        material.setColorTexture(texture);
+
+        final Object3D first = new Object3D(floats(0, 0, 0, 1, 0, 0, 0, 1, 0));
+        first.setTextureBuffer(floats(0, 0, 1, 0, 0, 1));
+        first.setMaterial(material);
+        final Object3D second = new Object3D(floats(0, 0, 1, 1, 0, 1, 0, 1, 1));
+        second.setTextureBuffer(floats(0, 0, 1, 0, 0, 1));
+        second.setMaterial(material);
+
+        final Scene scene = new Scene();
+        scene.addObject(first);
+        scene.addObject(second);
+        assertTrue(SceneCache.isCacheable(Collections.singletonList(scene)));
+
+        final File file = File.createTempFile("scene", ".scene");
+        try {
+            SceneCacheFile.write(file, Collections.singletonList(Arrays.asList(first, second)));
+            final List<Object3D> objects = SceneCacheFile.read(file).get(0);
+
+            assertArrayEquals(new float[]{0, 0, 1, 0, 0, 1}, toArray(objects.get(0).getTextureBuffer()), 0f);
+            final Material restored = objects.get(0).getMaterial();
+            assertEquals("wood", restored.getName());
+            assertArrayEquals(new float[]{1, 0.5f, 0.25f}, restored.getDiffuse(), 0f);
+            assertEquals("wood.png", restored.getColorTexture().getFile());
+            assertArrayEquals(texture.getData(), restored.getColorTexture().getData());
+            // written once
+            assertSame(restored, objects.get(1).getMaterial());
+        } finally {
+            assertTrue(file.delete());
+        }
+
+        // the loader didn't keep the image: it would be restored without it
+        texture.setData(null);
+        assertFalse(SceneCache.isCacheable(Collections.singletonList(scene)));
+    }
+
+    @Test
+    public void file_withOtherVersion_isNotValid() throws IOException {
+        final File file = File.createTempFile("scene", ".scene");
+        try {
+            SceneCacheFile.write(file, Collections.singletonList(Collections.emptyList()));
+            try (RandomAccessFile stream = new RandomAccessFile(file, "rw")) {
+                final ByteBuffer version = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0, SceneCacheFile.VERSION + 1);
+                stream.getChannel().write(version, 4);
+            }
+            assertFalse(SceneCacheFile.isValid(file));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void key_dependsOnContent() {
+        final URI uri = URI.create("file:///sdcard/model.dae");
+        final byte[] data = new byte[300 * 1024];
+        final String key = SceneCache.getKey(uri, ByteBuffer.wrap(data));
+        assertEquals(key, SceneCache.getKey(uri, ByteBuffer.wrap(data.clone())));
+        assertEquals(40, key.length());
+
+        data[data.length - 1] = 1;
+        assertNotEquals(key, SceneCache.getKey(uri, ByteBuffer.wrap(data)));
+        assertNotEquals(key, SceneCache.getKey(URI.create("file:///sdcard/other.dae"), ByteBuffer.wrap(new byte[300 * 1024])));
+        assertNotEquals(key, SceneCache.getKey(uri, ByteBuffer.wrap(new byte[10])));
+    }
+
+    @Test
+    public void key_ofUnmappedContent_dependsOnSizeAndDate() {
+        final URI uri = URI.create("content://com.example.documents/document/model.dae");
+        final String key = SceneCache.getKey(uri, 1000, 1_700_000_000_000L);
+        assertEquals(key, SceneCache.getKey(uri, 1000, 1_700_000_000_000L));
+        assertEquals(40, key.length());
+
+        assertNotEquals(key, SceneCache.getKey(uri, 1001, 1_700_000_000_000L));
+        assertNotEquals(key, SceneCache.getKey(uri, 1000, 1_700_000_000_001L));
+        assertNotEquals(key, SceneCache.getKey(URI.create("content://com.example.documents/document/other.dae"), 1000, 1_700_000_000_000L));
+    }
+
+    @Test
+    public void trim_deletesLeastRecentlyUsed() throws IOException {
+        final File dir = Files.createTempDirectory("scenes").toFile();
+        final long now = System.currentTimeMillis();
+        final File[] files = new File[4];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(dir, i + ".scene");
+            Files.write(files[i].toPath(), new byte[100]);
+            assertTrue(files[i].setLastModified(now - (files.length - i) * 10000L));
+        }
+        // "used" the oldest
+        assertTrue(files[0].setLastModified(now));
+
+        SceneCache.trim(dir, 250);
+
+        assertTrue(files[0].exists());
+        assertFalse(files[1].exists());
+        assertFalse(files[2].exists());
+        assertTrue(files[3].exists());
+
+        for (File file : files) file.delete();
+        assertTrue(dir.delete());
+    }
+}
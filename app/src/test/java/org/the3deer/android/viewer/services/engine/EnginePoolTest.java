@@ -0,0 +1,78 @@
+package org.the3deer.android.viewer.services.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EnginePoolTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private static EnginePool pool(String budget, List<String> evicted) {
+        final EnginePool ret = new EnginePool();
+        ret.setBudget(budget);
+        ret.setEvictor(evicted::add);
+        return ret;
+    }
+
+    @Test
+    public void off_keepsNothing() {
+        final List<String> evicted = new ArrayList<>();
+        final EnginePool pool = pool(EnginePool.OFF, evicted);
+        assertFalse(pool.activate("a"));
+        assertFalse(pool.deactivate("a", MB));
+        assertFalse(pool.deactivate("b", 0));
+        assertEquals(0, pool.getWarmCount());
+    }
+
+    @Test
+    public void leastRecentlyUsed_evictedOverTheBudget() {
+        final List<String> evicted = new ArrayList<>();
+        final EnginePool pool = pool("128", evicted);
+        for (String id : new String[]{"a", "b", "c"}) {
+            pool.activate(id);
+            assertTrue(pool.deactivate(id, 50 * MB));
+        }
+        // a was the first to go
+        assertEquals(Arrays.asList("a"), evicted);
+        assertEquals(100 * MB, pool.getWarmBytes());
+
+        // b is used again, so c is the oldest
+        assertTrue(pool.activate("b"));
+        assertTrue(pool.deactivate("b", 50 * MB));
+        pool.activate("d");
+        assertTrue(pool.deactivate("d", 60 * MB));
+        assertEquals(Arrays.asList("a", "c"), evicted);
+        assertEquals(1, pool.getHitCount());
+
+        // too big for the budget
+        pool.activate("e");
+        assertFalse(pool.deactivate("e", 200 * MB));
+        assertFalse(pool.isWarm("e"));
+    }
+
+    @Test
+    public void trimMemory_byLevel() {
+        final List<String> evicted = new ArrayList<>();
+        final EnginePool pool = pool("256", evicted);
+        for (String id : new String[]{"a", "b", "c", "d"}) pool.deactivate(id, 60 * MB);
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(4, pool.getWarmCount());
+        // half the budget
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(Arrays.asList("a", "b"), evicted);
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), evicted);
+        assertEquals(0, pool.getWarmBytes());
+        assertEquals(4, pool.getEvictedCount());
+    }
+}
@@ -0,0 +1,271 @@
+package org.the3deer.android.viewer.services.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.engine.services.LoadListener;
+import org.the3deer.android.engine.services.LoadListenerAdapter;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.LongConsumer;
+
+public class ModelPrefetcherTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final List<String> HISTORY = Arrays.asList(
+            "file:///a.obj|a|obj", "file:///b.gltf|b|gltf", "file:///c.stl|c|stl", "file:///d.obj");
+
+    /**
+     * Loads nothing until told to
+     */
+    private static final class FakeLoader implements ModelPrefetcher.Loader {
+        final Map<String, LongConsumer> loading = new LinkedHashMap<>();
+        final List<String> names = new ArrayList<>();
+        final List<String> released = new ArrayList<>();
+
+        @Override
+        public void load(String uri, String name, String type, LongConsumer done) {
+            loading.put(uri, done);
+            names.add(name + "|" + type);
+        }
+
+        @Override
+        public void release(String uri) {
+            released.add(uri);
+        }
+
+        void complete(String uri, long memory) {
+            loading.remove(uri).accept(memory);
+        }
+    }
+
+    // the steps are run by the tests
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final EnginePool pool = new EnginePool();
+    private final FakeLoader loader = new FakeLoader();
+
+    private ModelPrefetcher prefetcher(String models) {
+        final ModelPrefetcher ret = new ModelPrefetcher(pool, executor, 3_600_000);
+        ret.setEnabled(true);
+        ret.setModels(models);
+        ret.setLoader(loader, () -> true);
+        return ret;
+    }
+
+    @Test
+    public void recentModels_loadedLeastRecentFirst_andKeptWarm() {
+        pool.setBudget("256");
+        final ModelPrefetcher prefetcher = prefetcher("3");
+
+        // a is being viewed
+        prefetcher.schedule(HISTORY, "file:///a.obj");
+        prefetcher.step();
+        assertEquals(Arrays.asList("file:///d.obj"), new ArrayList<>(loader.loading.keySet()));
+        // one at a time
+        prefetcher.step();
+        assertEquals(1, loader.loading.size());
+
+        loader.complete("file:///d.obj", 10 * MB);
+        prefetcher.step();
+        loader.complete("file:///c.stl", 10 * MB);
+        prefetcher.step();
+        loader.complete("file:///b.gltf", 10 * MB);
+        prefetcher.step();
+
+        assertEquals(Arrays.asList("d.obj|obj", "c|stl", "b|gltf"), loader.names);
+        assertTrue(pool.isWarm("file:///b.gltf"));
+        assertTrue(pool.isWarm("file:///d.obj"));
+        assertEquals(3, prefetcher.getPrefetchedCount());
+        assertTrue(loader.released.isEmpty());
+
+        // already warm
+        prefetcher.schedule(HISTORY, "file:///a.obj");
+        prefetcher.step();
+        assertTrue(loader.loading.isEmpty());
+    }
+
+    @Test
+    public void overTheBudget_released() {
+        pool.setBudget(EnginePool.OFF);
+        final ModelPrefetcher prefetcher = prefetcher("1");
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+        loader.complete("file:///a.obj", 10 * MB);
+
+        // only in the scene cache
+        assertEquals(Arrays.asList("file:///a.obj"), loader.released);
+        assertEquals(0, prefetcher.getPrefetchedCount());
+    }
+
+    @Test
+    public void cancel_releasesTheModelBeingLoaded() {
+        pool.setBudget("256");
+        final ModelPrefetcher prefetcher = prefetcher("2");
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+        assertTrue(prefetcher.isLoading());
+
+        // the user opens a model: released once the loader stops
+        prefetcher.cancel();
+        assertFalse(prefetcher.isLoading());
+        assertTrue(loader.released.isEmpty());
+
+        // loaded anyway, but too late
+        loader.complete("file:///b.gltf", 10 * MB);
+        assertEquals(Arrays.asList("file:///b.gltf"), loader.released);
+        assertFalse(pool.isWarm("file:///b.gltf"));
+        prefetcher.step();
+        assertTrue(loader.loading.isEmpty());
+    }
+
+    @Test
+    public void cancel_abortsTheLoaderInTheBackground() {
+        pool.setBudget("256");
+        final ModelPrefetcher prefetcher = prefetcher("1");
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+
+        final List<String> events = new ArrayList<>();
+        final LoadListener listener = new LoadListenerAdapter() {
+            @Override
+            public void onLoadObject(Scene scene, Object3D obj) {
+                events.add("object");
+            }
+
+            @Override
+            public void onLoadError(Exception ex) {
+                events.add("error");
+            }
+        };
+        // only the model being prefetched
+        assertSame(listener, prefetcher.wrap(URI.create("file:///b.gltf"), listener));
+        final LoadListener background = prefetcher.wrap(URI.create("file:///a.obj"), listener);
+
+        final int priority = Thread.currentThread().getPriority();
+        background.onLoadObject(null, null);
+        assertEquals(Thread.MIN_PRIORITY, Thread.currentThread().getPriority());
+
+        prefetcher.cancel();
+        try {
+            background.onLoadObject(null, null);
+            fail("not aborted");
+        } catch (CancellationException e) {
+            background.onLoadError(e);
+        }
+        assertEquals(priority, Thread.currentThread().getPriority());
+        assertEquals(Arrays.asList("object", "error"), events);
+    }
+
+    @Test
+    public void openedWhileCancelled_notReleased() {
+        pool.setBudget("256");
+        final ModelPrefetcher prefetcher = prefetcher("1");
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+
+        prefetcher.cancel();
+        pool.activate("file:///a.obj");
+        loader.complete("file:///a.obj", -1);
+        assertTrue(loader.released.isEmpty());
+    }
+
+    @Test
+    public void opened_handedOverToTheForeground() {
+        pool.setBudget("256");
+        final ModelPrefetcher prefetcher = prefetcher("2");
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+
+        final List<String> events = new ArrayList<>();
+        final LoadListener background = prefetcher.wrap(URI.create("file:///b.gltf"), new LoadListenerAdapter() {
+            @Override
+            public void onLoadObject(Scene scene, Object3D obj) {
+                events.add("object");
+            }
+        });
+        final int priority = Thread.currentThread().getPriority();
+        background.onLoadObject(null, null);
+        assertEquals(Thread.MIN_PRIORITY, Thread.currentThread().getPriority());
+
+        // another model: the prefetch is cancelled
+        assertFalse(prefetcher.adopt("file:///c.stl", memory -> fail("not handed over")));
+        assertFalse(prefetcher.adopt("file:///b.gltf", memory -> fail("not handed over")));
+        try {
+            background.onLoadObject(null, null);
+            fail("not aborted");
+        } catch (CancellationException e) {
+            background.onLoadError(e);
+        }
+        loader.complete("file:///b.gltf", 10 * MB);
+        assertEquals(Arrays.asList("file:///b.gltf"), loader.released);
+
+        // the model being prefetched: its loader goes on, at its priority
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+        final LoadListener next = prefetcher.wrap(URI.create("file:///b.gltf"), new LoadListenerAdapter());
+        next.onLoadObject(null, null);
+        final long[] loaded = {0};
+        assertTrue(prefetcher.adopt("file:///b.gltf", memory -> loaded[0] = memory));
+        assertEquals(priority, Thread.currentThread().getPriority());
+        assertFalse(prefetcher.isLoading());
+        assertTrue(prefetcher.isAdopted("file:///b.gltf"));
+        next.onLoadObject(null, null);
+        assertEquals(priority, Thread.currentThread().getPriority());
+
+        // loaded for the user: not kept warm, nor released
+        loader.complete("file:///b.gltf", 10 * MB);
+        assertEquals(10 * MB, loaded[0]);
+        assertFalse(prefetcher.isAdopted("file:///b.gltf"));
+        assertFalse(pool.isWarm("file:///b.gltf"));
+        assertEquals(Arrays.asList("file:///b.gltf"), loader.released);
+        assertEquals(0, prefetcher.getPrefetchedCount());
+        assertEquals(Arrays.asList("object"), events);
+
+        // and nothing else is prefetched
+        prefetcher.step();
+        assertTrue(loader.loading.isEmpty());
+    }
+
+    @Test
+    public void notCharging_postponed() {
+        pool.setBudget("256");
+        final ModelPrefetcher prefetcher = prefetcher("1");
+        final boolean[] charging = {false};
+        prefetcher.setLoader(loader, () -> charging[0]);
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+        assertTrue(loader.loading.isEmpty());
+
+        charging[0] = true;
+        prefetcher.step();
+        assertEquals(1, loader.loading.size());
+    }
+
+    @Test
+    public void disabled_loadsNothing() {
+        final ModelPrefetcher prefetcher = prefetcher("2");
+        prefetcher.setEnabled(false);
+        prefetcher.schedule(HISTORY, null);
+        prefetcher.step();
+        assertTrue(loader.loading.isEmpty());
+    }
+}
@@ -0,0 +1,196 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Compares the {@link GlbMappedParser} with the copying path used by the default glTF loader:
+ * the file is read into the heap, every accessor is decoded into a Java array, and then copied into a direct buffer.
+ * <p>
+ * The model is a generated grid, written to a temporary file. Reports load time, Java heap allocated
+ * by the load, and the growth of the process resident set (RSS, Linux only).
+ * </p>
+ */
+public class GlbMappedParserBenchmark {
+
+    private static final Logger logger = Logger.getLogger(GlbMappedParserBenchmark.class.getSimpleName());
+
+    // 2M vertices: 24 MB of positions, 24 MB of normals and 48 MB of indices
+    private static final int GRID = 1414;
+
+    @Before
+    public void setUp() {
+        // slow: run with ./gradlew test -Pbenchmark
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        final File file = File.createTempFile("grid", ".glb");
+        try {
+            Files.write(file.toPath(), grid(GRID));
+            final int vertices = GRID * GRID;
+
+            // warm up
+            mapped(file);
+            copied(file);
+
+            logger.info(String.format(Locale.US, "%-8s %10s %10s %12s %12s", "path", "size(MB)", "time(ms)", "heap(MB)", "rss(MB)"));
+            for (int i = 0; i < 2; i++) {
+                report("copied", file, () -> assertEquals(vertices * 3, copied(file)));
+                report("mapped", file, () -> assertEquals(vertices * 3, mapped(file)));
+            }
+        } finally {
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+    private interface Load {
+        void run() throws IOException;
+    }
+
+    private static void report(String name, File file, Load load) throws IOException {
+        System.gc();
+        final long rssBefore = getRss();
+        final long heapBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        load.run();
+        final long elapsed = System.nanoTime() - start;
+        final long heap = getAllocatedBytes() - heapBefore;
+        final long rss = getRss() - rssBefore;
+        logger.info(String.format(Locale.US, "%-8s %10.1f %10.1f %12.1f %12.1f", name, file.length() / 1048576.0,
+                elapsed / 1e6, heap / 1048576.0, rss / 1048576.0));
+    }
+
+    /**
+     * @return floats of the positions, after touching all the data
+     */
+    private static int mapped(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file); FileChannel channel = stream.getChannel()) {
+            final GlbMappedParser.Result result = GlbMappedParser.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            final GlbMappedParser.Primitive primitive = result.getPrimitives().get(0);
+            touch(primitive.getPositions(), primitive.getNormals(), primitive.getIndices());
+            return primitive.getPositions().limit();
+        }
+    }
+
+    /**
+     * The file is read into the heap, and every accessor goes through a Java array
+     */
+    @SuppressWarnings("unchecked")
+    private static int copied(File file) throws IOException {
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        final Map<String, Object> json = GlbMappedParser.readJson(data);
+        final int binStart = 20 + ((data.getInt(12) + 3) & ~3) + 8;
+
+        final List<Object> views = (List<Object>) json.get("bufferViews");
+        final FloatBuffer positions = copyFloats(data, binStart, (Map<String, Object>) views.get(0));
+        final FloatBuffer normals = copyFloats(data, binStart, (Map<String, Object>) views.get(1));
+        final Map<String, Object> view = (Map<String, Object>) views.get(2);
+        final int[] indices = new int[((Number) view.get("byteLength")).intValue() / 4];
+        final int offset = binStart + ((Number) view.get("byteOffset")).intValue();
+        for (int i = 0; i < indices.length; i++) indices[i] = data.getInt(offset + i * 4);
+        final IntBuffer indexBuffer = ByteBuffer.allocateDirect(indices.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        indexBuffer.put(indices).position(0);
+
+        touch(positions, normals, indexBuffer);
+        return positions.limit();
+    }
+
+    private static FloatBuffer copyFloats(ByteBuffer data, int binStart, Map<String, Object> view) {
+        final float[] array = new float[((Number) view.get("byteLength")).intValue() / 4];
+        final int offset = binStart + ((Number) view.get("byteOffset")).intValue();
+        for (int i = 0; i < array.length; i++) array[i] = data.getFloat(offset + i * 4);
+        final FloatBuffer ret = ByteBuffer.allocateDirect(array.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        ret.put(array).position(0);
+        return ret;
+    }
+
+    /**
+     * Read every page, like the GPU upload does
+     */
+    private static void touch(FloatBuffer positions, FloatBuffer normals, IntBuffer indices) {
+        float sum = 0;
+        for (int i = 0; i < positions.limit(); i += 1024) sum += positions.get(i) + normals.get(i);
+        for (int i = 0; i < indices.limit(); i += 1024) sum += indices.get(i);
+        if (Float.isNaN(sum)) throw new IllegalStateException();
+    }
+
+    /**
+     * Grid of size x size vertices, with normals and 32 bit indices
+     */
+    private static byte[] grid(int size) {
+        final int vertices = size * size;
+        final int indices = (size - 1) * (size - 1) * 6;
+        final ByteBuffer bin = ByteBuffer.allocate(vertices * 24 + indices * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) bin.putFloat(x).putFloat(y).putFloat(0);
+        }
+        for (int i = 0; i < vertices; i++) bin.putFloat(0).putFloat(0).putFloat(1);
+        for (int y = 0; y < size - 1; y++) {
+            for (int x = 0; x < size - 1; x++) {
+                final int i = y * size + x;
+                bin.putInt(i).putInt(i + 1).putInt(i + size).putInt(i + 1).putInt(i + size + 1).putInt(i + size);
+            }
+        }
+        final String json = String.format(Locale.US, "{\"asset\":{\"version\":\"2.0\"},\"scene\":0,\"scenes\":[{\"nodes\":[0]}],"
+                        + "\"nodes\":[{\"mesh\":0}],"
+                        + "\"meshes\":[{\"primitives\":[{\"attributes\":{\"POSITION\":0,\"NORMAL\":1},\"indices\":2}]}],"
+                        + "\"accessors\":[{\"bufferView\":0,\"componentType\":5126,\"count\":%d,\"type\":\"VEC3\"},"
+                        + "{\"bufferView\":1,\"componentType\":5126,\"count\":%d,\"type\":\"VEC3\"},"
+                        + "{\"bufferView\":2,\"componentType\":5125,\"count\":%d,\"type\":\"SCALAR\"}],"
+                        + "\"bufferViews\":[{\"buffer\":0,\"byteOffset\":0,\"byteLength\":%d},"
+                        + "{\"buffer\":0,\"byteOffset\":%d,\"byteLength\":%d},"
+                        + "{\"buffer\":0,\"byteOffset\":%d,\"byteLength\":%d}],"
+                        + "\"buffers\":[{\"byteLength\":%d}]}",
+                vertices, vertices, indices,
+                vertices * 12, vertices * 12, vertices * 12, vertices * 24, indices * 4, bin.capacity());
+        return GlbMappedParserTest.glb(json, bin.array());
+    }
+
+    /**
+     * @return resident set size of the process, or 0 if not available
+     */
+    private static long getRss() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not linux
+        }
+        return 0;
+    }
+
+    /**
+     * @return bytes allocated by the current thread, or -1 if not supported by the JVM
+     */
+    private static long getAllocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,285 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+public class GlbMappedParserTest {
+
+    /**
+     * Build a GLB file with the JSON and the BIN chunks
+     */
+    static byte[] glb(String json, byte[] bin) {
+        final byte[] text = json.getBytes(StandardCharsets.UTF_8);
+        final int jsonLength = (text.length + 3) & ~3;
+        final int binLength = bin != null ? (bin.length + 3) & ~3 : 0;
+        final int length = 12 + 8 + jsonLength + (bin != null ? 8 + binLength : 0);
+
+        final ByteBuffer ret = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        ret.putInt(GlbMappedParser.MAGIC).putInt(2).putInt(length);
+        ret.putInt(jsonLength).putInt(0x4E4F534A).put(text);
+        while ((ret.position() & 3) != 0) ret.put((byte) ' ');
+        if (bin != null) {
+            ret.putInt(binLength).putInt(0x004E4942).put(bin);
+        }
+        return ret.array();
+    }
+
+    /**
+     * Triangle with float positions and 16 bit indices, or 32 bit if <code>intIndices</code>
+     *
+     * @param nodes the nodes, the first one is the root
+     */
+    private static byte[] triangle(String nodes, boolean intIndices) {
+        final ByteBuffer bin = ByteBuffer.allocate(36 + 12).order(ByteOrder.LITTLE_ENDIAN);
+        bin.putFloat(0).putFloat(0).putFloat(0).putFloat(1).putFloat(0).putFloat(0).putFloat(0).putFloat(1).putFloat(0);
+        if (intIndices) bin.putInt(0).putInt(1).putInt(2);
+        else bin.putShort((short) 0).putShort((short) 1).putShort((short) 2);
+
+        final String json = "{\"asset\":{\"version\":\"2.0\"},\"scene\":0,\"scenes\":[{\"nodes\":[0]}],"
+                + "\"nodes\":[" + nodes + "],"
+                + "\"meshes\":[{\"name\":\"tri\",\"primitives\":[{\"attributes\":{\"POSITION\":0},\"indices\":1,\"material\":0}]}],"
+                + "\"materials\":[{\"pbrMetallicRoughness\":{\"baseColorFactor\":[1,0.5,0.25,1]}}],"
+                + "\"accessors\":[{\"bufferView\":0,\"componentType\":5126,\"count\":3,\"type\":\"VEC3\"},"
+                + "{\"bufferView\":1,\"componentType\":" + (intIndices ? 5125 : 5123) + ",\"count\":3,\"type\":\"SCALAR\"}],"
+                + "\"bufferViews\":[{\"buffer\":0,\"byteOffset\":0,\"byteLength\":36},{\"buffer\":0,\"byteOffset\":36,\"byteLength\":" + (intIndices ? 12 : 6) + "}],"
+                + "\"buffers\":[{\"byteLength\":48}]}";
+        return glb(json, bin.array());
+    }
+
+    private static float[] toArray(FloatBuffer buffer) {
+        final float[] ret = new float[buffer.limit()];
+        buffer.duplicate().get(ret);
+        return ret;
+    }
+
+    @Test
+    public void floatPositions_areViewsOfTheFile() throws IOException {
+        final ByteBuffer data = ByteBuffer.wrap(triangle("{\"mesh\":0}", true));
+
+        final GlbMappedParser.Result result = GlbMappedParser.parse(data);
+
+        assertEquals(1, result.getPrimitives().size());
+        final GlbMappedParser.Primitive primitive = result.getPrimitives().get(0);
+        assertEquals("tri", primitive.getName());
+        assertEquals(4, primitive.getMode());
+        assertArrayEquals(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, toArray(primitive.getPositions()), 0f);
+        assertArrayEquals(new float[]{1, 0.5f, 0.25f, 1}, primitive.getColor(), 0f);
+        assertNull(primitive.getNormals());
+        assertEquals(2, primitive.getIndices().get(2));
+
+        // nothing copied
+        assertEquals(36 + 12, result.getMappedBytes());
+        assertEquals(0, result.getCopiedBytes());
+
+        // the view shares the memory of the file: x of the second vertex
+        final int binStart = 20 + data.order(ByteOrder.LITTLE_ENDIAN).getInt(12) + 8;
+        data.putFloat(binStart + 12, 5f);
+        assertEquals(5f, primitive.getPositions().get(3), 0f);
+    }
+
+    @Test
+    public void shortIndices_areConverted() throws IOException {
+        final GlbMappedParser.Result result = GlbMappedParser.parse(ByteBuffer.wrap(triangle("{\"mesh\":0}", false)));
+
+        final IntBuffer indices = result.getPrimitives().get(0).getIndices();
+        assertEquals(3, indices.limit());
+        assertEquals(1, indices.get(1));
+        assertEquals(36, result.getMappedBytes());
+        assertEquals(12, result.getCopiedBytes());
+    }
+
+    @Test
+    public void nodeTransform_isApplied() throws IOException {
+        // translated and rotated 90 degrees around Z, inside a scaled parent
+        final String nodes = "{\"children\":[1],\"scale\":[2,2,2]},"
+                + "{\"mesh\":0,\"translation\":[10,0,0],\"rotation\":[0,0,0.70710678,0.70710678]}";
+
+        final GlbMappedParser.Result result = GlbMappedParser.parse(ByteBuffer.wrap(triangle(nodes, true)));
+
+        // (1,0,0) -> rotated (0,1,0) -> translated (10,1,0) -> scaled (20,2,0)
+        final GlbMappedParser.Primitive primitive = result.getPrimitives().get(0);
+        assertArrayEquals(new float[]{20, 0, 0, 20, 2, 0, 18, 0, 0}, toArray(primitive.getPositions()), 1e-5f);
+        assertEquals(36, result.getCopiedBytes());
+    }
+
+    @Test
+    public void sharedMesh_isReadOnce() throws IOException {
+        final String nodes = "{\"children\":[1,2]},{\"mesh\":0,\"translation\":[10,0,0]},{\"mesh\":0,\"translation\":[0,5,0]}";
+
+        final GlbMappedParser.Result result = GlbMappedParser.parse(ByteBuffer.wrap(triangle(nodes, false)));
+
+        assertEquals(2, result.getPrimitives().size());
+        assertEquals(1, result.getSharedCount());
+        final GlbMappedParser.Primitive first = result.getPrimitives().get(0);
+        final GlbMappedParser.Primitive second = result.getPrimitives().get(1);
+        assertSame(first.getPositions(), second.getPositions());
+        assertSame(first.getIndices(), second.getIndices());
+        assertArrayEquals(new float[]{10, 0, 0}, first.getLocation(), 0f);
+        assertArrayEquals(new float[]{0, 5, 0}, second.getLocation(), 0f);
+        assertArrayEquals(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, toArray(second.getPositions()), 0f);
+
+        // the 16 bit indices are converted once
+        assertEquals(36, result.getMappedBytes());
+        assertEquals(12, result.getCopiedBytes());
+    }
+
+    @Test
+    public void gpuInstancing_isExpanded() throws IOException {
+        final ByteBuffer bin = ByteBuffer.allocate(36 + 12 + 36 + 48).order(ByteOrder.LITTLE_ENDIAN);
+        bin.putFloat(0).putFloat(0).putFloat(0).putFloat(1).putFloat(0).putFloat(0).putFloat(0).putFloat(1).putFloat(0);
+        bin.putInt(0).putInt(1).putInt(2);
+        // translations
+        bin.putFloat(10).putFloat(0).putFloat(0).putFloat(20).putFloat(0).putFloat(0).putFloat(30).putFloat(0).putFloat(0);
+        // rotations: the last one, 90 degrees around Z
+        bin.putFloat(0).putFloat(0).putFloat(0).putFloat(1).putFloat(0).putFloat(0).putFloat(0).putFloat(1);
+        bin.putFloat(0).putFloat(0).putFloat(0.70710678f).putFloat(0.70710678f);
+
+        final String json = "{\"asset\":{\"version\":\"2.0\"},\"extensionsRequired\":[\"EXT_mesh_gpu_instancing\"],"
+                + "\"scene\":0,\"scenes\":[{\"nodes\":[0]}],"
+                + "\"nodes\":[{\"mesh\":0,\"extensions\":{\"EXT_mesh_gpu_instancing\":{\"attributes\":{\"TRANSLATION\":2,\"ROTATION\":3}}}}],"
+                + "\"meshes\":[{\"name\":\"tri\",\"primitives\":[{\"attributes\":{\"POSITION\":0},\"indices\":1}]}],"
+                + "\"accessors\":[{\"bufferView\":0,\"componentType\":5126,\"count\":3,\"type\":\"VEC3\"},"
+                + "{\"bufferView\":1,\"componentType\":5125,\"count\":3,\"type\":\"SCALAR\"},"
+                + "{\"bufferView\":2,\"componentType\":5126,\"count\":3,\"type\":\"VEC3\"},"
+                + "{\"bufferView\":3,\"componentType\":5126,\"count\":3,\"type\":\"VEC4\"}],"
+                + "\"bufferViews\":[{\"buffer\":0,\"byteOffset\":0,\"byteLength\":36},{\"buffer\":0,\"byteOffset\":36,\"byteLength\":12},"
+                + "{\"buffer\":0,\"byteOffset\":48,\"byteLength\":36},{\"buffer\":0,\"byteOffset\":84,\"byteLength\":48}],"
+                + "\"buffers\":[{\"byteLength\":132}]}";
+
+        final GlbMappedParser.Result result = GlbMappedParser.parse(ByteBuffer.wrap(glb(json, bin.array())));
+
+        assertEquals(3, result.getPrimitives().size());
+        assertEquals(2, result.getSharedCount());
+        final GlbMappedParser.Primitive first = result.getPrimitives().get(0);
+        assertSame(first.getPositions(), result.getPrimitives().get(1).getPositions());
+        assertArrayEquals(new float[]{20, 0, 0}, result.getPrimitives().get(1).getLocation(), 0f);
+        assertNull(result.getPrimitives().get(1).getRotation());
+
+        // rotated: shared too, with its rotation
+        final GlbMappedParser.Primitive rotated = result.getPrimitives().get(2);
+        assertSame(first.getPositions(), rotated.getPositions());
+        assertSame(first.getIndices(), rotated.getIndices());
+        assertArrayEquals(new float[]{30, 0, 0}, rotated.getLocation(), 0f);
+        assertArrayEquals(new float[]{0, 0, 90}, rotated.getRotation(), 1e-3f);
+        assertNull(rotated.getScale());
+        assertTrue(GlbMappedParser.isInstanced(GlbMappedParser.readJson(ByteBuffer.wrap(glb(json, bin.array())))));
+    }
+
+    @Test
+    public void decompose_isTheInverseOfTheModelMatrix() {
+        // translation * rotation X * rotation Y * rotation Z * scale, like the model matrix of an object
+        float[] m = translation(1, 2, 3);
+        m = multiply(m, rotation(30, 1, 0, 0));
+        m = multiply(m, rotation(-45, 0, 1, 0));
+        m = multiply(m, rotation(60, 0, 0, 1));
+        m = multiply(m, scale(2, 3, -4));
+
+        final float[] trs = GlbMappedParser.decompose(m);
+        float[] n = translation(trs[0], trs[1], trs[2]);
+        n = multiply(n, rotation(trs[3], 1, 0, 0));
+        n = multiply(n, rotation(trs[4], 0, 1, 0));
+        n = multiply(n, rotation(trs[5], 0, 0, 1));
+        n = multiply(n, scale(trs[6], trs[7], trs[8]));
+        assertArrayEquals(m, n, 1e-4f);
+
+        // a shear can't be decomposed
+        final float[] shear = scale(1, 1, 1);
+        shear[4] = 1;
+        assertNull(GlbMappedParser.decompose(shear));
+    }
+
+    private static float[] translation(float x, float y, float z) {
+        final float[] ret = scale(1, 1, 1);
+        ret[12] = x;
+        ret[13] = y;
+        ret[14] = z;
+        return ret;
+    }
+
+    private static float[] scale(float x, float y, float z) {
+        return new float[]{x, 0, 0, 0, 0, y, 0, 0, 0, 0, z, 0, 0, 0, 0, 1};
+    }
+
+    private static float[] rotation(float degrees, int x, int y, int z) {
+        final float c = (float) Math.cos(Math.toRadians(degrees)), s = (float) Math.sin(Math.toRadians(degrees));
+        final float[] ret = scale(1, 1, 1);
+        if (x == 1) { ret[5] = c; ret[6] = s; ret[9] = -s; ret[10] = c; }
+        if (y == 1) { ret[0] = c; ret[2] = -s; ret[8] = s; ret[10] = c; }
+        if (z == 1) { ret[0] = c; ret[1] = s; ret[4] = -s; ret[5] = c; }
+        return ret;
+    }
+
+    private static float[] multiply(float[] a, float[] b) {
+        final float[] ret = new float[16];
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                for (int k = 0; k < 4; k++) ret[col * 4 + row] += a[k * 4 + row] * b[col * 4 + k];
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void readJson_fromStream_readsOnlyTheJsonChunk() throws IOException {
+        final byte[] data = glb("{\"asset\":{\"version\":\"2.0\"},\"extensionsRequired\":[\"EXT_meshopt_compression\"]}", new byte[1024]);
+        final ByteArrayInputStream stream = new ByteArrayInputStream(data);
+
+        final Map<String, Object> json = GlbMappedParser.readJson(stream);
+        assertEquals(GlbMappedParser.readJson(ByteBuffer.wrap(data)), json);
+        assertTrue(GlbMappedParser.isCompressed(json));
+        // the BIN chunk is not read
+        assertEquals(8 + 1024, stream.available());
+
+        try {
+            GlbMappedParser.readJson(new ByteArrayInputStream(new byte[20]));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("GLB"));
+        }
+    }
+
+    @Test
+    public void animatedModel_isNotSupported() throws IOException {
+        final File fox = new File("src/main/assets/models/Fox.glb");
+        if (!fox.isFile()) return;
+
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(fox.toPath()));
+        assertTrue(GlbMappedParser.isGlb(data));
+        assertEquals("animations", GlbMappedParser.getUnsupportedFeature(GlbMappedParser.readJson(data)));
+        try {
+            GlbMappedParser.parse(data);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("animations"));
+        }
+    }
+
+    @Test
+    public void notGlb_fails() {
+        assertFalse(GlbMappedParser.isGlb(ByteBuffer.wrap("solid cube".getBytes(StandardCharsets.US_ASCII))));
+        try {
+            GlbMappedParser.parse(ByteBuffer.wrap(glb("{\"meshes\":[", null)));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Decode throughput of {@link MeshoptDecoder}, on one thread and in parallel across primitives.
+ * <p>
+ * The primitives are generated grids, compressed with the {@link MeshoptEncoder} of the tests.
+ * Throughput is measured in decoded megabytes per second.
+ * </p>
+ */
+public class MeshoptDecoderBenchmark {
+
+    private static final Logger logger = Logger.getLogger(MeshoptDecoderBenchmark.class.getSimpleName());
+
+    private static final int PRIMITIVES = 16;
+    private static final int GRID = 256;
+
+    @Before
+    public void setUp() {
+        // slow: run with ./gradlew test -Pbenchmark
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final List<byte[]> vertices = new ArrayList<>();
+        final List<byte[]> triangles = new ArrayList<>();
+        final byte[] positions = MeshoptDecoderTest.gridPositions(GRID);
+        final int[] indices = MeshoptDecoderTest.gridIndices(GRID);
+        long compressed = 0;
+        for (int i = 0; i < PRIMITIVES; i++) {
+            vertices.add(MeshoptEncoder.encodeVertexBuffer(positions, GRID * GRID, 12));
+            triangles.add(MeshoptEncoder.encodeIndexBuffer(indices));
+            compressed += vertices.get(i).length + triangles.get(i).length;
+        }
+        final long decoded = (long) PRIMITIVES * (positions.length + indices.length * 4L);
+
+        final List<Callable<ByteBuffer>> tasks = new ArrayList<>();
+        for (int i = 0; i < PRIMITIVES; i++) {
+            final byte[] v = vertices.get(i);
+            final byte[] t = triangles.get(i);
+            tasks.add(() -> MeshoptDecoder.decode(ByteBuffer.wrap(v), GRID * GRID, 12, "ATTRIBUTES", null));
+            tasks.add(() -> MeshoptDecoder.decode(ByteBuffer.wrap(t), indices.length, 4, "TRIANGLES", null));
+        }
+
+        logger.info(String.format(Locale.US, "%d primitives, %d triangles, compressed %.1f MB, decoded %.1f MB (ratio %.1f)",
+                PRIMITIVES, PRIMITIVES * indices.length / 3, compressed / 1048576.0, decoded / 1048576.0, (double) decoded / compressed));
+
+        // warm up
+        sequential(tasks);
+        parallel(tasks);
+
+        logger.info(String.format(Locale.US, "%-12s %10s %10s", "threads", "time(ms)", "MB/s"));
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            assertEquals(decoded, sequential(tasks));
+            report("1", start, decoded);
+
+            start = System.nanoTime();
+            assertEquals(decoded, parallel(tasks));
+            report(String.valueOf(ForkJoinPool.commonPool().getParallelism()), start, decoded);
+        }
+    }
+
+    private static long sequential(List<Callable<ByteBuffer>> tasks) throws Exception {
+        long ret = 0;
+        for (Callable<ByteBuffer> task : tasks) ret += task.call().capacity();
+        return ret;
+    }
+
+    private static long parallel(List<Callable<ByteBuffer>> tasks) throws InterruptedException, IOException {
+        long ret = 0;
+        try {
+            for (Future<ByteBuffer> future : ForkJoinPool.commonPool().invokeAll(tasks)) ret += future.get().capacity();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return ret;
+    }
+
+    private static void report(String threads, long start, long bytes) {
+        final double ms = (System.nanoTime() - start) / 1e6;
+        logger.info(String.format(Locale.US, "%-12s %10.1f %10.1f", threads, ms, bytes / 1048576.0 / (ms / 1000)));
+    }
+}
@@ -0,0 +1,232 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+public class MeshoptDecoderTest {
+
+    /**
+     * Grid of size x size vertices, 2 triangles per cell, in row order
+     */
+    static int[] gridIndices(int size) {
+        final int[] ret = new int[(size - 1) * (size - 1) * 6];
+        int i = 0;
+        for (int y = 0; y < size - 1; y++) {
+            for (int x = 0; x < size - 1; x++) {
+                final int v = y * size + x;
+                ret[i++] = v;
+                ret[i++] = v + 1;
+                ret[i++] = v + size;
+                ret[i++] = v + 1;
+                ret[i++] = v + size + 1;
+                ret[i++] = v + size;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Positions of a wavy grid, as little endian floats
+     */
+    static byte[] gridPositions(int size) {
+        final ByteBuffer ret = ByteBuffer.allocate(size * size * 12).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                ret.putFloat(x * 0.1f).putFloat(y * 0.1f).putFloat((float) Math.sin(x * 0.3) * 0.5f);
+            }
+        }
+        return ret.array();
+    }
+
+    /**
+     * @return the triangles, rotated so the smallest index is first (the encoder may rotate them)
+     */
+    private static int[] canonical(int[] indices) {
+        final int[] ret = new int[indices.length];
+        for (int i = 0; i < indices.length; i += 3) {
+            int r = 0;
+            if (indices[i + 1] < indices[i + r]) r = 1;
+            if (indices[i + 2] < indices[i + r]) r = 2;
+            for (int k = 0; k < 3; k++) ret[i + k] = indices[i + (r + k) % 3];
+        }
+        return ret;
+    }
+
+    private static int[] toIntArray(ByteBuffer buffer, int count) {
+        final int[] ret = new int[count];
+        buffer.asIntBuffer().get(ret);
+        return ret;
+    }
+
+    @Test
+    public void vertexBuffer_roundTrip() throws IOException {
+        // several blocks, and the last one is not full
+        final int size = 40;
+        final byte[] positions = gridPositions(size);
+        final byte[] encoded = MeshoptEncoder.encodeVertexBuffer(positions, size * size, 12);
+        assertTrue("grid should compress: " + encoded.length, encoded.length < positions.length);
+
+        final ByteBuffer decoded = MeshoptDecoder.decode(ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN),
+                size * size, 12, "ATTRIBUTES", null);
+
+        final byte[] actual = new byte[positions.length];
+        decoded.get(actual);
+        assertArrayEquals(positions, actual);
+    }
+
+    @Test
+    public void vertexBuffer_randomData() throws IOException {
+        final byte[] data = new byte[1000 * 16];
+        new Random(7).nextBytes(data);
+        final byte[] encoded = MeshoptEncoder.encodeVertexBuffer(data, 1000, 16);
+
+        final ByteBuffer decoded = MeshoptDecoder.decode(ByteBuffer.wrap(encoded), 1000, 16, "ATTRIBUTES", "NONE");
+
+        final byte[] actual = new byte[data.length];
+        decoded.get(actual);
+        assertArrayEquals(data, actual);
+    }
+
+    @Test
+    public void indexBuffer_roundTrip() throws IOException {
+        final int[] grid = gridIndices(30);
+        // some triangles with no shared edges nor vertices, to use the free indices
+        final int[] indices = Arrays.copyOf(grid, grid.length + 9);
+        System.arraycopy(new int[]{500, 20, 7, 899, 3, 640, 12, 13, 14}, 0, indices, grid.length, 9);
+
+        final byte[] encoded = MeshoptEncoder.encodeIndexBuffer(indices);
+        assertTrue("grid should compress: " + encoded.length, encoded.length < indices.length * 2);
+
+        final ByteBuffer decoded = MeshoptDecoder.decode(ByteBuffer.wrap(encoded), indices.length, 4, "TRIANGLES", null);
+        assertArrayEquals(canonical(indices), canonical(toIntArray(decoded, indices.length)));
+
+        // 16 bit
+        final ByteBuffer shorts = MeshoptDecoder.decode(ByteBuffer.wrap(encoded), indices.length, 2, "TRIANGLES", null);
+        assertEquals(indices.length * 2, shorts.capacity());
+        final int[] actual = new int[indices.length];
+        for (int i = 0; i < actual.length; i++) actual[i] = shorts.getShort(i * 2) & 0xFFFF;
+        assertArrayEquals(canonical(indices), canonical(actual));
+    }
+
+    @Test
+    public void indexSequence_roundTrip() throws IOException {
+        final int[] indices = {0, 1, 2, 2, 1, 3, 100000, 5, 100001, 4, 4, 70000};
+        final byte[] encoded = MeshoptEncoder.encodeIndexSequence(indices);
+
+        final ByteBuffer decoded = MeshoptDecoder.decode(ByteBuffer.wrap(encoded), indices.length, 4, "INDICES", null);
+
+        assertArrayEquals(indices, toIntArray(decoded, indices.length));
+    }
+
+    @Test
+    public void filters() throws IOException {
+        // exponential
+        final float[] floats = {1.5f, -3.25f, 1000.125f, 0f, 0.001f, 4};
+        final ByteBuffer exp = ByteBuffer.allocate(floats.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (float value : floats) exp.putInt(MeshoptEncoder.encodeExp(value));
+        final ByteBuffer decoded = MeshoptDecoder.decode(ByteBuffer.wrap(MeshoptEncoder.encodeVertexBuffer(exp.array(), 3, 8)),
+                3, 8, "ATTRIBUTES", "EXPONENTIAL");
+        for (int i = 0; i < floats.length; i++) {
+            assertEquals(floats[i], decoded.getFloat(i * 4), Math.abs(floats[i]) * 1e-6f);
+        }
+
+        // octahedral
+        final float[][] normals = {{0, 0, 1}, {0, 0, -1}, {1, 0, 0}, {0.6f, -0.8f, 0}, {0.48f, 0.6f, -0.64f}};
+        final ByteBuffer oct = ByteBuffer.allocate(normals.length * 4);
+        for (float[] n : normals) oct.put(MeshoptEncoder.encodeOct8(n[0], n[1], n[2]));
+        final ByteBuffer unpacked = MeshoptDecoder.decode(ByteBuffer.wrap(MeshoptEncoder.encodeVertexBuffer(oct.array(), normals.length, 4)),
+                normals.length, 4, "ATTRIBUTES", "OCTAHEDRAL");
+        for (int i = 0; i < normals.length; i++) {
+            for (int c = 0; c < 3; c++) {
+                assertEquals(String.format(Locale.US, "normal %d[%d]", i, c), normals[i][c], unpacked.get(i * 4 + c) / 127f, 0.03f);
+            }
+        }
+    }
+
+    @Test
+    public void corruptData_fails() {
+        final byte[] encoded = MeshoptEncoder.encodeIndexBuffer(gridIndices(10));
+        try {
+            MeshoptDecoder.decode(ByteBuffer.wrap(Arrays.copyOf(encoded, encoded.length - 1)), 9 * 9 * 6, 4, "TRIANGLES", null);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            MeshoptDecoder.decode(ByteBuffer.wrap(new byte[64]), 2, 12, "ATTRIBUTES", null);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("header"));
+        }
+    }
+
+    @Test
+    public void compressedGlb_isDecoded() throws IOException {
+        final int size = 20;
+        final byte[] positions = MeshoptEncoder.encodeVertexBuffer(gridPositions(size), size * size, 12);
+        final int[] indices = gridIndices(size);
+        final byte[] triangles = MeshoptEncoder.encodeIndexBuffer(indices);
+
+        final int indicesOffset = (positions.length + 3) & ~3;
+        final byte[] bin = new byte[indicesOffset + triangles.length];
+        System.arraycopy(positions, 0, bin, 0, positions.length);
+        System.arraycopy(triangles, 0, bin, indicesOffset, triangles.length);
+
+        // views point to the fallback buffer, which has no data
+        final String json = String.format(Locale.US, "{\"asset\":{\"version\":\"2.0\"},"
+                        + "\"extensionsUsed\":[\"EXT_meshopt_compression\"],\"extensionsRequired\":[\"EXT_meshopt_compression\"],"
+                        + "\"meshes\":[{\"primitives\":[{\"attributes\":{\"POSITION\":0},\"indices\":1}]}],"
+                        + "\"accessors\":[{\"bufferView\":0,\"componentType\":5126,\"count\":%d,\"type\":\"VEC3\"},"
+                        + "{\"bufferView\":1,\"componentType\":5125,\"count\":%d,\"type\":\"SCALAR\"}],"
+                        + "\"bufferViews\":[{\"buffer\":1,\"byteLength\":%d,\"byteStride\":12,\"extensions\":{\"EXT_meshopt_compression\":"
+                        + "{\"buffer\":0,\"byteOffset\":0,\"byteLength\":%d,\"byteStride\":12,\"count\":%d,\"mode\":\"ATTRIBUTES\"}}},"
+                        + "{\"buffer\":1,\"byteLength\":%d,\"extensions\":{\"EXT_meshopt_compression\":"
+                        + "{\"buffer\":0,\"byteOffset\":%d,\"byteLength\":%d,\"byteStride\":4,\"count\":%d,\"mode\":\"TRIANGLES\"}}}],"
+                        + "\"buffers\":[{\"byteLength\":%d},{\"byteLength\":%d,\"extensions\":{\"EXT_meshopt_compression\":{\"fallback\":true}}}]}",
+                size * size, indices.length,
+                size * size * 12, positions.length, size * size,
+                indices.length * 4, indicesOffset, triangles.length, indices.length,
+                bin.length, size * size * 12 + indices.length * 4);
+        final ByteBuffer glb = ByteBuffer.wrap(GlbMappedParserTest.glb(json, bin));
+
+        assertTrue(GlbMappedParser.isCompressed(GlbMappedParser.readJson(glb)));
+        final GlbMappedParser.Result result = GlbMappedParser.parse(glb);
+
+        final GlbMappedParser.Primitive primitive = result.getPrimitives().get(0);
+        final FloatBuffer expected = ByteBuffer.wrap(gridPositions(size)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        assertEquals(expected, primitive.getPositions());
+        final IntBuffer actual = primitive.getIndices();
+        final int[] array = new int[actual.limit()];
+        actual.get(array);
+        assertArrayEquals(canonical(indices), canonical(array));
+
+        // decoded buffers are used as they are
+        assertEquals(size * size * 12 + indices.length * 4, result.getDecodedBytes());
+        assertEquals(0, result.getMappedBytes());
+        assertEquals(0, result.getCopiedBytes());
+    }
+
+    @Test
+    public void dracoGlb_isNotSupported() {
+        final String json = "{\"asset\":{\"version\":\"2.0\"},\"extensionsRequired\":[\"KHR_draco_mesh_compression\"]}";
+        try {
+            GlbMappedParser.parse(ByteBuffer.wrap(GlbMappedParserTest.glb(json, null)));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Draco"));
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.the3deer.android.viewer.services.gltf;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Encoder of the meshopt codecs, to generate test data for {@link MeshoptDecoder}.
+ * <p>
+ * It keeps the same state as the decoder (edge and vertex FIFOs), so every triangle is encoded with the
+ * shortest code available, but it's not tuned for compression like the meshoptimizer encoder.
+ * Triangles may be rotated, but the winding is preserved.
+ * </p>
+ */
+final class MeshoptEncoder {
+
+    // same codes as meshoptimizer v1. first entry must be 0, otherwise "next, next, next" would be a reset
+    private static final int[] CODE_AUX_TABLE = {
+            0x00, 0x76, 0x87, 0x56, 0x67, 0x78, 0xa9, 0x86, 0x65, 0x89, 0x68, 0x98, 0x01, 0x69, 0, 0};
+
+    private MeshoptEncoder() {
+    }
+
+    // ------------------------------------------------------------------ vertex codec
+
+    static byte[] encodeVertexBuffer(byte[] vertices, int count, int size) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xA0);
+
+        final byte[] last = Arrays.copyOf(vertices, size);
+        final int blockSize = Math.min((8192 / size) & ~15, 256);
+        for (int offset = 0; offset < count; offset += blockSize) {
+            final int n = Math.min(blockSize, count - offset);
+            final int[] deltas = new int[(n + 15) & ~15];
+            for (int k = 0; k < size; k++) {
+                int p = last[k];
+                for (int i = 0; i < n; i++) {
+                    final int v = vertices[(offset + i) * size + k];
+                    final int d = (byte) (v - p);
+                    deltas[i] = ((d << 1) ^ (d >> 7)) & 0xFF;
+                    p = v;
+                }
+                encodeBytes(out, deltas);
+            }
+            System.arraycopy(vertices, (offset + n - 1) * size, last, 0, size);
+        }
+
+        // first vertex at the end, padded to 32 bytes
+        for (int i = size; i < 32; i++) out.write(0);
+        out.write(vertices, 0, size);
+        return out.toByteArray();
+    }
+
+    private static void encodeBytes(ByteArrayOutputStream out, int[] values) {
+        final int groups = values.length / 16;
+        final byte[] header = new byte[(groups + 3) / 4];
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int g = 0; g < groups; g++) {
+            int nonZero = 0, over2 = 0, over4 = 0;
+            for (int i = 0; i < 16; i++) {
+                final int v = values[g * 16 + i];
+                if (v != 0) nonZero++;
+                if (v >= 3) over2++;
+                if (v >= 15) over4++;
+            }
+            final int bitsLog2;
+            if (nonZero == 0) bitsLog2 = 0;
+            else if (4 + over2 <= 8 + over4 && 4 + over2 < 16) bitsLog2 = 1;
+            else if (8 + over4 < 16) bitsLog2 = 2;
+            else bitsLog2 = 3;
+            header[g / 4] |= (byte) (bitsLog2 << ((g % 4) * 2));
+
+            if (bitsLog2 == 3) {
+                for (int i = 0; i < 16; i++) data.write(values[g * 16 + i]);
+            } else if (bitsLog2 > 0) {
+                final int bits = 1 << bitsLog2;
+                final int mask = (1 << bits) - 1;
+                final int perByte = 8 / bits;
+                final ByteArrayOutputStream extra = new ByteArrayOutputStream();
+                for (int b = 0; b < 16 / perByte; b++) {
+                    int packed = 0;
+                    for (int j = 0; j < perByte; j++) {
+                        final int v = values[g * 16 + b * perByte + j];
+                        packed = (packed << bits) | Math.min(v, mask);
+                        if (v >= mask) extra.write(v);
+                    }
+                    data.write(packed);
+                }
+                data.write(extra.toByteArray(), 0, extra.size());
+            }
+        }
+        out.write(header, 0, header.length);
+        out.write(data.toByteArray(), 0, data.size());
+    }
+
+    // ------------------------------------------------------------------ index codec
+
+    static byte[] encodeIndexBuffer(int[] indices) {
+        final int[] edgeFifo = new int[32];
+        final int[] vertexFifo = new int[16];
+        Arrays.fill(edgeFifo, -1);
+        Arrays.fill(vertexFifo, -1);
+        int edgeOffset = 0, vertexOffset = 0, next = 0;
+        final int[] last = {0};
+
+        final ByteArrayOutputStream codes = new ByteArrayOutputStream();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        for (int i = 0; i < indices.length; i += 3) {
+            final int[] tri = {indices[i], indices[i + 1], indices[i + 2]};
+
+            // first edge in the edge fifo?
+            int fe = -1, rotation = 0;
+            search:
+            for (int e = 0; e < 15; e++) {
+                final int edge = ((edgeOffset - 1 - e) & 15) * 2;
+                for (int r = 0; r < 3; r++) {
+                    if (edgeFifo[edge] == tri[r] && edgeFifo[edge + 1] == tri[(r + 1) % 3]) {
+                        fe = e;
+                        rotation = r;
+                        break search;
+                    }
+                }
+            }
+
+            if (fe >= 0) {
+                final int a = tri[rotation], b = tri[(rotation + 1) % 3], c = tri[(rotation + 2) % 3];
+                final int fc = findVertex(vertexFifo, vertexOffset, c);
+                int fec;
+                if (fc >= 1 && fc < 13) {
+                    fec = fc;
+                } else if (c == next) {
+                    fec = 0;
+                    next++;
+                } else if (c + 1 == last[0]) {
+                    fec = 13;
+                    last[0] = c;
+                } else if (c == last[0] + 1) {
+                    fec = 14;
+                    last[0] = c;
+                } else {
+                    fec = 15;
+                    encodeIndex(data, c, last);
+                }
+                codes.write((fe << 4) | fec);
+                if (fec == 0 || fec >= 13) {
+                    vertexFifo[vertexOffset] = c;
+                    vertexOffset = (vertexOffset + 1) & 15;
+                }
+                edgeOffset = push(edgeFifo, edgeOffset, c, b);
+                edgeOffset = push(edgeFifo, edgeOffset, a, c);
+                continue;
+            }
+
+            // rotate so the first vertex is the next one, if possible
+            rotation = tri[1] == next ? 1 : tri[2] == next ? 2 : 0;
+            final int a = tri[rotation], b = tri[(rotation + 1) % 3], c = tri[(rotation + 2) % 3];
+            final int fb = findVertex(vertexFifo, vertexOffset, b);
+            final int fc = findVertex(vertexFifo, vertexOffset, c);
+            final int fea = a == next ? 0 : 15;
+            if (fea == 0) next++;
+            final int feb = fb >= 0 && fb < 14 ? fb + 1 : b == next ? 0 : 15;
+            if (feb == 0) next++;
+            final int fec = fc >= 0 && fc < 14 ? fc + 1 : c == next ? 0 : 15;
+            if (fec == 0) next++;
+
+            final int codeAux = (feb << 4) | fec;
+            int table = -1;
+            for (int t = 0; t < 14 && fea == 0; t++) {
+                if (CODE_AUX_TABLE[t] == codeAux) table = t;
+            }
+            if (table >= 0) {
+                codes.write(0xF0 | table);
+            } else {
+                codes.write(fea == 0 ? 0xFE : 0xFF);
+                data.write(codeAux);
+            }
+            if (fea == 15) encodeIndex(data, a, last);
+            if (feb == 15) encodeIndex(data, b, last);
+            if (fec == 15) encodeIndex(data, c, last);
+
+            vertexFifo[vertexOffset] = a;
+            vertexOffset = (vertexOffset + 1) & 15;
+            vertexFifo[vertexOffset] = b;
+            vertexOffset = (vertexOffset + (feb == 0 || feb == 15 ? 1 : 0)) & 15;
+            vertexFifo[vertexOffset] = c;
+            vertexOffset = (vertexOffset + (fec == 0 || fec == 15 ? 1 : 0)) & 15;
+
+            edgeOffset = push(edgeFifo, edgeOffset, b, a);
+            edgeOffset = push(edgeFifo, edgeOffset, c, b);
+            edgeOffset = push(edgeFifo, edgeOffset, a, c);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xE1);
+        out.write(codes.toByteArray(), 0, codes.size());
+        out.write(data.toByteArray(), 0, data.size());
+        for (int code : CODE_AUX_TABLE) out.write(code);
+        return out.toByteArray();
+    }
+
+    private static int findVertex(int[] fifo, int offset, int v) {
+        for (int i = 0; i < 16; i++) {
+            if (fifo[(offset - 1 - i) & 15] == v) return i;
+        }
+        return -1;
+    }
+
+    private static int push(int[] fifo, int offset, int a, int b) {
+        fifo[offset * 2] = a;
+        fifo[offset * 2 + 1] = b;
+        return (offset + 1) & 15;
+    }
+
+    private static void encodeIndex(ByteArrayOutputStream out, int index, int[] last) {
+        final int d = index - last[0];
+        encodeVByte(out, (d << 1) ^ (d >> 31));
+        last[0] = index;
+    }
+
+    private static void encodeVByte(ByteArrayOutputStream out, int v) {
+        do {
+            out.write((v & 127) | (Integer.compareUnsigned(v, 127) > 0 ? 128 : 0));
+            v >>>= 7;
+        } while (v != 0);
+    }
+
+    // ------------------------------------------------------------------ index sequence codec
+
+    static byte[] encodeIndexSequence(int[] indices) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xD1);
+        final int[] last = new int[2];
+        for (int index : indices) {
+            // use the closest baseline
+            final int baseline = Math.abs(index - last[0]) <= Math.abs(index - last[1]) ? 0 : 1;
+            final int d = index - last[baseline];
+            encodeVByte(out, (((d << 1) ^ (d >> 31)) << 1) | baseline);
+            last[baseline] = index;
+        }
+        for (int i = 0; i < 4; i++) out.write(0);
+        return out.toByteArray();
+    }
+
+    // ------------------------------------------------------------------ filters
+
+    /**
+     * @return the float as 24 bit mantissa and 8 bit exponent
+     */
+    static int encodeExp(float value) {
+        final int exponent = value == 0 ? 0 : Math.getExponent(value) - 22;
+        final int mantissa = Math.round(value / (float) Math.pow(2, exponent));
+        return (exponent << 24) | (mantissa & 0xFFFFFF);
+    }
+
+    /**
+     * @return the unit vector, octahedral encoded with 8 bits per component
+     */
+    static byte[] encodeOct8(float x, float y, float z) {
+        final float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        float u = x / l1, v = y / l1;
+        if (z < 0) {
+            final float fu = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+            final float fv = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+            u = fu;
+            v = fv;
+        }
+        return new byte[]{(byte) Math.round(u * 127), (byte) Math.round(v * 127), 127, 0};
+    }
+}
@@ -0,0 +1,68 @@
+package org.the3deer.android.viewer.services.lod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.GLES20;
+
+import org.junit.Test;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.viewer.util.MeshSimplifierTest;
+
+import java.nio.IntBuffer;
+
+public class LodChainTest {
+
+    static Object3D grid(int size, float bumps) {
+        final int[] indices = MeshSimplifierTest.gridIndices(size);
+        final Object3D ret = new Object3D(MeshSimplifierTest.gridPositions(size, bumps), IntBuffer.wrap(indices));
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        return ret;
+    }
+
+    @Test
+    public void build_halvesEachLevel() {
+        final Object3D obj = grid(64, 0.02f);
+        final IntBuffer original = obj.getIndexBuffer();
+
+        final LodChain chain = LodChain.build(obj);
+
+        assertNotNull(chain);
+        assertEquals(4, chain.getLevelCount());
+        for (int level = 1; level < chain.getLevelCount(); level++) {
+            assertTrue(chain.getTriangles(level) <= chain.getTriangles(level - 1) / 2 + 1);
+            assertTrue(chain.getError(level) >= chain.getError(level - 1));
+        }
+
+        // switching levels keeps the full detail at hand
+        chain.setLevel(2);
+        assertEquals(chain.getTriangles(2) * 3, obj.getIndexBuffer().limit());
+        assertSame(original, LodChain.getFullDetail(obj));
+        chain.setLevel(0);
+        assertSame(original, obj.getIndexBuffer());
+        assertSame(original, LodChain.getFullDetail(obj));
+    }
+
+    @Test
+    public void build_skipsNonIndexedObjects() {
+        final Object3D obj = new Object3D(MeshSimplifierTest.gridPositions(4, 0));
+        obj.setDrawMode(GLES20.GL_TRIANGLES);
+        assertNull(LodChain.build(obj));
+    }
+
+    @Test
+    public void selectLevel_byDistance() {
+        final float[] errors = {0, 0.001f, 0.004f, 0.016f};
+
+        // close: error of level 1 spans 0.001 * 10 / (2 * 1 * tan(22.5)) = 1.2% of the screen
+        assertEquals(0, LodChain.selectLevel(errors, 10, 1, 45));
+        assertEquals(1, LodChain.selectLevel(errors, 10, 10, 45));
+        assertEquals(2, LodChain.selectLevel(errors, 10, 30, 45));
+        assertEquals(3, LodChain.selectLevel(errors, 10, 1000, 45));
+        // inside the object
+        assertEquals(0, LodChain.selectLevel(errors, 10, -1, 45));
+    }
+}
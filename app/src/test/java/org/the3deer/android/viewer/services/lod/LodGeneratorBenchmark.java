@@ -0,0 +1,83 @@
+package org.the3deer.android.viewer.services.lod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.the3deer.android.engine.model.Object3D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Simplification throughput of {@link LodGenerator}, on one thread and in parallel across meshes.
+ * <p>
+ * The meshes are bumpy grids. Throughput is measured in input triangles per second, and the error
+ * of each level is relative to the size of the mesh.
+ * </p>
+ */
+public class LodGeneratorBenchmark {
+
+    private static final Logger logger = Logger.getLogger(LodGeneratorBenchmark.class.getSimpleName());
+
+    private static final int MESHES = 8;
+    private static final int GRID = 192;
+
+    @Before
+    public void setUp() {
+        // slow: run with ./gradlew test -Pbenchmark
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final List<Object3D> objects = new ArrayList<>();
+        for (int i = 0; i < MESHES; i++) objects.add(LodChainTest.grid(GRID, 0.02f + i * 0.01f));
+        final long triangles = (long) MESHES * (GRID - 1) * (GRID - 1) * 2;
+
+        final ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            // warm up
+            LodGenerator.generate(objects, single);
+
+            logger.info(String.format(Locale.US, "%d meshes, %d triangles", MESHES, triangles));
+            logger.info(String.format(Locale.US, "%-12s %10s %14s", "threads", "time(ms)", "triangles/s"));
+            List<LodChain> chains = null;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                chains = LodGenerator.generate(objects, single);
+                report("1", start, triangles);
+
+                start = System.nanoTime();
+                final List<LodChain> parallel = LodGenerator.generate(objects, ForkJoinPool.commonPool());
+                report(String.valueOf(ForkJoinPool.commonPool().getParallelism()), start, triangles);
+
+                // same result on any number of threads
+                for (int m = 0; m < MESHES; m++) {
+                    for (int level = 0; level < chains.get(m).getLevelCount(); level++) {
+                        assertEquals(chains.get(m).getTriangles(level), parallel.get(m).getTriangles(level));
+                    }
+                }
+            }
+
+            logger.info(String.format(Locale.US, "%-6s %12s %12s", "level", "triangles", "error(%)"));
+            final LodChain chain = chains.get(MESHES - 1);
+            for (int level = 0; level < chain.getLevelCount(); level++) {
+                logger.info(String.format(Locale.US, "%-6d %12d %12.3f", level, chain.getTriangles(level), chain.getError(level) * 100));
+            }
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    private static void report(String threads, long start, long triangles) {
+        final double ms = (System.nanoTime() - start) / 1e6;
+        logger.info(String.format(Locale.US, "%-12s %10.1f %14.0f", threads, ms, triangles / (ms / 1000)));
+    }
+}
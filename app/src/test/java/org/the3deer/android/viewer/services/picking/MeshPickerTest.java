@@ -0,0 +1,33 @@
+package org.the3deer.android.viewer.services.picking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MeshPickerTest {
+
+    @Test
+    public void ray_throughTheCenter_isTheViewDirection() {
+        final float[] ray = MeshPicker.getRay(new float[]{0, 0, 10}, new float[]{0, 0, 0}, 90, 200, 100, 100, 50);
+        assertArrayEquals(new float[]{0, 0, -1}, ray, 1e-6f);
+    }
+
+    @Test
+    public void ray_throughTheCorners() {
+        // tan(45) = 1, aspect 2
+        final float[] topRight = MeshPicker.getRay(new float[]{0, 0, 10}, new float[]{0, 0, 0}, 90, 200, 100, 200, 0);
+        assertArrayEquals(new float[]{2, 1, -1}, topRight, 1e-5f);
+
+        final float[] bottomLeft = MeshPicker.getRay(new float[]{0, 0, 10}, new float[]{0, 0, 0}, 90, 200, 100, 0, 100);
+        assertArrayEquals(new float[]{-2, -1, -1}, bottomLeft, 1e-5f);
+    }
+
+    @Test
+    public void ray_lookingDown_keepsAnUpVector() {
+        final float[] ray = MeshPicker.getRay(new float[]{0, 10, 0}, new float[]{0, 0, 0}, 90, 100, 100, 50, 0);
+        assertEquals(-1, ray[1], 1e-6f);
+        assertEquals(0, ray[0], 1e-6f);
+        assertEquals(1, Math.abs(ray[2]), 1e-5f);
+    }
+}
@@ -0,0 +1,81 @@
+package org.the3deer.android.viewer.services.profiling;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.the3deer.android.viewer.util.JsonParser;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+public class FrameProfilerTest {
+
+    @Test
+    public void percentiles_nearestRank() {
+        final FrameProfiler profiler = new FrameProfiler();
+        profiler.setEnabled(true);
+        assertEquals(-1, profiler.getPercentile(FrameProfiler.CULLING, 50));
+
+        // 1..100 ms, shuffled
+        for (int i = 0; i < 100; i++) {
+            profiler.record(FrameProfiler.CULLING, i, ((i * 37) % 100 + 1) * 1_000_000L);
+        }
+        assertEquals(100, profiler.getCount(FrameProfiler.CULLING));
+        assertEquals(50_000_000L, profiler.getPercentile(FrameProfiler.CULLING, 50));
+        assertEquals(95_000_000L, profiler.getPercentile(FrameProfiler.CULLING, 95));
+        assertEquals(99_000_000L, profiler.getPercentile(FrameProfiler.CULLING, 99));
+        assertEquals(-1, profiler.getPercentiles()[FrameProfiler.LOD][0]);
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        final FrameProfiler profiler = new FrameProfiler();
+        profiler.record(FrameProfiler.FRAME, 0, 16_000_000L);
+        assertEquals(0, profiler.getCount(FrameProfiler.FRAME));
+    }
+
+    @Test
+    public void ring_keepsLatestSamples() {
+        final FrameProfiler profiler = new FrameProfiler();
+        profiler.setEnabled(true);
+        for (int i = 0; i < FrameProfiler.CAPACITY * 2; i++) {
+            profiler.record(FrameProfiler.FRAME, i, i < FrameProfiler.CAPACITY ? 1000 : 2000);
+        }
+        assertEquals(FrameProfiler.CAPACITY, profiler.getCount(FrameProfiler.FRAME));
+        assertEquals(2000, profiler.getPercentile(FrameProfiler.FRAME, 0));
+
+        profiler.clear();
+        assertEquals(0, profiler.getCount(FrameProfiler.FRAME));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void export_chromeTrace() throws Exception {
+        final FrameProfiler profiler = new FrameProfiler();
+        profiler.setEnabled(true);
+        for (int i = 0; i < FrameProfiler.CAPACITY + 2; i++) {
+            profiler.record(FrameProfiler.FRAME, i * 1000L, 500);
+        }
+        profiler.record(FrameProfiler.BATCHING, 5000, 1500);
+
+        final StringWriter writer = new StringWriter();
+        profiler.export(writer);
+
+        final Map<String, Object> trace = (Map<String, Object>) JsonParser.parse(writer.toString());
+        final List<Object> events = (List<Object>) trace.get("traceEvents");
+        assertEquals(FrameProfiler.CAPACITY + 1, events.size());
+
+        // oldest first
+        final Map<String, Object> first = (Map<String, Object>) events.get(0);
+        assertEquals("frame", first.get("name"));
+        assertEquals("X", first.get("ph"));
+        assertEquals(2.0, (Double) first.get("ts"), 0);
+        assertEquals(0.5, (Double) first.get("dur"), 0);
+
+        final Map<String, Object> last = (Map<String, Object>) events.get(events.size() - 1);
+        assertEquals("batching", last.get("name"));
+        assertEquals((double) FrameProfiler.BATCHING, (Double) last.get("tid"), 0);
+        assertEquals(1.5, (Double) last.get("dur"), 0);
+    }
+}
@@ -0,0 +1,75 @@
+package org.the3deer.android.viewer.services.raster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.the3deer.android.engine.model.Object3D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Frame cost of the {@link SoftwareRenderer}, on one thread and on one thread per CPU.
+ * <p>
+ * The scene is a set of bumpy grids. The time of the scene (traversal, matrices, lighting and clipping)
+ * is reported apart from the time of the pixels, since only the second one depends on the size of the image.
+ * </p>
+ */
+public class SoftwareRendererBenchmark {
+
+    private static final Logger logger = Logger.getLogger(SoftwareRendererBenchmark.class.getSimpleName());
+
+    private static final int MESHES = 16;
+    private static final int GRID = 128;
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    @Before
+    public void setUp() {
+        // slow: run with ./gradlew test -Pbenchmark
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final List<Object3D> objects = new ArrayList<>();
+        for (int i = 0; i < MESHES; i++) objects.add(SoftwareRendererTest.grid(GRID, 0.02f + i * 0.005f));
+        final float[] eye = {GRID / 2f, GRID / 2f, GRID * 1.5f};
+        final float[] center = {GRID / 2f, GRID / 2f, 0};
+
+        final ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            final SoftwareRenderer[] renderers = {new SoftwareRenderer(single), new SoftwareRenderer(ForkJoinPool.commonPool())};
+            final String[] threads = {"1", String.valueOf(ForkJoinPool.commonPool().getParallelism())};
+            final RasterImage image = new RasterImage(WIDTH, HEIGHT);
+
+            // warm up
+            for (SoftwareRenderer renderer : renderers) renderer.render(objects, eye, center, 45, 1, 1000, image);
+
+            logger.info(String.format(Locale.US, "%d meshes, %d triangles, %dx%d", MESHES,
+                    renderers[0].getTriangleCount(), WIDTH, HEIGHT));
+            logger.info(String.format(Locale.US, "%-8s %10s %10s %10s", "threads", "scene(ms)", "pixels(ms)", "fps"));
+            for (int r = 0; r < renderers.length; r++) {
+                long scene = 0, pixels = 0;
+                for (int i = 0; i < 10; i++) {
+                    image.clear(0);
+                    renderers[r].render(objects, eye, center, 45, 1, 1000, image);
+                    scene += renderers[r].getSceneTime();
+                    pixels += renderers[r].getRasterTime();
+                }
+                logger.info(String.format(Locale.US, "%-8s %10.2f %10.2f %10.1f", threads[r], scene / 10e6, pixels / 10e6,
+                        1e10 / (scene + pixels)));
+                assertEquals(MESHES, renderers[r].getObjectCount());
+            }
+        } finally {
+            single.shutdown();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.the3deer.android.viewer.services.raster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.GLES20;
+
+import org.junit.Test;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+import org.the3deer.android.viewer.util.MeshSimplifierTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SoftwareRendererTest {
+
+    private static final int SIZE = 64;
+    private static final int BLACK = 0xFF000000;
+    private static final float[] EYE = {0, 0, 10};
+    private static final float[] CENTER = {0, 0, 0};
+    // at the distance of the eye, the view is 20 units high
+    private static final float FOV = 90;
+
+    /**
+     * Square facing the camera, from -half to half, with normals towards the camera
+     */
+    static Object3D square(float half, float z, float[] color) {
+        final Object3D ret = new Object3D(FloatBuffer.wrap(new float[]{
+                -half, -half, z, half, -half, z, half, half, z, -half, half, z}), IntBuffer.wrap(new int[]{0, 1, 2, 0, 2, 3}));
+        ret.setNormalsBuffer(FloatBuffer.wrap(new float[]{0, 0, 1, 0, 0, 1, 0, 0, 1, 0, 0, 1}));
+        ret.setTextureBuffer(FloatBuffer.wrap(new float[]{0, 1, 1, 1, 1, 0, 0, 0}));
+        ret.setColor(color);
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        return ret;
+    }
+
+    static Object3D grid(int size, float bumps) {
+        final Object3D ret = new Object3D(MeshSimplifierTest.gridPositions(size, bumps), IntBuffer.wrap(MeshSimplifierTest.gridIndices(size)));
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        return ret;
+    }
+
+    private static RasterImage render(SoftwareRenderer renderer, List<Object3D> objects) throws InterruptedException {
+        final RasterImage ret = new RasterImage(SIZE, SIZE);
+        ret.clear(BLACK);
+        renderer.render(objects, EYE, CENTER, FOV, 1, 100, ret);
+        return ret;
+    }
+
+    @Test
+    public void square_coversItsPixels() throws Exception {
+        final SoftwareRenderer renderer = new SoftwareRenderer();
+        renderer.setLighting(SoftwareRenderer.UNLIT);
+        // half of the view
+        final RasterImage image = render(renderer, Collections.singletonList(square(5, 0, new float[]{1, 0, 0, 1})));
+
+        int covered = 0;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                final boolean inside = x >= 16 && x < 48 && y >= 16 && y < 48;
+                assertEquals("pixel " + x + "," + y, inside ? 0xFFFF0000 : BLACK, image.getPixel(x, y));
+                if (inside) covered++;
+            }
+        }
+        // no gaps or overlaps along the diagonal
+        assertEquals(32 * 32, covered);
+        assertEquals(2, renderer.getTriangleCount());
+        assertEquals(1, renderer.getObjectCount());
+    }
+
+    @Test
+    public void depth_nearestWins() throws Exception {
+        final SoftwareRenderer renderer = new SoftwareRenderer();
+        renderer.setLighting(SoftwareRenderer.UNLIT);
+        final Object3D near = square(2, 1, new float[]{0, 1, 0, 1});
+        final Object3D far = square(5, -1, new float[]{1, 0, 0, 1});
+
+        // same result in any order
+        for (List<Object3D> objects : Arrays.asList(Arrays.asList(near, far), Arrays.asList(far, near))) {
+            final RasterImage image = render(renderer, objects);
+            assertEquals(0xFF00FF00, image.getPixel(32, 32));
+            assertEquals(0xFFFF0000, image.getPixel(20, 20));
+            assertTrue(image.getDepth(32, 32) < image.getDepth(20, 20));
+        }
+    }
+
+    @Test
+    public void nearPlane_clipsTriangles() throws Exception {
+        final SoftwareRenderer renderer = new SoftwareRenderer();
+        renderer.setLighting(SoftwareRenderer.UNLIT);
+        // floor from behind the camera to the distance
+        final Object3D floor = new Object3D(FloatBuffer.wrap(new float[]{
+                -10, -2, 20, 10, -2, 20, 10, -2, -50, -10, -2, -50}), IntBuffer.wrap(new int[]{0, 1, 2, 0, 2, 3}));
+        floor.setColor(new float[]{0, 0, 1, 1});
+        floor.setDrawMode(GLES20.GL_TRIANGLES);
+
+        final RasterImage image = render(renderer, Collections.singletonList(floor));
+        // one triangle is cut in a smaller triangle, the other in a quad
+        assertEquals(3, renderer.getTriangleCount());
+        // below the horizon only
+        assertEquals(0xFF0000FF, image.getPixel(32, SIZE - 1));
+        assertEquals(BLACK, image.getPixel(32, 0));
+        for (float depth : image.getDepths()) assertTrue(depth >= 0 && depth <= 1);
+    }
+
+    @Test
+    public void lighting_followsNormals() throws Exception {
+        final SoftwareRenderer renderer = new SoftwareRenderer();
+        final Object3D facing = square(5, 0, new float[]{1, 1, 1, 1});
+        assertEquals(0xFFFFFFFF, render(renderer, Collections.singletonList(facing)).getPixel(32, 32));
+
+        // normals at 60 degrees: half the diffuse light
+        final float sin = (float) Math.sin(Math.toRadians(60)), cos = 0.5f;
+        facing.setNormalsBuffer(FloatBuffer.wrap(new float[]{sin, 0, cos, sin, 0, cos, sin, 0, cos, sin, 0, cos}));
+        final int expected = Math.round((0.3f + 0.7f * 0.5f) * 255);
+        assertEquals(expected, render(renderer, Collections.singletonList(facing)).getPixel(32, 32) & 0xFF, 1);
+
+        // the face is still facing the camera
+        renderer.setLighting(SoftwareRenderer.FLAT);
+        assertEquals(0xFFFFFFFF, render(renderer, Collections.singletonList(facing)).getPixel(32, 32));
+    }
+
+    @Test
+    public void texture_isSampled() throws Exception {
+        final SoftwareRenderer renderer = new SoftwareRenderer();
+        renderer.setLighting(SoftwareRenderer.UNLIT);
+        final Object3D obj = square(5, 0, new float[]{1, 1, 1, 1});
+        // red and green quadrants on the top, blue and white on the bottom
+        final int[] quadrants = {0xFF0000FF, 0x00FF00FF, 0x0000FFFF, 0xFFFFFFFF};
+        final byte[] pixels = new byte[8 * 8 * 4];
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                final int rgba = quadrants[(y / 4) * 2 + x / 4];
+                for (int c = 0; c < 4; c++) pixels[(y * 8 + x) * 4 + c] = (byte) (rgba >>> (24 - c * 8));
+            }
+        }
+        renderer.setTexture(obj, new TextureImage(8, 8, pixels));
+
+        final RasterImage image = render(renderer, Collections.singletonList(obj));
+        // the texture coordinates put v = 0 at the top
+        assertEquals(0xFFFF0000, image.getPixel(20, 20));
+        assertEquals(0xFF00FF00, image.getPixel(44, 20));
+        assertEquals(0xFF0000FF, image.getPixel(20, 44));
+        assertEquals(0xFFFFFFFF, image.getPixel(44, 44));
+    }
+
+    @Test
+    public void sameImage_onAnyNumberOfThreads() throws Exception {
+        final List<Object3D> objects = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Object3D grid = grid(24, 0.05f + i * 0.02f);
+            grid.setColor(new float[]{0.2f * i, 0.5f, 1 - 0.2f * i, 1});
+            objects.add(grid);
+        }
+
+        final ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            final RasterImage expected = new RasterImage(200, 150);
+            final RasterImage actual = new RasterImage(200, 150);
+            new SoftwareRenderer(single).render(objects, new float[]{12, 12, 40}, new float[]{12, 12, 0}, 45, 1, 100, expected);
+            new SoftwareRenderer().render(objects, new float[]{12, 12, 40}, new float[]{12, 12, 0}, 45, 1, 100, actual);
+            assertEquals(0, expected.countDifferences(actual, 0));
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void thumbnail_framesTheModel() throws Exception {
+        final Scene scene = new Scene();
+        scene.addObject(grid(32, 0.1f));
+
+        final RasterImage image = new SoftwareRenderer().renderThumbnail(scene, 48, 0);
+        int drawn = 0;
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 48; x++) if (image.getPixel(x, y) != 0) drawn++;
+        }
+        // the model is in the view, and doesn't fill it
+        assertTrue(drawn > 48 * 48 / 4);
+        assertEquals(0, image.getPixel(0, 0));
+    }
+
+    @Test
+    public void ppm_roundTrip() throws Exception {
+        final SoftwareRenderer renderer = new SoftwareRenderer();
+        final RasterImage image = render(renderer, Collections.singletonList(square(5, 0, new float[]{0.2f, 0.6f, 1, 1})));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.writePpm(out);
+        final RasterImage read = RasterImage.readPpm(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(0, image.countDifferences(read, 0));
+
+        // a golden image with small differences still matches within the tolerance
+        read.getPixels()[0] += 2;
+        assertEquals(1, image.countDifferences(read, 1));
+        assertEquals(0, image.countDifferences(read, 2));
+    }
+}
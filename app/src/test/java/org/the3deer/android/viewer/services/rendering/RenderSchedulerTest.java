@@ -0,0 +1,109 @@
+package org.the3deer.android.viewer.services.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.the3deer.android.engine.event.CameraEvent;
+import org.the3deer.android.engine.event.FPSEvent;
+import org.the3deer.android.engine.model.Object3D;
+import org.the3deer.android.engine.model.Scene;
+
+import java.nio.FloatBuffer;
+import java.util.EventObject;
+
+public class RenderSchedulerTest {
+
+    @Test
+    public void staticScene_drawsNoFrames() {
+        final Scene scene = new Scene();
+        scene.addObject(new Object3D(FloatBuffer.allocate(9)));
+
+        final RenderScheduler scheduler = new RenderScheduler();
+        scheduler.setMode(RenderScheduler.ON_DEMAND);
+        assertTrue(scheduler.isOnDemand());
+
+        // first frame
+        assertTrue(scheduler.update(scene));
+        for (int i = 0; i < 100; i++) assertFalse(scheduler.update(scene));
+        assertEquals(1, scheduler.getDrawnFrames());
+        assertEquals(100, scheduler.getIdleFrames());
+
+        // the renderer reports don't count
+        scheduler.onEvent(new FPSEvent(this));
+        assertFalse(scheduler.update(scene));
+
+        // but any other event does
+        scheduler.onEvent(new EventObject(this));
+        assertTrue(scheduler.update(scene));
+        assertFalse(scheduler.update(scene));
+
+        // and a new scene
+        assertTrue(scheduler.update(new Scene()));
+    }
+
+    @Test
+    public void invalidate_requestsOneFrame() {
+        final Scene scene = new Scene();
+        final RenderScheduler scheduler = new RenderScheduler();
+        final int[] requests = {0};
+        scheduler.setListener(() -> requests[0]++);
+        scheduler.update(scene);
+
+        // nothing requested while nothing changes
+        assertFalse(scheduler.update(scene));
+        assertEquals(0, requests[0]);
+
+        scheduler.invalidate();
+        assertEquals(1, requests[0]);
+        assertTrue(scheduler.update(scene));
+        assertFalse(scheduler.update(scene));
+
+        scheduler.setListener(null);
+        scheduler.invalidate();
+        assertEquals(1, requests[0]);
+        assertFalse(scheduler.isAnimated(scene));
+    }
+
+    @Test
+    public void stoppedAnimation_isNotAnimated() {
+        final Scene scene = new Scene();
+        final RenderScheduler scheduler = new RenderScheduler();
+        scheduler.update(scene);
+
+        scene.setActiveAnimation(new Object());
+        assertTrue(scheduler.isAnimated(scene));
+        assertTrue(scheduler.update(scene));
+
+        scene.setActiveAnimation(null);
+        assertFalse(scheduler.isAnimated(scene));
+        assertFalse(scheduler.update(scene));
+    }
+
+    @Test
+    public void cameraEvents_drawWhileTheCameraMoves() {
+        final Scene scene = new Scene();
+        final RenderScheduler scheduler = new RenderScheduler();
+        final int[] requests = {0};
+        scheduler.setListener(() -> requests[0]++);
+        scheduler.update(scene);
+
+        // i.e. inertia: the camera moves on every frame drawn
+        for (int i = 0; i < 3; i++) {
+            scheduler.onEvent(new CameraEvent(this));
+            assertTrue(scheduler.update(scene));
+            assertTrue(scheduler.isAnimated(scene));
+        }
+        assertEquals(3, requests[0]);
+
+        // the camera stopped: the next frame is the last one checked
+        assertFalse(scheduler.update(scene));
+        assertFalse(scheduler.isAnimated(scene));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMode_isRejected() {
+        new RenderScheduler().setMode("sometimes");
+    }
+}
@@ -0,0 +1,159 @@
+package org.the3deer.android.viewer.services.stl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class STLMappedParserTest {
+
+    // unit cube: 8 corners, 12 triangles
+    private static final float[][] CORNERS = {
+            {0, 0, 0}, {1, 0, 0}, {1, 1, 0}, {0, 1, 0},
+            {0, 0, 1}, {1, 0, 1}, {1, 1, 1}, {0, 1, 1}};
+    private static final int[] TRIANGLES = {
+            0, 2, 1, 0, 3, 2, 4, 5, 6, 4, 6, 7,
+            0, 1, 5, 0, 5, 4, 3, 7, 6, 3, 6, 2,
+            0, 4, 7, 0, 7, 3, 1, 2, 6, 1, 6, 5};
+
+    private static ByteBuffer createBinaryCube() {
+        final int triangles = TRIANGLES.length / 3;
+        final ByteBuffer buffer = ByteBuffer.allocate(STLMappedParser.HEADER_SIZE + triangles * STLMappedParser.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        // binary files written by some exporters start with "solid" too
+        buffer.put("solid cube".getBytes());
+        buffer.putInt(80, triangles);
+        buffer.position(STLMappedParser.HEADER_SIZE);
+        for (int t = 0; t < triangles; t++) {
+            // zero normal, so it's calculated
+            buffer.putFloat(0f).putFloat(0f).putFloat(0f);
+            for (int v = 0; v < 3; v++) {
+                final float[] corner = CORNERS[TRIANGLES[t * 3 + v]];
+                buffer.putFloat(corner[0]).putFloat(corner[1]).putFloat(corner[2]);
+            }
+            buffer.putShort((short) 0);
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Test
+    public void binary_isDetectedBySize() {
+        final ByteBuffer buffer = createBinaryCube();
+        assertTrue(STLMappedParser.isBinary(buffer));
+        assertFalse(STLMappedParser.isBinary(ByteBuffer.wrap("solid cube\nendsolid cube\n".getBytes())));
+    }
+
+    @Test
+    public void binary_truncated_isAnError() {
+        final ByteBuffer cube = createBinaryCube();
+        // header of another exporter, and the last triangle is missing
+        cube.put(0, (byte) 'b');
+        final ByteBuffer truncated = ByteBuffer.allocate(cube.limit() - STLMappedParser.RECORD_SIZE);
+        cube.limit(truncated.capacity());
+        truncated.put(cube).flip();
+
+        assertFalse(STLMappedParser.isBinary(truncated));
+        assertFalse(STLMappedParser.isAscii(truncated));
+        try {
+            STLMappedParser.parse(truncated, false);
+            fail("Truncated file parsed");
+        } catch (IOException e) {
+            assertEquals("Truncated binary STL", e.getMessage());
+        }
+    }
+
+    @Test
+    public void binary_unwelded_hasThreeVerticesPerTriangle() throws IOException {
+        final STLMappedParser.Result result = STLMappedParser.parse(createBinaryCube(), false);
+
+        assertEquals(12, result.getTriangleCount());
+        assertEquals(36, result.getVertexCount());
+        assertNull(result.getIndices());
+
+        // first triangle is on the z=0 plane, facing -z
+        assertEquals(-1f, result.getNormals().get(2), 1e-6f);
+    }
+
+    @Test
+    public void binary_welded_isIndexed() throws IOException {
+        final STLMappedParser.Result result = STLMappedParser.parse(createBinaryCube(), true);
+
+        assertEquals(12, result.getTriangleCount());
+        // the edges of the cube are hard: a vertex per corner and face
+        assertEquals(24, result.getVertexCount());
+        assertNotNull(result.getIndices());
+        assertEquals(36, result.getIndices().capacity());
+        for (int i = 0; i < 36; i++) {
+            final int index = result.getIndices().get(i);
+            final float[] expected = CORNERS[TRIANGLES[i]];
+            assertEquals(expected[0], result.getVertices().get(index * 3), 0f);
+            assertEquals(expected[1], result.getVertices().get(index * 3 + 1), 0f);
+            assertEquals(expected[2], result.getVertices().get(index * 3 + 2), 0f);
+        }
+
+        // flat faces, not smoothed across the edges
+        for (int i = 0; i < 36; i += 3) {
+            final int index = result.getIndices().get(i);
+            float length = 0;
+            for (int k = 0; k < 3; k++) {
+                final float n = result.getNormals().get(index * 3 + k);
+                assertTrue(n == 0 || Math.abs(n) == 1);
+                length += n * n;
+            }
+            assertEquals(1f, length, 1e-6f);
+        }
+        assertTrue(result.getMemoryUsage() < STLMappedParser.parse(createBinaryCube(), false).getMemoryUsage());
+    }
+
+    @Test
+    public void binary_mappedFile() throws IOException {
+        final File file = File.createTempFile("cube", ".stl");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            channel.write(createBinaryCube());
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            assertEquals(24, STLMappedParser.parse(mapped, true).getVertexCount());
+        }
+    }
+
+    @Test
+    public void ascii_isParsed() throws IOException {
+        final String stl = "solid t\n facet normal 0 0 1\n  outer loop\n   vertex 0 0 0\n   vertex 1 0 0\n   vertex 1e0 1 0\n  endloop\n endfacet\n"
+                + " facet normal 0 0 1\n  outer loop\n   vertex 0 0 0\n   vertex 1 1 0\n   vertex 0 1 0\n  endloop\n endfacet\nendsolid t\n";
+
+        final STLMappedParser.Result unwelded = STLMappedParser.parseAscii(ByteBuffer.wrap(stl.getBytes()), false);
+        assertEquals(2, unwelded.getTriangleCount());
+        assertEquals(6, unwelded.getVertexCount());
+        assertEquals(1f, unwelded.getNormals().get(2), 1e-6f);
+
+        final STLMappedParser.Result welded = STLMappedParser.parseAscii(ByteBuffer.wrap(stl.getBytes()), true);
+        assertEquals(4, welded.getVertexCount());
+    }
+
+    @Test
+    public void ascii_welded_smoothUnderTheCreaseAngle() throws IOException {
+        // two faces folded by 10 degrees share their edge, two faces folded by 90 don't
+        final float z = (float) Math.tan(Math.toRadians(10));
+        final String stl = "solid t\n"
+                + " facet normal 0 0 1\n  outer loop\n   vertex 0 0 0\n   vertex 1 0 0\n   vertex 0 1 0\n  endloop\n endfacet\n"
+                + " facet normal 0 0 1\n  outer loop\n   vertex 1 0 0\n   vertex 1 1 " + z + "\n   vertex 0 1 0\n  endloop\n endfacet\n"
+                + " facet normal 0 0 1\n  outer loop\n   vertex 0 0 0\n   vertex 0 1 0\n   vertex 0 0 -1\n  endloop\n endfacet\n"
+                + "endsolid t\n";
+
+        final STLMappedParser.Result welded = STLMappedParser.parseAscii(ByteBuffer.wrap(stl.getBytes()), true);
+        assertEquals(3, welded.getTriangleCount());
+        assertEquals(4 + 3, welded.getVertexCount());
+    }
+}
@@ -0,0 +1,151 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+public class WavefrontParallelParserTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    private static List<String> sequential(byte[] data) throws IOException {
+        final List<String> ret = new ArrayList<>();
+        new WavefrontStreamParser(new WavefrontStreamParser.Handler() {
+            @Override
+            public void onMaterialLibrary(String path) {
+            }
+
+            @Override
+            public void onMesh(WavefrontStreamParser.Mesh mesh) {
+                ret.add(describe(mesh));
+            }
+        }).parse(new ByteArrayInputStream(data));
+        return ret;
+    }
+
+    private static List<String> parallel(byte[] data, List<String> delivered) throws IOException {
+        return new WavefrontParallelParser(POOL).parse(ByteBuffer.wrap(data), new WavefrontParallelParser.Listener<String>() {
+            @Override
+            public void onMaterialLibrary(String path) {
+            }
+
+            @Override
+            public String onMesh(WavefrontStreamParser.Mesh mesh) {
+                return describe(mesh);
+            }
+
+            @Override
+            public void onResult(String result) {
+                delivered.add(result);
+            }
+        });
+    }
+
+    private static String describe(WavefrontStreamParser.Mesh mesh) {
+        return mesh.getName() + "|" + mesh.getMaterial()
+                + "|" + Arrays.toString(mesh.getVertices().toArray())
+                + "|" + (mesh.getNormals() != null ? Arrays.toString(mesh.getNormals().toArray()) : null)
+                + "|" + (mesh.getTextures() != null ? Arrays.toString(mesh.getTextures().toArray()) : null)
+                + "|" + Arrays.toString(mesh.getIndices().toArray());
+    }
+
+    private static void assertSameAsSequential(byte[] data) throws IOException {
+        final List<String> expected = sequential(data);
+        final List<String> delivered = new ArrayList<>();
+        final List<String> actual = parallel(data, delivered);
+        assertEquals(expected, actual);
+        assertEquals(expected, delivered);
+    }
+
+    @Test
+    public void groups_withRelativeIndices_areResolvedPerBlock() throws IOException {
+        final String obj = "mtllib a.mtl\n"
+                + "v 0 0 0\nv 1 0 0\nv 1 1 0\n"
+                + "o first\nusemtl red\nf 1 2 3\n"
+                + "v 0 1 0\nvt 0 0\nvt 1 1\n"
+                + "f -4 -2 -1\n"
+                + "g second\nv 2 2 2\nf -1 -2 -3\n"
+                + "usemtl blue\nf 1/1 2/2 3/1\n"
+                + "g empty\n";
+        assertSameAsSequential(obj.getBytes(StandardCharsets.UTF_8));
+        assertEquals(3, sequential(obj.getBytes(StandardCharsets.UTF_8)).size());
+    }
+
+    @Test
+    public void lastLine_withoutNewline() throws IOException {
+        assertSameAsSequential("v 0 0 0\nv 1 0 0\nv 1 1 0\ng a\nf 1 2 3\ng b\nf 3 2 1".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void manyGroups_areDeliveredInOrder() throws IOException {
+        final StringBuilder obj = new StringBuilder();
+        for (int g = 0; g < 200; g++) {
+            obj.append("g group").append(g).append('\n');
+            for (int v = 0; v < 50; v++) {
+                obj.append("v ").append(g).append(' ').append(v).append(" 0\n");
+            }
+            for (int f = 0; f < 48; f++) {
+                obj.append("f -").append(50 - f).append(" -").append(49 - f).append(" -").append(48 - f).append('\n');
+            }
+        }
+        assertSameAsSequential(obj.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void texturesAndMaterials_areParsedInParallel() throws IOException {
+        final StringBuilder obj = new StringBuilder("mtllib a.mtl\n");
+        for (int g = 0; g < 50; g++) {
+            obj.append("g group").append(g).append("\nusemtl material").append(g % 3).append('\n');
+            obj.append("v ").append(g).append(" 0 0\nv ").append(g).append(" 1 0\nv ").append(g).append(" 1 1\n");
+            obj.append("vt 0 0\nvt 1 0\nvt 1 1\n");
+            obj.append("f -3/-3 -2/-2 -1/-1\n");
+        }
+        final byte[] data = obj.toString().getBytes(StandardCharsets.UTF_8);
+        assertSameAsSequential(data);
+
+        final List<String> meshes = parallel(data, new ArrayList<>());
+        assertEquals(50, meshes.size());
+        assertTrue(meshes.get(49), meshes.get(49).startsWith("group49|material1|"));
+        // the texture coordinates of the group
+        assertTrue(meshes.get(0), meshes.get(0).contains("|[0.0, 0.0, 1.0, 0.0, 1.0, 1.0]|"));
+    }
+
+    @Test
+    public void badIndex_throwsIOException() {
+        try {
+            parallel("v 0 0 0\ng a\nf 1 2 3\n".getBytes(StandardCharsets.UTF_8), new ArrayList<>());
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 3"));
+        }
+    }
+
+    @Test
+    public void models_areSameAsSequential() throws IOException {
+        final File[] files = WavefrontStreamParserBenchmark.getModelsDir()
+                .listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".obj"));
+        if (files == null) return;
+        for (File file : files) {
+            final byte[] data = Files.readAllBytes(file.toPath());
+            final List<String> expected = sequential(data);
+            final List<String> actual = parallel(data, new ArrayList<>());
+            assertEquals(file.getName(), expected.size(), actual.size());
+            assertArrayEquals(file.getName(), expected.toArray(), actual.toArray());
+        }
+    }
+}
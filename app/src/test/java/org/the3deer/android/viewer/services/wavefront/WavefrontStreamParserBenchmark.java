@@ -0,0 +1,107 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Throughput benchmark of the {@link WavefrontStreamParser} over the models bundled in the repository.
+ * <p>
+ * Reports MB/s and the bytes allocated per parsed vertex. The files are read into memory first,
+ * so I/O is not measured. The parser is reused between iterations, like the loader does with its
+ * arrays, so the allocation figure is the steady state cost of parsing.
+ * </p>
+ */
+public class WavefrontStreamParserBenchmark {
+
+    private static final Logger logger = Logger.getLogger(WavefrontStreamParserBenchmark.class.getSimpleName());
+
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * Handler that only counts, so the parser itself is measured
+     */
+    private static class CountingHandler implements WavefrontStreamParser.Handler {
+        long vertices;
+
+        @Override
+        public void onMaterialLibrary(String path) {
+        }
+
+        @Override
+        public void onMesh(WavefrontStreamParser.Mesh mesh) {
+            vertices += mesh.getVertexCount();
+        }
+    }
+
+    static File getModelsDir() {
+        // unit tests run from the module directory
+        final File dir = new File("../models");
+        return dir.isDirectory() ? dir : new File("models");
+    }
+
+    @Before
+    public void setUp() {
+        // slow: run with ./gradlew test -Pbenchmark
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        final File[] files = getModelsDir().listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".obj"));
+        if (files == null || files.length == 0) {
+            logger.info("No models found at " + getModelsDir().getAbsolutePath());
+            return;
+        }
+
+        logger.info(String.format(Locale.US, "%-20s %10s %10s %10s %14s", "model", "size(KB)", "vertices", "MB/s", "bytes/vertex"));
+        for (File file : files) {
+            final byte[] data = Files.readAllBytes(file.toPath());
+
+            final CountingHandler handler = new CountingHandler();
+            final WavefrontStreamParser parser = new WavefrontStreamParser(handler);
+            for (int i = 0; i < WARMUP; i++) {
+                parser.parse(new ByteArrayInputStream(data));
+            }
+
+            final long allocatedBefore = getAllocatedBytes();
+            final long start = System.nanoTime();
+            long vertices = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                parser.parse(new ByteArrayInputStream(data));
+                vertices = parser.getVertexCount();
+            }
+            final long elapsed = System.nanoTime() - start;
+            final long allocated = getAllocatedBytes() - allocatedBefore;
+
+            final double mbPerSecond = (data.length / (1024.0 * 1024.0)) * ITERATIONS / (elapsed / 1e9);
+            final double bytesPerVertex = allocated < 0 || vertices == 0 ? Double.NaN : (double) allocated / ITERATIONS / vertices;
+            logger.info(String.format(Locale.US, "%-20s %10d %10d %10.1f %14.1f",
+                    file.getName(), data.length / 1024, vertices, mbPerSecond, bytesPerVertex));
+
+            assertTrue(vertices > 0);
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread, or -1 if not supported by the JVM
+     */
+    private static long getAllocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
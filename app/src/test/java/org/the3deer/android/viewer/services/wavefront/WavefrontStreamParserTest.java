@@ -0,0 +1,130 @@
+package org.the3deer.android.viewer.services.wavefront;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WavefrontStreamParserTest {
+
+    private static class Result {
+        final List<String> names = new ArrayList<>();
+        final List<String> materials = new ArrayList<>();
+        final List<float[]> vertices = new ArrayList<>();
+        final List<float[]> normals = new ArrayList<>();
+        final List<float[]> textures = new ArrayList<>();
+        final List<int[]> indices = new ArrayList<>();
+        String library;
+    }
+
+    private static Result parse(String obj) throws IOException {
+        final Result result = new Result();
+        new WavefrontStreamParser(new WavefrontStreamParser.Handler() {
+            @Override
+            public void onMaterialLibrary(String path) {
+                result.library = path;
+            }
+
+            @Override
+            public void onMesh(WavefrontStreamParser.Mesh mesh) {
+                result.names.add(mesh.getName());
+                result.materials.add(mesh.getMaterial());
+                result.vertices.add(mesh.getVertices().toArray());
+                result.normals.add(mesh.getNormals() != null ? mesh.getNormals().toArray() : null);
+                result.textures.add(mesh.getTextures() != null ? mesh.getTextures().toArray() : null);
+                result.indices.add(mesh.getIndices().toArray());
+            }
+        }).parse(new ByteArrayInputStream(obj.getBytes(StandardCharsets.UTF_8)));
+        return result;
+    }
+
+    @Test
+    public void quad_isTriangulatedAsFan() throws IOException {
+        final Result result = parse("# quad\r\nv 0 0 0\r\nv 1 0 0\r\nv 1 1 0\r\nv 0 1 0\r\nf 1 2 3 4\r\n");
+
+        assertEquals(1, result.indices.size());
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3}, result.indices.get(0));
+        assertArrayEquals(new float[]{0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0}, result.vertices.get(0), 0f);
+        assertNull(result.normals.get(0));
+        assertNull(result.textures.get(0));
+    }
+
+    @Test
+    public void numbers_areParsedInPlace() throws IOException {
+        final Result result = parse("v -1.5 +2.25e1 3E-2\nv 1e+2 .5 -0\nv 123456789012345678901 0.000001 7\nf 1 2 3");
+
+        assertArrayEquals(new float[]{-1.5f, 22.5f, 0.03f, 100f, 0.5f, 0f, 1.2345679e20f, 0.000001f, 7f},
+                result.vertices.get(0), 1e-6f);
+    }
+
+    @Test
+    public void sharedCorners_areWelded() throws IOException {
+        final Result result = parse("v 0 0 0\nv 1 0 0\nv 1 1 0\nvt 0 0\nvt 1 0\nvt 1 1\nvn 0 0 1\n"
+                + "f 1/1/1 2/2/1 3/3/1\nf 1/1/1 3/3/1 2/2/1\nf 1//1 2//1 3//1\n");
+
+        assertEquals(6, result.vertices.get(0).length / 3);
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 1, 3, 4, 5}, result.indices.get(0));
+        assertArrayEquals(new float[]{0, 0, 1, 0, 1, 1, 0, 0, 0, 0, 0, 0}, result.textures.get(0), 0f);
+    }
+
+    @Test
+    public void negativeIndices_areRelative() throws IOException {
+        final Result result = parse("v 0 0 0\nv 1 0 0\nv 1 1 0\nf -3 -2 -1\n");
+
+        assertArrayEquals(new int[]{0, 1, 2}, result.indices.get(0));
+        assertArrayEquals(new float[]{0, 0, 0, 1, 0, 0, 1, 1, 0}, result.vertices.get(0), 0f);
+    }
+
+    @Test
+    public void groupsAndMaterials_splitMeshes() throws IOException {
+        final Result result = parse("mtllib my lib.mtl\nv 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "o first\nusemtl red\nf 1 2 3\nusemtl blue\nf 1 3 4\n"
+                + "g second\nf 2 3 4\n");
+
+        assertEquals("my lib.mtl", result.library);
+        assertEquals(3, result.indices.size());
+        assertEquals("first", result.names.get(0));
+        assertEquals("red", result.materials.get(0));
+        assertEquals("first", result.names.get(1));
+        assertEquals("blue", result.materials.get(1));
+        assertEquals("second", result.names.get(2));
+        assertEquals("blue", result.materials.get(2));
+
+        // global indices are remapped to local indices
+        assertArrayEquals(new int[]{0, 1, 2}, result.indices.get(2));
+        assertArrayEquals(new float[]{1, 0, 0, 1, 1, 0, 0, 1, 0}, result.vertices.get(2), 0f);
+    }
+
+    @Test
+    public void longLines_growTheBuffer() throws IOException {
+        final StringBuilder obj = new StringBuilder();
+        final StringBuilder face = new StringBuilder("f");
+        for (int i = 0; i < 20000; i++) {
+            obj.append("v ").append(i).append(" 0 0\n");
+            face.append(' ').append(i + 1);
+        }
+        obj.append(face);
+
+        final Result result = parse(obj.toString());
+
+        assertEquals(19998 * 3, result.indices.get(0).length);
+    }
+
+    @Test
+    public void badIndex_fails() {
+        try {
+            parse("v 0 0 0\nf 1 2 3\n");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.the3deer.android.viewer.ui.home;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ProgressiveLoaderTest {
+
+    @Test
+    public void fit_keepsDirection_andFramesTheSphere() {
+        final float[] pos = {0, 0, 10};
+        final float[] view = {0, 0, 0};
+
+        ProgressiveLoader.fit(pos, view, new float[]{1, 2, 3}, 5, 60);
+
+        assertArrayEquals(new float[]{1, 2, 3}, view, 0f);
+        // sin(30) = 0.5, so distance = 5 / 0.5 * 1.2
+        assertArrayEquals(new float[]{1, 2, 3 + 12}, pos, 1e-4f);
+    }
+
+    @Test
+    public void fit_diagonalDirection() {
+        final float[] pos = {1, 1, 0};
+        final float[] view = {0, 0, 0};
+
+        ProgressiveLoader.fit(pos, view, new float[]{0, 0, 0}, 1, 60);
+
+        final float distance = (float) Math.sqrt(pos[0] * pos[0] + pos[1] * pos[1] + pos[2] * pos[2]);
+        assertEquals(2.4f, distance, 1e-4f);
+        assertEquals(pos[0], pos[1], 1e-6f);
+        assertEquals(0f, pos[2], 1e-6f);
+    }
+
+    @Test
+    public void fit_cameraAtTarget_looksFromFront() {
+        final float[] pos = {0, 0, 0};
+        final float[] view = {0, 0, 0};
+
+        ProgressiveLoader.fit(pos, view, new float[]{0, 0, 0}, 1, 0);
+
+        // default fov is 45
+        assertArrayEquals(new float[]{0, 0, (float) (1.2 / Math.sin(Math.toRadians(22.5)))}, pos, 1e-4f);
+    }
+}
@@ -0,0 +1,115 @@
+package org.the3deer.android.viewer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class AabbTreeTest {
+
+    /**
+     * Grid of unit boxes on the XZ plane, size x size, 2 units apart
+     */
+    private static float[] boxes(int size) {
+        final float[] ret = new float[size * size * 6];
+        for (int i = 0; i < size * size; i++) {
+            final float x = (i % size) * 2 - size;
+            final float z = (i / size) * 2 - size;
+            ret[i * 6] = x;
+            ret[i * 6 + 1] = 0;
+            ret[i * 6 + 2] = z;
+            ret[i * 6 + 3] = x + 1;
+            ret[i * 6 + 4] = 1;
+            ret[i * 6 + 5] = z + 1;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the center of the box, as an empty box
+     */
+    private static float[] center(float[] boxes, int item) {
+        final float[] ret = new float[6];
+        for (int k = 0; k < 3; k++) {
+            ret[k] = (boxes[item * 6 + k] + boxes[item * 6 + 3 + k]) / 2;
+            ret[k + 3] = ret[k];
+        }
+        return ret;
+    }
+
+    @Test
+    public void frustum_test() {
+        final Frustum frustum = new Frustum();
+        assertTrue(frustum.set(new float[]{0, 0, 10}, new float[]{0, 0, 0}, 45, 1, 1, 100));
+
+        assertEquals(Frustum.INSIDE, frustum.test(new float[]{-1, -1, -1, 1, 1, 1}, 0));
+        // behind the camera, beyond the far plane, and to the side
+        assertEquals(Frustum.OUTSIDE, frustum.test(new float[]{-1, -1, 20, 1, 1, 22}, 0));
+        assertEquals(Frustum.OUTSIDE, frustum.test(new float[]{-1, -1, -200, 1, 1, -198}, 0));
+        assertEquals(Frustum.OUTSIDE, frustum.test(new float[]{50, -1, -1, 52, 1, 1}, 0));
+        // crossing the near plane
+        assertEquals(Frustum.INTERSECTS, frustum.test(new float[]{-1, -1, 8, 1, 1, 10}, 0));
+
+        // no direction
+        assertFalse(frustum.set(new float[]{1, 2, 3}, new float[]{1, 2, 3}, 45, 1, 1, 100));
+    }
+
+    @Test
+    public void cull_isConservative() {
+        final int size = 40;
+        final float[] boxes = boxes(size);
+        final int count = size * size;
+        final AabbTree tree = new AabbTree(boxes, count);
+        assertEquals(count * 2 - 1, tree.getNodeCount());
+
+        final Frustum frustum = new Frustum();
+        final boolean[] visible = new boolean[count];
+        final Random random = new Random(3);
+        for (int i = 0; i < 50; i++) {
+            final float[] eye = {random.nextFloat() * 80 - 40, random.nextFloat() * 20, random.nextFloat() * 80 - 40};
+            final float[] target = {random.nextFloat() * 80 - 40, 0, random.nextFloat() * 80 - 40};
+            frustum.set(eye, target, 45, 1.5f, 0.1f, 30);
+
+            final int visibleCount = tree.cull(frustum, visible);
+
+            // the tests of the tree are tighter than the tests of the items alone (spheres of the items stick out
+            // of the boxes of their parents), but boxes with their center in view are never culled
+            int visibleItems = 0;
+            for (int item = 0; item < count; item++) {
+                if (visible[item]) {
+                    assertTrue(frustum.test(boxes, item * 6) != Frustum.OUTSIDE);
+                    visibleItems++;
+                }
+                if (frustum.test(center(boxes, item), 0) != Frustum.OUTSIDE) assertTrue(visible[item]);
+            }
+            assertEquals(visibleItems, visibleCount);
+            assertTrue(visibleCount < count);
+        }
+    }
+
+    @Test
+    public void update_refitsTheAncestors() {
+        final int size = 8;
+        final float[] boxes = boxes(size);
+        final int count = size * size;
+        final AabbTree tree = new AabbTree(boxes, count);
+        final Frustum frustum = new Frustum();
+        final boolean[] visible = new boolean[count];
+
+        // looking away from the grid
+        frustum.set(new float[]{0, 0, 100}, new float[]{0, 0, 200}, 45, 1, 1, 1000);
+        assertEquals(0, tree.cull(frustum, visible));
+
+        // move the first box in front of the camera
+        tree.update(0, new float[]{-1, -1, 150, 1, 1, 152}, 0);
+        assertEquals(1, tree.cull(frustum, visible));
+        assertTrue(visible[0]);
+
+        // and back
+        tree.update(0, boxes, 0);
+        assertEquals(0, tree.cull(frustum, visible));
+    }
+}
@@ -0,0 +1,138 @@
+package org.the3deer.android.viewer.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MeshOptimizerTest {
+
+    private static final int GRID = 64;
+
+    /**
+     * Grid of GRID x GRID vertices, with the triangles in random order
+     */
+    private static int[] shuffledGrid() {
+        final int[] ret = new int[(GRID - 1) * (GRID - 1) * 6];
+        int i = 0;
+        for (int y = 0; y < GRID - 1; y++) {
+            for (int x = 0; x < GRID - 1; x++) {
+                final int v = y * GRID + x;
+                ret[i++] = v;
+                ret[i++] = v + 1;
+                ret[i++] = v + GRID;
+                ret[i++] = v + 1;
+                ret[i++] = v + GRID + 1;
+                ret[i++] = v + GRID;
+            }
+        }
+        final Random random = new Random(42);
+        for (int t = ret.length / 3 - 1; t > 0; t--) {
+            final int j = random.nextInt(t + 1);
+            for (int k = 0; k < 3; k++) {
+                final int tmp = ret[t * 3 + k];
+                ret[t * 3 + k] = ret[j * 3 + k];
+                ret[j * 3 + k] = tmp;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Bumpy grid, so the clusters face different directions
+     */
+    private static FloatBuffer positions() {
+        final FloatBuffer ret = FloatBuffer.allocate(GRID * GRID * 3);
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                ret.put(x).put(y).put((float) (Math.sin(x * 0.2) * Math.cos(y * 0.2)) * 4);
+            }
+        }
+        ret.position(0);
+        return ret;
+    }
+
+    /**
+     * @return the triangles as strings, rotated so the smallest index goes first, sorted
+     */
+    private static String[] triangles(int[] indices, int[] remap) {
+        final String[] ret = new String[indices.length / 3];
+        for (int t = 0; t < ret.length; t++) {
+            final int[] tri = new int[3];
+            for (int k = 0; k < 3; k++) tri[k] = remap != null ? remap[indices[t * 3 + k]] : indices[t * 3 + k];
+            int r = 0;
+            if (tri[1] < tri[r]) r = 1;
+            if (tri[2] < tri[r]) r = 2;
+            ret[t] = tri[r] + "," + tri[(r + 1) % 3] + "," + tri[(r + 2) % 3];
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    @Test
+    public void analyzeVertexCache() {
+        // a quad: 4 misses, 2 triangles
+        final MeshOptimizer.CacheStats stats = MeshOptimizer.analyzeVertexCache(new int[]{0, 1, 2, 2, 1, 3}, 4, 16);
+        assertEquals(2f, stats.getAcmr(), 0f);
+        assertEquals(1f, stats.getAtvr(), 0f);
+
+        // cache of 3: the second triangle misses vertex 0 again
+        final MeshOptimizer.CacheStats small = MeshOptimizer.analyzeVertexCache(new int[]{0, 1, 2, 3, 4, 0}, 5, 3);
+        assertEquals(6 / 2f, small.getAcmr(), 0f);
+        assertEquals(6 / 5f, small.getAtvr(), 0f);
+    }
+
+    @Test
+    public void optimizeVertexCache_improvesAcmr() {
+        final int[] indices = shuffledGrid();
+        final int vertexCount = GRID * GRID;
+        final MeshOptimizer.CacheStats before = MeshOptimizer.analyzeVertexCache(indices, vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        final int[] optimized = MeshOptimizer.optimizeVertexCache(indices, vertexCount, MeshOptimizer.CACHE_SIZE);
+        final MeshOptimizer.CacheStats after = MeshOptimizer.analyzeVertexCache(optimized, vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        assertTrue("random order should be bad: " + before, before.getAcmr() > 2.5f);
+        assertTrue("optimized order should be good: " + after, after.getAcmr() < 0.9f);
+        assertTrue(after.getAtvr() < 1.8f);
+
+        // same triangles, same winding
+        assertArrayEquals(triangles(indices, null), triangles(optimized, null));
+    }
+
+    @Test
+    public void optimizeOverdraw_keepsTrianglesAndCacheEfficiency() {
+        final int vertexCount = GRID * GRID;
+        final int[] cached = MeshOptimizer.optimizeVertexCache(shuffledGrid(), vertexCount, MeshOptimizer.CACHE_SIZE);
+        final float cachedAcmr = MeshOptimizer.analyzeVertexCache(cached, vertexCount, MeshOptimizer.CACHE_SIZE).getAcmr();
+
+        final int[] sorted = MeshOptimizer.optimizeOverdraw(cached, positions(), vertexCount, MeshOptimizer.CACHE_SIZE,
+                MeshOptimizer.OVERDRAW_THRESHOLD);
+        final MeshOptimizer.CacheStats after = MeshOptimizer.analyzeVertexCache(sorted, vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        assertArrayEquals(triangles(cached, null), triangles(sorted, null));
+        // clusters are cut where the cache allows it
+        assertTrue(after.toString(), after.getAcmr() < cachedAcmr * 1.25f);
+    }
+
+    @Test
+    public void optimizeVertexFetch_numbersVerticesInOrderOfUse() {
+        final int[] indices = {7, 3, 5, 5, 3, 0, 0, 3, 7};
+        final int[] original = indices.clone();
+
+        final int[] remap = MeshOptimizer.optimizeVertexFetch(indices, 9);
+
+        assertArrayEquals(new int[]{0, 1, 2, 2, 1, 3, 3, 1, 0}, indices);
+        // unused vertices go to the end, in their original order
+        assertArrayEquals(new int[]{3, 4, 5, 1, 6, 2, 7, 0, 8}, remap);
+        assertArrayEquals(triangles(original, remap), triangles(indices, null));
+
+        final FloatBuffer values = FloatBuffer.wrap(new float[]{0, 10, 20, 30, 40, 50, 60, 70, 80});
+        final FloatBuffer moved = MeshOptimizer.remapBuffer(values, 1, remap);
+        for (int v = 0; v < 9; v++) assertEquals(values.get(v), moved.get(remap[v]), 0f);
+    }
+}
@@ -0,0 +1,144 @@
+package org.the3deer.android.viewer.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+public class MeshSimplifierTest {
+
+    /**
+     * Grid of size x size vertices, 2 triangles per cell, facing +z
+     */
+    public static int[] gridIndices(int size) {
+        final int[] ret = new int[(size - 1) * (size - 1) * 6];
+        int i = 0;
+        for (int y = 0; y < size - 1; y++) {
+            for (int x = 0; x < size - 1; x++) {
+                final int v = y * size + x;
+                ret[i++] = v;
+                ret[i++] = v + 1;
+                ret[i++] = v + size;
+                ret[i++] = v + 1;
+                ret[i++] = v + size + 1;
+                ret[i++] = v + size;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Height field over the grid
+     *
+     * @param bumps height of the bumps, relative to the size of the grid
+     */
+    public static FloatBuffer gridPositions(int size, float bumps) {
+        final FloatBuffer ret = FloatBuffer.allocate(size * size * 3);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                final double z = Math.sin(x * 6.0 / size) * Math.cos(y * 6.0 / size) * bumps * size;
+                ret.put(x).put(y).put((float) z);
+            }
+        }
+        ret.position(0);
+        return ret;
+    }
+
+    private static float normalZ(int[] indices, int t, FloatBuffer positions) {
+        final int a = indices[t] * 3, b = indices[t + 1] * 3, c = indices[t + 2] * 3;
+        final float ux = positions.get(b) - positions.get(a), uy = positions.get(b + 1) - positions.get(a + 1);
+        final float vx = positions.get(c) - positions.get(a), vy = positions.get(c + 1) - positions.get(a + 1);
+        return ux * vy - uy * vx;
+    }
+
+    @Test
+    public void flatGrid_isSimplifiedWithoutError() {
+        final int size = 32;
+        final int[] indices = gridIndices(size);
+        final FloatBuffer positions = gridPositions(size, 0);
+
+        final MeshSimplifier.Result result = MeshSimplifier.simplify(indices, positions, size * size, indices.length / 8, 0.01f);
+
+        final int[] simplified = result.getIndices();
+        assertTrue("triangles: " + simplified.length / 3, simplified.length <= indices.length / 8);
+        assertEquals(0f, result.getError(), 1e-6f);
+
+        // no triangle flipped, and the area is the same
+        float area = 0;
+        for (int t = 0; t < simplified.length; t += 3) {
+            final float z = normalZ(simplified, t, positions);
+            assertTrue("triangle " + t / 3 + " flipped: " + z, z > 0);
+            area += z / 2;
+        }
+        assertEquals((size - 1) * (size - 1), area, 1e-2f);
+
+        // the border is kept
+        final Set<Integer> used = new HashSet<>();
+        for (int index : simplified) used.add(index);
+        for (int i = 0; i < size; i++) {
+            assertTrue(used.contains(i));
+            assertTrue(used.contains(i * size));
+            assertTrue(used.contains((size - 1) * size + i));
+            assertTrue(used.contains(i * size + size - 1));
+        }
+    }
+
+    @Test
+    public void bumpyGrid_stopsAtTargetError() {
+        final int size = 48;
+        final int[] indices = gridIndices(size);
+        final FloatBuffer positions = gridPositions(size, 0.1f);
+
+        final MeshSimplifier.Result loose = MeshSimplifier.simplify(indices, positions, size * size, 0, 0.02f);
+        final MeshSimplifier.Result strict = MeshSimplifier.simplify(indices, positions, size * size, 0, 0.002f);
+
+        assertTrue(loose.getError() <= 0.02f);
+        assertTrue(strict.getError() <= 0.002f);
+        assertTrue(strict.getIndices().length > loose.getIndices().length);
+        assertTrue(strict.getIndices().length < indices.length);
+    }
+
+    @Test
+    public void seams_areLocked() {
+        // two grids side by side, sharing the positions of the middle column but not the vertices
+        final int size = 16;
+        final int[] grid = gridIndices(size);
+        final FloatBuffer single = gridPositions(size, 0);
+        final FloatBuffer positions = FloatBuffer.allocate(single.limit() * 2);
+        for (int v = 0; v < size * size; v++) positions.put(single.get(v * 3)).put(single.get(v * 3 + 1)).put(0);
+        for (int v = 0; v < size * size; v++) positions.put(single.get(v * 3) + size - 1).put(single.get(v * 3 + 1)).put(0);
+        positions.position(0);
+        final int[] indices = new int[grid.length * 2];
+        for (int i = 0; i < grid.length; i++) {
+            indices[i] = grid[i];
+            indices[grid.length + i] = grid[i] + size * size;
+        }
+
+        final int[] simplified = MeshSimplifier.simplify(indices, positions, size * size * 2, 0, 0.01f).getIndices();
+
+        final Set<Integer> used = new HashSet<>();
+        for (int index : simplified) used.add(index);
+        for (int y = 0; y < size; y++) {
+            assertTrue(used.contains(y * size + size - 1));
+            assertTrue(used.contains(size * size + y * size));
+        }
+    }
+
+    @Test
+    public void simplify_isDeterministic() {
+        final int size = 40;
+        final int[] indices = gridIndices(size);
+        final FloatBuffer positions = gridPositions(size, 0.05f);
+
+        final MeshSimplifier.Result first = MeshSimplifier.simplify(indices, positions, size * size, indices.length / 4, 0.05f);
+        final MeshSimplifier.Result second = MeshSimplifier.simplify(indices, positions, size * size, indices.length / 4, 0.05f);
+
+        assertArrayEquals(first.getIndices(), second.getIndices());
+        assertEquals(first.getError(), second.getError(), 0f);
+    }
+}
@@ -0,0 +1,130 @@
+package org.the3deer.android.viewer.util;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.the3deer.android.viewer.services.wavefront.WavefrontStreamParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Ray casting throughput of {@link TriangleBvh}, against testing all the triangles.
+ * <p>
+ * The meshes are the bundled obj models, and a bumpy grid of 1M triangles. The rays go from a sphere around
+ * the mesh to random points inside its box, like taps on the screen.
+ * </p>
+ */
+public class TriangleBvhBenchmark {
+
+    private static final Logger logger = Logger.getLogger(TriangleBvhBenchmark.class.getSimpleName());
+
+    private static final String MODELS = "src/main/assets/models";
+    private static final int RAYS = 20000;
+
+    @Before
+    public void setUp() {
+        // slow: run with ./gradlew test -Pbenchmark
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        logger.info(String.format(Locale.US, "%-16s %10s %10s %14s %14s %10s", "model", "triangles", "build(ms)",
+                "rays/s", "rays/s (all)", "us/ray"));
+        final File[] files = new File(MODELS).listFiles((dir, name) -> name.endsWith(".obj"));
+        if (files != null) {
+            for (File file : files) {
+                final Mesh mesh = readObj(file);
+                if (mesh.indices.isEmpty()) continue;
+                run(file.getName(), FloatBuffer.wrap(mesh.positions.toArray()), IntBuffer.wrap(mesh.indices.toArray()));
+            }
+        }
+        final int size = 708;
+        run("grid", MeshSimplifierTest.gridPositions(size, 0.05f), IntBuffer.wrap(MeshSimplifierTest.gridIndices(size)));
+    }
+
+    private static void run(String name, FloatBuffer vertices, IntBuffer indices) {
+        // warm up
+        new TriangleBvh(vertices, indices);
+
+        long start = System.nanoTime();
+        final TriangleBvh tree = new TriangleBvh(vertices, indices);
+        final double buildMs = (System.nanoTime() - start) / 1e6;
+
+        final float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < vertices.limit(); i++) {
+            box[i % 3] = Math.min(box[i % 3], vertices.get(i));
+            box[3 + i % 3] = Math.max(box[3 + i % 3], vertices.get(i));
+        }
+        final float[][] rays = rays(box, RAYS);
+        final TriangleBvh.Hit hit = new TriangleBvh.Hit();
+
+        int hits = 0;
+        for (int i = 0; i < RAYS; i++) if (tree.intersect(rays[0], rays[1 + i], Float.MAX_VALUE, hit)) hits++;
+        start = System.nanoTime();
+        for (int i = 0; i < RAYS; i++) tree.intersect(rays[0], rays[1 + i], Float.MAX_VALUE, hit);
+        final double treeSeconds = (System.nanoTime() - start) / 1e9;
+
+        // a few rays are enough for the reference
+        final int all = Math.max(10, RAYS * 1000 / tree.getTriangleCount());
+        start = System.nanoTime();
+        for (int i = 0; i < Math.min(all, RAYS); i++) tree.intersectAll(rays[0], rays[1 + i], Float.MAX_VALUE, hit);
+        final double allSeconds = (System.nanoTime() - start) / 1e9;
+
+        logger.info(String.format(Locale.US, "%-16s %10d %10.1f %14.0f %14.0f %10.2f  (hits: %d%%)", name,
+                tree.getTriangleCount(), buildMs, RAYS / treeSeconds, Math.min(all, RAYS) / allSeconds,
+                treeSeconds * 1e6 / RAYS, hits * 100 / RAYS));
+    }
+
+    /**
+     * @return the origin, and the direction of each ray
+     */
+    private static float[][] rays(float[] box, int count) {
+        final Random random = new Random(1);
+        final float[] size = {box[3] - box[0], box[4] - box[1], box[5] - box[2]};
+        final float radius = (float) Math.sqrt(size[0] * size[0] + size[1] * size[1] + size[2] * size[2]);
+        final float[][] ret = new float[count + 1][];
+        ret[0] = new float[]{box[0] + size[0] / 2, box[1] + size[1] / 2, box[2] + size[2] / 2 + radius * 2};
+        for (int i = 0; i < count; i++) {
+            ret[1 + i] = new float[3];
+            for (int k = 0; k < 3; k++) ret[1 + i][k] = box[k] + random.nextFloat() * size[k] - ret[0][k];
+        }
+        return ret;
+    }
+
+    /**
+     * Read the positions and the triangles of an obj file, all the groups in one mesh
+     */
+    private static Mesh readObj(File file) throws IOException {
+        final Mesh ret = new Mesh();
+        try (InputStream in = new FileInputStream(file)) {
+            new WavefrontStreamParser(new WavefrontStreamParser.Handler() {
+                @Override
+                public void onMaterialLibrary(String path) {
+                }
+
+                @Override
+                public void onMesh(WavefrontStreamParser.Mesh mesh) {
+                    final int offset = ret.positions.size() / 3;
+                    for (int i = 0; i < mesh.getVertices().size(); i++) ret.positions.add(mesh.getVertices().get(i));
+                    for (int i = 0; i < mesh.getIndices().size(); i++) ret.indices.add(offset + mesh.getIndices().get(i));
+                }
+            }).parse(in);
+        }
+        return ret;
+    }
+
+    private static final class Mesh {
+        final FloatArrayList positions = new FloatArrayList();
+        final IntArrayList indices = new IntArrayList();
+    }
+}
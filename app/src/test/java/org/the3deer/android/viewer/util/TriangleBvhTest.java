@@ -0,0 +1,64 @@
+package org.the3deer.android.viewer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+public class TriangleBvhTest {
+
+    @Test
+    public void intersect_matchesAllTriangles() {
+        final int size = 48;
+        final TriangleBvh tree = new TriangleBvh(MeshSimplifierTest.gridPositions(size, 0.1f),
+                IntBuffer.wrap(MeshSimplifierTest.gridIndices(size)));
+        assertEquals((size - 1) * (size - 1) * 2, tree.getTriangleCount());
+
+        final Random random = new Random(7);
+        final TriangleBvh.Hit expected = new TriangleBvh.Hit();
+        final TriangleBvh.Hit actual = new TriangleBvh.Hit();
+        int hits = 0;
+        for (int i = 0; i < 2000; i++) {
+            final float[] origin = {random.nextFloat() * size, random.nextFloat() * size, size};
+            final float[] direction = {random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, -1};
+            final boolean hit = tree.intersectAll(origin, direction, Float.MAX_VALUE, expected);
+            assertEquals("ray " + i, hit, tree.intersect(origin, direction, Float.MAX_VALUE, actual));
+            if (!hit) continue;
+            hits++;
+            assertEquals("ray " + i, expected.getDistance(), actual.getDistance(), 1e-5f);
+        }
+        assertTrue("hits: " + hits, hits > 1000);
+    }
+
+    @Test
+    public void intersect_withoutIndices() {
+        final FloatBuffer vertices = FloatBuffer.wrap(new float[]{
+                0, 0, 0, 1, 0, 0, 0, 1, 0,
+                0, 0, -1, 1, 0, -1, 0, 1, -1});
+        final TriangleBvh tree = new TriangleBvh(vertices, null);
+        final TriangleBvh.Hit hit = new TriangleBvh.Hit();
+
+        assertTrue(tree.intersect(new float[]{0.2f, 0.2f, 2}, new float[]{0, 0, -1}, Float.MAX_VALUE, hit));
+        assertEquals(0, hit.getTriangle());
+        assertEquals(2f, hit.getDistance(), 1e-6f);
+
+        // from behind the first triangle
+        assertTrue(tree.intersect(new float[]{0.2f, 0.2f, -0.5f}, new float[]{0, 0, -1}, Float.MAX_VALUE, hit));
+        assertEquals(1, hit.getTriangle());
+
+        // out of reach
+        assertFalse(tree.intersect(new float[]{0.2f, 0.2f, 2}, new float[]{0, 0, -1}, 1.5f, hit));
+        // miss
+        assertFalse(tree.intersect(new float[]{2, 2, 2}, new float[]{0, 0, -1}, Float.MAX_VALUE, hit));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indexOutOfRange_isRejected() {
+        new TriangleBvh(FloatBuffer.wrap(new float[9]), IntBuffer.wrap(new int[]{0, 1, 3}));
+    }
+}